@@ -0,0 +1,238 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// TestDedicatedServer
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.dennisbijlsma.ferrari3d.DedicatedServer;
+import com.dennisbijlsma.ferrari3d.Ferrari3D;
+import com.dennisbijlsma.ferrari3d.Management;
+import com.dennisbijlsma.ferrari3d.Multiplayer;
+import com.dennisbijlsma.ferrari3d.Player;
+import com.dennisbijlsma.ferrari3d.RemotePlayer;
+import com.dennisbijlsma.ferrari3d.Session;
+import com.dennisbijlsma.ferrari3d.util.CarState;
+import com.dennisbijlsma.ferrari3d.util.Snapshot;
+import com.dennisbijlsma.ferrari3d.util.SnapshotCodec;
+import com.dennisbijlsma.ferrari3d.util.TickProfiler;
+import com.dennisbijlsma.messaging.Message;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the dedicated server and the input of its remote players.
+ */
+public class TestDedicatedServer {
+
+	@Test
+	public void testInput() {
+
+		Session session = new Session(Session.SessionMode.RACE, 3);
+		TestPlayer player = new TestPlayer("a", session);
+
+		int controls = (1 << Player.CONTROL_ACCELERATE) | (1 << Player.CONTROL_LEFT);
+		player.messageReceived(createInputMessage("" + controls, "0", "0"));
+		assertEquals(1, player.getNumReceivedMessages());
+		assertTrue(player.isPressed(Player.CONTROL_ACCELERATE));
+		assertTrue(player.isPressed(Player.CONTROL_LEFT));
+		assertFalse(player.isPressed(Player.CONTROL_BRAKE));
+		assertFalse(player.isPressed(Player.CONTROL_RIGHT));
+
+		// Gear controls are only sent as gear changes
+		player.messageReceived(createInputMessage("" + 0x3F, "0", "0"));
+		assertFalse(player.isPressed(Player.CONTROL_GEAR_UP));
+		assertFalse(player.isPressed(Player.CONTROL_GEAR_DOWN));
+
+		// Invalid messages are ignored
+		player.messageReceived(createInputMessage("x", "0", "0"));
+		player.messageReceived(createInputMessage(null, "0", "0"));
+		assertEquals(2, player.getNumReceivedMessages());
+		assertTrue(player.isPressed(Player.CONTROL_BRAKE));
+	}
+
+	@Test
+	public void testPendingGearChanges() {
+
+		Session session = new Session(Session.SessionMode.RACE, 3);
+		TestPlayer player = new TestPlayer("a", session);
+
+		// Gear changes are applied one per frame, also when they were sent in
+		// a single input message
+		player.messageReceived(createInputMessage("0", "2", "0"));
+		player.messageReceived(createInputMessage("0", "-1", "0"));
+		assertTrue(player.isReleased(Player.CONTROL_GEAR_UP));
+		assertTrue(player.isReleased(Player.CONTROL_GEAR_DOWN));
+		assertTrue(player.isReleased(Player.CONTROL_GEAR_UP));
+		assertFalse(player.isReleased(Player.CONTROL_GEAR_UP));
+		assertFalse(player.isReleased(Player.CONTROL_GEAR_DOWN));
+		assertFalse(player.isReleased(Player.CONTROL_ACCELERATE));
+	}
+
+	@Test
+	public void testReleaseControls() {
+
+		Session session = new Session(Session.SessionMode.RACE, 3);
+		TestPlayer player = new TestPlayer("a", session);
+
+		player.messageReceived(createInputMessage("" + (1 << Player.CONTROL_ACCELERATE), "3", "0"));
+		player.releaseControls();
+		assertFalse(player.isPressed(Player.CONTROL_ACCELERATE));
+		assertFalse(player.isReleased(Player.CONTROL_GEAR_UP));
+	}
+
+	@Test
+	public void testAcknowledgeByInput() {
+
+		Session session = new Session(Session.SessionMode.RACE, 3);
+		Multiplayer multiplayer = Multiplayer.getInstanceForSession(session);
+		RemotePlayer a = new RemotePlayer("a", session, multiplayer);
+		RemotePlayer b = new RemotePlayer("b", session, multiplayer);
+		session.addContestant(a);
+		session.addContestant(b);
+		session.setRoster(Arrays.asList("b", "a"));
+
+		try {
+			SnapshotCodec server = multiplayer.getSnapshotCodec();
+			SnapshotCodec client = new SnapshotCodec();
+			Snapshot snapshot = new Snapshot();
+			Snapshot decoded = new Snapshot();
+
+			// Snapshots are sent as keyframes until they have been acknowledged
+			for (int tick = 1; tick <= 3; tick++) {
+				createSnapshot(snapshot, tick);
+				String encoded = server.encode(snapshot);
+				if (tick == 1) {
+					assertTrue(client.decode(encoded, decoded));
+				}
+			}
+
+			// Player b has received ticks 1 and 2, player a only tick 1. The next
+			// snapshot can only be decoded by a when the acknowledgements are
+			// recorded for the contestant ID of the player that sent them.
+			b.messageReceived(createInputMessage("0", "0", "1"));
+			b.messageReceived(createInputMessage("0", "0", "2"));
+			a.messageReceived(createInputMessage("0", "0", "1"));
+
+			createSnapshot(snapshot, 4);
+			assertTrue(client.decode(server.encode(snapshot), decoded));
+			assertEquals(4, decoded.getTick());
+			assertEquals(1, server.getNumDeltas());
+		} finally {
+			Multiplayer.releaseInstanceForSession(session);
+		}
+	}
+
+	@Test
+	public void testLobby() {
+
+		DedicatedServer server = new DedicatedServer(Session.SessionMode.RACE, 3, 2, 50);
+
+		server.messageReceived(createConnectMessage("a", Ferrari3D.VERSION.toString()));
+		server.messageReceived(createConnectMessage("a", Ferrari3D.VERSION.toString()));
+		server.messageReceived(createConnectMessage("b", "0.0"));
+		assertEquals(1, server.getNumPlayers());
+		assertFalse(server.isStarting());
+
+		server.messageReceived(createDisconnectMessage("a"));
+		assertEquals(0, server.getNumPlayers());
+
+		server.messageReceived(createConnectMessage("c", Ferrari3D.VERSION.toString()));
+		server.messageReceived(createConnectMessage("d", Ferrari3D.VERSION.toString()));
+		assertTrue(server.isStarting());
+
+		// Players that join late do not take part, and clients cannot pause
+		server.messageReceived(createConnectMessage("e", Ferrari3D.VERSION.toString()));
+		Message pause = new Message();
+		pause.setType(Multiplayer.MESSAGE_PAUSE);
+		pause.setParameter("state", "true");
+		server.messageReceived(pause);
+		assertEquals(2, server.getNumPlayers());
+	}
+
+	@Test
+	public void testManagementBeans() throws Exception {
+
+		DedicatedServer server = new DedicatedServer(Session.SessionMode.RACE, 3, 2, 50);
+		Management.register();
+		Management.setDedicatedServer(server);
+
+		try {
+			long start = System.nanoTime();
+			server.getProfiler().record(TickProfiler.Stage.TICK, start);
+			server.getProfiler().record(TickProfiler.Stage.TICK, start);
+
+			MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+			ObjectName engine = new ObjectName("com.dennisbijlsma.ferrari3d:type=Engine");
+			assertEquals(2L, beans.getAttribute(engine, "Ticks"));
+			assertEquals(0, beans.getAttribute(engine, "Contestants"));
+		} finally {
+			Management.setDedicatedServer(null);
+		}
+	}
+
+	private static Message createInputMessage(String controls, String gear, String ack) {
+		Message message = new Message();
+		message.setType(Multiplayer.MESSAGE_INPUT);
+		if (controls != null) {
+			message.setParameter("controls", controls);
+		}
+		message.setParameter("gear", gear);
+		message.setParameter("ack", ack);
+		return message;
+	}
+
+	private static Message createConnectMessage(String id, String version) {
+		Message message = new Message();
+		message.setType(Multiplayer.MESSAGE_CONNECT);
+		message.setParameter("id", id);
+		message.setParameter("car", "Ferrari F2007");
+		message.setParameter("version", version);
+		return message;
+	}
+
+	private static Message createDisconnectMessage(String id) {
+		Message message = new Message();
+		message.setType(Multiplayer.MESSAGE_DISCONNECT);
+		message.setParameter("id", id);
+		return message;
+	}
+
+	private static void createSnapshot(Snapshot snapshot, int tick) {
+		snapshot.clear();
+		snapshot.setSender(Multiplayer.DEDICATED_SERVER_ID);
+		snapshot.setTick(tick);
+		for (int i = 0; i < 2; i++) {
+			CarState state = snapshot.add();
+			state.id = i;
+			state.x = tick * 1.5f;
+			state.z = i * 10f;
+			state.lap = 1;
+		}
+	}
+
+	/**
+	 * Remote player that exposes its controls to the tests.
+	 */
+	private static class TestPlayer extends RemotePlayer {
+
+		public TestPlayer(String name, Session session) {
+			super(name, session, null);
+		}
+
+		public boolean isPressed(int control) {
+			return isControlPressed(control);
+		}
+
+		public boolean isReleased(int control) {
+			return isControlReleased(control);
+		}
+	}
+}
@@ -0,0 +1,32 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// TestGoldenMaster
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.test;
+
+import java.util.List;
+
+import com.dennisbijlsma.ferrari3d.simulation.GoldenMaster;
+import com.dennisbijlsma.ferrari3d.util.Settings;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Compares a fixed set of simulated races against the golden files. When this
+ * test fails after an intended change in behavior, regenerate the files using
+ * {@code GoldenMaster -update}.
+ */
+public class TestGoldenMaster {
+
+	@Test
+	public void testGoldenMaster() throws Exception {
+
+		System.setProperty("java.awt.headless", "true");
+		Settings.getInstance().init();
+
+		List<String> differences = new GoldenMaster(GoldenMaster.DEFAULT_DIR).verify();
+		assertTrue(differences.toString(), differences.isEmpty());
+	}
+}
@@ -0,0 +1,141 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// TestJitterBuffer
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.test;
+
+import java.util.Random;
+
+import com.dennisbijlsma.ferrari3d.util.CarState;
+import com.dennisbijlsma.ferrari3d.util.JitterBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for playing back remote car states.
+ */
+public class TestJitterBuffer {
+
+	private static final float SPEED = 50f;
+	private static final float INTERVAL = 0.1f;
+	private static final float LATENCY = 0.05f;
+	private static final float FRAME = 0.02f;
+
+	@Test
+	public void testInterpolation() {
+
+		JitterBuffer buffer = new JitterBuffer();
+		CarState sampled = new CarState();
+		float previousX = Float.NaN;
+
+		// States every 100 ms, sampled every 20 ms. The jump when the delay is
+		// first adjusted is blended out during the first second.
+		for (int frame = 0; frame < 120; frame++) {
+			float localTime = frame * FRAME;
+			float senderTime = localTime - LATENCY;
+			if ((senderTime >= 0f) && (frame % 5 == 0)) {
+				buffer.add(createState(senderTime), senderTime, localTime);
+			}
+
+			if (buffer.sample(localTime, sampled) && (frame > 60)) {
+				// Constant speed, so the car should move the same distance every frame
+				assertEquals(SPEED * FRAME, sampled.x - previousX, 0.01f);
+				assertTrue(sampled.x < SPEED * (localTime - LATENCY));
+			}
+			previousX = sampled.x;
+		}
+
+		assertEquals(INTERVAL, buffer.getPlayoutDelay(), 0.01f);
+		assertEquals(0f, buffer.getJitter(), 0.001f);
+	}
+
+	@Test
+	public void testExtrapolationIsBounded() {
+
+		JitterBuffer buffer = new JitterBuffer();
+		CarState sampled = new CarState();
+		buffer.add(createState(0f), 0f, LATENCY);
+		buffer.add(createState(INTERVAL), INTERVAL, INTERVAL + LATENCY);
+
+		buffer.sample(1f, sampled);
+		assertTrue(sampled.x > SPEED * INTERVAL);
+		buffer.sample(10f, sampled);
+		assertEquals(SPEED * (INTERVAL + 0.5f), sampled.x, 0.01f);
+	}
+
+	@Test
+	public void testErrorCorrection() {
+
+		JitterBuffer buffer = new JitterBuffer();
+		CarState sampled = new CarState();
+		buffer.add(createState(0f), 0f, 0f);
+		buffer.add(createState(INTERVAL), INTERVAL, INTERVAL);
+		buffer.sample(0.5f, sampled);
+		float extrapolated = sampled.x;
+
+		// The car stopped, so the extrapolated position was too far
+		CarState stopped = createState(INTERVAL);
+		buffer.add(stopped, 0.5f, 0.5f);
+		buffer.sample(0.52f, sampled);
+		assertTrue(sampled.x < extrapolated);
+		assertTrue(sampled.x > stopped.x + 1f);
+
+		for (float t = 0.54f; t < 2f; t += FRAME) {
+			buffer.sample(t, sampled);
+		}
+		assertEquals(stopped.x, sampled.x, 0.01f);
+
+		// Large differences are applied immediately
+		CarState teleported = createState(INTERVAL);
+		teleported.x += 1000f;
+		buffer.add(teleported, 2f, 2f);
+		buffer.add(teleported, 2.1f, 2.1f);
+		buffer.sample(2.5f, sampled);
+		assertEquals(teleported.x, sampled.x, 0.01f);
+	}
+
+	@Test
+	public void testDelayAdaptsToJitter() {
+
+		JitterBuffer buffer = new JitterBuffer();
+		CarState sampled = new CarState();
+		Random random = new Random(1);
+
+		for (int i = 0; i < 100; i++) {
+			float senderTime = i * INTERVAL;
+			float localTime = senderTime + LATENCY + random.nextFloat() * 0.2f;
+			buffer.add(createState(senderTime), senderTime, localTime);
+			buffer.sample(localTime, sampled);
+		}
+
+		assertTrue(buffer.getJitter() > 0.02f);
+		assertTrue(buffer.getPlayoutDelay() > INTERVAL + buffer.getJitter());
+	}
+
+	@Test
+	public void testAngleWrap() {
+
+		JitterBuffer buffer = new JitterBuffer();
+		CarState sampled = new CarState();
+		CarState a = createState(0f);
+		a.orientation = 6.2f;
+		CarState b = createState(INTERVAL);
+		b.orientation = 0.1f;
+		buffer.add(a, 0f, 0f);
+		buffer.add(b, INTERVAL, INTERVAL);
+
+		buffer.sample(INTERVAL + 0.05f, sampled);
+		float expected = 6.2f + (0.1f + 2f * (float) Math.PI - 6.2f) / 2f;
+		assertEquals(expected, sampled.orientation, 0.01f);
+	}
+
+	private static CarState createState(float time) {
+		CarState state = new CarState();
+		state.x = SPEED * time;
+		state.z = 10f;
+		state.speed = SPEED;
+		return state;
+	}
+}
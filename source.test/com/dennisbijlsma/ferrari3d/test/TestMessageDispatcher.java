@@ -0,0 +1,116 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// TestMessageDispatcher
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.dennisbijlsma.ferrari3d.MessageDispatcher;
+import com.dennisbijlsma.ferrari3d.MessageListener;
+import com.dennisbijlsma.ferrari3d.Multiplayer;
+import com.dennisbijlsma.ferrari3d.util.MpscQueue;
+import com.dennisbijlsma.messaging.Message;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for routing received messages to listeners.
+ */
+public class TestMessageDispatcher {
+
+	@Test
+	public void testRouting() {
+
+		MessageDispatcher dispatcher = new MessageDispatcher();
+		Recorder game = new Recorder();
+		Recorder chat = new Recorder();
+		Recorder drone1 = new Recorder();
+		Recorder drone2 = new Recorder();
+		dispatcher.addListener(Multiplayer.MESSAGE_STOP, game);
+		dispatcher.addListener(Multiplayer.MESSAGE_CHAT, game);
+		dispatcher.addListener(Multiplayer.MESSAGE_CHAT, chat);
+		dispatcher.addListener(Multiplayer.MESSAGE_CHAT, chat);
+		dispatcher.addListener(Multiplayer.MESSAGE_UPDATE, 1, drone1);
+		dispatcher.addListener(Multiplayer.MESSAGE_UPDATE, 2, drone2);
+
+		assertEquals(1, dispatcher.dispatch(createMessage(Multiplayer.MESSAGE_STOP), MessageDispatcher.NO_ID));
+		assertEquals(2, dispatcher.dispatch(createMessage(Multiplayer.MESSAGE_CHAT), MessageDispatcher.NO_ID));
+		assertEquals(1, dispatcher.dispatch(createMessage(Multiplayer.MESSAGE_UPDATE), 2));
+		assertEquals(0, dispatcher.dispatch(createMessage(Multiplayer.MESSAGE_UPDATE), 3));
+		assertEquals(0, dispatcher.dispatch(createMessage(Multiplayer.MESSAGE_PAUSE), MessageDispatcher.NO_ID));
+
+		assertEquals(2, game.received.size());
+		assertEquals(1, chat.received.size());
+		assertEquals(0, drone1.received.size());
+		assertEquals(1, drone2.received.size());
+
+		dispatcher.removeListener(game);
+		dispatcher.removeListener(drone2);
+		assertEquals(1, dispatcher.dispatch(createMessage(Multiplayer.MESSAGE_CHAT), MessageDispatcher.NO_ID));
+		assertEquals(0, dispatcher.dispatch(createMessage(Multiplayer.MESSAGE_UPDATE), 2));
+		assertEquals(2, game.received.size());
+	}
+
+	@Test
+	public void testQueueWithMultipleProducers() throws Exception {
+
+		final MpscQueue<Integer> queue = new MpscQueue<Integer>();
+		final int numProducers = 4;
+		final int numElements = 10000;
+		Thread[] producers = new Thread[numProducers];
+		for (int i = 0; i < numProducers; i++) {
+			final int producer = i;
+			producers[i] = new Thread() {
+				public void run() {
+					for (int j = 0; j < numElements; j++) {
+						queue.add(producer * numElements + j);
+					}
+				}
+			};
+			producers[i].start();
+		}
+
+		// Elements from the same producer must be removed in order
+		int[] last = new int[numProducers];
+		for (int i = 0; i < numProducers; i++) {
+			last[i] = -1;
+		}
+		int removed = 0;
+		long deadline = System.currentTimeMillis() + 10000L;
+		while ((removed < numProducers * numElements) && (System.currentTimeMillis() < deadline)) {
+			Integer element = queue.poll();
+			if (element != null) {
+				int producer = element / numElements;
+				assertTrue(element % numElements > last[producer]);
+				last[producer] = element % numElements;
+				removed++;
+			}
+		}
+
+		for (Thread i : producers) {
+			i.join();
+		}
+		assertEquals(numProducers * numElements, removed);
+		assertNull(queue.poll());
+		assertEquals(0, queue.size());
+	}
+
+	private static Message createMessage(String type) {
+		Message message = new Message();
+		message.setType(type);
+		return message;
+	}
+
+	private static class Recorder implements MessageListener {
+
+		private List<Message> received = new ArrayList<Message>();
+
+		public void messageReceived(Message message) {
+			received.add(message);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// TestPeerLink
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.test;
+
+import com.dennisbijlsma.ferrari3d.util.PeerLink;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for measuring the connection with a peer and adapting the send
+ * rate.
+ */
+public class TestPeerLink {
+
+	private static final float NORMAL_RATE = 25f;
+	private static final float MIN_RATE = 5f;
+	private static final float MAX_RATE = 50f;
+
+	@Test
+	public void testRateAdaptsToCongestion() {
+
+		PeerLink link = new PeerLink("a", NORMAL_RATE, MIN_RATE, MAX_RATE);
+		for (int i = 0; i < 10; i++) {
+			link.pongReceived(0.01f, 0f, 1000f);
+		}
+		assertFalse(link.isCongested());
+		assertEquals(NORMAL_RATE, link.getRate(), 0.01f);
+		link.setBattle(true);
+		assertEquals(MAX_RATE, link.getRate(), 0.01f);
+
+		// Loss halves the rate every time it is reported
+		link.pongReceived(0.01f, 0.2f, 1000f);
+		assertTrue(link.isCongested());
+		assertEquals(MAX_RATE / 2f, link.getRate(), 0.01f);
+		for (int i = 0; i < 10; i++) {
+			link.pongReceived(0.01f, 0.2f, 1000f);
+		}
+		assertEquals(MIN_RATE, link.getRate(), 0.01f);
+
+		// Growing round-trip times indicate queueing
+		link.pongReceived(0.01f, 0f, 1000f);
+		assertEquals(MIN_RATE + 0.1f * MAX_RATE, link.getRate(), 0.01f);
+		for (int i = 0; i < 10; i++) {
+			link.pongReceived(1f, 0f, 1000f);
+		}
+		assertTrue(link.isCongested());
+		assertEquals(0.01f, link.getMinRoundTripTime(), 0.001f);
+		assertEquals(MIN_RATE, link.getRate(), 0.01f);
+
+		// The rate recovers once the connection is fine again
+		for (int i = 0; i < 50; i++) {
+			link.pongReceived(0.01f, 0f, 1000f);
+		}
+		assertFalse(link.isCongested());
+		assertEquals(MAX_RATE, link.getRate(), 0.01f);
+	}
+
+	@Test
+	public void testReceiveLoss() {
+
+		PeerLink link = new PeerLink("a", NORMAL_RATE, MIN_RATE, MAX_RATE);
+		assertEquals(0f, link.takeReceiveLoss(), 0.001f);
+		assertEquals(0f, link.takeReceiveThroughput(0f), 0.001f);
+
+		for (int tick = 1; tick <= 10; tick++) {
+			if (tick % 5 != 3) {
+				link.snapshotReceived(tick, 100);
+			}
+		}
+		assertEquals(0.2f, link.takeReceiveLoss(), 0.001f);
+		assertEquals(400f, link.takeReceiveThroughput(2f), 0.001f);
+
+		// Snapshots lost between two measurements are also counted
+		link.snapshotReceived(13, 100);
+		link.snapshotReceived(14, 100);
+		assertEquals(0.5f, link.takeReceiveLoss(), 0.001f);
+		assertEquals(0f, link.takeReceiveLoss(), 0.001f);
+	}
+}
@@ -0,0 +1,93 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// TestProfiler
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.test;
+
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.dennisbijlsma.ferrari3d.Management;
+import com.dennisbijlsma.ferrari3d.util.LatencyHistogram;
+import com.dennisbijlsma.ferrari3d.util.RateMeter;
+import com.dennisbijlsma.ferrari3d.util.TickProfiler;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the game loop profiler.
+ */
+public class TestProfiler {
+
+	@Test
+	public void testPercentiles() {
+		
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0L, histogram.getPercentile(99.0));
+		
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000L);
+		}
+		histogram.record(50000000L);
+		
+		assertEquals(1001L, histogram.getCount());
+		assertEquals(50000000L, histogram.getMax());
+		assertEquals(500000.0, histogram.getPercentile(50.0), 500000.0 / 16.0);
+		assertEquals(990000.0, histogram.getPercentile(99.0), 990000.0 / 16.0);
+		assertEquals(50000000L, histogram.getPercentile(100.0));
+		
+		LatencyHistogram small = new LatencyHistogram();
+		small.record(7L);
+		assertEquals(7L, small.getPercentile(50.0));
+	}
+	
+	@Test
+	public void testRecordStages() throws Exception {
+		
+		TickProfiler profiler = new TickProfiler();
+		long start = System.nanoTime();
+		long time = profiler.record(TickProfiler.Stage.CONTROLS, start);
+		assertTrue(time >= start);
+		profiler.record(TickProfiler.Stage.TICK, start);
+		
+		assertEquals(1L, profiler.getHistogram(TickProfiler.Stage.CONTROLS).getCount());
+		assertEquals(0L, profiler.getHistogram(TickProfiler.Stage.REPLAY).getCount());
+		
+		StringWriter writer = new StringWriter();
+		profiler.dump(writer);
+		String[] lines = writer.toString().trim().split("\n");
+		assertEquals(TickProfiler.Stage.values().length + 1, lines.length);
+		assertTrue(lines[1].startsWith("Controls"));
+		assertEquals(1L, profiler.getTicks().getCount());
+	}
+	
+	@Test
+	public void testRateMeter() throws Exception {
+		RateMeter meter = new RateMeter();
+		meter.add(50L);
+		Thread.sleep(1100L);
+		meter.increment();
+		assertEquals(51L, meter.getCount());
+		assertEquals(46.0, meter.getRate(), 6.0);
+	}
+	
+	@Test
+	public void testManagementBeans() throws Exception {
+		
+		Management.register();
+		Management.register();
+		
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		String domain = "com.dennisbijlsma.ferrari3d";
+		assertEquals(0, server.getAttribute(new ObjectName(domain + ":type=Engine"), "Contestants"));
+		assertEquals(0L, server.getAttribute(new ObjectName(domain + ":type=Network"), "BytesSent"));
+		assertEquals(0.0, server.getAttribute(new ObjectName(domain + ":type=ContentCache"), "HitRate"));
+		assertEquals(TickProfiler.Stage.values().length, server.queryNames(
+				new ObjectName(domain + ":type=Stage,*"), null).size());
+	}
+}
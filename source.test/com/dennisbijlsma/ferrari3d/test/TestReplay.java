@@ -0,0 +1,280 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// TestReplay
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.test;
+
+import java.io.File;
+import java.util.Random;
+
+import com.dennisbijlsma.ferrari3d.ReplayPlayer;
+import com.dennisbijlsma.ferrari3d.util.LapTrace;
+import com.dennisbijlsma.ferrari3d.util.ReplayBuffer;
+import com.dennisbijlsma.ferrari3d.util.ReplayFile;
+import com.dennisbijlsma.ferrari3d.util.ReplayTrack;
+import com.dennisbijlsma.ferrari3d.util.ReplayWriter;
+import com.dennisbijlsma.ferrari3d.util.SessionReplay;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for recording and playing back replays.
+ */
+public class TestReplay {
+
+	@Test
+	public void testReplayTrack() {
+
+		ReplayTrack track = new ReplayTrack(10);
+		float[][] frames = createFrames(95, 1L);
+		for (float[] i : frames) {
+			track.add(i[0], i[1], i[2], i[3], i[4], i[5], (int) i[6]);
+		}
+
+		assertEquals(95, track.getNumFrames());
+		assertTrue(track.getEncodedSize() < 95 * ReplayTrack.NUM_FIELDS * 4 / 2);
+
+		// Sequential access
+		float[] frame = new float[ReplayTrack.NUM_FIELDS];
+		for (int i = 0; i < frames.length; i++) {
+			track.get(i, frame);
+			assertFrameEquals(frames[i], frame);
+		}
+
+		// Random access, including frames in the chunk that is still open
+		int[] order = { 94, 3, 50, 49, 0, 90, 91, 10, 9 };
+		for (int i : order) {
+			track.get(i, frame);
+			assertFrameEquals(frames[i], frame);
+		}
+	}
+
+	@Test
+	public void testSessionReplay() {
+
+		SessionReplay replay = new SessionReplay(25f);
+		replay.addTrack("a", "Ferrari 248");
+		replay.addTrack("b", "Ferrari 248");
+
+		int recorded = 0;
+		for (int i = 0; i < 100; i++) {
+			if (replay.nextFrame(0.02f)) {
+				replay.record(0, i, 0f, 0f, 0f, 0f, 0f, 1);
+				replay.record(1, -i, 0f, 0f, 0f, 0f, 0f, 1);
+				recorded++;
+			}
+		}
+
+		assertEquals(50, recorded);
+		assertEquals(50, replay.getNumFrames());
+		assertEquals(49f / 25f, replay.getDuration(), 0.001f);
+
+		float[] frame = new float[ReplayTrack.NUM_FIELDS];
+		replay.getFrame(0, 10, frame);
+		assertEquals(20f, frame[ReplayTrack.X], 0.001f);
+		replay.getFrame(1, 49, frame);
+		assertEquals(-98f, frame[ReplayTrack.X], 0.001f);
+	}
+
+	@Test
+	public void testReplayBuffer() {
+
+		ReplayBuffer buffer = new ReplayBuffer(new String[] { "a", "b", "c" }, 10f, 2f);
+		SessionReplay replay = new SessionReplay(10f);
+		replay.addTrack("a", "Ferrari 248");
+		replay.addTrack("b", "Ferrari 248");
+		replay.addTrack("c", "Ferrari 248");
+
+		assertEquals(21, buffer.getCapacity());
+		for (int i = 0; i < 50; i++) {
+			assertTrue(buffer.nextFrame(0.1f));
+			for (int j = 0; j < 3; j++) {
+				buffer.record(j, i, j, 0f, 0f, 0f, 0f, j + 1);
+			}
+			replay.addFrame(buffer, buffer.getNumFrames() - 1);
+		}
+
+		assertEquals(21, buffer.getNumFrames());
+		assertEquals(50L, buffer.getRecordedFrames());
+		assertEquals(50, replay.getNumFrames());
+
+		float[] frame = new float[ReplayTrack.NUM_FIELDS];
+		buffer.getFrame(1, 0, frame);
+		assertEquals(29f, frame[ReplayTrack.X], 0.001f);
+		assertEquals(2f, frame[ReplayTrack.GEAR], 0.001f);
+		buffer.getFrame(2, 20, frame);
+		assertEquals(49f, frame[ReplayTrack.X], 0.001f);
+		replay.getFrame(2, 5, frame);
+		assertEquals(5f, frame[ReplayTrack.X], 0.02f);
+		assertEquals(2f, frame[ReplayTrack.Y], 0.02f);
+	}
+
+	@Test
+	public void testFrameTiming() {
+
+		ReplayBuffer buffer = new ReplayBuffer(new String[] { "a" }, 25f, 20f);
+		SessionReplay replay = new SessionReplay(25f);
+		for (int i = 0; i < 600; i++) {
+			buffer.nextFrame(1f / 60f);
+			replay.nextFrame(1f / 60f);
+		}
+
+		assertEquals(250f, buffer.getRecordedFrames(), 1f);
+		assertEquals(250f, replay.getNumFrames(), 1f);
+	}
+
+	@Test
+	public void testReplayFile() throws Exception {
+
+		SessionReplay replay = new SessionReplay(25f);
+		replay.addTrack("a", "Ferrari 248");
+		replay.addTrack("b", "Ferrari 248");
+
+		File file = File.createTempFile("replay", ".f3r");
+		file.deleteOnExit();
+		ReplayWriter writer = new ReplayWriter(file, replay, "Monza", 42L);
+
+		// The writer is started late, the first chunk is written when closing
+		float[][] framesA = createFrames(1100, 1L);
+		float[][] framesB = createFrames(1100, 2L);
+		for (int i = 0; i < framesA.length; i++) {
+			if (i == 300) {
+				writer.start();
+			}
+			replay.nextFrame(0.04f);
+			float[] a = framesA[i];
+			float[] b = framesB[i];
+			replay.record(0, a[0], a[1], a[2], a[3], a[4], a[5], (int) a[6]);
+			replay.record(1, b[0], b[1], b[2], b[3], b[4], b[5], (int) b[6]);
+		}
+
+		writer.close();
+		writer.waitForCompletion();
+
+		ReplayFile replayFile = new ReplayFile(file);
+		assertEquals("Monza", replayFile.getCircuit());
+		assertEquals(42L, replayFile.getSeed());
+		assertEquals(2, replayFile.getNumTracks());
+		assertEquals("b", replayFile.getName(1));
+		assertEquals(1100, replayFile.getNumFrames());
+
+		float[] frame = new float[ReplayTrack.NUM_FIELDS];
+		int[] order = { 1099, 0, 600, 249, 250, 1000, 1001, 3 };
+		for (int i : order) {
+			replayFile.getFrame(0, i, frame);
+			assertFrameEquals(framesA[i], frame);
+			replayFile.getFrame(1, i, frame);
+			assertFrameEquals(framesB[i], frame);
+		}
+	}
+
+	@Test
+	public void testInterpolatedPlayback() {
+
+		SessionReplay replay = new SessionReplay(10f);
+		replay.addTrack("a", "Ferrari 248");
+		for (int i = 0; i < 600; i++) {
+			replay.nextFrame(0.1f);
+			float direction = (i % 2 == 0) ? 3.1f : -3.1f;
+			replay.record(0, i, 0f, -2f * i, direction, 0f, 10f, i / 100);
+		}
+
+		ReplayPlayer player = new ReplayPlayer(replay);
+		float[] state = new float[ReplayTrack.NUM_FIELDS];
+		assertEquals(59.9f, player.getDuration(), 0.001f);
+
+		// Interpolation across a block boundary, angles take the shortest way
+		player.setTime(24.975f);
+		player.getState(0, state);
+		assertEquals(249.75f, state[ReplayTrack.X], 0.02f);
+		assertEquals(-499.5f, state[ReplayTrack.Z], 0.04f);
+		assertEquals(-3.1f - 0.75f * 0.0832f, state[ReplayTrack.DIRECTION], 0.01f);
+		assertEquals(2f, state[ReplayTrack.GEAR], 0.001f);
+
+		// Speed and reverse
+		player.setSpeed(100f);
+		assertEquals(ReplayPlayer.MAX_SPEED, player.getSpeed(), 0.001f);
+		player.setSpeed(0.5f);
+		player.setReverse(true);
+		assertTrue(player.update(1f));
+		player.getState(0, state);
+		assertEquals(244.75f, state[ReplayTrack.X], 0.02f);
+
+		player.setTime(0.2f);
+		assertFalse(player.update(1f));
+		assertEquals(0f, player.getTime(), 0.001f);
+
+		player.setReverse(false);
+		player.setTime(59.5f);
+		assertFalse(player.update(1f));
+		assertEquals(59.9f, player.getTime(), 0.001f);
+	}
+
+	@Test
+	public void testLapTrace() throws Exception {
+
+		ReplayTrack track = new ReplayTrack();
+		float[][] frames = createFrames(600, 3L);
+		for (float[] i : frames) {
+			track.add(i[0], i[1], i[2], i[3], i[4], i[5], (int) i[6]);
+		}
+
+		File dir = new File(System.getProperty("java.io.tmpdir"));
+		File file = LapTrace.getFile(dir, "Monza", "Ferrari 248");
+		file.deleteOnExit();
+		assertEquals("Monza_Ferrari_248.f3g", file.getName());
+		LapTrace.write(file, "Monza", "Ferrari 248", "Player", 23960, track);
+
+		LapTrace trace = new LapTrace(file);
+		assertEquals("Monza", trace.getCircuit());
+		assertEquals("Player", trace.getDriver());
+		assertEquals(23960, trace.getLaptime());
+		assertEquals(600, trace.getNumFrames());
+
+		// Frames are sampled every 40 ms of lap time
+		float[] state = new float[ReplayTrack.NUM_FIELDS];
+		assertTrue(trace.getState(10000, state));
+		assertFrameEquals(frames[250], state);
+		assertTrue(trace.getState(10020, state));
+		assertEquals((frames[250][ReplayTrack.X] + frames[251][ReplayTrack.X]) / 2f,
+				state[ReplayTrack.X], 0.02f);
+		assertTrue(trace.getState(400, state));
+		assertFrameEquals(frames[10], state);
+		assertFalse(trace.getState(30000, state));
+		assertFrameEquals(frames[599], state);
+	}
+
+	private float[][] createFrames(int count, long seed) {
+
+		Random random = new Random(seed);
+		float[][] frames = new float[count][ReplayTrack.NUM_FIELDS];
+		float x = 100f;
+		float z = -250f;
+		float direction = 0f;
+		float speed = 20f;
+		int gear = 2;
+
+		for (int i = 0; i < count; i++) {
+			direction += (random.nextFloat() - 0.5f) * 0.1f;
+			speed = Math.max(0f, speed + (random.nextFloat() - 0.4f) * 2f);
+			x += (float) Math.cos(direction) * speed * 0.04f;
+			z += (float) Math.sin(direction) * speed * 0.04f;
+			gear = (random.nextInt(20) == 0) ? gear + 1 : gear;
+			frames[i] = new float[] { x, 0.5f, z, direction, direction + 0.01f, speed, gear };
+		}
+
+		return frames;
+	}
+
+	private void assertFrameEquals(float[] expected, float[] actual) {
+		assertEquals(expected[ReplayTrack.X], actual[ReplayTrack.X], 0.01f);
+		assertEquals(expected[ReplayTrack.Y], actual[ReplayTrack.Y], 0.01f);
+		assertEquals(expected[ReplayTrack.Z], actual[ReplayTrack.Z], 0.01f);
+		assertEquals(expected[ReplayTrack.DIRECTION], actual[ReplayTrack.DIRECTION], 0.001f);
+		assertEquals(expected[ReplayTrack.ORIENTATION], actual[ReplayTrack.ORIENTATION], 0.001f);
+		assertEquals(expected[ReplayTrack.SPEED], actual[ReplayTrack.SPEED], 0.05f);
+		assertEquals(expected[ReplayTrack.GEAR], actual[ReplayTrack.GEAR], 0.001f);
+	}
+}
@@ -6,11 +6,17 @@
 
 package com.dennisbijlsma.ferrari3d.test;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
 import com.dennisbijlsma.ferrari3d.Session;
+import com.dennisbijlsma.ferrari3d.SessionConfig;
+import com.dennisbijlsma.ferrari3d.util.ArchivedLap;
+import com.dennisbijlsma.ferrari3d.util.SessionArchive;
+import com.dennisbijlsma.ferrari3d.util.Settings;
 import com.dennisbijlsma.ferrari3d.util.Laptime;
 import com.dennisbijlsma.ferrari3d.util.TrackRecord;
 import org.junit.Test;
@@ -37,6 +43,28 @@ public class TestSessionData {
 		assertTrue(session.isFinished());
 	}
 	
+	@Test
+	public void testSessionConfig() {
+		
+		SessionConfig config = new SessionConfig(Settings.getInstance());
+		SessionConfig hard = config.withAI(true, Settings.AI_HARD);
+		assertEquals(Settings.AI_HARD, hard.getAILevel());
+		assertEquals(config.getName(), hard.getName());
+		assertNotSame(config, hard);
+		
+		Session session = new Session(Session.SessionMode.RACE, 3, config);
+		session.setConfig(hard);
+		assertSame(hard, session.getConfig());
+		
+		session.setStarted();
+		try {
+			session.setConfig(config);
+			fail();
+		} catch (IllegalStateException e) {
+			assertSame(hard, session.getConfig());
+		}
+	}
+	
 	@Test
 	public void testLapTime() {
 		
@@ -101,4 +129,82 @@ public class TestSessionData {
 				new Laptime(200, 200, 200), "1.0.0", "01-01-2009");
 		assertEquals(-1, record1.compareTo(record2));
 	}
+	
+	@Test
+	public void testSessionArchive() throws Exception {
+		
+		File dir = File.createTempFile("archive", "");
+		dir.delete();
+		
+		SessionArchive archive = new SessionArchive(dir);
+		archive.addSession("Monza", "RACE", 1000L, null, new String[] { "a", "b" },
+				new String[] { "Ferrari 248", "Ferrari F2007" }, new Laptime[][] {
+				{ new Laptime(30000, 30000, 30000), new Laptime(25000, 28000, 29000) },
+				{ new Laptime(26000, 27000, 28000), new Laptime() }});
+		archive.addSession("Monza", "TIME", 2000L, null, new String[] { "a" },
+				new String[] { "Ferrari 248" }, new Laptime[][] {
+				{ new Laptime(24000, 28000, 29000) }});
+		archive.addSession("Hockenheim", "TIME", 3000L, null, new String[] { "a" },
+				new String[] { "Ferrari 248" }, new Laptime[][] {
+				{ new Laptime(20000, 20000, 20000) }});
+		
+		// Reopen the archive to check that the indexes are rebuilt
+		archive = new SessionArchive(dir);
+		assertEquals(3, archive.getNumSessions());
+		assertEquals(5, archive.getNumLaps());
+		
+		List<ArchivedLap> laps = archive.getFastestLaps("Monza", "Ferrari 248", null, 0L, 0L, 2);
+		assertEquals(2, laps.size());
+		assertEquals(81000, laps.get(0).getLaptime().getTime());
+		assertEquals(1, laps.get(0).getSession());
+		assertEquals(2, laps.get(1).getLap());
+		assertEquals(2000L, laps.get(0).getDate());
+		
+		assertEquals(1, archive.getFastestLaps("Monza", null, "a", 1500L, 0L, 10).size());
+		assertEquals(0, archive.getFastestLaps("Spa", null, null, 0L, 0L, 10).size());
+		assertEquals(81000, archive.getFastestLaps(null, null, "b", 0L, 0L, 10).get(0).getLaptime().getTime());
+		
+		int[] sectors = archive.getSectorTimes(null, null, "a", 0L, 0L, 1);
+		assertEquals(4, sectors.length);
+		assertEquals(20000, sectors[0]);
+		assertEquals(30000, sectors[3]);
+	}
+	
+	@Test
+	public void testSessionArchiveRecovery() throws Exception {
+		
+		File dir = File.createTempFile("archive", "");
+		dir.delete();
+		
+		SessionArchive archive = new SessionArchive(dir);
+		archive.addSession("Monza", "TIME", 1000L, null, new String[] { "a" },
+				new String[] { "Ferrari 248" }, new Laptime[][] {
+				{ new Laptime(24000, 28000, 29000) }});
+		
+		// Simulate a crash while records were being appended
+		appendBytes(new File(dir, "laps.dat"), 20);
+		appendBytes(new File(dir, "names.dat"), 1);
+		appendBytes(new File(dir, "sessions.dat"), 3);
+		
+		archive = new SessionArchive(dir);
+		assertEquals(1, archive.getNumLaps());
+		archive.addSession("Monza", "TIME", 2000L, null, new String[] { "b" },
+				new String[] { "Ferrari 248" }, new Laptime[][] {
+				{ new Laptime(20000, 20000, 20000) }});
+		
+		archive = new SessionArchive(dir);
+		assertEquals(2, archive.getNumSessions());
+		assertEquals(2, archive.getNumLaps());
+		assertEquals(Arrays.asList("Monza", "a", "Ferrari 248", "b"), archive.getNames());
+		List<ArchivedLap> laps = archive.getFastestLaps("Monza", null, "b", 0L, 0L, 10);
+		assertEquals(1, laps.size());
+		assertEquals(60000, laps.get(0).getLaptime().getTime());
+		assertEquals(2000L, laps.get(0).getDate());
+	}
+	
+	private void appendBytes(File file, int count) throws Exception {
+		FileOutputStream out = new FileOutputStream(file, true);
+		out.write(new byte[count]);
+		out.close();
+	}
 }
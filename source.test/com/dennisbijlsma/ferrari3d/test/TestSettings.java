@@ -0,0 +1,106 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// TestSettings
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import com.dennisbijlsma.ferrari3d.Ferrari3D;
+import com.dennisbijlsma.ferrari3d.util.Settings;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for loading the settings file.
+ */
+public class TestSettings {
+
+	@Test
+	public void testLoadOlderSettingsFile() throws Exception {
+
+		Settings settings = Settings.getInstance();
+		File file = settings.getFile().toLocalFile();
+		byte[] original = file.exists() ? readFile(file) : null;
+
+		try {
+			// Settings file as written before the replay, telemetry and
+			// multiplayer settings were added
+			PrintWriter writer = new PrintWriter(file, "UTF-8");
+			writer.println("# Ferrari3D settings");
+			writer.println("");
+			writer.println("version=" + Ferrari3D.VERSION);
+			writer.println("session.name=Test");
+			writer.println("session.car=Ferrari 248");
+			writer.println("session.circuit=Monza");
+			writer.println("session.mode=" + Settings.MODE_RACE);
+			writer.println("session.aiActive=true");
+			writer.println("session.aiLevel=" + Settings.AI_HARD);
+			writer.println("session.laps=5");
+			writer.println("session.splitscreen=false");
+			writer.println("session.namePlayer2=Henk de Vries");
+			writer.println("session.carPlayer2=Ferrari 248");
+			writer.println("settings.language=0");
+			writer.println("settings.units=" + Settings.UNITS_KMH);
+			writer.println("settings.defaultCamera=3");
+			writer.println("settings.enableReplays=true");
+			writer.println("settings.showSAT=true");
+			writer.println("settings.showFramerate=false");
+			writer.println("settings.fullscreen=false");
+			writer.println("settings.resolution=800x600");
+			writer.println("settings.graphics=" + Settings.GRAPHICS_MEDIUM);
+			writer.println("settings.sound=false");
+			writer.println("settings.volume=100");
+			writer.println("settings.controlset=0");
+			writer.println("settings.autoGears=true");
+			writer.println("settings.autoReverse=true");
+			writer.println("multiplayer.mode=" + Settings.MULTIPLAYER_LOCAL);
+			writer.println("multiplayer.server=127.0.0.1");
+			writer.println("multiplayer.session=test");
+			writer.println("config.report=false");
+			writer.println("config.debug=false");
+			writer.close();
+
+			settings.load();
+
+			assertEquals("Test", settings.name);
+			assertEquals(5, settings.laps);
+			assertTrue(settings.enableReplays);
+			assertEquals(25, settings.replayRate);
+			assertEquals(60, settings.replayDuration);
+			assertEquals("", settings.telemetry);
+			assertFalse(settings.textUpdates);
+			assertTrue(settings.udpSnapshots);
+			assertEquals(3, settings.udpRedundancy);
+			assertEquals(0, settings.udpLoss);
+		} finally {
+			if (original != null) {
+				FileOutputStream out = new FileOutputStream(file);
+				out.write(original);
+				out.close();
+			} else {
+				file.delete();
+			}
+		}
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		byte[] contents = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int offset = 0;
+			while (offset < contents.length) {
+				offset += in.read(contents, offset, contents.length - offset);
+			}
+		} finally {
+			in.close();
+		}
+		return contents;
+	}
+}
@@ -0,0 +1,206 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// TestSimulation
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.dennisbijlsma.ferrari3d.Contestant;
+import com.dennisbijlsma.ferrari3d.LapDelta;
+import com.dennisbijlsma.ferrari3d.simulation.LaptimeHistogram;
+import com.dennisbijlsma.ferrari3d.simulation.RaceResult;
+import com.dennisbijlsma.ferrari3d.simulation.RaceStatistics;
+import com.dennisbijlsma.ferrari3d.simulation.RaceSimulation;
+import com.dennisbijlsma.ferrari3d.simulation.SimulatedCar;
+import com.dennisbijlsma.ferrari3d.simulation.SimulatedCircuit;
+import com.dennisbijlsma.ferrari3d.simulation.SimulationFarm;
+import com.dennisbijlsma.ferrari3d.simulation.SimulationListener;
+import com.dennisbijlsma.ferrari3d.simulation.SweepParameter;
+import com.dennisbijlsma.ferrari3d.simulation.SweepResults;
+import com.dennisbijlsma.ferrari3d.simulation.WorkUnit;
+import com.dennisbijlsma.ferrari3d.util.Laptime;
+import com.dennisbijlsma.ferrari3d.util.Settings;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the headless simulation classes.
+ */
+public class TestSimulation {
+
+	@Test
+	public void testHistogramStatistics() {
+
+		LaptimeHistogram histogram = new LaptimeHistogram(60000, 120000, 1000);
+		histogram.add(80000);
+		histogram.add(90000);
+		histogram.add(100000);
+
+		assertEquals(3L, histogram.getCount());
+		assertEquals(90000.0, histogram.getMean(), 0.001);
+		assertEquals(10000.0, histogram.getStandardDeviation(), 0.001);
+		assertEquals(80000, histogram.getFastest());
+		assertEquals(100000, histogram.getSlowest());
+		assertEquals(91000, histogram.getPercentile(0.5f));
+	}
+
+	@Test
+	public void testMergeHistograms() {
+
+		LaptimeHistogram a = new LaptimeHistogram(60000, 120000, 1000);
+		LaptimeHistogram b = new LaptimeHistogram(60000, 120000, 1000);
+		LaptimeHistogram all = new LaptimeHistogram(60000, 120000, 1000);
+
+		for (int i = 0; i < 10; i++) {
+			a.add(70000 + i * 500);
+			all.add(70000 + i * 500);
+			b.add(90000 + i * 700);
+			all.add(90000 + i * 700);
+		}
+		a.merge(b);
+
+		assertEquals(all.getCount(), a.getCount());
+		assertEquals(all.getMean(), a.getMean(), 0.001);
+		assertEquals(all.getStandardDeviation(), a.getStandardDeviation(), 0.001);
+		assertEquals(all.getPercentile(0.9f), a.getPercentile(0.9f));
+	}
+
+	@Test
+	public void testWriteStatistics() throws Exception {
+
+		Settings.getInstance().init();
+		SimulatedCircuit circuit = SimulatedCircuit.load("Monza");
+		RaceSimulation simulation = new RaceSimulation(circuit, "Ferrari 248",
+				SimulatedCar.loadCarInfo("Ferrari 248"), 3, 1, Settings.AI_EASY);
+
+		RaceStatistics stats = new RaceStatistics(3);
+		stats.add(simulation.run(1L));
+		stats.add(simulation.run(2L));
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		stats.write(new DataOutputStream(buffer));
+		RaceStatistics read = RaceStatistics.read(new DataInputStream(
+				new ByteArrayInputStream(buffer.toByteArray())));
+
+		assertEquals(2L, read.getNumRaces());
+		assertEquals(stats.getWinProbabilityByGrid(0), read.getWinProbabilityByGrid(0), 0f);
+		assertEquals(stats.getLaptimes().getCount(), read.getLaptimes().getCount());
+		assertEquals(stats.getLaptimes().getMean(), read.getLaptimes().getMean(), 0.0);
+		assertEquals(stats.getLaptimes().getPercentile(0.5f), read.getLaptimes().getPercentile(0.5f));
+	}
+
+	@Test
+	public void testRacesAreReproducible() throws Exception {
+
+		Settings.getInstance().init();
+		SimulatedCircuit circuit = SimulatedCircuit.load("Monza");
+		RaceSimulation simulation = new RaceSimulation(circuit, "Ferrari 248",
+				SimulatedCar.loadCarInfo("Ferrari 248"), 4, 1, Settings.AI_NORMAL);
+
+		RaceResult first = simulation.run(42L);
+		RaceResult second = simulation.run(42L);
+
+		assertTrue(first.isCompleted());
+		assertEquals(first.getSimulatedTime(), second.getSimulatedTime(), 0f);
+		for (int i = 0; i < first.getNumEntries(); i++) {
+			assertEquals(first.getEntry(i).getName(), second.getEntry(i).getName());
+			assertEquals(first.getEntry(i).getPosition(), second.getEntry(i).getPosition());
+		}
+	}
+
+	@Test
+	public void testLapDelta() throws Exception {
+
+		Settings.getInstance().init();
+		SimulatedCircuit circuit = SimulatedCircuit.load("Monza");
+		RaceSimulation simulation = new RaceSimulation(circuit, "Ferrari 248",
+				SimulatedCar.loadCarInfo("Ferrari 248"), 2, 4, Settings.AI_NORMAL);
+
+		// The delta at the end of the third lap should match the difference
+		// between the second and third lap times
+		final LapDelta[] lapDelta = new LapDelta[1];
+		final int[] result = { 0, 0, 0 };
+		SimulationListener listener = new SimulationListener() {
+			public void tickSimulated(int tick, Contestant[] cars) {
+				if (lapDelta[0] == null) {
+					lapDelta[0] = new LapDelta(cars[0]);
+				}
+				int lap = cars[0].getLap();
+				if ((lap == 4) && (result[0] == 0)) {
+					result[0] = lapDelta[0].getDelta();
+					result[1] = cars[0].getLaptime(2).getTime();
+					result[2] = cars[0].getLaptime(3).getTime();
+				}
+				lapDelta[0].update();
+				if (lap == 2) {
+					assertFalse(lapDelta[0].isAvailable());
+				}
+			}
+		};
+		simulation.run(1L, listener);
+
+		assertTrue(lapDelta[0].getCircuitLength() > 4000f);
+		assertEquals(result[1], lapDelta[0].getReferenceTime());
+		assertEquals(result[2] - result[1], result[0], 100);
+	}
+
+	@Test
+	public void testSweepParameter() {
+
+		SweepParameter drag = SweepParameter.parse("drag=0.1:0.3:0.05");
+		assertEquals(5, drag.getNumValues());
+		assertEquals(0.3f, drag.getValue(4), 0.0001f);
+
+		SweepParameter gears = SweepParameter.parse("gears=6:7:1");
+		assertEquals(2, gears.getNumValues());
+		assertEquals("7", gears.formatValue(1));
+	}
+
+	@Test
+	public void testSweepResultsFile() throws Exception {
+
+		SweepResults results = new SweepResults(new String[] { "engineBHP", "mass" }, 2);
+		results.setRow(0, new float[] { 800f, 600f }, new Laptime(30000, 40000, 50000));
+		results.setRow(1, new float[] { 900f, 600f }, null);
+
+		File file = File.createTempFile("sweep", ".dat");
+		file.deleteOnExit();
+		results.write(file);
+		SweepResults read = SweepResults.read(file);
+
+		assertEquals(2, read.getNumRows());
+		assertEquals("mass", read.getParameterKey(1));
+		assertEquals(800f, read.getParameterValue(0, 0), 0f);
+		assertEquals(120000, read.getLaptime(0));
+		assertEquals(40000, read.getSectorTime(0, 1));
+		assertFalse(read.isCompleted(1));
+		assertEquals(0, read.getFastestRow());
+	}
+
+	@Test
+	public void testFarmGivesUpOnFailingUnit() throws Exception {
+
+		Settings.getInstance().init();
+		List<WorkUnit> units = new ArrayList<WorkUnit>();
+		units.add(new WorkUnit(0, "Unknown", "Ferrari 248", Settings.AI_EASY, 2, 1, 1L, 1));
+		units.add(new WorkUnit(1, "Unknown", "Ferrari 248", Settings.AI_EASY, 2, 1, 2L, 1));
+		units.add(new WorkUnit(2, "Monza", "Ferrari 248", Settings.AI_EASY, 2, 1, 1L, 1));
+
+		// A single worker survives the units that always fail
+		SimulationFarm farm = new SimulationFarm(1, "128m");
+		Map<String,RaceStatistics> results = farm.run(units);
+
+		assertEquals(2, farm.getFailedUnits().size());
+		assertEquals(1L, results.get(units.get(2).getConfigurationKey()).getNumRaces());
+	}
+}
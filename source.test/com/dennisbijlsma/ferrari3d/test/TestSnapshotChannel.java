@@ -0,0 +1,196 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// TestSnapshotChannel
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.dennisbijlsma.ferrari3d.SnapshotChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for sending snapshots over UDP. All channels run on localhost.
+ */
+public class TestSnapshotChannel {
+
+	private Receiver serverReceiver;
+	private Receiver peerReceiver;
+	private Receiver otherPeerReceiver;
+	private SnapshotChannel server;
+	private SnapshotChannel peer;
+	private SnapshotChannel otherPeer;
+
+	private static final long TIMEOUT = 2000L;
+
+	@Before
+	public void before() throws IOException {
+		serverReceiver = new Receiver();
+		peerReceiver = new Receiver();
+		otherPeerReceiver = new Receiver();
+		server = new SnapshotChannel(0, 3, serverReceiver);
+		InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getLocalAddress().getPort());
+		peer = new SnapshotChannel(address, 3, peerReceiver);
+		otherPeer = new SnapshotChannel(address, 3, otherPeerReceiver);
+		server.start();
+		peer.start();
+		otherPeer.start();
+	}
+
+	@After
+	public void after() {
+		server.close();
+		peer.close();
+		otherPeer.close();
+	}
+
+	@Test
+	public void testRelayAndRedundancy() throws Exception {
+
+		// The server learns the addresses of the peers from their packets
+		peer.send(1, payload(1));
+		assertEquals(1, serverReceiver.take());
+		otherPeer.send(2, payload(2));
+		assertEquals(2, serverReceiver.take());
+		assertEquals(2, peerReceiver.take());
+
+		peer.send(1, payload(3));
+		assertEquals(1, serverReceiver.take());
+		assertEquals(3, serverReceiver.take());
+		assertEquals(1, otherPeerReceiver.take());
+		assertEquals(3, otherPeerReceiver.take());
+
+		server.send(0, payload(4));
+		server.send(0, payload(5));
+		server.send(0, payload(6));
+		server.send(0, payload(7));
+		for (int expected : new int[] { 4, 4, 5, 4, 5, 6, 5, 6, 7 }) {
+			assertEquals(expected, peerReceiver.take());
+			assertEquals(expected, otherPeerReceiver.take());
+		}
+	}
+
+	@Test
+	public void testStalePacketsAreDropped() throws Exception {
+
+		peer.send(1, payload(1));
+		peer.send(1, payload(2));
+		assertEquals(1, serverReceiver.take());
+		assertEquals(1, serverReceiver.take());
+		assertEquals(2, serverReceiver.take());
+
+		// A new channel restarts the sequence, so its packets look old
+		SnapshotChannel restarted = new SnapshotChannel(new InetSocketAddress("127.0.0.1",
+				server.getLocalAddress().getPort()), 3, new Receiver());
+		restarted.send(1, payload(3));
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while ((server.getPacketsStale() == 0) && (System.currentTimeMillis() < deadline)) {
+			Thread.sleep(10);
+		}
+		restarted.close();
+
+		assertEquals(1, server.getPacketsStale());
+		assertTrue(serverReceiver.queue.isEmpty());
+	}
+
+	@Test
+	public void testRemovePeer() throws Exception {
+
+		peer.send(1, payload(1));
+		assertEquals(1, serverReceiver.take());
+		otherPeer.send(2, payload(2));
+		assertEquals(2, serverReceiver.take());
+		assertEquals(2, peer.getNumPeers() + server.getNumPeers());
+
+		// A peer that rejoins with the same ID restarts the sequence
+		server.removePeer(1);
+		assertEquals(1, server.getNumPeers());
+		SnapshotChannel rejoined = new SnapshotChannel(new InetSocketAddress("127.0.0.1",
+				server.getLocalAddress().getPort()), 3, new Receiver());
+		rejoined.send(1, payload(3));
+		assertEquals(3, serverReceiver.take());
+		rejoined.close();
+
+		assertEquals(0, server.getPacketsStale());
+		assertEquals(2, server.getNumPeers());
+	}
+
+	@Test
+	public void testSimulatedLoss() throws Exception {
+
+		peer.setSimulatedLoss(1f);
+		for (int i = 0; i < 10; i++) {
+			peer.send(1, payload(i));
+		}
+		assertEquals(10, peer.getPacketsDropped());
+		assertEquals(0, peer.getPacketsSent());
+
+		// The last packets still contain the snapshots of the lost packets
+		peer.setSimulatedLoss(0f);
+		peer.send(1, payload(10));
+		assertEquals(8, serverReceiver.take());
+		assertEquals(9, serverReceiver.take());
+		assertEquals(10, serverReceiver.take());
+	}
+
+	@Test
+	public void testPacketSizeLimit() throws Exception {
+
+		// The header takes 4 bytes and the length of the snapshot 2 bytes, so
+		// this is the largest snapshot that fits in a packet
+		peer.send(1, payload(1));
+		assertEquals(1400, peer.send(1, payload(2, 1394)));
+		assertEquals(1, serverReceiver.take());
+		assertEquals(2, serverReceiver.take());
+
+		// The oldest snapshots are left out when they do not fit
+		peer.send(1, payload(3));
+		assertEquals(3, serverReceiver.take());
+
+		try {
+			peer.send(1, payload(4, 1395));
+			fail();
+		} catch (IOException e) {
+			// Expected
+		}
+		peer.send(1, payload(5));
+		assertEquals(3, serverReceiver.take());
+		assertEquals(5, serverReceiver.take());
+	}
+
+	private static ByteBuffer payload(int value) {
+		return payload(value, 4);
+	}
+
+	private static ByteBuffer payload(int value, int size) {
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.putInt(value);
+		buffer.rewind();
+		return buffer;
+	}
+
+	private static class Receiver implements SnapshotChannel.Listener {
+
+		private BlockingQueue<Integer> queue = new LinkedBlockingQueue<Integer>();
+
+		public void snapshotReceived(ByteBuffer payload) {
+			queue.add(payload.getInt());
+		}
+
+		public int take() throws InterruptedException {
+			Integer value = queue.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+			assertNotNull(value);
+			return value;
+		}
+	}
+}
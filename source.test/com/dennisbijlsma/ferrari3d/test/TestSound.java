@@ -75,10 +75,10 @@ public class TestSound extends GameCore {
 		Loader.createWorld(scene, display);
 		Circuit circuit = Loader.createTestCircuit();
 		scene.getRootNode().addChild(circuit.getModel());
-		Car car = Loader.loadCar("Ferrari 248", scene, scene.getCamera(0));
+		Session session = new Session(Session.SessionMode.TIME, 3);
+		Car car = Loader.loadCar("Ferrari 248", scene, scene.getCamera(0), session.getConfig());
 		scene.getRootNode().addChild(car.getModel());
 		
-		Session session = new Session(Session.SessionMode.TIME, 3);
 		session.setStarted();
 		
 		contestant = new Player("test", session, getController(), Settings.getInstance().getControlSet());
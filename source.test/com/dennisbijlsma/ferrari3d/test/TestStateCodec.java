@@ -0,0 +1,434 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// TestStateCodec
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.test;
+
+import java.util.Arrays;
+
+import com.dennisbijlsma.core3d.Vector3D;
+import com.dennisbijlsma.ferrari3d.Drone;
+import com.dennisbijlsma.ferrari3d.Multiplayer;
+import com.dennisbijlsma.ferrari3d.Session;
+import com.dennisbijlsma.ferrari3d.util.CarState;
+import com.dennisbijlsma.ferrari3d.util.Snapshot;
+import com.dennisbijlsma.ferrari3d.util.SnapshotCodec;
+import com.dennisbijlsma.ferrari3d.util.StateCodec;
+import com.dennisbijlsma.messaging.Message;
+import com.dennisbijlsma.messaging.MessageParser;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the binary encoding of car updates. Running this class as an
+ * application benchmarks the binary format against the text format.
+ */
+public class TestStateCodec {
+
+	private static final int WARMUP_ITERATIONS = 5;
+	private static final int MEASURE_ITERATIONS = 10;
+	private static final int OPERATIONS = 200000;
+
+	@Test
+	public void testRoundTrip() {
+
+		CarState state = createState(3);
+		StateCodec codec = new StateCodec();
+		String encoded = codec.encode(state);
+
+		CarState decoded = new CarState();
+		assertTrue(codec.decode(encoded, decoded));
+		assertEquals(3, decoded.id);
+		assertEquals(state.x, decoded.x, 0.001f);
+		assertEquals(state.y, decoded.y, 0.001f);
+		assertEquals(state.z, decoded.z, 0.001f);
+		assertEquals(state.orientation, decoded.orientation, 0.0001f);
+		assertEquals(state.direction, decoded.direction, 0.0001f);
+		assertEquals(state.speed, decoded.speed, 0.01f);
+		assertEquals(state.angularSpeed, decoded.angularSpeed, 0.001f);
+		assertEquals(12, decoded.lap);
+		assertEquals(2, decoded.intermediate);
+		assertEquals(401, decoded.point);
+		assertEquals(83456, decoded.laptime);
+		assertEquals(3, codec.decodeId(encoded));
+	}
+
+	@Test
+	public void testLimits() {
+
+		CarState state = createState(300000);
+		state.orientation = -0.5f;
+		state.direction = 4f * (float) Math.PI + 1f;
+		state.speed = 1000f;
+
+		StateCodec codec = new StateCodec();
+		CarState decoded = new CarState();
+		assertTrue(codec.decode(codec.encode(state), decoded));
+		assertEquals(300000, decoded.id);
+		assertEquals(2f * (float) Math.PI - 0.5f, decoded.orientation, 0.0001f);
+		assertEquals(1f, decoded.direction, 0.0001f);
+		assertEquals(327.67f, decoded.speed, 0.01f);
+
+		state.speed = -5f;
+		assertTrue(codec.decode(codec.encode(state), decoded));
+		assertEquals(-5f, decoded.speed, 0.01f);
+
+		assertFalse(codec.decode("not*base64", decoded));
+		assertFalse(codec.decode("", decoded));
+		assertFalse(codec.decode("AQM=", decoded));
+		assertEquals(-1, codec.decodeId("AQM="));
+	}
+
+	@Test
+	public void testDroneReceivesBothFormats() {
+
+		Session session = new Session(Session.SessionMode.RACE, 3);
+		Drone a = new Drone("a", session);
+		Drone b = new Drone("b", session);
+		session.addContestant(b);
+		session.addContestant(a);
+
+		CarState state = createState(session.getContestantId("b"));
+		Message message = new Message();
+		message.setType(Multiplayer.MESSAGE_UPDATE);
+		message.setParameter("state", new StateCodec().encode(state));
+		a.messageReceived(message);
+		b.messageReceived(message);
+
+		assertEquals(0, a.getNumReceivedMessages());
+		assertEquals(1, b.getNumReceivedMessages());
+		assertEquals(state.x, b.getPosition().getX(), 0.001f);
+		assertEquals(12, b.getLap());
+		assertEquals(401, b.getPoint());
+
+		Message textMessage = createTextMessage(state, "a");
+		a.messageReceived(textMessage);
+		assertEquals(1, a.getNumReceivedMessages());
+		assertEquals(state.z, a.getPosition().getZ(), 0.001f);
+	}
+
+	@Test
+	public void testSessionIds() {
+
+		Session session = new Session(Session.SessionMode.RACE, 3);
+		for (String i : new String[] { "d", "b", "c", "a", "e" }) {
+			session.addContestant(new Drone(i, session));
+		}
+
+		assertEquals("a", session.getContestant(0).getName());
+		assertEquals("e", session.getContestant(4).getName());
+		assertEquals(3, session.getContestantId(session.getContestant(3).getName()));
+		assertNull(session.getContestant(5));
+		assertEquals(-1, session.getContestantId("f"));
+	}
+
+	@Test
+	public void testRosterIds() {
+
+		// Peers that know a different set of contestants locally must still
+		// assign the same IDs when they use the same roster.
+		Session owner = new Session(Session.SessionMode.RACE, 3);
+		Session client = new Session(Session.SessionMode.RACE, 3);
+		for (String i : new String[] { "b", "a", "AI-2" }) {
+			owner.addContestant(new Drone(i, owner));
+		}
+		for (String i : new String[] { "a", "c", "b", "AI-2" }) {
+			client.addContestant(new Drone(i, client));
+		}
+		owner.setRoster(Arrays.asList("b", "a", "AI-2"));
+		client.setRoster(Arrays.asList("b", "a", "AI-2"));
+
+		for (String i : new String[] { "b", "a", "AI-2" }) {
+			assertEquals(owner.getContestantId(i), client.getContestantId(i));
+		}
+		assertEquals(0, client.getContestantId("b"));
+		assertEquals("AI-2", client.getContestant(2).getName());
+		assertEquals(-1, client.getContestantId("c"));
+		assertNull(client.getContestant(3));
+	}
+
+	@Test
+	public void testDeltaSnapshots() {
+
+		SnapshotCodec peerA = new SnapshotCodec();
+		SnapshotCodec peerB = new SnapshotCodec();
+		Snapshot snapshotA = new Snapshot();
+		Snapshot snapshotB = new Snapshot();
+		Snapshot decoded = new Snapshot();
+
+		String keyframe = null;
+		String delta = null;
+
+		for (int tick = 1; tick <= 10; tick++) {
+			createSnapshot(snapshotA, 0, tick, 10);
+			createSnapshot(snapshotB, 5, tick, 1);
+			String encodedA = peerA.encode(snapshotA);
+			String encodedB = peerB.encode(snapshotB);
+			assertTrue(peerB.decode(encodedA, decoded));
+			assertSnapshot(snapshotA, decoded);
+			assertTrue(peerA.decode(encodedB, decoded));
+			assertSnapshot(snapshotB, decoded);
+
+			if (tick == 1) {
+				keyframe = encodedA;
+			}
+			delta = encodedA;
+		}
+
+		assertEquals(2, peerA.getNumKeyframes());
+		assertEquals(8, peerA.getNumDeltas());
+		assertTrue(delta.length() * 2 < keyframe.length());
+
+		// Peer B stops acknowledging, so peer A falls back to keyframes
+		for (int tick = 11; tick <= 40; tick++) {
+			createSnapshot(snapshotA, 0, tick, 10);
+			assertTrue(peerB.decode(peerA.encode(snapshotA), decoded));
+			assertSnapshot(snapshotA, decoded);
+		}
+		assertTrue(peerA.getNumKeyframes() > 2);
+
+		// A delta against an unknown baseline cannot be decoded
+		SnapshotCodec peerC = new SnapshotCodec();
+		assertFalse(peerC.decode(delta, decoded));
+		assertEquals(0, decoded.getSize());
+		assertFalse(peerC.decode("AgA=", decoded));
+	}
+
+	@Test
+	public void testDeltaSnapshotsWithLoss() {
+
+		SnapshotCodec peerA = new SnapshotCodec();
+		SnapshotCodec peerB = new SnapshotCodec();
+		SnapshotCodec peerC = new SnapshotCodec();
+		Snapshot snapshotA = new Snapshot();
+		Snapshot snapshotB = new Snapshot();
+		Snapshot snapshotC = new Snapshot();
+		Snapshot decoded = new Snapshot();
+
+		// Peer B loses tick 5 from peer A, while the snapshots of peer C
+		// arrive at peer A only until tick 5. The last tick acknowledged by
+		// peer C has therefore not been received by peer B.
+		for (int tick = 1; tick <= 12; tick++) {
+			createSnapshot(snapshotA, 0, tick, 4);
+			String encodedA = peerA.encode(snapshotA);
+			if (tick != 5) {
+				assertTrue("B decodes " + tick, peerB.decode(encodedA, decoded));
+				assertSnapshot(snapshotA, decoded);
+			}
+			assertTrue("C decodes " + tick, peerC.decode(encodedA, decoded));
+			assertSnapshot(snapshotA, decoded);
+
+			createSnapshot(snapshotB, 1, tick, 1);
+			createSnapshot(snapshotC, 2, tick, 1);
+			assertTrue(peerA.decode(peerB.encode(snapshotB), decoded));
+			String encodedC = peerC.encode(snapshotC);
+			if (tick <= 5) {
+				assertTrue(peerA.decode(encodedC, decoded));
+			}
+		}
+
+		assertEquals(1, peerA.getNumKeyframes());
+		assertEquals(11, peerA.getNumDeltas());
+	}
+
+	@Test
+	public void testDeltaSnapshotsAfterPeerLeaves() {
+
+		SnapshotCodec peerA = new SnapshotCodec();
+		SnapshotCodec peerB = new SnapshotCodec();
+		SnapshotCodec peerC = new SnapshotCodec();
+		Snapshot snapshot = new Snapshot();
+		Snapshot decoded = new Snapshot();
+
+		// Peer C leaves after tick 5. Its last ack becomes too old to be used
+		// as a baseline, until peer A forgets about it.
+		int keyframes = 0;
+		for (int tick = 1; tick <= 40; tick++) {
+			if (tick == 31) {
+				assertTrue(peerA.getNumKeyframes() > 1);
+				peerA.removePeer(2);
+				keyframes = peerA.getNumKeyframes();
+			}
+
+			createSnapshot(snapshot, 0, tick, 4);
+			String encoded = peerA.encode(snapshot);
+			assertTrue(peerB.decode(encoded, decoded));
+			createSnapshot(snapshot, 1, tick, 1);
+			assertTrue(peerA.decode(peerB.encode(snapshot), decoded));
+
+			if (tick <= 5) {
+				assertTrue(peerC.decode(encoded, decoded));
+				createSnapshot(snapshot, 2, tick, 1);
+				assertTrue(peerA.decode(peerC.encode(snapshot), decoded));
+			}
+		}
+
+		assertEquals(keyframes, peerA.getNumKeyframes());
+	}
+
+	@Test
+	public void testSnapshotsAcknowledgedByInput() {
+
+		SnapshotCodec server = new SnapshotCodec();
+		SnapshotCodec client = new SnapshotCodec();
+		Snapshot snapshot = new Snapshot();
+		Snapshot decoded = new Snapshot();
+
+		// Clients of a dedicated server acknowledge snapshots without sending any
+		for (int tick = 1; tick <= 10; tick++) {
+			createSnapshot(snapshot, Multiplayer.DEDICATED_SERVER_ID, tick, 6);
+			assertTrue(client.decode(server.encode(snapshot), decoded));
+			assertSnapshot(snapshot, decoded);
+			if (tick > 3) {
+				server.acknowledge(2, decoded.getTick());
+			}
+		}
+
+		assertEquals(4, server.getNumKeyframes());
+		assertEquals(6, server.getNumDeltas());
+	}
+
+	private static void createSnapshot(Snapshot snapshot, int sender, int tick, int numCars) {
+		snapshot.clear();
+		snapshot.setSender(sender);
+		snapshot.setTick(tick);
+		for (int i = 0; i < numCars; i++) {
+			CarState state = snapshot.add();
+			state.set(createState(sender + i));
+			state.x += tick * 1.5f;
+			state.orientation = tick * 0.7f;
+			state.laptime += tick * 40;
+		}
+	}
+
+	private static void assertSnapshot(Snapshot expected, Snapshot actual) {
+		assertEquals(expected.getSender(), actual.getSender());
+		assertEquals(expected.getTick(), actual.getTick());
+		assertEquals(expected.getSize(), actual.getSize());
+		for (int i = 0; i < expected.getSize(); i++) {
+			assertEquals(expected.get(i).id, actual.get(i).id);
+			assertEquals(expected.get(i).x, actual.get(i).x, 0.001f);
+			assertEquals(expected.get(i).orientation % (2f * (float) Math.PI),
+					actual.get(i).orientation, 0.0001f);
+			assertEquals(expected.get(i).speed, actual.get(i).speed, 0.01f);
+			assertEquals(expected.get(i).lap, actual.get(i).lap);
+			assertEquals(expected.get(i).laptime, actual.get(i).laptime);
+		}
+	}
+
+	private static CarState createState(int id) {
+		CarState state = new CarState();
+		state.id = id;
+		state.x = -812.345f;
+		state.y = 1.25f;
+		state.z = 1043.5f;
+		state.orientation = 1.2345f;
+		state.direction = 5.4321f;
+		state.speed = 84.37f;
+		state.angularSpeed = -0.512f;
+		state.lap = 12;
+		state.intermediate = 2;
+		state.point = 401;
+		state.laptime = 83456;
+		return state;
+	}
+
+	/**
+	 * Creates a message in the text format, as sent by {@link Multiplayer}.
+	 */
+	private static Message createTextMessage(CarState state, String id) {
+		Message message = new Message();
+		message.setType(Multiplayer.MESSAGE_UPDATE);
+		message.setParameter("id", id);
+		message.setParameter("position", state.x + "x" + state.y + "x" + state.z);
+		message.setParameter("orientation", "" + state.orientation);
+		message.setParameter("direction", "" + state.direction);
+		message.setParameter("lap", "" + state.lap);
+		message.setParameter("intermediate", "" + state.intermediate);
+		message.setParameter("point", "" + state.point);
+		message.setParameter("laptime", "" + state.laptime);
+		message.setParameter("speed", "" + state.speed);
+		message.setParameter("angularSpeed", "" + state.angularSpeed);
+		return message;
+	}
+
+	/**
+	 * Parses a message in the text format, as done by {@link Drone}.
+	 */
+	private static void parseTextMessage(Message message, CarState dest) {
+		String[] parts = message.getParameter("position").split("x");
+		Vector3D position = new Vector3D(Float.parseFloat(parts[0]), Float.parseFloat(parts[1]),
+				Float.parseFloat(parts[2]));
+		dest.x = position.getX();
+		dest.y = position.getY();
+		dest.z = position.getZ();
+		dest.orientation = Float.parseFloat(message.getParameter("orientation"));
+		dest.direction = Float.parseFloat(message.getParameter("direction"));
+		dest.lap = Integer.parseInt(message.getParameter("lap"));
+		dest.intermediate = Integer.parseInt(message.getParameter("intermediate"));
+		dest.point = Integer.parseInt(message.getParameter("point"));
+		dest.laptime = Integer.parseInt(message.getParameter("laptime"));
+		dest.speed = Float.parseFloat(message.getParameter("speed"));
+		dest.angularSpeed = Float.parseFloat(message.getParameter("angularSpeed"));
+	}
+
+	/**
+	 * Benchmarks encoding and decoding a car update in both formats. Every
+	 * format is measured for a number of iterations after a warmup, and the
+	 * average time per operation is printed along with the size of the message.
+	 */
+	public static void main(String[] args) {
+
+		final CarState state = createState(7);
+		final CarState dest = new CarState();
+		final StateCodec codec = new StateCodec();
+
+		Runnable text = new Runnable() {
+			public void run() {
+				parseTextMessage(createTextMessage(state, "Player"), dest);
+			}
+		};
+
+		Runnable binary = new Runnable() {
+			public void run() {
+				Message message = new Message();
+				message.setType(Multiplayer.MESSAGE_UPDATE);
+				message.setParameter("state", codec.encode(state));
+				codec.decode(message.getParameter("state"), dest);
+			}
+		};
+
+		Message binaryMessage = new Message();
+		binaryMessage.setType(Multiplayer.MESSAGE_UPDATE);
+		binaryMessage.setParameter("state", codec.encode(state));
+
+		System.out.println(String.format("%-8s %12s %12s", "Format", "ns/op", "bytes/msg"));
+		System.out.println(String.format("%-8s %12.1f %12d", "text", benchmark(text),
+				MessageParser.toXML(createTextMessage(state, "Player")).length()));
+		System.out.println(String.format("%-8s %12.1f %12d", "binary", benchmark(binary),
+				MessageParser.toXML(binaryMessage).length()));
+	}
+
+	private static double benchmark(Runnable operation) {
+
+		for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+			measure(operation);
+		}
+
+		double total = 0.0;
+		for (int i = 0; i < MEASURE_ITERATIONS; i++) {
+			total += measure(operation);
+		}
+		return total / MEASURE_ITERATIONS;
+	}
+
+	private static double measure(Runnable operation) {
+		long start = System.nanoTime();
+		for (int i = 0; i < OPERATIONS; i++) {
+			operation.run();
+		}
+		return (System.nanoTime() - start) / (double) OPERATIONS;
+	}
+}
@@ -0,0 +1,94 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// TestTelemetry
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.test;
+
+import java.io.File;
+import java.io.StringWriter;
+
+import com.dennisbijlsma.ferrari3d.Contestant;
+import com.dennisbijlsma.ferrari3d.Telemetry;
+import com.dennisbijlsma.ferrari3d.simulation.RaceSimulation;
+import com.dennisbijlsma.ferrari3d.simulation.SimulatedCar;
+import com.dennisbijlsma.ferrari3d.simulation.SimulatedCircuit;
+import com.dennisbijlsma.ferrari3d.simulation.SimulationListener;
+import com.dennisbijlsma.ferrari3d.util.Settings;
+import com.dennisbijlsma.ferrari3d.util.TelemetryChannel;
+import com.dennisbijlsma.ferrari3d.util.TelemetryFile;
+import com.dennisbijlsma.ferrari3d.util.TelemetryWriter;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for recording and reading telemetry.
+ */
+public class TestTelemetry {
+
+	@Test
+	public void testParseChannels() {
+		TelemetryChannel[] channels = TelemetryChannel.parseList("speed, On_Track,unknown,speed");
+		assertEquals(2, channels.length);
+		assertEquals(TelemetryChannel.SPEED, channels[0]);
+		assertEquals(TelemetryChannel.ON_TRACK, channels[1]);
+		assertEquals(TelemetryChannel.values().length, TelemetryChannel.parseList("all").length);
+		assertEquals(0, TelemetryChannel.parseList("").length);
+	}
+
+	@Test
+	public void testRecordSimulatedRace() throws Exception {
+
+		Settings.getInstance().init();
+		SimulatedCircuit circuit = SimulatedCircuit.load("Monza");
+		RaceSimulation simulation = new RaceSimulation(circuit, "Ferrari 248",
+				SimulatedCar.loadCarInfo("Ferrari 248"), 3, 1, Settings.AI_NORMAL);
+
+		File file = File.createTempFile("telemetry", ".f3t");
+		file.deleteOnExit();
+		TelemetryChannel[] channels = { TelemetryChannel.GEAR, TelemetryChannel.X,
+				TelemetryChannel.POINT };
+		final TelemetryWriter writer = new TelemetryWriter(file, channels,
+				new String[] { "a", "b", "c" });
+		final Telemetry telemetry = new Telemetry(writer);
+
+		// The state of the second car is checked while the race is running
+		final float[] expected = new float[3];
+		SimulationListener listener = new SimulationListener() {
+			public void tickSimulated(int tick, Contestant[] cars) {
+				telemetry.tickSimulated(tick, cars);
+				if (tick == 1000) {
+					expected[0] = cars[1].getGear();
+					expected[1] = cars[1].getPosition().getX();
+					expected[2] = cars[1].getPoint();
+				}
+			}
+		};
+
+		writer.start();
+		simulation.run(1L, listener);
+		writer.close();
+		writer.waitForCompletion();
+		assertEquals(0L, writer.getDroppedRows());
+
+		TelemetryFile telemetryFile = new TelemetryFile(file);
+		assertEquals(3, telemetryFile.getNumCars());
+		assertEquals("b", telemetryFile.getCarName(1));
+		assertEquals(0, telemetryFile.getNumRows() % 3);
+
+		int row = 1000 * 3 + 1;
+		assertEquals(1000, telemetryFile.getTick(row));
+		assertEquals(1, telemetryFile.getCar(row));
+		assertEquals(expected[0], telemetryFile.getValue(row, TelemetryChannel.GEAR), 0.001f);
+		assertEquals(expected[1], telemetryFile.getValue(row, TelemetryChannel.X), 0.001f);
+		assertEquals(expected[2], telemetryFile.getValue(row, TelemetryChannel.POINT), 0.001f);
+
+		StringWriter csv = new StringWriter();
+		telemetryFile.exportCSV(csv);
+		String[] lines = csv.toString().split("\n");
+		assertEquals(telemetryFile.getNumRows() + 1, lines.length);
+		assertEquals("tick,car,gear,x,point", lines[0]);
+		assertTrue(lines[row + 1].startsWith("1000,b,"));
+	}
+}
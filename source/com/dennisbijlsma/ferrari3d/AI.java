@@ -6,6 +6,8 @@
 
 package com.dennisbijlsma.ferrari3d;
 
+import java.util.Random;
+
 import com.dennisbijlsma.core3d.Vector3D;
 import com.dennisbijlsma.ferrari3d.util.CircuitPoint;
 import com.dennisbijlsma.ferrari3d.util.Settings;
@@ -25,6 +27,7 @@ public class AI extends Contestant {
 	private RaceLine line;
 	private Behavior behavior;
 	private float behaviorTime;
+	private Random random;
 	
 	private Vector3D tempVector1;
 	private Vector3D tempVector2;
@@ -62,20 +65,25 @@ public class AI extends Contestant {
 	 * infinite number of possible values.
 	 */
 	public AI(String name, Session session) {
-		
-		super(name, session);
+		this(name, session, session.getConfig().getAILevel(), new Random());
+	}
 	
-		point = new Vector3D();
-		line = RaceLine.IDEAL;
-		behavior = Behavior.DRIVING;
-		behaviorTime = 0f;
+	/**
+	 * Creates a new AI contestant with the specified difficulty level. All 
+	 * random decisions made by the AI, including the generation of its 
+	 * personality, are taken from {@code random}. Using a seeded random makes
+	 * the AI behave identical between runs, which is needed by the headless
+	 * simulation tools.
+	 * @param aiLevel One of the {@code Settings.AI_XXX} constants.
+	 * @param random Source of all random decisions made by this AI.
+	 */
+	public AI(String name, Session session, int aiLevel, Random random) {
 		
-		tempVector1 = new Vector3D();
-		tempVector2 = new Vector3D();
+		this(name, session, 0f, 0f, random);
 		
 		// Generate skill level
 		
-		switch (Settings.getInstance().aiLevel) {
+		switch (aiLevel) {
 			case Settings.AI_EASY : skill = 0.4f; break;
 			case Settings.AI_NORMAL : skill = 0.6f; break;
 			case Settings.AI_HARD : skill = 0.8f; break;
@@ -91,12 +99,36 @@ public class AI extends Contestant {
 		aggression += random(0.8f);
 		aggression = Math.round(aggression * 10f) / 10f;
 		
-		if (Settings.getInstance().debug) {
+		if (getSession().getConfig().isDebug()) {
 			Settings.getInstance().getLogger().info(getName() + " -> skill: " + 
 					skill + ", aggression: " + aggression);
 		}
 	}
 	
+	/**
+	 * Creates a new AI contestant with a fixed personality. This is used when
+	 * the behavior of the AI should not vary, for example when comparing car
+	 * setups.
+	 * @param skill Driving skill, between 0 and 1.
+	 * @param aggression Aggression when overtaking, between 0 and 1.
+	 * @param random Source of all random decisions made by this AI.
+	 */
+	public AI(String name, Session session, float skill, float aggression, Random random) {
+		
+		super(name, session);
+	
+		point = new Vector3D();
+		line = RaceLine.IDEAL;
+		behavior = Behavior.DRIVING;
+		behaviorTime = 0f;
+		this.skill = skill;
+		this.aggression = aggression;
+		this.random = random;
+		
+		tempVector1 = new Vector3D();
+		tempVector2 = new Vector3D();
+	}
+	
 	/**
 	 * Updates the controls for this AI contestant.
 	 * @param dt Delta time since the last frame, in seconds.
@@ -251,7 +283,7 @@ public class AI extends Contestant {
 	 * the specified amount of time. 
 	 */
 	private void setBehavior(Behavior newBehavior, float time) {
-		if ((Settings.getInstance().debug) && (behavior != newBehavior)) {
+		if ((getSession().getConfig().isDebug()) && (behavior != newBehavior)) {
 			Settings.getInstance().getLogger().info(getName() + " -> behavior: " + newBehavior);
 		}
 		behavior = newBehavior;
@@ -263,7 +295,7 @@ public class AI extends Contestant {
 	 */
 	private void setRaceLine(RaceLine newLine) {
 		
-		if ((Settings.getInstance().debug) && (line != newLine)) {
+		if ((getSession().getConfig().isDebug()) && (line != newLine)) {
 			Settings.getInstance().getLogger().info(getName() + " -> race line: " + newLine);
 		}
 		
@@ -351,7 +383,7 @@ public class AI extends Contestant {
 	 * Convenience method that returns a number between 0 and max.
 	 */
 	private float random(float max) {
-		return (float) Math.random() * max;
+		return random.nextFloat() * max;
 	}
 	
 	/**
@@ -362,6 +394,14 @@ public class AI extends Contestant {
 		return (random(1f) > 1f - factor);
 	}
 	
+	public float getSkill() {
+		return skill;
+	}
+	
+	public float getAggression() {
+		return aggression;
+	}
+	
 	public boolean isOvertaking() {
 		return (behavior == Behavior.OVERTAKING);
 	}
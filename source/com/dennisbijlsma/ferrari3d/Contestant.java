@@ -14,8 +14,10 @@ import com.dennisbijlsma.core3d.Vector3D;
 import com.dennisbijlsma.ferrari3d.graphics.AbstractCar;
 import com.dennisbijlsma.ferrari3d.graphics.Car;
 import com.dennisbijlsma.ferrari3d.util.CircuitPoint;
+import com.dennisbijlsma.ferrari3d.util.FlightEvents;
 import com.dennisbijlsma.ferrari3d.util.Laptime;
 import com.dennisbijlsma.ferrari3d.util.Settings;
+import com.dennisbijlsma.ferrari3d.util.TickProfiler;
 
 /**
  * A contestant is an entrant in a {@code Session}. This class contains code for
@@ -105,6 +107,23 @@ public abstract class Contestant {
 		updateCarGraphics(dt);
 	}
 	
+	/**
+	 * Updates this contestant for the current frame, and records the duration
+	 * of every sub-stage of updating in the specified profiler.
+	 * @param dt Delta time since the previous frame, in seconds.
+	 */
+	public final void update(float dt, TickProfiler profiler) {
+		long time = System.nanoTime();
+		updateControls(dt);
+		time = profiler.record(TickProfiler.Stage.CONTESTANT_CONTROLS, time);
+		updatePhysics(dt);
+		time = profiler.record(TickProfiler.Stage.CONTESTANT_PHYSICS, time);
+		updateLapData(dt);
+		time = profiler.record(TickProfiler.Stage.CONTESTANT_LAP_DATA, time);
+		updateCarGraphics(dt);
+		profiler.record(TickProfiler.Stage.CONTESTANT_GRAPHICS, time);
+	}
+	
 	/**
 	 * Updates the control settings for this contestant. This method is called
 	 * as a part of the update process, and should set the correct state in
@@ -156,6 +175,7 @@ public abstract class Contestant {
 		CircuitPoint p = circuitData.getIntermediate(intermediate);
 		
 		if (position.distance(p.pointX, p.pointY) < INTERMEDIATE_DISTANCE) {
+			sectorCompleted();
 			intermediate++;
 			if (intermediate == 3) {
 				lap++;
@@ -183,6 +203,23 @@ public abstract class Contestant {
 		currentLap.setSectorTime(intermediate, sectorTime + Math.round(dt * 1000f), true);
 	}
 	
+	/**
+	 * Emits a flight recorder event for the sector that was just completed.
+	 */
+	private void sectorCompleted() {
+		
+		FlightEvents.SectorEvent event = new FlightEvents.SectorEvent();
+		if (event.shouldCommit()) {
+			Laptime laptime = laptimes.get(lap);
+			event.contestant = name;
+			event.lap = lap;
+			event.sector = intermediate + 1;
+			event.sectorTime = laptime.getSectorTime(intermediate);
+			event.laptime = (intermediate == 2) ? laptime.getTime() : 0;
+			event.commit();
+		}
+	}
+	
 	/**
 	 * Updates the graphical state of the car used by this contestant. This
 	 * method is called as the last step of the update cycle.
@@ -260,7 +297,7 @@ public abstract class Contestant {
 		initCarInfo();
 		//TODO remove dependency
 		if (car instanceof Car) {
-			((Car) car).setSoundEnabled((this instanceof Player) && Settings.getInstance().sound);
+			((Car) car).setSoundEnabled((this instanceof Player) && session.getConfig().isSound());
 		}
 	}
 	
@@ -332,6 +369,22 @@ public abstract class Contestant {
 		return physics.getRPM();
 	}
 	
+	public float getAccelerator() {
+		return physics.getAccelerator();
+	}
+	
+	public float getBrakes() {
+		return physics.getBrakes();
+	}
+	
+	public float getSteering() {
+		return physics.getSteering();
+	}
+	
+	public boolean isOnTrack() {
+		return physics.isOnTrack();
+	}
+	
 	public void setLap(int lap) {
 		this.lap = lap;
 	}
@@ -349,17 +402,7 @@ public abstract class Contestant {
 	}
 	
 	public void setPoint(int point) {
-	
 		this.point = point;
-		
-		if (Settings.getInstance().debug) {
-			CircuitPoint p = circuitData.getPoint(point);
-			if (p.isSuggestedSpeed()) {
-				Settings.getInstance().getLogger().info(String.format(
-						"%s -> point: %d, speed: %.1f (%.1f)", 
-						name, point, physics.getSpeed(), p.getSuggestedSpeed()));
-			}
-		}
 	}
 	
 	public int getPoint() {
@@ -0,0 +1,425 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// DedicatedServer
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.dennisbijlsma.ferrari3d.simulation.SimulatedCar;
+import com.dennisbijlsma.ferrari3d.simulation.SimulatedCircuit;
+import com.dennisbijlsma.ferrari3d.util.Settings;
+import com.dennisbijlsma.ferrari3d.util.TickProfiler;
+import com.dennisbijlsma.messaging.Message;
+
+/**
+ * Command line tool that hosts local multiplayer sessions without a display.
+ * Unlike a normal server, the dedicated server simulates every car in the
+ * session, including those of the players. Clients only send their input, see
+ * {@link RemotePlayer}, and show the snapshots sent by the server. The session
+ * is simulated with the same {@code Session}, {@code Player} and {@code AI}
+ * classes as the game, using the circuit and car data from
+ * {@code SimulatedCircuit} and {@code SimulatedCar}.
+ * <p>
+ * The session is simulated at a fixed tick rate on the main thread. Messages
+ * are received by the threads of the messaging library and the snapshot
+ * channel, and are processed at the start of every tick. When the simulation
+ * falls behind it does not try to catch up, so a slow tick delays the
+ * session instead of causing a burst of ticks.
+ * <p>
+ * The server waits in the lobby until the specified number of players has
+ * joined, and then starts the session. Empty places on the grid are filled
+ * with AI cars. Clients cannot pause the session, pause messages they send
+ * are ignored. After the session has finished the server starts a new
+ * multiplayer session, in the same way as the game returns to the menu.
+ * <p>
+ * The server reports its tick rate, stage times and network traffic through
+ * the same MBeans as the game, see {@link Management}.
+ * <p>
+ * Usage: {@code DedicatedServer [-session name] [-circuit name] [-mode race|time]
+ * [-laps n] [-ai true|false] [-level easy|normal|hard] [-players n] [-tickrate n]}
+ */
+public class DedicatedServer implements MessageListener {
+
+	private Settings settings;
+	private Session.SessionMode mode;
+	private int laps;
+	private int minPlayers;
+	private int tickRate;
+
+	private Session session;
+	private Multiplayer multiplayer;
+	private TickProfiler profiler;
+	private Map<String,Message> clients;
+	private List<RemotePlayer> players;
+	private List<Contestant> contestants;
+	private boolean starting;
+	private boolean running;
+	private float startTimer;
+	private float finishTimer;
+	private float multiplayerTimer;
+
+	public static final String NAME = "Server";
+	private static final int DEFAULT_TICK_RATE = 50;
+	private static final int DEFAULT_PLAYERS = 2;
+	private static final float START_TIMER = 15f;
+	private static final float FINISH_TIMER = 10f;
+	private static final float START_ORIENTATION = 1.57f;
+	private static final long LOBBY_POLL_TIME = 100L;
+	private static final long MAX_LAG = 1000000000L;
+
+	/**
+	 * Creates a new {@code DedicatedServer}. The circuit, AI and multiplayer
+	 * session are read from the settings.
+	 * @param minPlayers The number of players that should join before the
+	 *        session is started.
+	 * @param tickRate The number of ticks simulated per second.
+	 */
+	public DedicatedServer(Session.SessionMode mode, int laps, int minPlayers, int tickRate) {
+		this.settings = Settings.getInstance();
+		this.mode = mode;
+		this.laps = laps;
+		this.minPlayers = Math.max(1, Math.min(minPlayers, Settings.MAX_CONTESTANTS));
+		this.tickRate = tickRate;
+		profiler = new TickProfiler();
+		clients = new LinkedHashMap<String,Message>();
+		players = new ArrayList<RemotePlayer>();
+	}
+
+	/**
+	 * Hosts multiplayer sessions until the process is stopped.
+	 * @throws Exception if the server cannot be started, or if the circuit or
+	 *         car data cannot be loaded.
+	 */
+	public void run() throws Exception {
+		while (true) {
+			runSession();
+		}
+	}
+
+	/**
+	 * Hosts a single multiplayer session, from the lobby until the session
+	 * has finished or all players have left.
+	 */
+	private void runSession() throws Exception {
+
+		SessionConfig config = new SessionConfig(settings).withPlayer(NAME, settings.car)
+				.withSplitscreen(false).withSound(false);
+		session = new Session(mode, laps, config);
+		multiplayer = Multiplayer.getInstanceForSession(session);
+		profiler = new TickProfiler();
+		multiplayer.addMessageListener(this, Multiplayer.MESSAGE_INIT, Multiplayer.MESSAGE_CONNECT,
+				Multiplayer.MESSAGE_DISCONNECT);
+
+		clients.clear();
+		players.clear();
+		starting = false;
+		running = true;
+
+		try {
+			multiplayer.startAsDedicatedServer();
+			System.out.println(String.format("Waiting for %d players in session '%s' on %s",
+					minPlayers, config.getMultiplayerSession(), config.getCircuit()));
+
+			while (!starting) {
+				multiplayer.flushReceivedMessages();
+				Thread.sleep(LOBBY_POLL_TIME);
+			}
+
+			createContestants();
+			multiplayer.sendStartMessage();
+			System.out.println(String.format("Starting session with %d players, %d cars",
+					players.size(), contestants.size()));
+
+			simulate();
+			System.out.println("Session finished");
+		} finally {
+			Multiplayer.releaseInstanceForSession(session);
+		}
+	}
+
+	/**
+	 * Creates the roster from the players that have joined, in the order in
+	 * which they joined, and creates a contestant for every entry. Empty places
+	 * on the grid are filled with AI cars. Input messages are routed to the
+	 * contestant of the player that sent them.
+	 */
+	private void createContestants() throws Exception {
+
+		SessionConfig config = session.getConfig();
+		SimulatedCircuit circuit = SimulatedCircuit.load(config.getCircuit());
+
+		Map<String,String> cars = new LinkedHashMap<String,String>();
+		for (Message i : clients.values()) {
+			String car = i.getParameter("car");
+			cars.put(i.getParameter("id"), settings.cars.contains(car) ? car : settings.cars.get(0));
+		}
+
+		for (Map.Entry<String,String> i : multiplayer.createRoster(cars).entrySet()) {
+			Message client = clients.get(i.getKey());
+			if (client != null) {
+				RemotePlayer player = new RemotePlayer(i.getKey(), session, multiplayer);
+				player.setDrivingAids("true".equals(client.getParameter("autoGears")),
+						"true".equals(client.getParameter("autoReverse")));
+				addContestant(player, i.getValue(), circuit);
+				players.add(player);
+			} else {
+				addContestant(new AI(i.getKey(), session), i.getValue(), circuit);
+			}
+		}
+
+		for (RemotePlayer i : players) {
+			multiplayer.addMessageListener(i, Multiplayer.MESSAGE_INPUT,
+					session.getContestantId(i.getName()));
+		}
+
+		contestants = new ArrayList<Contestant>(session.getContestants());
+		for (Contestant i : contestants) {
+			i.setPosition(circuit.getStartingGridPosition(session.getRacePosition(i) - 1));
+			i.setOrientation(START_ORIENTATION);
+		}
+	}
+
+	private void addContestant(Contestant contestant, String carName, SimulatedCircuit circuit)
+			throws Exception {
+		contestant.setCar(new SimulatedCar(carName, SimulatedCar.loadCarInfo(carName)));
+		contestant.setCircuitData(circuit);
+		session.addContestant(contestant);
+	}
+
+	/**
+	 * Simulates the session at the fixed tick rate, until the session has
+	 * finished or all players have left. Ticks are scheduled at fixed times,
+	 * so that the time spent simulating a tick does not change the tick rate.
+	 */
+	private void simulate() throws InterruptedException {
+
+		float dt = 1f / tickRate;
+		long tickTime = 1000000000L / tickRate;
+		long nextTick = System.nanoTime();
+
+		startTimer = (mode == Session.SessionMode.RACE) ? START_TIMER : 0f;
+		finishTimer = 0f;
+		multiplayerTimer = 0f;
+
+		while (running) {
+			tick(dt);
+
+			nextTick += tickTime;
+			long delay = nextTick - System.nanoTime();
+			if (delay > 0L) {
+				Thread.sleep(delay / 1000000L, (int) (delay % 1000000L));
+			} else if (delay < -MAX_LAG) {
+				nextTick = System.nanoTime();
+			}
+		}
+	}
+
+	/**
+	 * Simulates a single tick. Received input is applied before the cars are
+	 * updated, and a snapshot of all cars is sent at the interval chosen by
+	 * {@link Multiplayer#getUpdateInterval()}.
+	 */
+	private void tick(float dt) {
+
+		long start = System.nanoTime();
+		multiplayer.flushReceivedMessages();
+		profiler.record(TickProfiler.Stage.MESSAGE_FLUSH, start);
+
+		for (Contestant i : contestants) {
+			i.update(dt, profiler);
+		}
+		updateSession(dt);
+
+		long time = System.nanoTime();
+		multiplayer.update(dt);
+		multiplayerTimer += dt;
+		if (multiplayerTimer >= multiplayer.getUpdateInterval()) {
+			multiplayer.sendSnapshotMessage(contestants);
+			multiplayerTimer = 0f;
+		}
+		profiler.record(TickProfiler.Stage.MULTIPLAYER_SEND, time);
+		profiler.record(TickProfiler.Stage.TICK, start);
+	}
+
+	/**
+	 * Starts the session when the start timer has expired, and finishes it
+	 * when the first car has completed the last lap.
+	 */
+	private void updateSession(float dt) {
+
+		if (startTimer > 0f) {
+			startTimer -= dt;
+		} else if (!session.isStarted()) {
+			session.setStarted();
+			multiplayer.sendStartSessionMessage();
+		}
+
+		if (!session.isFinished()) {
+			for (Contestant i : contestants) {
+				if (i.getLap() > session.getLaps()) {
+					session.setFinished();
+					multiplayer.sendStopSessionMessage();
+					finishTimer = FINISH_TIMER;
+					break;
+				}
+			}
+		} else if (finishTimer > 0f) {
+			finishTimer -= dt;
+			if (finishTimer <= 0f) {
+				multiplayer.sendStopMessage();
+				running = false;
+			}
+		}
+	}
+
+	/**
+	 * Invoked when a multiplayer message has been received. In the lobby the
+	 * server answers new participants and records the connect message of every
+	 * player, which contains the player's car and driving aids.
+	 * During the session players that leave are no longer controlled. Players
+	 * joining after the session has started, or using a different version,
+	 * are not added to the roster.
+	 */
+	public void messageReceived(Message message) {
+
+		String id = message.getParameter("id");
+
+		switch (message.getType()) {
+			case Multiplayer.MESSAGE_INIT :
+				multiplayer.sendConnectMessage();
+				break;
+			case Multiplayer.MESSAGE_CONNECT :
+				playerConnected(id, message);
+				break;
+			case Multiplayer.MESSAGE_DISCONNECT :
+				playerDisconnected(id);
+				break;
+			default : break;
+		}
+	}
+
+	private void playerConnected(String name, Message message) {
+
+		if (starting || (name == null) || clients.containsKey(name)) {
+			return;
+		}
+
+		String version = message.getParameter("version");
+		if (!Ferrari3D.VERSION.toString().equals(version)) {
+			System.out.println(String.format("Player %s uses version %s", name, version));
+			return;
+		}
+
+		clients.put(name, message);
+		System.out.println(String.format("Player %s joined (%d/%d)", name, clients.size(), minPlayers));
+		starting = (clients.size() >= minPlayers);
+	}
+
+	private void playerDisconnected(String name) {
+
+		if (!starting) {
+			if (clients.remove(name) != null) {
+				System.out.println(String.format("Player %s left (%d/%d)", name, clients.size(), minPlayers));
+			}
+			return;
+		}
+
+		int connected = 0;
+		for (RemotePlayer i : players) {
+			if (i.getName().equals(name)) {
+				i.releaseControls();
+				multiplayer.removeMessageListener(i);
+				System.out.println(String.format("Player %s left", name));
+			} else if (multiplayer.getParticipant(i.getName()) != null) {
+				connected++;
+			}
+		}
+
+		if (connected == 0) {
+			running = false;
+		}
+	}
+
+	/**
+	 * Returns the number of players that have joined the lobby.
+	 */
+	public int getNumPlayers() {
+		return clients.size();
+	}
+
+	/**
+	 * Returns true once enough players have joined and the session is being
+	 * started. Players that join after this are not added to the session.
+	 */
+	public boolean isStarting() {
+		return starting;
+	}
+
+	/**
+	 * Returns the session that is currently hosted, or {@code null} before the
+	 * first session has been created.
+	 */
+	public Session getSession() {
+		return session;
+	}
+
+	public Multiplayer getMultiplayer() {
+		return multiplayer;
+	}
+
+	/**
+	 * Returns the profiler that measures the stages of the current session.
+	 */
+	public TickProfiler getProfiler() {
+		return profiler;
+	}
+
+	/**
+	 * Command line entry point.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		System.setProperty("java.awt.headless", "true");
+
+		Settings settings = Settings.getInstance();
+		settings.init();
+		settings.multiplayerMode = Settings.MULTIPLAYER_LOCAL;
+		settings.multiplayerServer = "localhost";
+
+		Session.SessionMode mode = Session.SessionMode.RACE;
+		int laps = settings.laps;
+		int players = DEFAULT_PLAYERS;
+		int tickRate = DEFAULT_TICK_RATE;
+
+		for (int i = 0; i < args.length - 1; i += 2) {
+			String value = args[i + 1];
+			if (args[i].equals("-session")) { settings.multiplayerSession = value; }
+			else if (args[i].equals("-circuit")) { settings.circuit = value; }
+			else if (args[i].equals("-mode")) { mode = Session.SessionMode.valueOf(value.toUpperCase()); }
+			else if (args[i].equals("-laps")) { laps = Integer.parseInt(value); }
+			else if (args[i].equals("-ai")) { settings.aiActive = Boolean.parseBoolean(value); }
+			else if (args[i].equals("-level")) { settings.aiLevel = parseLevel(value); }
+			else if (args[i].equals("-players")) { players = Integer.parseInt(value); }
+			else if (args[i].equals("-tickrate")) { tickRate = Integer.parseInt(value); }
+			else { throw new IllegalArgumentException("Unknown option: " + args[i]); }
+		}
+
+		DedicatedServer server = new DedicatedServer(mode, laps, players, tickRate);
+		Management.register();
+		Management.setDedicatedServer(server);
+		server.run();
+	}
+
+	private static int parseLevel(String value) {
+		if (value.equals("easy")) { return Settings.AI_EASY; }
+		if (value.equals("normal")) { return Settings.AI_NORMAL; }
+		if (value.equals("hard")) { return Settings.AI_HARD; }
+		throw new IllegalArgumentException("Unknown AI level: " + value);
+	}
+}
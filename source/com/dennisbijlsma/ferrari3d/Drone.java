@@ -7,24 +7,44 @@
 package com.dennisbijlsma.ferrari3d;
 
 import com.dennisbijlsma.core3d.Vector3D;
+import com.dennisbijlsma.ferrari3d.util.CarState;
+import com.dennisbijlsma.ferrari3d.util.JitterBuffer;
+import com.dennisbijlsma.ferrari3d.util.StateCodec;
 import com.dennisbijlsma.messaging.Message;
 
 /**
  * A placeholder {@code Contestant} which represents a multiplayer peer. This
  * class listens to update messages coming from the other computer, and updates 
- * all data accordingly. When no new messages are available an attempt is done 
- * to interpolate the position based on past data. 
+ * all data accordingly. Received states are not shown immediately, but placed
+ * in a {@link JitterBuffer} that interpolates between them, so that the car
+ * moves smoothly regardless of the rate at which updates are received.
+ * <p>
+ * The jitter buffer uses the wall clock rather than the game time. The peer
+ * keeps sending states while the game is paused or showing a replay, and the
+ * car should continue from its current state afterwards.
  */
 public class Drone extends Contestant implements MessageListener {
 	
-	private boolean receivedThisFrame;
+	private int numReceivedMessages;
+	private StateCodec stateCodec;
+	private CarState state;
+	private CarState sampledState;
+	private JitterBuffer jitterBuffer;
+	private long startTime;
+	private Vector3D position;
 	
 	/**
 	 * Creates a new {@code Drone}.
 	 */
 	public Drone(String name, Session session) {
 		super(name, session);
-		receivedThisFrame = false;
+		numReceivedMessages = 0;
+		stateCodec = new StateCodec();
+		state = new CarState();
+		sampledState = new CarState();
+		jitterBuffer = new JitterBuffer();
+		startTime = System.nanoTime();
+		position = new Vector3D();
 	}
 	
 	/**
@@ -37,17 +57,16 @@ public class Drone extends Contestant implements MessageListener {
 	}
 	
 	/**
-	 * If a message was received this frame, this method does nothing. Otherwise
-	 * and attempt is done to interpolate the position based on data received in
-	 * the past.
+	 * Updates the car to the state obtained from the jitter buffer. Until the
+	 * first state has been received the car is moved by its physics.
 	 */
 	@Override
 	protected void updatePhysics(float dt) {
-		if (receivedThisFrame) {
-			receivedThisFrame = false;
-			return;
+		if (jitterBuffer.sample(getTime(), sampledState)) {
+			applyState(sampledState);
+		} else {
+			super.updatePhysics(dt);
 		}
-		super.updatePhysics(dt);
 	}
 	
 	/**
@@ -61,26 +80,92 @@ public class Drone extends Contestant implements MessageListener {
 	
 	/**
 	 * Invoked when a message is received from the server. This class will only
-	 * listen for update messages.
+	 * listen for update messages. Both the binary and the text format are
+	 * accepted. Updates are normally routed to the drone by its contestant ID,
+	 * but messages for other contestants are still ignored.
 	 */
 	public void messageReceived(Message message) {
 		
-		if (!message.getType().equals(Multiplayer.MESSAGE_UPDATE) || 
-				!getName().equals(message.getParameter("id"))) {
+		if (!message.getType().equals(Multiplayer.MESSAGE_UPDATE)) {
 			return;
 		}
 		
-		setPosition(parseVector(message.getParameter("position")));
-		setOrientation(Float.parseFloat(message.getParameter("orientation")));
-		setDirection(Float.parseFloat(message.getParameter("direction")));
-		setLap(Integer.parseInt(message.getParameter("lap")));
-		setIntermediate(Integer.parseInt(message.getParameter("intermediate")));
-		setPoint(Integer.parseInt(message.getParameter("point")));
-		setLaptime(getLap(), Integer.parseInt(message.getParameter("laptime")));
-		setSpeed(Float.parseFloat(message.getParameter("speed")));
-		setAngularSpeed(Float.parseFloat(message.getParameter("angularSpeed")));
-		
-		receivedThisFrame = true;
+		String encodedState = message.getParameter("state");
+		if (encodedState != null) {
+			if ((stateCodec.decodeId(encodedState) == getSession().getContestantId(getName())) &&
+					stateCodec.decode(encodedState, state)) {
+				stateReceived(state, getTime());
+			}
+		} else if (getName().equals(message.getParameter("id"))) {
+			parseTextState(message, state);
+			stateReceived(state, getTime());
+		}
+	}
+	
+	/**
+	 * Adds a received state to the jitter buffer. Update messages do not contain
+	 * the time at which they were sent, so for those the time of receiving is
+	 * used instead. The first state is also applied immediately, so that the
+	 * car starts in the correct position.
+	 * @param senderTime The time at which the state was created, in seconds,
+	 *        according to the clock of the peer that sent it.
+	 */
+	void stateReceived(CarState state, float senderTime) {
+		if (jitterBuffer.getSize() == 0) {
+			applyState(state);
+		}
+		jitterBuffer.add(state, senderTime, getTime());
+		numReceivedMessages++;
+	}
+	
+	/**
+	 * Returns the time since this drone was created, in seconds.
+	 */
+	private float getTime() {
+		return (System.nanoTime() - startTime) / 1000000000f;
+	}
+	
+	/**
+	 * Updates this drone to the specified state.
+	 */
+	private void applyState(CarState state) {
+		position.setVector(state.x, state.y, state.z);
+		setPosition(position);
+		setOrientation(state.orientation);
+		setDirection(state.direction);
+		setLap(state.lap);
+		setIntermediate(state.intermediate);
+		setPoint(state.point);
+		setLaptime(state.lap, state.laptime);
+		setSpeed(state.speed);
+		setAngularSpeed(state.angularSpeed);
+	}
+	
+	/**
+	 * Parses a state received in the text format.
+	 */
+	private void parseTextState(Message message, CarState dest) {
+		Vector3D parsedPosition = parseVector(message.getParameter("position"));
+		dest.x = parsedPosition.getX();
+		dest.y = parsedPosition.getY();
+		dest.z = parsedPosition.getZ();
+		dest.orientation = Float.parseFloat(message.getParameter("orientation"));
+		dest.direction = Float.parseFloat(message.getParameter("direction"));
+		dest.lap = Integer.parseInt(message.getParameter("lap"));
+		dest.intermediate = Integer.parseInt(message.getParameter("intermediate"));
+		dest.point = Integer.parseInt(message.getParameter("point"));
+		dest.laptime = Integer.parseInt(message.getParameter("laptime"));
+		dest.speed = Float.parseFloat(message.getParameter("speed"));
+		dest.angularSpeed = Float.parseFloat(message.getParameter("angularSpeed"));
+	}
+	
+	/**
+	 * Returns the number of update messages received so far. This can be used to
+	 * check if the state of this drone has been received since it was last
+	 * checked.
+	 */
+	public int getNumReceivedMessages() {
+		return numReceivedMessages;
 	}
 	
 	private Vector3D parseVector(String message) {
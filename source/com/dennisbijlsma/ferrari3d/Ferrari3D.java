@@ -90,6 +90,10 @@ public class Ferrari3D extends GameCore implements ApplicationMenuHandler {
 				
 		runNetThread();
 		
+		// Register MBeans for monitoring
+		
+		Management.register();
+		
 		// Mac OS X application menu
 		
 		if (Platform.isMacOSX()) {
@@ -161,7 +165,7 @@ public class Ferrari3D extends GameCore implements ApplicationMenuHandler {
 		if (game != null) {
 			getSceneGraph().clear();
 			game = null;
-			Loader.recreateCameras(getSceneGraph(), getDisplay(), true);
+			Loader.recreateCameras(getSceneGraph(), getDisplay(), false);
 		}
 		
 		if (menu == null) {
@@ -182,6 +186,9 @@ public class Ferrari3D extends GameCore implements ApplicationMenuHandler {
 	 * method is called it will be stopped.
 	 */
 	protected void changeToGameState() {
+		// Settings might have been changed in the menu, or received from the
+		// multiplayer server, since the session was created.
+		session.setConfig(new SessionConfig(settings));
 		game = new Game(this, session);
 		changeActiveGameState(game);
 	}
@@ -221,6 +228,10 @@ public class Ferrari3D extends GameCore implements ApplicationMenuHandler {
 	 * @return The newly created {@code Session}.
 	 */
 	protected Session recreateSession() {
+		if (session != null) {
+			Multiplayer.releaseInstanceForSession(session);
+		}
+		
 		switch (settings.mode) {
 			case Settings.MODE_TIME : 
 				session = new Session(Session.SessionMode.TIME, settings.laps); 
@@ -6,13 +6,17 @@
 
 package com.dennisbijlsma.ferrari3d;
 
-import java.util.HashMap;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import com.dennisbijlsma.core3d.Context3D;
 import com.dennisbijlsma.core3d.Controller;
 import com.dennisbijlsma.core3d.GameState;
-import com.dennisbijlsma.core3d.Vector3D;
 import com.dennisbijlsma.core3d.scene.Camera;
 import com.dennisbijlsma.core3d.scene.SceneGraph;
 import com.dennisbijlsma.ferrari3d.graphics.AbstractCar;
@@ -21,38 +25,82 @@ import com.dennisbijlsma.ferrari3d.graphics.Circuit;
 import com.dennisbijlsma.ferrari3d.graphics.Loader;
 import com.dennisbijlsma.ferrari3d.graphics.PlayerCamera;
 import com.dennisbijlsma.ferrari3d.graphics.Splashscreen;
-import com.dennisbijlsma.ferrari3d.util.Replay;
+import com.dennisbijlsma.ferrari3d.util.CarState;
+import com.dennisbijlsma.ferrari3d.util.FlightEvents;
+import com.dennisbijlsma.ferrari3d.util.LapTrace;
+import com.dennisbijlsma.ferrari3d.util.Laptime;
+import com.dennisbijlsma.ferrari3d.util.ReplayBuffer;
+import com.dennisbijlsma.ferrari3d.util.ReplayFile;
+import com.dennisbijlsma.ferrari3d.util.ReplaySource;
+import com.dennisbijlsma.ferrari3d.util.ReplayTrack;
+import com.dennisbijlsma.ferrari3d.util.ReplayWriter;
+import com.dennisbijlsma.ferrari3d.util.SessionReplay;
 import com.dennisbijlsma.ferrari3d.util.Settings;
+import com.dennisbijlsma.ferrari3d.util.Snapshot;
+import com.dennisbijlsma.ferrari3d.util.TelemetryChannel;
+import com.dennisbijlsma.ferrari3d.util.TelemetryWriter;
+import com.dennisbijlsma.ferrari3d.util.TickProfiler;
 import com.dennisbijlsma.messaging.Message;
 import com.dennisbijlsma.messaging.Participant;
+import nl.colorize.util.Platform;
 import nl.colorize.util.swing.Popups;
 
 /**
  * Main game loop class. The loop is active while the game is running, and will
  * pass a number of phases including the updating of controls, receiving and
  * sending of multiplayer data, and keeping general information about the session. 
+ * <p>
+ * When the session is hosted by a {@link DedicatedServer} all cars, including
+ * the local player's, are simulated by the server and shown as drones. The
+ * game only sends the player's input to the server.
  */
 public class Game implements GameState, MessageListener {
 
 	private Ferrari3D context;
 	private Session session;	
+	private SessionConfig config;
 	private Settings settings;
 	private Multiplayer multiplayer;
+	private Participant dedicatedServer;
 	
 	private PlayerData player1;
 	private PlayerData player2;
 	private float startTimer;
 	private float finishTimer;
 	private float multiplayerTimer;
+	private List<Contestant> snapshotContestants;
+	private List<Contestant> battles;
+	private Snapshot receivedSnapshot;
+	private int inputGearChange;
 	private boolean exitFlag;
 	
-	private Map<Contestant,Replay> replayData;
+	private ReplayBuffer replayBuffer;
+	private SessionReplay replay;
+	private ReplayWriter replayWriter;
+	private File replayFile;
+	private ReplayFile sessionReplay;
+	private List<Contestant> replayContestants;
+	private long replayFramesSaved;
+	private ReplayPlayer replayPlayer;
 	private boolean isReplay;
-	private float replayTimer;
+	private boolean isBackgroundReplay;
+	private LapTraceRecorder lapTraceRecorder;
+	private Car ghostCar;
+	private float[] ghostState;
+	private Telemetry telemetry;
+	private TelemetryWriter telemetryWriter;
+	private Contestant[] telemetryContestants;
+	private int telemetryTick;
+	private TickProfiler profiler;
 	
 	private static final int CONTROL_MENU = Controller.KEY_ESCAPE;
 	private static final int CONTROL_PAUSE = Controller.KEY_P;
 	private static final int CONTROL_REPLAY = Controller.KEY_R;
+	private static final int CONTROL_REPLAY_SLOWER = Controller.KEY_COMMA;
+	private static final int CONTROL_REPLAY_FASTER = Controller.KEY_PERIOD;
+	private static final int CONTROL_REPLAY_REVERSE = Controller.KEY_B;
+	private static final int CONTROL_REPLAY_BACK = Controller.KEY_LEFT;
+	private static final int CONTROL_REPLAY_FORWARD = Controller.KEY_RIGHT;
 	private static final int CONTROL_CHAT = Controller.KEY_M;
 	private static final int CONTROL_CAMERA_1 = Controller.KEY_1;
 	private static final int CONTROL_CAMERA_2 = Controller.KEY_2;
@@ -65,6 +113,14 @@ public class Game implements GameState, MessageListener {
 	private static final int CONTROL_REAR_CAMERA = Controller.KEY_V;
 	private static final float START_TIMER = 15f;
 	private static final float FINISH_TIMER = 10f;
+	private static final String REPLAY_DIR = "replays";
+	private static final String REPLAY_EXTENSION = ".f3r";
+	private static final float REPLAY_SEEK_TIME = 10f;
+	private static final String GHOST_DIR = "ghosts";
+	private static final String TELEMETRY_DIR = "telemetry";
+	private static final String TELEMETRY_EXTENSION = ".f3t";
+	private static final String PROFILER_FILE = "profiler.txt";
+	private static final float BATTLE_DISTANCE = 30f;
 
 	/**
 	 * Creates a new game state for the specified session.
@@ -74,18 +130,27 @@ public class Game implements GameState, MessageListener {
 
 		this.context = context;
 		this.session = session;
+		this.config = session.getConfig();
 		this.settings = Settings.getInstance();
 		this.multiplayer = Multiplayer.getInstanceForSession(session);
-		this.multiplayer.addMessageListener(this);
+		this.multiplayer.addMessageListener(this, Multiplayer.MESSAGE_STOP, 
+				Multiplayer.MESSAGE_START_SESSION, Multiplayer.MESSAGE_STOP_SESSION, 
+				Multiplayer.MESSAGE_PAUSE, Multiplayer.MESSAGE_SNAPSHOT, Multiplayer.MESSAGE_CHAT,
+				Multiplayer.MESSAGE_DISCONNECT);
 		
 		startTimer = (session.getMode() == Session.SessionMode.RACE) ? START_TIMER : 0f;
 		finishTimer = 0f;
 		multiplayerTimer = 0f;
+		snapshotContestants = new ArrayList<Contestant>();
+		battles = new ArrayList<Contestant>();
+		receivedSnapshot = new Snapshot();
+		inputGearChange = 0;
 		exitFlag = false;
 		
-		replayData = new HashMap<Contestant,Replay>();
+		replay = new SessionReplay(config.getReplayRate());
+		replayContestants = new ArrayList<Contestant>();
 		isReplay = false;
-		replayTimer = 0f;
+		profiler = new TickProfiler();
 	}
 	
 	/**
@@ -102,13 +167,16 @@ public class Game implements GameState, MessageListener {
 		
 		SceneGraph scene = getContext().getSceneGraph();
 		Controller controller = getContext().getController();
+		dedicatedServer = multiplayer.getDedicatedServer();
+		boolean splitscreen = config.isSplitscreen() && (dedicatedServer == null) &&
+				multiplayer.getRoster().containsKey(config.getNamePlayer2());
 		
-		Loader.recreateCameras(scene, getContext().getDisplay(), false);
+		Loader.recreateCameras(scene, getContext().getDisplay(), splitscreen);
 		Loader.createBackground(scene);
 	
 		Camera mainCamera = scene.getCamera(0);
 		
-		Player p1 = null;
+		Contestant p1 = null;
 		Player p2 = null;
 		PlayerCamera camera = null;
 		PlayerCamera camera2 = null;
@@ -117,48 +185,48 @@ public class Game implements GameState, MessageListener {
 		
 		// Load circuit
 		
-		Circuit circuit = Loader.loadCircuit(settings.circuit, scene);
+		Circuit circuit = Loader.loadCircuit(config.getCircuit(), scene, config);
 		scene.getRootNode().addChild(circuit.getModel());
 				
-		// Load human cars
-		
-		Car playerCar = Loader.loadCar(settings.car, scene, mainCamera);
-		scene.getRootNode().addChild(playerCar.getModel());		
-		
-		p1 = new Player(settings.name, session, controller, settings.getControlSet());
-		addContestant(p1, playerCar, circuit);
-		
-		if (settings.splitscreen) {
-			Car playerCar2 = Loader.loadCar(settings.carPlayer2, scene, scene.getCamera(1));
-			scene.getRootNode().addChild(playerCar2.getModel());
+		// Load cars in the order of the roster distributed by the session owner.
+		// The session owner simulates the AI cars, and cars of players that have
+		// left before the game was loaded.
+		
+		for (Map.Entry<String,String> i : multiplayer.getRoster().entrySet()) {
+			String name = i.getKey();
+			boolean isPlayer1 = name.equals(config.getName());
+			boolean isPlayer2 = splitscreen && name.equals(config.getNamePlayer2());
 			
-			p2 = new Player(settings.namePlayer2, session, controller, settings.controlsets[1]);
-			addContestant(p2, playerCar2, circuit);
-		}
-		
-		// Load multiplayer cars
-		
-		for (Participant i : multiplayer.getParticipants()) {
-			if (!i.isLocal()) {
-				Car droneCar = Loader.loadCar(i.getMeta("car"), scene, mainCamera);
-				scene.getRootNode().addChild(droneCar.getModel());
+			Car car = Loader.loadCar(i.getValue(), scene, isPlayer2 ? scene.getCamera(1) : mainCamera, config);
+			scene.getRootNode().addChild(car.getModel());
 			
-				Drone drone = new Drone(i.getMeta("id"), session);
-				addContestant(drone, droneCar, circuit);
-				multiplayer.addMessageListener(drone);
+			if (isPlayer1 && (dedicatedServer != null)) {
+				p1 = new Drone(name, session);
+				addContestant(p1, car, circuit);
+				car.setSoundEnabled(config.isSound());
+			} else if (isPlayer1) {
+				p1 = new Player(name, session, controller, settings.getControlSet());
+				addContestant(p1, car, circuit);
+			} else if (isPlayer2) {
+				p2 = new Player(name, session, controller, settings.controlsets[1]);
+				addContestant(p2, car, circuit);
+			} else if (multiplayer.isServer() && (multiplayer.getParticipant(name) == null)) {
+				addContestant(new AI(name, session), car, circuit);
+			} else {
+				addContestant(new Drone(name, session), car, circuit);
 			}
 		}
 		
-		// Load AI cars
+		if (p1 == null) {
+			throw new IllegalStateException("Player not in roster: " + config.getName());
+		}
 		
-		if (settings.aiActive) {
-			for (int i = session.getNumContestants(); i < Settings.MAX_CONTESTANTS; i++) {
-				String aiCarName = settings.cars.get(0);
-				Car aiCar = Loader.loadCar(aiCarName, scene, mainCamera);
-				scene.getRootNode().addChild(aiCar.getModel());		
-				
-				AI ai = new AI("AI-" + i, session);
-				addContestant(ai, aiCar, circuit);
+		// Route update messages to drones, once all contestant IDs are known
+		
+		for (Contestant i : session.getContestants()) {
+			if (i instanceof Drone) {
+				multiplayer.addMessageListener((Drone) i, Multiplayer.MESSAGE_UPDATE, 
+						session.getContestantId(i.getName()));
 			}
 		}
 		
@@ -166,10 +234,12 @@ public class Game implements GameState, MessageListener {
 		
 		hud = new HUD(mainCamera, session);
 		hud.setTarget(p1);
+		hud.setProfiler(profiler);
+		hud.setMultiplayer(multiplayer);
 		hud.start();
 		getContext().getSceneGraph().addOrthoQuad(hud, mainCamera);
 		
-		if (settings.splitscreen) {
+		if (splitscreen) {
 			hud2 = new HUD(scene.getCamera(1), session);
 			hud2.setTarget(p2);
 			hud2.start();
@@ -180,12 +250,12 @@ public class Game implements GameState, MessageListener {
 		
 		camera = new PlayerCamera(mainCamera, circuit);
 		camera.setTarget((Car) p1.getCar());
-		camera.setSelectedCamera(settings.defaultCamera);
+		camera.setSelectedCamera(config.getDefaultCamera());
 		
-		if (settings.splitscreen) {
+		if (splitscreen) {
 			camera2 = new PlayerCamera(scene.getCamera(1), circuit);
 			camera2.setTarget((Car) p2.getCar());
-			camera2.setSelectedCamera(settings.defaultCamera);
+			camera2.setSelectedCamera(config.getDefaultCamera());
 		}
 		
 		// Start
@@ -200,9 +270,89 @@ public class Game implements GameState, MessageListener {
 			i.setOrientation(1.57f);
 		}
 		
+		if (config.isEnableReplays()) {
+			startReplayRecording();
+		}
+		
+		if ((session.getMode() == Session.SessionMode.TIME) && !splitscreen) {
+			createGhost(scene, mainCamera);
+		}
+		
+		TelemetryChannel[] telemetryChannels = config.getTelemetryChannels();
+		if (telemetryChannels.length > 0) {
+			startTelemetry(telemetryChannels);
+		}
+		
+		Management.setGame(this);
 		splash.hideSplashScreen();
 	}
 	
+	/**
+	 * Creates the buffer that holds the most recent frames for instant replays,
+	 * and starts saving the complete session to a file in the application data
+	 * directory. The file is written in the background while the session is 
+	 * recorded.
+	 */
+	private void startReplayRecording() {
+		
+		String[] names = new String[replayContestants.size()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = replayContestants.get(i).getName();
+		}
+		replayBuffer = new ReplayBuffer(names, config.getReplayRate(), config.getReplayDuration());
+		replayFramesSaved = 0L;
+		
+		String fileName = REPLAY_DIR + "/" + config.getCircuit() + "-" + System.currentTimeMillis() + 
+				REPLAY_EXTENSION;
+		replayFile = Platform.getApplicationData("Ferrari3D", fileName);
+		replayFile.getParentFile().mkdirs();
+		replayWriter = new ReplayWriter(replayFile, replay, config.getCircuit(), 0L);
+		replayWriter.start();
+	}
+	
+	/**
+	 * Creates the ghost car that shows the fastest lap for the circuit and car.
+	 * The ghost is only added to the scene graph and not to the session, so it
+	 * cannot collide with other cars. Traces are stored in the application data
+	 * directory, one per circuit and car.
+	 */
+	private void createGhost(SceneGraph scene, Camera camera) {
+		
+		File dir = Platform.getApplicationData("Ferrari3D", GHOST_DIR);
+		File file = LapTrace.getFile(dir, config.getCircuit(), config.getCar());
+		lapTraceRecorder = new LapTraceRecorder(player1.getPlayer(), file, config.getCircuit());
+		
+		ghostCar = Loader.loadCar(config.getCar(), scene, camera, config);
+		ghostCar.setSoundEnabled(false);
+		ghostCar.getModel().setVisible(false);
+		scene.getRootNode().addChild(ghostCar.getModel());
+		ghostState = new float[ReplayTrack.NUM_FIELDS];
+	}
+	
+	/**
+	 * Starts recording the telemetry of all contestants to a file in the
+	 * application data directory. The file is written in the background while
+	 * the session is recorded.
+	 */
+	private void startTelemetry(TelemetryChannel[] channels) {
+		
+		telemetryContestants = session.getContestants().toArray(new Contestant[0]);
+		String[] names = new String[telemetryContestants.length];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = telemetryContestants[i].getName();
+		}
+		
+		String fileName = TELEMETRY_DIR + "/" + config.getCircuit() + "-" + 
+				System.currentTimeMillis() + TELEMETRY_EXTENSION;
+		File file = Platform.getApplicationData("Ferrari3D", fileName);
+		file.getParentFile().mkdirs();
+		telemetryWriter = new TelemetryWriter(file, channels, names);
+		session.setTelemetryFile(file);
+		telemetryWriter.start();
+		telemetry = new Telemetry(telemetryWriter);
+		telemetryTick = 0;
+	}
+	
 	/**
 	 * Adds the specified contestant to the game. This method will add it to the
 	 * session and will make sure it is notified of game updates.
@@ -211,31 +361,51 @@ public class Game implements GameState, MessageListener {
 		c.setCar(car);
 		c.setCircuitData(circuit);
 		session.addContestant(c);
-		if (settings.enableReplays) {
-			replayData.put(c, new Replay());
+		if (config.isEnableReplays()) {
+			replay.addTrack(c.getName(), c.getCarName());
+			replayContestants.add(c);
 		}
 	}
 	
 	/**
 	 * Called every frame during the game loop. This will update controls, send
-	 * and receive multiplayer data, and check global game logic.
+	 * and receive multiplayer data, and check global game logic. The duration of
+	 * every stage is recorded in the profiler.
 	 */
 	public void updateGameState(float dt) {
 		
+		FlightEvents.TickEvent event = new FlightEvents.TickEvent();
+		event.begin();
+		
+		long start = System.nanoTime();
 		updateControls(dt);
+		long time = profiler.record(TickProfiler.Stage.CONTROLS, start);
 		updateMultiplayerSend(dt);
+		time = profiler.record(TickProfiler.Stage.MULTIPLAYER_SEND, time);
 		
 		multiplayer.flushReceivedMessages();
+		time = profiler.record(TickProfiler.Stage.MESSAGE_FLUSH, time);
 
-		if (!context.isPaused() && !isReplay) {
+		if (!context.isPaused() && (!isReplay || isBackgroundReplay)) {
 			updateGameLogic(dt);
+			time = System.nanoTime();
 		}
 		
 		if (isReplay) {
 			updateReplay(dt);
+			time = profiler.record(TickProfiler.Stage.REPLAY, time);
 		}
 		
 		updateGraphics();
+		profiler.record(TickProfiler.Stage.CAMERA_HUD, time);
+		profiler.record(TickProfiler.Stage.TICK, start);
+		
+		event.end();
+		if (event.shouldCommit()) {
+			event.contestants = session.getNumContestants();
+			event.dt = dt;
+			event.commit();
+		}
 	}
 	
 	/**
@@ -259,18 +429,41 @@ public class Game implements GameState, MessageListener {
 		}
 		
 		if (controller.isKeyReleased(CONTROL_REPLAY)) {
-			if (settings.enableReplays) {
-				if (!settings.splitscreen && (multiplayer.getNumParticipants() <= 1)) { 
-					isReplay = true;
-					replayTimer = replayData.get(player1.getPlayer()).getReplayStartTime();
-				}
+			if (isReplay) {
+				stopReplay();
+			} else if (config.isEnableReplays() && (replayBuffer.getNumFrames() > 1)) {
+				startReplay();
+			}
+		}
+		
+		if (isReplay) {
+			if (controller.isKeyReleased(CONTROL_REPLAY_SLOWER)) {
+				replayPlayer.setSpeed(replayPlayer.getSpeed() / 2f);
+			}
+			if (controller.isKeyReleased(CONTROL_REPLAY_FASTER)) {
+				replayPlayer.setSpeed(replayPlayer.getSpeed() * 2f);
+			}
+			if (controller.isKeyReleased(CONTROL_REPLAY_REVERSE)) {
+				replayPlayer.setReverse(!replayPlayer.isReverse());
+			}
+			if (controller.isKeyReleased(CONTROL_REPLAY_BACK)) {
+				replayPlayer.setTime(replayPlayer.getTime() - REPLAY_SEEK_TIME);
+			}
+			if (controller.isKeyReleased(CONTROL_REPLAY_FORWARD)) {
+				replayPlayer.setTime(replayPlayer.getTime() + REPLAY_SEEK_TIME);
 			}
 		}
 		
+		if (dedicatedServer != null) {
+			int[] controlset = settings.getControlSet();
+			if (controller.isKeyReleased(controlset[Player.CONTROL_GEAR_UP])) { inputGearChange++; }
+			if (controller.isKeyReleased(controlset[Player.CONTROL_GEAR_DOWN])) { inputGearChange--; }
+		}
+		
 		if (controller.isKeyReleased(CONTROL_CHAT)) { 
 			String chatMessage = Popups.inputMessage(null, settings.getText("game.chatmessage"), "");		
 			if ((chatMessage != null) && (chatMessage.trim().length() > 0)) {
-				multiplayer.sendChatMessage(settings.name, chatMessage);
+				multiplayer.sendChatMessage(config.getName(), chatMessage);
 			} 
 		}
 		
@@ -319,11 +512,29 @@ public class Game implements GameState, MessageListener {
 		// Update contestants
 		
 		for (Contestant i : session.getContestants()) {
-			i.update(dt);
-			if (settings.enableReplays) {
-				updateReplayData(dt, i, replayData.get(i));
-			}
-		}	
+			i.update(dt, profiler);
+		}
+		
+		long recordingStart = System.nanoTime();
+		player1.getLapDelta().update();
+		if (player2 != null) {
+			player2.getLapDelta().update();
+		}
+		
+		if (telemetry != null) {
+			telemetry.tickSimulated(telemetryTick, telemetryContestants);
+			telemetryTick++;
+		}
+		
+		if (config.isEnableReplays()) {
+			updateReplayData(dt);
+		}
+		
+		if (lapTraceRecorder != null) {
+			updateGhost();
+		}
+		
+		profiler.record(TickProfiler.Stage.RECORDING, recordingStart);
 		
 		// Check for start of session
 		
@@ -367,80 +578,281 @@ public class Game implements GameState, MessageListener {
 		
 		// Update HUD
 		
+		String replayMessage = null;
+		if (isReplay) {
+			replayMessage = String.format("%s %s%.1fx", settings.getText("game.replay"),
+					replayPlayer.isReverse() ? "-" : "", replayPlayer.getSpeed());
+		}
+		
 		HUD hud = player1.getHUD();
 		hud.setTarget(getContestant(player1.getCamera().getTarget()));
 		hud.setGameData(context.getCurrentFPS(), context.getCurrentUPS(), 0, startTimer, finishTimer);
-		if (isReplay) {
-			hud.setMessage(settings.getText("game.replay"));
+		if (replayMessage != null) {
+			hud.setMessage(replayMessage);
 		}
 		
 		if (player2 != null) {
 			HUD hud2 = player2.getHUD(); 
 			hud2.setTarget(player2.getPlayer());
 			hud2.setGameData(context.getCurrentFPS(), context.getCurrentUPS(), 0, startTimer, finishTimer);
+			if (replayMessage != null) {
+				hud2.setMessage(replayMessage);
+			}
 		}
 	}
 	
 	/**
 	 * Sends update data for this frame. Depending on the time elapsed since the
-	 * previous frame this method may no nothing.
+	 * previous frame this method may no nothing. The data for all cars that are
+	 * controlled by this peer is sent as a single snapshot.
 	 * @param dt The delta time for this frame.
 	 */
 	private void updateMultiplayerSend(float dt) {
 		
+		multiplayer.update(dt);
+		
+		if (dedicatedServer != null) {
+			updateMultiplayerInput(dt);
+			return;
+		}
+		
 		if (multiplayerTimer < multiplayer.getUpdateInterval()) {
 			multiplayerTimer += dt;
 			return;
 		}
 		
-		multiplayer.sendUpdateMessage(player1.getPlayer());
+		updateBattles();
+		
+		snapshotContestants.clear();
+		snapshotContestants.add(player1.getPlayer());
 		
 		if (player2 != null) {
-			multiplayer.sendUpdateMessage(player2.getPlayer());
+			snapshotContestants.add(player2.getPlayer());
 		}
 		
 		if (multiplayer.isServer()) {
 			for (Contestant i : session.getContestants()) {
 				if (i instanceof AI) {
-					multiplayer.sendUpdateMessage(i);
+					snapshotContestants.add(i);
 				}
 			}
 		}
 		
+		multiplayer.sendSnapshotMessage(snapshotContestants);
 		multiplayerTimer = 0f;
 	}
 	
+	/**
+	 * Sends the player's input to the dedicated server, at the same interval
+	 * at which snapshots would otherwise be sent. While a replay is shown the
+	 * player is not driving, so all controls are sent as released.
+	 */
+	private void updateMultiplayerInput(float dt) {
+		
+		if (multiplayerTimer < multiplayer.getUpdateInterval()) {
+			multiplayerTimer += dt;
+			return;
+		}
+		
+		Controller controller = getContext().getController();
+		int[] controlset = settings.getControlSet();
+		int controls = 0;
+		for (int i = Player.CONTROL_ACCELERATE; (i <= Player.CONTROL_RIGHT) && !isReplay; i++) {
+			if (controller.isKeyPressed(controlset[i])) {
+				controls |= 1 << i;
+			}
+		}
+		
+		multiplayer.sendInputMessage(controls, isReplay ? 0 : inputGearChange);
+		inputGearChange = 0;
+		multiplayerTimer = 0f;
+	}
+	
+	/**
+	 * Marks the peers whose cars are close to one of the local players, so that
+	 * snapshots are sent at a higher rate while they are battling.
+	 */
+	private void updateBattles() {
+		battles.clear();
+		for (Contestant i : session.getContestants()) {
+			if ((i instanceof Drone) && (isBattle(i, player1.getPlayer()) || 
+					((player2 != null) && isBattle(i, player2.getPlayer())))) {
+				battles.add(i);
+			}
+		}
+		multiplayer.setBattles(battles);
+	}
+	
+	private boolean isBattle(Contestant drone, Contestant player) {
+		return drone.getPosition().distance(player.getPosition()) < BATTLE_DISTANCE;
+	}
+	
+	/**
+	 * Starts showing the replay of the last part of the session. The game is
+	 * stopped while the replay is shown, and paused when the replay ends.
+	 * <p>
+	 * In multiplayer sessions the other peers keep racing, so the session
+	 * continues in the background instead. The replay then only moves the car
+	 * models, and the local players cannot drive. Recording also continues, so
+	 * the replay plays a copy of the replay buffer.
+	 * <p>
+	 * Once the session has finished the replay of the complete session is
+	 * shown instead, which is read from the saved replay file.
+	 */
+	private void startReplay() {
+		
+		isReplay = true;
+		isBackgroundReplay = (multiplayer.getNumParticipants() > 1);
+		
+		ReplaySource source = session.isFinished() ? openSessionReplay() : null;
+		
+		if (source != null) {
+			replayPlayer = new ReplayPlayer(source);
+			if (isBackgroundReplay) {
+				setControlsEnabled(false);
+			}
+		} else if (isBackgroundReplay) {
+			SessionReplay copy = new SessionReplay(replayBuffer.getFrameRate());
+			for (Contestant i : replayContestants) {
+				copy.addTrack(i.getName(), i.getCarName());
+			}
+			for (int i = 0; i < replayBuffer.getNumFrames(); i++) {
+				copy.addFrame(replayBuffer, i);
+			}
+			replayPlayer = new ReplayPlayer(copy);
+			setControlsEnabled(false);
+		} else {
+			replayPlayer = new ReplayPlayer(replayBuffer);
+		}
+	}
+	
+	/**
+	 * Completes the file that contains the replay of the complete session, and
+	 * opens it for playback. Frames recorded after this are no longer saved, so
+	 * this should only be done when the session has finished.
+	 * @return The replay, or {@code null} if the file could not be written or
+	 *         read.
+	 */
+	private ReplaySource openSessionReplay() {
+		
+		if (replayWriter != null) {
+			saveReplayFrames();
+			replayWriter.close();
+			try {
+				replayWriter.waitForCompletion();
+				sessionReplay = new ReplayFile(replayFile);
+			} catch (IOException e) {
+				settings.getLogger().warning("Could not open replay: " + e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			replayWriter = null;
+		}
+		
+		return sessionReplay;
+	}
+	
 	/**
 	 * Updates the current positions of the contestants while the game is showing
-	 * a replay.
+	 * a replay. See {@link #startReplay()}.
 	 */
 	private void updateReplay(float dt) {
 		
-		replayTimer += dt;
+		boolean playing = replayPlayer.update(dt);
+		
+		for (int i = 0; i < replayContestants.size(); i++) {
+			if (isBackgroundReplay) {
+				replayPlayer.show(i, replayContestants.get(i));
+			} else {
+				replayPlayer.apply(i, replayContestants.get(i));
+			}
+		}
+		
+		if (!playing) {
+			stopReplay();
+		}
+	}
+	
+	/**
+	 * Stops showing the replay, either because it has ended or because the
+	 * replay control was pressed again. See {@link #startReplay()}.
+	 */
+	private void stopReplay() {
+		
+		isReplay = false;
+		replayPlayer = null;
 		
-		if (replayTimer >= replayData.get(player1.getPlayer()).getReplayEndTime()) {
-			isReplay = false;
+		if (isBackgroundReplay) {
+			setControlsEnabled(true);
+		} else {
 			paused(true);
+		}
+	}
+	
+	private void setControlsEnabled(boolean enabled) {
+		for (PlayerData i : new PlayerData[] { player1, player2 }) {
+			if ((i != null) && (i.getPlayer() instanceof Player)) {
+				((Player) i.getPlayer()).setControlsEnabled(enabled);
+			}
+		}
+	}
+	
+	/**
+	 * Records the positions of all contestants in the replay buffer, if enough 
+	 * time has elapsed since the last recorded frame. Frames are then added to 
+	 * the replay of the complete session. Drones are recorded in the same way
+	 * as local cars, at the position in which they are shown, as their received
+	 * states have already been interpolated by their jitter buffer.
+	 */
+	private void updateReplayData(float dt) {
+		
+		if (!replayBuffer.nextFrame(dt)) {
 			return;
 		}
 		
-		for (Contestant i : replayData.keySet()) {
-			Replay replay = replayData.get(i);
-			float[] data = replay.get(replayTimer);
-			i.setPosition(new Vector3D(data[0], data[1], data[2]));
-			i.setDirection(data[3]);
-			i.setOrientation(data[4]);
-			i.getCar().setPosition(data[0], data[2]);
-			i.getCar().setOrientation(data[3]);
+		for (int i = 0; i < replayContestants.size(); i++) {
+			Contestant c = replayContestants.get(i);
+			replayBuffer.record(i, c.getPosition().getX(), c.getPosition().getY(), 
+					c.getPosition().getZ(), c.getDirection(), c.getOrientation(), c.getSpeed(), 
+					c.getGear());
+		}
+		
+		saveReplayFrames();
+	}
+	
+	/**
+	 * Adds all frames that have been recorded since the last call to the
+	 * replay of the complete session.
+	 */
+	private void saveReplayFrames() {
+		
+		int pending = (int) (replayBuffer.getRecordedFrames() - replayFramesSaved);
+		while (pending > 0) {
+			replay.addFrame(replayBuffer, replayBuffer.getNumFrames() - pending);
+			replayFramesSaved++;
+			pending--;
 		}
 	}
 	
 	/**
-	 * Updates the replay data with the position of the specified contestant.
+	 * Records the lap of the player, and moves the ghost car to the position in
+	 * the fastest lap at the player's current lap time. The ghost is hidden when
+	 * there is no fastest lap yet, or when the player's lap is slower.
 	 */
-	private void updateReplayData(float dt, Contestant c, Replay replay) {
-		replay.put(dt, c.getPosition().getX(), c.getPosition().getY(), c.getPosition().getZ(),
-				c.getDirection(), c.getOrientation());
+	private void updateGhost() {
+		
+		lapTraceRecorder.update();
+		
+		LapTrace trace = lapTraceRecorder.getTrace();
+		int time = player1.getPlayer().getCurrentLaptime().getTime();
+		boolean visible = (trace != null) && session.isStarted() && 
+				(time != Laptime.TIME_NOT_SET) && trace.getState(time, ghostState);
+		
+		ghostCar.getModel().setVisible(visible);
+		if (visible) {
+			ghostCar.setPosition(ghostState[ReplayTrack.X], ghostState[ReplayTrack.Z]);
+			ghostCar.setOrientation(ghostState[ReplayTrack.DIRECTION]);
+		}
 	}
 	
 	/**
@@ -449,6 +861,7 @@ public class Game implements GameState, MessageListener {
 	 */
 	public void cleanupGameState() {
 		
+		Management.setGame(null);
 		multiplayer.removeMessageListener(this);
 		for (Contestant i : session.getContestants()) {
 			if (i instanceof Drone) {
@@ -462,6 +875,46 @@ public class Game implements GameState, MessageListener {
 		if ((player2 != null) && (player2.getHUD() != null)) {
 			player2.getHUD().stop();
 		}
+		
+		if (replayWriter != null) {
+			saveReplayFrames();
+			replayWriter.close();
+		}
+		
+		if (telemetryWriter != null) {
+			telemetryWriter.close();
+			if (telemetryWriter.getDroppedRows() > 0L) {
+				settings.getLogger().warning("Telemetry samples dropped: " + 
+						telemetryWriter.getDroppedRows());
+			}
+		}
+		
+		saveProfiler();
+	}
+	
+	/**
+	 * Writes the profiler statistics for the session to a file in the
+	 * application data directory. The file is replaced every session.
+	 */
+	private void saveProfiler() {
+		
+		File file = Platform.getApplicationData("Ferrari3D", PROFILER_FILE);
+		Writer writer = null;
+		try {
+			writer = new FileWriter(file);
+			writer.write(config.getCircuit() + " - " + session.getNumContestants() + " cars\n");
+			profiler.dump(writer);
+		} catch (IOException e) {
+			settings.getLogger().warning("Could not save profiler statistics: " + e);
+		} finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					settings.getLogger().warning("Could not save profiler statistics: " + e);
+				}
+			}
+		}
 	}
 	
 	/** {@inheritDoc} */
@@ -470,20 +923,41 @@ public class Game implements GameState, MessageListener {
 		String messageType = message.getType();
 		String id = message.getParameter("id");
 		
-		if (messageType.equals(Multiplayer.MESSAGE_STOP)) { 
-			exit(); 
-		} else if (messageType.equals(Multiplayer.MESSAGE_START_SESSION)) { 
-			startSession(); 
-		} else if (messageType.equals(Multiplayer.MESSAGE_STOP_SESSION)) { 
-			finishSession(); 
-		} else if (messageType.equals(Multiplayer.MESSAGE_PAUSE)) { 
-			paused(message.getParameter("state").equals("true")); 
-		} else if (messageType.equals(Multiplayer.MESSAGE_CHAT)) {
-			player1.getHUD().setMessage(message.getParameter("from") + ": " + 
-					message.getParameter("message"));
-		} else if (messageType.equals(Multiplayer.MESSAGE_DISCONNECT)) {
-			player1.getHUD().setMessage(settings.getText("game.disconnectmessage", id));
-			exit();
+		switch (messageType) {
+			case Multiplayer.MESSAGE_STOP : exit(); break;
+			case Multiplayer.MESSAGE_START_SESSION : startSession(); break;
+			case Multiplayer.MESSAGE_STOP_SESSION : finishSession(); break;
+			case Multiplayer.MESSAGE_PAUSE : paused(message.getParameter("state").equals("true")); break;
+			case Multiplayer.MESSAGE_SNAPSHOT : snapshotReceived(message); break;
+			case Multiplayer.MESSAGE_CHAT :
+				player1.getHUD().setMessage(message.getParameter("from") + ": " + 
+						message.getParameter("message"));
+				break;
+			case Multiplayer.MESSAGE_DISCONNECT :
+				player1.getHUD().setMessage(settings.getText("game.disconnectmessage", id));
+				exit();
+				break;
+			default : break;
+		}
+	}
+	
+	/**
+	 * Decodes a snapshot message and passes the state of every car in it to the
+	 * drone that represents the car. The snapshot is decoded only once, instead
+	 * of by every drone.
+	 */
+	private void snapshotReceived(Message message) {
+		
+		if (!multiplayer.readSnapshotMessage(message, receivedSnapshot)) {
+			return;
+		}
+		
+		for (int i = 0; i < receivedSnapshot.getSize(); i++) {
+			CarState state = receivedSnapshot.get(i);
+			Contestant contestant = session.getContestant(state.id);
+			if (contestant instanceof Drone) {
+				((Drone) contestant).stateReceived(state, receivedSnapshot.getTime() / 1000f);
+			}
 		}
 	}
 	
@@ -583,6 +1057,29 @@ public class Game implements GameState, MessageListener {
 		return session.getContestantAtRacePosition(targetPos);
 	}
 	
+	public Session getSession() {
+		return session;
+	}
+	
+	public Multiplayer getMultiplayer() {
+		return multiplayer;
+	}
+	
+	/**
+	 * Returns the profiler that measures the stages of the game loop.
+	 */
+	public TickProfiler getProfiler() {
+		return profiler;
+	}
+	
+	/**
+	 * Returns the buffer that stores the replay, or {@code null} when replays
+	 * are disabled.
+	 */
+	public ReplayBuffer getReplayBuffer() {
+		return replayBuffer;
+	}
+	
 	public Context3D getContext() {
 		return context;
 	}
@@ -593,17 +1090,20 @@ public class Game implements GameState, MessageListener {
 	 */
 	private static class PlayerData {
 	
-		private Player player;
+		private Contestant player;
 		private PlayerCamera camera;
 		private HUD hud;
+		private LapDelta lapDelta;
 		
-		public PlayerData(Player player, PlayerCamera camera, HUD hud) {
+		public PlayerData(Contestant player, PlayerCamera camera, HUD hud) {
 			this.player = player;
 			this.camera = camera;
 			this.hud = hud;
+			this.lapDelta = new LapDelta(player);
+			hud.setLapDelta(lapDelta);
 		}
 		
-		public Player getPlayer() {
+		public Contestant getPlayer() {
 			return player;
 		}
 		
@@ -614,5 +1114,9 @@ public class Game implements GameState, MessageListener {
 		public HUD getHUD() {
 			return hud;
 		}
+		
+		public LapDelta getLapDelta() {
+			return lapDelta;
+		}
 	}
 }
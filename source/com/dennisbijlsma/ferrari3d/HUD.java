@@ -19,8 +19,10 @@ import com.dennisbijlsma.core3d.scene.Camera;
 import com.dennisbijlsma.core3d.scene.Overlay;
 import com.dennisbijlsma.ferrari3d.graphics.TVGraphics;
 import com.dennisbijlsma.ferrari3d.util.CircuitPoint;
+import com.dennisbijlsma.ferrari3d.util.LatencyHistogram;
 import com.dennisbijlsma.ferrari3d.util.Laptime;
 import com.dennisbijlsma.ferrari3d.util.Settings;
+import com.dennisbijlsma.ferrari3d.util.TickProfiler;
 import com.dennisbijlsma.ferrari3d.util.Utils;
 import nl.colorize.util.Platform;
 import nl.colorize.util.swing.Utils2D;
@@ -51,6 +53,9 @@ public class HUD extends Overlay {
 	private long lastFrame;
 	private int lastIntermediate;
 	private Laptime lastFastestLap;
+	private LapDelta lapDelta;
+	private TickProfiler profiler;
+	private Multiplayer multiplayer;
 
 	private static final String GAME_DATA_FRAMERATE = "framerate";
 	private static final String GAME_DATA_UPS = "ups";
@@ -68,6 +73,8 @@ public class HUD extends Overlay {
 	private static final Color PANEL_COLOR = new Color(0, 0, 0, 128);
 	private static final Color MESSAGE_BACKGROUND = new Color(0, 0, 0, 128);
 	private static final Color MESSAGE_FOREGROUND = new Color(255, 255, 255);
+	private static final Color DELTA_FASTER_COLOR = new Color(0, 220, 0);
+	private static final Color DELTA_SLOWER_COLOR = new Color(255, 60, 60);
 	private static final int MESSAGE_TIME = 30;
 	private static final float SAT_DISTANCE = 250f;
 	
@@ -116,7 +123,7 @@ public class HUD extends Overlay {
 	@Override
 	public void paint(Graphics2D g2) {
 				
-		if (Settings.getInstance().showSAT) {
+		if (session.getConfig().isShowSAT()) {
 			paintTVGraphics(g2);
 		}
 		
@@ -124,7 +131,7 @@ public class HUD extends Overlay {
 		paintInfo(g2);
 		paintMessage(g2);
 		
-		if (Settings.getInstance().debug) {
+		if (session.getConfig().isDebug()) {
 			paintDebug(g2);
 		}
 	}
@@ -167,13 +174,21 @@ public class HUD extends Overlay {
 		g2.drawString(settings.getText("game.time"), right - 130, getHeight() - 15);
 		g2.drawString(Utils.timeFormat(currentTime, false), right - 80, getHeight() - 15);
 		
+		if ((lapDelta != null) && (lapDelta.getContestant() == target) && lapDelta.isAvailable()) {
+			int delta = lapDelta.getDelta();
+			g2.setColor(PANEL_COLOR);
+			g2.fillRoundRect(right - 225, getHeight() - 35, 75, 25, 10, 10);
+			g2.setColor((delta <= 0) ? DELTA_FASTER_COLOR : DELTA_SLOWER_COLOR);
+			g2.drawString(String.format("%+.3f", delta / 1000f), right - 215, getHeight() - 15);
+		}
+		
 		g2.setFont(POS_FONT);
 		g2.setColor(SHADOW_COLOR);
 		Utils2D.drawStringRight(g2, posText, right - 18, getHeight() - 73);
 		g2.setColor(FONT_COLOR);
 		Utils2D.drawStringRight(g2, posText, right - 20, getHeight() - 75);
 				
-		if (Settings.getInstance().showFramerate) {
+		if (session.getConfig().isShowFramerate()) {
 			float framerate = gamedata.get(GAME_DATA_FRAMERATE);
 			String fps = settings.getText("game.framerate") + " " + String.format("%.1f", framerate);
 			g2.setFont(DEBUG_FONT);
@@ -246,12 +261,12 @@ public class HUD extends Overlay {
 		String suffix = Settings.getInstance().getText("game.kmh");
 		String speedText = Math.abs(Math.round(3.6f * target.getSpeed())) + " " + suffix;
 		
-		if (Settings.getInstance().units == Settings.UNITS_MPH) {
+		if (session.getConfig().getUnits() == Settings.UNITS_MPH) {
 			suffix = Settings.getInstance().getText("game.mph");
 			speedText = Math.abs(Math.round(1.6f * 3.6f * target.getSpeed())) + " " + suffix;
 		}
 		
-		if (Settings.getInstance().units == Settings.UNITS_MS) {
+		if (session.getConfig().getUnits() == Settings.UNITS_MS) {
 			suffix = Settings.getInstance().getText("game.ms");
 			speedText = Math.abs(Math.round(target.getSpeed())) + " " + suffix;
 		}
@@ -368,16 +383,55 @@ public class HUD extends Overlay {
 		float framerate = gamedata.get(GAME_DATA_FRAMERATE);
 		float ups = gamedata.get(GAME_DATA_UPS);
 		
+		int height = (multiplayer != null) ? 100 : 85;
+		
 		g2.setColor(MESSAGE_BACKGROUND);
-		g2.fillRect(10, 0, 200, 85);
+		g2.fillRect(10, 0, 200, height);
 		g2.setColor(MESSAGE_FOREGROUND);
-		g2.drawRect(10, 0, 200, 85);
+		g2.drawRect(10, 0, 200, height);
 		g2.setFont(DEBUG_FONT);		
 		g2.drawString(settings.getText("game.framerate") + " " + String.format("%.1f", framerate), 20, 15);
 		g2.drawString(settings.getText("game.ups") + " " + String.format("%.1f", ups), 20, 30);
 		g2.drawString(settings.getText("game.processors") + " " + processors + " (" + arch + ")", 20, 45);
 		g2.drawString(settings.getText("game.memory") + " " + (memory / 100000f) / 10f + " mb", 20, 60);
 		g2.drawString("Java " + Platform.getJavaVersion() + " / " + Platform.getPlatform(), 20, 75);
+		
+		if (multiplayer != null) {
+			g2.drawString(settings.getText("game.network") + " " + 
+					String.format("%.1f/s, %.0f ms, %.1f%%", multiplayer.getSendRate(), 
+					multiplayer.getRoundTripTime() * 1000f, multiplayer.getLoss() * 100f), 20, 90);
+		}
+		
+		if (profiler != null) {
+			paintProfiler(g2);
+		}
+	}
+	
+	/**
+	 * Paints the duration of every stage of the game loop, in milliseconds. 
+	 */
+	private void paintProfiler(Graphics2D g2) {
+		
+		TickProfiler.Stage[] stages = TickProfiler.Stage.values();
+		
+		g2.setColor(MESSAGE_BACKGROUND);
+		g2.fillRect(220, 0, 280, 20 + stages.length * 9);
+		g2.setColor(MESSAGE_FOREGROUND);
+		g2.drawRect(220, 0, 280, 20 + stages.length * 9);
+		g2.setFont(DEBUG_FONT);
+		g2.drawString("ms", 230, 12);
+		g2.drawString("p50", 340, 12);
+		g2.drawString("p99", 395, 12);
+		g2.drawString("max", 450, 12);
+		
+		for (int i = 0; i < stages.length; i++) {
+			LatencyHistogram histogram = profiler.getHistogram(stages[i]);
+			int y = 23 + i * 9;
+			g2.drawString(stages[i].getLabel(), 230, y);
+			g2.drawString(String.format("%.2f", histogram.getPercentile(50.0) / 1000000f), 340, y);
+			g2.drawString(String.format("%.2f", histogram.getPercentile(99.0) / 1000000f), 395, y);
+			g2.drawString(String.format("%.2f", histogram.getMax() / 1000000f), 450, y);
+		}
 	}
 	
 	public void setTarget(Contestant newTarget) {
@@ -392,6 +446,29 @@ public class HUD extends Overlay {
 		return target;
 	}
 	
+	/**
+	 * Sets the lap delta that is shown while the HUD is targeting the contestant
+	 * for which it is calculated.
+	 */
+	public void setLapDelta(LapDelta lapDelta) {
+		this.lapDelta = lapDelta;
+	}
+	
+	/**
+	 * Sets the profiler whose statistics are shown when running in debug mode.
+	 */
+	public void setProfiler(TickProfiler profiler) {
+		this.profiler = profiler;
+	}
+	
+	/**
+	 * Sets the multiplayer session whose send rate, round-trip time and loss
+	 * are shown when running in debug mode.
+	 */
+	public void setMultiplayer(Multiplayer multiplayer) {
+		this.multiplayer = multiplayer;
+	}
+	
 	public void setMessage(String message) {
 		this.message = message;
 		messageTime = (message != null) ? MESSAGE_TIME : 0;
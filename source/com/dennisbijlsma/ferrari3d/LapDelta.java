@@ -0,0 +1,236 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// LapDelta
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d;
+
+import com.dennisbijlsma.core3d.ImmutableVector3D;
+import com.dennisbijlsma.ferrari3d.util.CircuitPoint;
+import com.dennisbijlsma.ferrari3d.util.Laptime;
+
+/**
+ * Calculates the difference between the current lap of a contestant and its
+ * fastest lap, at the same position on the circuit. The fastest lap is stored
+ * as a table that contains the lap time at fixed distances along the circuit,
+ * so the reference time for the current position can be looked up directly.
+ * <p>
+ * The current lap is recorded in a second table while it is being driven.
+ * When it turns out to be the new fastest lap the two tables are swapped, so
+ * no objects are allocated during the session. The delta is updated from the
+ * game thread but can be read from any thread, for example by the HUD.
+ */
+public class LapDelta {
+
+	private Contestant contestant;
+	private CircuitData circuit;
+	private float[] pointDistances;
+	private float circuitLength;
+	private int numSamples;
+
+	private float[] reference;
+	private int referenceTime;
+	private float[] recording;
+	private int recorded;
+	private int recordingLap;
+	private float startDistance;
+	private float lastDistance;
+	private float lastTime;
+
+	private volatile int delta;
+	private volatile boolean available;
+
+	private static final float SAMPLE_DISTANCE = 2f;
+	private static final float MIN_COVERAGE = 0.9f;
+
+	/**
+	 * Creates a new {@code LapDelta} for the specified contestant. The circuit
+	 * data of the contestant must have been set.
+	 */
+	public LapDelta(Contestant contestant) {
+
+		this.contestant = contestant;
+		this.circuit = contestant.getCircuitData();
+
+		int numPoints = circuit.getNumPoints();
+		pointDistances = new float[numPoints];
+		for (int i = 1; i < numPoints; i++) {
+			pointDistances[i] = pointDistances[i - 1] + getDistance(i - 1, i);
+		}
+		circuitLength = pointDistances[numPoints - 1] + getDistance(numPoints - 1, 0);
+		numSamples = (int) Math.ceil(circuitLength / SAMPLE_DISTANCE) + 1;
+
+		reference = new float[numSamples];
+		referenceTime = Laptime.TIME_NOT_SET;
+		recording = new float[numSamples];
+		recordingLap = -1;
+		available = false;
+	}
+
+	private float getDistance(int pointA, int pointB) {
+		CircuitPoint a = circuit.getPoint(pointA);
+		CircuitPoint b = circuit.getPoint(pointB);
+		float dx = b.pointX - a.pointX;
+		float dy = b.pointY - a.pointY;
+		return (float) Math.sqrt(dx * dx + dy * dy);
+	}
+
+	/**
+	 * Updates the delta for the current position of the contestant. This should
+	 * be called after the contestant has been updated.
+	 */
+	public void update() {
+
+		int lap = contestant.getLap();
+		float circuitDistance = getCircuitDistance();
+
+		if (lap != recordingLap) {
+			if ((recordingLap > 1) && (lap == recordingLap + 1)) {
+				lapCompleted();
+			}
+			recordingLap = lap;
+			startDistance = circuitDistance;
+			recorded = 0;
+			lastDistance = 0f;
+			lastTime = 0f;
+		}
+
+		int time = contestant.getCurrentLaptime().getTime();
+		if (time == Laptime.TIME_NOT_SET) {
+			available = false;
+			return;
+		}
+
+		float distance = circuitDistance - startDistance;
+		if (distance < 0f) {
+			distance += circuitLength;
+		}
+
+		// Moving backwards, for example when the car has spun or is reversing
+		// just after the finish line, does not change the recorded lap
+		if ((distance >= lastDistance) && (distance - lastDistance < circuitLength / 2f)) {
+			record(distance, time);
+		}
+
+		if (referenceTime != Laptime.TIME_NOT_SET) {
+			float position = lastDistance / SAMPLE_DISTANCE;
+			int index = Math.min((int) position, numSamples - 2);
+			float fraction = Math.min(position - index, 1f);
+			float referenceLapTime = reference[index] +
+					(reference[index + 1] - reference[index]) * fraction;
+			delta = Math.round(time - referenceLapTime);
+			available = true;
+		}
+	}
+
+	/**
+	 * Returns the distance of the contestant from the first point of the circuit.
+	 * The position is projected on the line between the closest point and the
+	 * next point.
+	 */
+	private float getCircuitDistance() {
+
+		int point = contestant.getPoint();
+		int next = (point + 1) % circuit.getNumPoints();
+		CircuitPoint a = circuit.getPoint(point);
+		CircuitPoint b = circuit.getPoint(next);
+		ImmutableVector3D position = contestant.getPosition();
+
+		float dx = b.pointX - a.pointX;
+		float dy = b.pointY - a.pointY;
+		float length = dx * dx + dy * dy;
+		float projection = 0f;
+		if (length > 0f) {
+			projection = ((position.getX() - a.pointX) * dx + (position.getZ() - a.pointY) * dy) /
+					(float) Math.sqrt(length);
+		}
+
+		float distance = pointDistances[point] + projection;
+		if (distance < 0f) {
+			distance += circuitLength;
+		}
+		return distance % circuitLength;
+	}
+
+	/**
+	 * Fills the samples in the recorded lap up to the specified distance,
+	 * interpolating between the previous position and the current one.
+	 */
+	private void record(float distance, float time) {
+
+		while ((recorded < numSamples) && (recorded * SAMPLE_DISTANCE <= distance)) {
+			float fraction = 1f;
+			if (distance > lastDistance) {
+				fraction = (recorded * SAMPLE_DISTANCE - lastDistance) / (distance - lastDistance);
+				fraction = Math.max(0f, Math.min(fraction, 1f));
+			}
+			recording[recorded] = lastTime + (time - lastTime) * fraction;
+			recorded++;
+		}
+
+		lastDistance = distance;
+		lastTime = time;
+	}
+
+	/**
+	 * Called when a lap has been completed. When it is the new fastest lap the
+	 * recorded lap becomes the reference. The first lap starts from the grid,
+	 * so it is never used. Laps that do not cover most of the circuit, for
+	 * example because the car has missed a part, are ignored as well.
+	 */
+	private void lapCompleted() {
+
+		Laptime laptime = contestant.getLastLaptime();
+		if ((laptime != contestant.getFastestLaptime()) || (laptime.getTime() >= referenceTime)) {
+			return;
+		}
+
+		if (recorded < numSamples * MIN_COVERAGE) {
+			return;
+		}
+
+		record(circuitLength, laptime.getTime());
+
+		float[] previousReference = reference;
+		reference = recording;
+		recording = previousReference;
+		referenceTime = laptime.getTime();
+	}
+
+	/**
+	 * Returns the difference between the current lap and the fastest lap at the
+	 * same position, in milliseconds. A negative value means the current lap is
+	 * faster.
+	 */
+	public int getDelta() {
+		return delta;
+	}
+
+	/**
+	 * Returns true if a delta is available. This requires a fastest lap to have
+	 * been completed during this session.
+	 */
+	public boolean isAvailable() {
+		return available;
+	}
+
+	public Contestant getContestant() {
+		return contestant;
+	}
+
+	/**
+	 * Returns the lap time of the reference lap, in milliseconds. When no lap
+	 * has been completed this will return {@code Laptime.TIME_NOT_SET}.
+	 */
+	public int getReferenceTime() {
+		return referenceTime;
+	}
+
+	/**
+	 * Returns the length of the circuit, measured along the circuit points.
+	 */
+	public float getCircuitLength() {
+		return circuitLength;
+	}
+}
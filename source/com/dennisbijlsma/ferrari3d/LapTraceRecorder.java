@@ -0,0 +1,148 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// LapTraceRecorder
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.dennisbijlsma.ferrari3d.util.LapTrace;
+import com.dennisbijlsma.ferrari3d.util.Laptime;
+import com.dennisbijlsma.ferrari3d.util.ReplayTrack;
+import com.dennisbijlsma.ferrari3d.util.Settings;
+
+/**
+ * Records every lap driven by a contestant, and saves it as a {@link LapTrace}
+ * when it improves the fastest lap for the circuit and car. Frames are sampled
+ * at fixed intervals of lap time, so that the trace can be played back against
+ * the lap time of a later lap.
+ * <p>
+ * Traces are saved in a background thread, so that writing the file does not
+ * interrupt the game. The trace that should be used for the ghost car is
+ * available from {@link #getTrace()}, it is replaced once a new fastest lap has
+ * been saved.
+ */
+public class LapTraceRecorder {
+
+	private Contestant contestant;
+	private File file;
+	private String circuit;
+	private String car;
+	private volatile LapTrace trace;
+	private int bestLaptime;
+
+	private ReplayTrack track;
+	private int recordingLap;
+	private int nextSampleTime;
+
+	private static final int SAMPLE_INTERVAL = Math.round(1000f / LapTrace.FRAME_RATE);
+
+	/**
+	 * Creates a new recorder for the specified contestant. If the file already
+	 * contains a trace it is opened, and only laps faster than that trace will
+	 * replace it.
+	 */
+	public LapTraceRecorder(Contestant contestant, File file, String circuit) {
+
+		this.contestant = contestant;
+		this.file = file;
+		this.circuit = circuit;
+		this.car = contestant.getCarName();
+		this.bestLaptime = Laptime.TIME_NOT_SET;
+		this.recordingLap = -1;
+
+		if (file.exists()) {
+			try {
+				trace = new LapTrace(file);
+				bestLaptime = trace.getLaptime();
+			} catch (IOException e) {
+				Settings.getInstance().getLogger().warning("Could not open lap trace: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Records the state of the contestant, if enough lap time has elapsed since
+	 * the last recorded frame. When the contestant has started a new lap the
+	 * previous lap is saved if it was the fastest.
+	 */
+	public void update() {
+
+		int lap = contestant.getLap();
+		if (lap != recordingLap) {
+			if ((recordingLap > 1) && (lap == recordingLap + 1)) {
+				lapCompleted();
+			}
+			track = new ReplayTrack();
+			recordingLap = lap;
+			nextSampleTime = 0;
+		}
+
+		int time = contestant.getCurrentLaptime().getTime();
+		if (time == Laptime.TIME_NOT_SET) {
+			return;
+		}
+
+		while (time >= nextSampleTime) {
+			track.add(contestant.getPosition().getX(), contestant.getPosition().getY(),
+					contestant.getPosition().getZ(), contestant.getDirection(),
+					contestant.getOrientation(), contestant.getSpeed(), contestant.getGear());
+			nextSampleTime += SAMPLE_INTERVAL;
+		}
+	}
+
+	/**
+	 * Called when a lap has been completed. The first lap is never saved, since
+	 * it starts from the grid instead of the finish line.
+	 */
+	private void lapCompleted() {
+
+		Laptime laptime = contestant.getLastLaptime();
+		if ((laptime != contestant.getFastestLaptime()) || (laptime.getTime() >= bestLaptime)) {
+			return;
+		}
+
+		bestLaptime = laptime.getTime();
+		saveTrace(track, bestLaptime);
+	}
+
+	/**
+	 * Writes a trace to the file in a background thread. When the file has been
+	 * written it is opened, and replaces the current trace.
+	 */
+	private void saveTrace(final ReplayTrack lapTrack, final int laptime) {
+
+		Thread saveThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					file.getParentFile().mkdirs();
+					LapTrace.write(file, circuit, car, contestant.getName(), laptime, lapTrack);
+					trace = new LapTrace(file);
+				} catch (IOException e) {
+					Settings.getInstance().getLogger().warning("Could not save lap trace: " + e);
+				}
+			}
+		}, "Ferrari3D-LapTrace");
+		saveThread.setDaemon(true);
+		saveThread.start();
+	}
+
+	/**
+	 * Returns the fastest trace for the circuit and car, or {@code null} when
+	 * no lap has been saved yet.
+	 */
+	public LapTrace getTrace() {
+		return trace;
+	}
+
+	/**
+	 * Returns the lap time of the fastest trace, in milliseconds. When no trace
+	 * exists this will return {@code Laptime.TIME_NOT_SET}.
+	 */
+	public int getBestLaptime() {
+		return bestLaptime;
+	}
+}
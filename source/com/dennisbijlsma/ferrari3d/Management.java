@@ -0,0 +1,381 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// Management
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.dennisbijlsma.ferrari3d.editor.ContentLoader;
+import com.dennisbijlsma.ferrari3d.graphics.Loader;
+import com.dennisbijlsma.ferrari3d.util.LatencyHistogram;
+import com.dennisbijlsma.ferrari3d.util.ReplayBuffer;
+import com.dennisbijlsma.ferrari3d.util.Settings;
+import com.dennisbijlsma.ferrari3d.util.TickProfiler;
+
+/**
+ * Exposes metrics about the running game through JMX, so that they can be
+ * monitored without the debug HUD. The MBeans are registered once at startup,
+ * and report on the game that is currently running, or on the session hosted
+ * by the {@link DedicatedServer}. When no game is running all metrics are 0.
+ * Counters are reset when a new session is started.
+ * <p>
+ * The following MBeans are registered in the {@code com.dennisbijlsma.ferrari3d}
+ * domain:
+ * <ul>
+ *   <li>{@code type=Engine} with the tick rate and number of contestants.</li>
+ *   <li>{@code type=Stage,name=...} with the times of every stage of the game
+ *       loop, see {@link TickProfiler}.</li>
+ *   <li>{@code type=Network} with the multiplayer metrics.</li>
+ *   <li>{@code type=ContentCache} with the cache of the content loader.</li>
+ *   <li>{@code type=Replay} with the memory used by the replay buffer, which
+ *       is not used by the dedicated server.</li>
+ * </ul>
+ */
+public final class Management {
+
+	private static volatile Game game;
+	private static volatile DedicatedServer dedicatedServer;
+	private static boolean registered = false;
+
+	private static final String DOMAIN = "com.dennisbijlsma.ferrari3d";
+
+	private Management() {
+	}
+
+	/**
+	 * Registers all MBeans with the platform MBean server. Calling this method
+	 * more than once has no effect.
+	 */
+	public static synchronized void register() {
+
+		if (registered) {
+			return;
+		}
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+		try {
+			server.registerMBean(new Engine(), new ObjectName(DOMAIN + ":type=Engine"));
+			for (TickProfiler.Stage i : TickProfiler.Stage.values()) {
+				server.registerMBean(new Stage(i), new ObjectName(DOMAIN + ":type=Stage,name=" +
+						ObjectName.quote(i.getLabel())));
+			}
+			server.registerMBean(new Network(), new ObjectName(DOMAIN + ":type=Network"));
+			server.registerMBean(new ContentCache(), new ObjectName(DOMAIN + ":type=ContentCache"));
+			server.registerMBean(new Replay(), new ObjectName(DOMAIN + ":type=Replay"));
+			registered = true;
+		} catch (JMException e) {
+			Settings.getInstance().getLogger().warning("Could not register MBeans: " + e);
+		}
+	}
+
+	/**
+	 * Sets the game that the MBeans report on, or {@code null} when no game is
+	 * running.
+	 */
+	public static void setGame(Game currentGame) {
+		game = currentGame;
+	}
+
+	/**
+	 * Sets the dedicated server that the MBeans report on when no game is
+	 * running.
+	 */
+	public static void setDedicatedServer(DedicatedServer server) {
+		dedicatedServer = server;
+	}
+
+	private static TickProfiler getProfiler() {
+		Game current = game;
+		if (current != null) {
+			return current.getProfiler();
+		}
+		DedicatedServer server = dedicatedServer;
+		return (server != null) ? server.getProfiler() : null;
+	}
+
+	private static Session getSession() {
+		Game current = game;
+		if (current != null) {
+			return current.getSession();
+		}
+		DedicatedServer server = dedicatedServer;
+		return (server != null) ? server.getSession() : null;
+	}
+
+	private static Multiplayer getMultiplayer() {
+		Game current = game;
+		if (current != null) {
+			return current.getMultiplayer();
+		}
+		DedicatedServer server = dedicatedServer;
+		return (server != null) ? server.getMultiplayer() : null;
+	}
+
+	/**
+	 * Metrics for the game loop.
+	 */
+	public interface EngineMXBean {
+
+		public long getTicks();
+
+		public double getTicksPerSecond();
+
+		public int getContestants();
+	}
+
+	/**
+	 * Times for one stage of the game loop, in microseconds.
+	 */
+	public interface StageMXBean {
+
+		public long getCount();
+
+		public double getMeanMicros();
+
+		public double getP50Micros();
+
+		public double getP99Micros();
+
+		public double getMaxMicros();
+	}
+
+	/**
+	 * Metrics for multiplayer communication. Bytes are measured as the size
+	 * of the encoded snapshot payloads, which make up nearly all traffic. The
+	 * round-trip time and loss are those of the peer with the worst
+	 * connection.
+	 */
+	public interface NetworkMXBean {
+
+		public long getMessagesSent();
+
+		public long getMessagesReceived();
+
+		public double getMessagesSentPerSecond();
+
+		public double getMessagesReceivedPerSecond();
+
+		public long getBytesSent();
+
+		public long getBytesReceived();
+
+		public int getReceiveQueueDepth();
+
+		public long getReconnects();
+
+		public double getSendRate();
+
+		public double getRoundTripTimeMillis();
+
+		public double getLoss();
+	}
+
+	/**
+	 * Metrics for the cache of the content loader that loads cars and circuits.
+	 */
+	public interface ContentCacheMXBean {
+
+		public int getCachedModels();
+
+		public int getCachedTextures();
+
+		public int getCachedDocuments();
+
+		public long getHits();
+
+		public long getMisses();
+
+		public double getHitRate();
+	}
+
+	/**
+	 * Metrics for the replay buffer.
+	 */
+	public interface ReplayMXBean {
+
+		public long getMemoryUsage();
+
+		public int getFrames();
+
+		public int getCapacity();
+	}
+
+	private static class Engine implements EngineMXBean {
+
+		public long getTicks() {
+			TickProfiler profiler = getProfiler();
+			return (profiler != null) ? profiler.getTicks().getCount() : 0L;
+		}
+
+		public double getTicksPerSecond() {
+			TickProfiler profiler = getProfiler();
+			return (profiler != null) ? profiler.getTicks().getRate() : 0.0;
+		}
+
+		public int getContestants() {
+			Session session = getSession();
+			return (session != null) ? session.getNumContestants() : 0;
+		}
+	}
+
+	private static class Stage implements StageMXBean {
+
+		private TickProfiler.Stage stage;
+
+		public Stage(TickProfiler.Stage stage) {
+			this.stage = stage;
+		}
+
+		private LatencyHistogram getHistogram() {
+			TickProfiler profiler = getProfiler();
+			return (profiler != null) ? profiler.getHistogram(stage) : null;
+		}
+
+		public long getCount() {
+			LatencyHistogram histogram = getHistogram();
+			return (histogram != null) ? histogram.getCount() : 0L;
+		}
+
+		public double getMeanMicros() {
+			LatencyHistogram histogram = getHistogram();
+			if ((histogram == null) || (histogram.getCount() == 0L)) {
+				return 0.0;
+			}
+			return histogram.getTotal() / 1000.0 / histogram.getCount();
+		}
+
+		public double getP50Micros() {
+			LatencyHistogram histogram = getHistogram();
+			return (histogram != null) ? histogram.getPercentile(50.0) / 1000.0 : 0.0;
+		}
+
+		public double getP99Micros() {
+			LatencyHistogram histogram = getHistogram();
+			return (histogram != null) ? histogram.getPercentile(99.0) / 1000.0 : 0.0;
+		}
+
+		public double getMaxMicros() {
+			LatencyHistogram histogram = getHistogram();
+			return (histogram != null) ? histogram.getMax() / 1000.0 : 0.0;
+		}
+	}
+
+	private static class Network implements NetworkMXBean {
+
+		public long getMessagesSent() {
+			Multiplayer multiplayer = getMultiplayer();
+			return (multiplayer != null) ? multiplayer.getMessagesSent().getCount() : 0L;
+		}
+
+		public long getMessagesReceived() {
+			Multiplayer multiplayer = getMultiplayer();
+			return (multiplayer != null) ? multiplayer.getMessagesReceived().getCount() : 0L;
+		}
+
+		public double getMessagesSentPerSecond() {
+			Multiplayer multiplayer = getMultiplayer();
+			return (multiplayer != null) ? multiplayer.getMessagesSent().getRate() : 0.0;
+		}
+
+		public double getMessagesReceivedPerSecond() {
+			Multiplayer multiplayer = getMultiplayer();
+			return (multiplayer != null) ? multiplayer.getMessagesReceived().getRate() : 0.0;
+		}
+
+		public long getBytesSent() {
+			Multiplayer multiplayer = getMultiplayer();
+			return (multiplayer != null) ? multiplayer.getBytesSent() : 0L;
+		}
+
+		public long getBytesReceived() {
+			Multiplayer multiplayer = getMultiplayer();
+			return (multiplayer != null) ? multiplayer.getBytesReceived() : 0L;
+		}
+
+		public int getReceiveQueueDepth() {
+			Multiplayer multiplayer = getMultiplayer();
+			return (multiplayer != null) ? multiplayer.getReceiveQueueDepth() : 0;
+		}
+
+		public long getReconnects() {
+			Multiplayer multiplayer = getMultiplayer();
+			return (multiplayer != null) ? multiplayer.getReconnects() : 0L;
+		}
+
+		public double getSendRate() {
+			Multiplayer multiplayer = getMultiplayer();
+			return (multiplayer != null) ? multiplayer.getSendRate() : 0.0;
+		}
+
+		public double getRoundTripTimeMillis() {
+			Multiplayer multiplayer = getMultiplayer();
+			return (multiplayer != null) ? multiplayer.getRoundTripTime() * 1000.0 : 0.0;
+		}
+
+		public double getLoss() {
+			Multiplayer multiplayer = getMultiplayer();
+			return (multiplayer != null) ? multiplayer.getLoss() : 0.0;
+		}
+	}
+
+	private static class ContentCache implements ContentCacheMXBean {
+
+		public int getCachedModels() {
+			return Loader.getContentLoader().getNumCachedModels();
+		}
+
+		public int getCachedTextures() {
+			return Loader.getContentLoader().getNumCachedTextures();
+		}
+
+		public int getCachedDocuments() {
+			return Loader.getContentLoader().getNumCachedDocuments();
+		}
+
+		public long getHits() {
+			return Loader.getContentLoader().getCacheHits();
+		}
+
+		public long getMisses() {
+			return Loader.getContentLoader().getCacheMisses();
+		}
+
+		public double getHitRate() {
+			ContentLoader loader = Loader.getContentLoader();
+			long hits = loader.getCacheHits();
+			long total = hits + loader.getCacheMisses();
+			return (total > 0L) ? (double) hits / total : 0.0;
+		}
+	}
+
+	private static class Replay implements ReplayMXBean {
+
+		private ReplayBuffer getReplayBuffer() {
+			Game current = game;
+			return (current != null) ? current.getReplayBuffer() : null;
+		}
+
+		public long getMemoryUsage() {
+			ReplayBuffer buffer = getReplayBuffer();
+			return (buffer != null) ? buffer.getMemoryUsage() : 0L;
+		}
+
+		public int getFrames() {
+			ReplayBuffer buffer = getReplayBuffer();
+			return (buffer != null) ? buffer.getNumFrames() : 0;
+		}
+
+		public int getCapacity() {
+			ReplayBuffer buffer = getReplayBuffer();
+			return (buffer != null) ? buffer.getCapacity() : 0;
+		}
+	}
+}
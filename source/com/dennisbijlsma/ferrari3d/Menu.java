@@ -9,6 +9,7 @@ package com.dennisbijlsma.ferrari3d;
 import java.awt.Image;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 
@@ -27,6 +28,8 @@ import com.dennisbijlsma.ferrari3d.menu.UIMenuOption;
 import com.dennisbijlsma.ferrari3d.menu.UIMenuTable;
 import com.dennisbijlsma.ferrari3d.menu.UIMenuText;
 import com.dennisbijlsma.ferrari3d.menu.UIMenuWidget;
+import com.dennisbijlsma.ferrari3d.util.Laptime;
+import com.dennisbijlsma.ferrari3d.util.SessionArchive;
 import com.dennisbijlsma.ferrari3d.util.Settings;
 import com.dennisbijlsma.ferrari3d.util.TrackRecord;
 import com.dennisbijlsma.ferrari3d.util.Utils;
@@ -55,9 +58,15 @@ public class Menu extends MenuState implements MessageListener {
 	private Multiplayer multiplayer;
 	
 	private Map<Screen,UIMenu> menus;
+	private Map<String,String> lobby;
 	private Screen selected;
 	private UIMenuBackground background;
 	private int recordsPage;
+	private SessionArchive archive;
+	
+	private static final String ARCHIVE_DIR = "archive";
+	private static final String[] MESSAGE_TYPES = { Multiplayer.MESSAGE_INIT, 
+			Multiplayer.MESSAGE_CONNECT, Multiplayer.MESSAGE_DISCONNECT, Multiplayer.MESSAGE_START };
 
 	public enum Screen {
 		MAIN,
@@ -92,9 +101,10 @@ public class Menu extends MenuState implements MessageListener {
 		this.session = session;
 		this.settings = Settings.getInstance();
 		this.multiplayer = Multiplayer.getInstanceForSession(session);
-		this.multiplayer.addMessageListener(this);
+		this.multiplayer.addMessageListener(this, MESSAGE_TYPES);
 		
 		menus = new HashMap<Screen,UIMenu>();
+		lobby = new LinkedHashMap<String,String>();
 		selected = null;		
 	}
 	
@@ -145,19 +155,29 @@ public class Menu extends MenuState implements MessageListener {
 	 */
 	public void messageReceived(Message message) {
 		
-		if (message.getType().equals(Multiplayer.MESSAGE_INIT)) {
-			multiplayer.sendConnectMessage();
-		} else if (message.getType().equals(Multiplayer.MESSAGE_CONNECT)) {
-			receiveConnectMessage(multiplayer.getParticipant(message.getParameter("id")), message);
-			refreshLobbyMenu(multiplayer.isServer(), false);
-			setSelectedMenu(Screen.LOBBY);
-			menus.get(Screen.LOBBY).setLoading(false);
-		} else if (message.getType().equals(Multiplayer.MESSAGE_DISCONNECT)) {
-			Popups.messageFromSwingThread(settings.getText("menu.message.clientdisconnect", 
-						message.getParameter("id")));
-			setSelectedMenu(Screen.MAIN);
-		} else if (message.getType().equals(Multiplayer.MESSAGE_START)) {
-			startGame();
+		switch (message.getType()) {
+			case Multiplayer.MESSAGE_INIT : 
+				multiplayer.sendConnectMessage(); 
+				break;
+			case Multiplayer.MESSAGE_CONNECT :
+				receiveConnectMessage(multiplayer.getParticipant(message.getParameter("id")), message);
+				refreshLobbyMenu(multiplayer.isServer(), false);
+				setSelectedMenu(Screen.LOBBY);
+				menus.get(Screen.LOBBY).setLoading(false);
+				break;
+			case Multiplayer.MESSAGE_DISCONNECT :
+				lobby.remove(message.getParameter("id"));
+				Popups.messageFromSwingThread(settings.getText("menu.message.clientdisconnect", 
+							message.getParameter("id")));
+				setSelectedMenu(Screen.MAIN);
+				break;
+			case Multiplayer.MESSAGE_START : 
+				if (multiplayer.receiveStartMessage(message)) {
+					applyStartSettings(message);
+					startGame();
+				}
+				break;
+			default : break;
 		}
 	}
 	
@@ -399,7 +419,7 @@ public class Menu extends MenuState implements MessageListener {
 		}
 		
 		for (Participant i : multiplayer.getParticipants()) {
-			if (!i.isLocal() && (i.getMeta("id") != null)) {
+			if (!i.isLocal() && (i.getMeta("id") != null) && !"true".equals(i.getMeta("dedicated"))) {
 				table.addRow(i.getMeta("id"), i.getMeta("car"), i.getMeta("ip"), i.getMeta("version"));
 			}
 		}
@@ -485,6 +505,8 @@ public class Menu extends MenuState implements MessageListener {
 		controlsText.paintText("Rear camera: V", 300, 120, 'l');
 		controlsText.paintText("Replay: R", 300, 140, 'l');
 		controlsText.paintText("In-game chat: M", 300, 160, 'l');
+		controlsText.paintText("Replay speed: , / .", 300, 180, 'l');
+		controlsText.paintText("Replay reverse: B", 300, 200, 'l');
 		
 		createWidget(menu,0,languageWidget);
 		createWidget(menu,0,unitsWidget);
@@ -773,10 +795,18 @@ public class Menu extends MenuState implements MessageListener {
 	
 	/**
 	 * Starts the game. When the game is running as a server it will send an 
-	 * event to all other players.
+	 * event to all other players, containing the roster of local players and
+	 * players that have joined the lobby, in the order in which they joined.
 	 */
 	private void startGame() {
 		if (multiplayer.isServer()) {
+			Map<String,String> players = new LinkedHashMap<String,String>();
+			players.put(settings.name, settings.car);
+			if (settings.splitscreen) {
+				players.put(settings.namePlayer2, settings.carPlayer2);
+			}
+			players.putAll(lobby);
+			multiplayer.createRoster(players);
 			multiplayer.sendStartMessage();
 		}
 		context.changeToGameState();
@@ -815,14 +845,49 @@ public class Menu extends MenuState implements MessageListener {
 						settings.getLogger().warning("Could not save records", e);
 					}
 				}
-
+				
+				archiveSession();
 				settings.reloadTrackRecords();
 				changeSession(context.recreateSession());
 			}
 		});		
 	}
 	
+	/**
+	 * Adds the results and lap times of the session to the local archive. The
+	 * archive is opened when the first session is added.
+	 */
+	private void archiveSession() {
+		
+		int numContestants = session.getNumContestants();
+		String[] drivers = new String[numContestants];
+		String[] cars = new String[numContestants];
+		Laptime[][] laptimes = new Laptime[numContestants][];
+		
+		for (int i = 0; i < numContestants; i++) {
+			Contestant contestant = session.getContestantAtRacePosition(i + 1);
+			drivers[i] = contestant.getName();
+			cars[i] = contestant.getCarName();
+			laptimes[i] = new Laptime[Math.max(contestant.getLap() - 1, 0)];
+			for (int j = 0; j < laptimes[i].length; j++) {
+				laptimes[i][j] = contestant.getLaptime(j + 1);
+			}
+		}
+		
+		try {
+			if (archive == null) {
+				archive = new SessionArchive(Platform.getApplicationData("Ferrari3D", ARCHIVE_DIR));
+			}
+			archive.addSession(session.getConfig().getCircuit(), session.getMode().toString(),
+					System.currentTimeMillis(), session.getTelemetryFile(), drivers, cars, laptimes);
+		} catch (IOException e) {
+			settings.getLogger().warning("Could not archive session", e);
+		}
+	}
+	
 	private void startMultiplayer(boolean isServer) {
+		session.setConfig(new SessionConfig(settings));
+		lobby.clear();
 		if (isServer) {
 			try {
 				multiplayer.startAsServer();
@@ -856,7 +921,12 @@ public class Menu extends MenuState implements MessageListener {
 		}
 	}
 
-	@SuppressWarnings("deprecation")
+	/**
+	 * Stores the information from a connect message. The server adds players
+	 * that use the same version to the lobby, which is used for the roster when
+	 * the game is started. The session settings in the message are not used,
+	 * clients receive them from the server in the start message.
+	 */
 	private void receiveConnectMessage(Participant participant, Message message) {
 		
 		// Parse message
@@ -866,14 +936,11 @@ public class Menu extends MenuState implements MessageListener {
 		participant.setMeta("circuit", message.getParameter("circuit"));
 		participant.setMeta("ip", message.getParameter("ip"));
 		participant.setMeta("version", message.getParameter("version"));
+		participant.setMeta("dedicated", message.getParameter("dedicated"));
+		participant.setMeta("server", message.getParameter("server"));
 		
-		if (!multiplayer.isServer()) {
-			settings.mode = Integer.parseInt(message.getParameter("mode"));
-			settings.aiActive = message.getParameter("aiActive").equals("true");
-			settings.aiLevel = Integer.parseInt(message.getParameter("aiLevel"));
-			settings.laps = Integer.parseInt(message.getParameter("laps"));
-			
-			session.setLaps(settings.laps);
+		if (multiplayer.isServer() && message.getParameter("version").equals(Ferrari3D.VERSION.toString())) {
+			lobby.put(message.getParameter("id"), message.getParameter("car"));
 		}
 		
 		// Checks
@@ -889,6 +956,21 @@ public class Menu extends MenuState implements MessageListener {
 		}
 	}
 	
+	/**
+	 * Replaces the session settings with those of the server, which are sent
+	 * in the start message together with the roster.
+	 */
+	@SuppressWarnings("deprecation")
+	private void applyStartSettings(Message message) {
+		settings.circuit = message.getParameter("circuit");
+		settings.mode = Integer.parseInt(message.getParameter("mode"));
+		settings.aiActive = message.getParameter("aiActive").equals("true");
+		settings.aiLevel = Integer.parseInt(message.getParameter("aiLevel"));
+		settings.laps = Integer.parseInt(message.getParameter("laps"));
+		
+		session.setLaps(settings.laps);
+	}
+	
 	private void showSystemInfo() {
 		StringBuilder sb = new StringBuilder();
 		sb.append(settings.getText("menu.systeminfo.title") + "\n");
@@ -972,7 +1054,10 @@ public class Menu extends MenuState implements MessageListener {
 	 * Changes the session that is used by the menu system.
 	 */
 	public void changeSession(Session session) {
+		multiplayer.removeMessageListener(this);
 		this.session = session;
+		this.multiplayer = Multiplayer.getInstanceForSession(session);
+		this.multiplayer.addMessageListener(this, MESSAGE_TYPES);
 		refreshResultsMenu();
 	}
 }
@@ -0,0 +1,139 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// MessageDispatcher
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.dennisbijlsma.messaging.Message;
+
+/**
+ * Passes received messages only to the listeners that are interested in them.
+ * Listeners register for one or more message types, and the listeners for a
+ * type are found with a single lookup. Messages that are about a specific
+ * contestant, such as updates, can also be routed by the ID of the contestant
+ * (see {@link Session#getContestantId(String)}). Such messages are passed to
+ * exactly one listener, instead of every listener checking whether the message
+ * is meant for it.
+ * <p>
+ * Messages are dispatched from the game thread, and dispatching does not lock.
+ * Listeners can be added and removed from any thread.
+ */
+public class MessageDispatcher {
+
+	private Map<String,Route> routes;
+
+	public static final int NO_ID = -1;
+
+	public MessageDispatcher() {
+		routes = new ConcurrentHashMap<String,Route>();
+	}
+
+	/**
+	 * Registers a listener for all messages of the specified type.
+	 */
+	public synchronized void addListener(String type, MessageListener listener) {
+		Route route = getRoute(type);
+		for (MessageListener i : route.listeners) {
+			if (i == listener) {
+				return;
+			}
+		}
+
+		MessageListener[] listeners = new MessageListener[route.listeners.length + 1];
+		System.arraycopy(route.listeners, 0, listeners, 0, route.listeners.length);
+		listeners[route.listeners.length] = listener;
+		route.listeners = listeners;
+	}
+
+	/**
+	 * Registers a listener for messages of the specified type that are about
+	 * the contestant with the specified ID. There can be only one such listener
+	 * per type and ID, any previous listener is replaced.
+	 */
+	public synchronized void addListener(String type, int id, MessageListener listener) {
+		getRoute(type).listenersById.put(id, listener);
+	}
+
+	/**
+	 * Removes a listener for all message types and IDs it was registered for.
+	 */
+	public synchronized void removeListener(MessageListener listener) {
+		for (Route route : routes.values()) {
+			route.listenersById.values().remove(listener);
+
+			int index = -1;
+			for (int i = 0; i < route.listeners.length; i++) {
+				if (route.listeners[i] == listener) {
+					index = i;
+				}
+			}
+			if (index != -1) {
+				MessageListener[] listeners = new MessageListener[route.listeners.length - 1];
+				System.arraycopy(route.listeners, 0, listeners, 0, index);
+				System.arraycopy(route.listeners, index + 1, listeners, index, listeners.length - index);
+				route.listeners = listeners;
+			}
+		}
+	}
+
+	/**
+	 * Removes all listeners.
+	 */
+	public synchronized void clear() {
+		routes.clear();
+	}
+
+	private Route getRoute(String type) {
+		Route route = routes.get(type);
+		if (route == null) {
+			route = new Route();
+			routes.put(type, route);
+		}
+		return route;
+	}
+
+	/**
+	 * Passes a message to the listeners for its type. When the message is
+	 * about a contestant that has a listener registered for its ID, the message
+	 * is only passed to that listener.
+	 * @param id The ID of the contestant the message is about, or {@code NO_ID}.
+	 * @return The number of listeners the message was passed to.
+	 */
+	public int dispatch(Message message, int id) {
+
+		Route route = routes.get(message.getType());
+		if (route == null) {
+			return 0;
+		}
+
+		if (id != NO_ID) {
+			MessageListener listener = route.listenersById.get(id);
+			if (listener != null) {
+				listener.messageReceived(message);
+				return 1;
+			}
+		}
+
+		MessageListener[] listeners = route.listeners;
+		for (MessageListener i : listeners) {
+			i.messageReceived(message);
+		}
+		return listeners.length;
+	}
+
+	/**
+	 * The listeners for one message type. The array of listeners is replaced
+	 * when a listener is added or removed, so it can be read without locking.
+	 */
+	private static class Route {
+
+		private volatile MessageListener[] listeners = new MessageListener[0];
+		private Map<Integer,MessageListener> listenersById =
+				new ConcurrentHashMap<Integer,MessageListener>();
+	}
+}
@@ -7,20 +7,34 @@
 package com.dennisbijlsma.ferrari3d;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.dennisbijlsma.core3d.ImmutableVector3D;
+import com.dennisbijlsma.ferrari3d.util.CarState;
+import com.dennisbijlsma.ferrari3d.util.FlightEvents;
+import com.dennisbijlsma.ferrari3d.util.MpscQueue;
+import com.dennisbijlsma.ferrari3d.util.PeerLink;
+import com.dennisbijlsma.ferrari3d.util.RateMeter;
 import com.dennisbijlsma.ferrari3d.util.Settings;
+import com.dennisbijlsma.ferrari3d.util.Snapshot;
+import com.dennisbijlsma.ferrari3d.util.SnapshotCodec;
+import com.dennisbijlsma.ferrari3d.util.StateCodec;
 import com.dennisbijlsma.messaging.ConnectionListener;
 import com.dennisbijlsma.messaging.JoinSessionException;
 import com.dennisbijlsma.messaging.Message;
-import com.dennisbijlsma.messaging.MessageQueue;
 import com.dennisbijlsma.messaging.MessagingClient;
 import com.dennisbijlsma.messaging.Participant;
 import com.dennisbijlsma.messaging.Server;
@@ -33,42 +47,105 @@ import com.dennisbijlsma.messaging.SocketMessagingClient;
  * network play as well as internet multiplayer. All received messages are 
  * placed in a queue, which is flushes during the game loop. Any class that wants
  * to be notified of incoming messages can register itself by implementing the 
- * {@code MessageListener} interface. 
+ * {@code MessageListener} interface, for the message types it is interested in.
+ * Messages are routed to listeners by a {@link MessageDispatcher}.
+ * <p>
+ * The connection with every peer is measured with ping messages, see
+ * {@link PeerLink}. Snapshots are sent to all peers at once, so a single send
+ * rate is used: high enough for the peer that needs the highest rate, but not
+ * higher than the most congested connection allows.
+ * <p>
+ * When the session is hosted by a {@link DedicatedServer} the clients do not
+ * send snapshots. They send input messages instead, which also acknowledge the
+ * last snapshot received from the server.
  */
 public class Multiplayer implements ConnectionListener {
 	
+	private Session session;
 	private Server server;
 	private MessagingClient client;
-	private MessageQueue receiveQueue;
-	private List<MessageListener> messageListeners;
+	private SnapshotChannel snapshotChannel;
+	private MpscQueue<Message> receiveQueue;
+	private Map<Message,Long> receiveTimes;
+	private MessageDispatcher dispatcher;
 	private boolean isServer;
-	private float updateInterval;
+	private boolean isDedicated;
+	private float normalRate;
+	private float pingInterval;
+	private float pingTimer;
+	private volatile float sendRate;
+	private Map<String,PeerLink> peerLinks;
+	private Map<Integer,String> carPeers;
+	private Map<String,String> roster;
+	private StateCodec stateCodec;
+	private SnapshotCodec snapshotCodec;
+	private CarState carState;
+	private Snapshot snapshot;
+	private int snapshotTick;
+	private int lastReceivedTick;
+	private long startTime;
+	
+	private RateMeter messagesSent;
+	private RateMeter messagesReceived;
+	private LongAdder bytesSent;
+	private LongAdder bytesReceived;
+	private LongAdder reconnects;
+	private Set<String> connectedParticipants;
 	
 	private static Map<Session,Multiplayer> instances = new ConcurrentHashMap<Session,Multiplayer>();
-	private static Settings settings = Settings.getInstance();
 	
 	public static final String MESSAGE_INIT = "init";
 	public static final String MESSAGE_DISCONNECT = "disconnect";
 	public static final String MESSAGE_CONNECT = "connect";
 	public static final String MESSAGE_UPDATE = "update";
+	public static final String MESSAGE_SNAPSHOT = "snapshot";
 	public static final String MESSAGE_START = "start";
 	public static final String MESSAGE_STOP = "stop";
 	public static final String MESSAGE_START_SESSION = "startSession";
 	public static final String MESSAGE_STOP_SESSION = "stopSession";
 	public static final String MESSAGE_PAUSE = "pause";
 	public static final String MESSAGE_CHAT = "chat";
+	public static final String MESSAGE_PING = "ping";
+	public static final String MESSAGE_PONG = "pong";
+	public static final String MESSAGE_INPUT = "input";
+	
+	/** Sender ID used in snapshots by a peer that has no contestant of its own. */
+	public static final int DEDICATED_SERVER_ID = Settings.MAX_CONTESTANTS;
 	
 	private static final float UPDATE_INTERVAL_NETWORK = 0.04f;
 	private static final float UPDATE_INTERVAL_INTERNET = 1f;
+	private static final float PING_INTERVAL_NETWORK = 0.5f;
+	private static final float PING_INTERVAL_INTERNET = 5f;
+	private static final float MIN_RATE_FACTOR = 0.2f;
+	private static final float MAX_RATE_FACTOR = 2f;
 	private static final long POLL_TIME = 3000;
 		
 	/**
 	 * Private constructor. Use the static factory method 
 	 * {@link #getInstanceForSession(Session)} to obtain an instance.
 	 */
-	private Multiplayer() {
-		receiveQueue = new MessageQueue();
-		messageListeners = new CopyOnWriteArrayList<MessageListener>();
+	private Multiplayer(Session session) {
+		this.session = session;
+		receiveQueue = new MpscQueue<Message>();
+		receiveTimes = Collections.synchronizedMap(new IdentityHashMap<Message,Long>());
+		stateCodec = new StateCodec();
+		snapshotCodec = new SnapshotCodec();
+		carState = new CarState();
+		snapshot = new Snapshot();
+		snapshotTick = 0;
+		lastReceivedTick = 0;
+		startTime = System.nanoTime();
+		
+		messagesSent = new RateMeter();
+		messagesReceived = new RateMeter();
+		bytesSent = new LongAdder();
+		bytesReceived = new LongAdder();
+		reconnects = new LongAdder();
+		connectedParticipants = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+		dispatcher = new MessageDispatcher();
+		peerLinks = new ConcurrentHashMap<String,PeerLink>();
+		carPeers = new HashMap<Integer,String>();
+		sendRate = 1f / UPDATE_INTERVAL_NETWORK;
 	}
 	
 	/**
@@ -79,12 +156,24 @@ public class Multiplayer implements ConnectionListener {
 	 */
 	public void startAsServer() throws IOException, JoinSessionException {		
 		isServer = true;
-		if (settings.multiplayerMode == Settings.MULTIPLAYER_LOCAL) {
+		if (session.getConfig().getMultiplayerMode() == Settings.MULTIPLAYER_LOCAL) {
 			server = new Server(Settings.LOCAL_MULTIPLAYER_PORT);
 		}
 		startAsClient(true);
 	}
 	
+	/**
+	 * Starts a server for a dedicated server process. The local participant
+	 * does not drive a car, and is marked as dedicated in the connect message
+	 * so that clients send their input instead of simulating their own cars.
+	 * @throws IOException if the creation of a server fails.
+	 * @throws JoinSessionException see {@link #startAsClient(boolean)}.
+	 */
+	public void startAsDedicatedServer() throws IOException, JoinSessionException {
+		isDedicated = true;
+		startAsServer();
+	}
+	
 	/**
 	 * Joins the session on the specified server.
 	 * @param sessionOwner When true, this participant owns the session. 
@@ -95,39 +184,131 @@ public class Multiplayer implements ConnectionListener {
 	public void startAsClient(boolean sessionOwner) throws IOException, JoinSessionException {
 	
 		isServer = sessionOwner;
+		SessionConfig config = session.getConfig();
 		
-		if (settings.multiplayerMode == Settings.MULTIPLAYER_LOCAL) {
-			client = new SocketMessagingClient(settings.multiplayerServer, 
+		if (config.getMultiplayerMode() == Settings.MULTIPLAYER_LOCAL) {
+			client = new SocketMessagingClient(config.getMultiplayerServer(), 
 					Settings.LOCAL_MULTIPLAYER_PORT);
-			updateInterval = UPDATE_INTERVAL_NETWORK;
-		} else if (settings.multiplayerMode == Settings.MULTIPLAYER_INTERNET) {
+			normalRate = 1f / UPDATE_INTERVAL_NETWORK;
+			pingInterval = PING_INTERVAL_NETWORK;
+		} else if (config.getMultiplayerMode() == Settings.MULTIPLAYER_INTERNET) {
 			client = new ServletMessagingClient(Settings.INTERNET_MULTIPLAYER_SERVER, POLL_TIME);
-			updateInterval = UPDATE_INTERVAL_INTERNET;
+			normalRate = 1f / UPDATE_INTERVAL_INTERNET;
+			pingInterval = PING_INTERVAL_INTERNET;
 		} else {
 			throw new AssertionError();
 		}
+		
+		sendRate = normalRate;
+		pingTimer = 0f;
+		lastReceivedTick = 0;
+		peerLinks.clear();
+		carPeers.clear();
+		roster = null;
+		addPingListeners();
 
 		client.addConnectionListener(this);
 		
 		if (sessionOwner) {
-			client.createSession(settings.multiplayerSession, settings.name);
+			client.createSession(config.getMultiplayerSession(), config.getName());
 		} else {
-			client.joinSession(settings.multiplayerSession, settings.name);	
+			client.joinSession(config.getMultiplayerSession(), config.getName());	
+		}
+		
+		if ((config.getMultiplayerMode() == Settings.MULTIPLAYER_LOCAL) && config.isUdpSnapshots()) {
+			startSnapshotChannel(sessionOwner);
 		}
 	}
 	
+	/**
+	 * Opens the UDP channel that is used to send snapshots in local multiplayer
+	 * sessions. Snapshots received through the channel are added to the receive
+	 * queue as snapshot messages that contain the encoded bytes, so that they
+	 * are dispatched in the same way as snapshots received over the reliable
+	 * connection without being converted to text.
+	 */
+	private void startSnapshotChannel(boolean sessionOwner) throws IOException {
+		
+		SessionConfig config = session.getConfig();
+		SnapshotChannel.Listener listener = new SnapshotChannel.Listener() {
+			public void snapshotReceived(ByteBuffer payload) {
+				messagesReceived.increment();
+				bytesReceived.add(payload.remaining());
+				receiveQueue.add(new BinarySnapshotMessage(payload));
+			}
+		};
+		
+		if (sessionOwner) {
+			snapshotChannel = new SnapshotChannel(Settings.LOCAL_SNAPSHOT_PORT, 
+					config.getUdpRedundancy(), listener);
+		} else {
+			snapshotChannel = new SnapshotChannel(new InetSocketAddress(config.getMultiplayerServer(),
+					Settings.LOCAL_SNAPSHOT_PORT), config.getUdpRedundancy(), listener);
+		}
+		snapshotChannel.setSimulatedLoss(config.getUdpLoss() / 100f);
+		snapshotChannel.start();
+	}
+	
+	/**
+	 * Stops the multiplayer session and disconnects from the server. The
+	 * instance can be started again afterwards.
+	 */
 	public void stop() {
+		if (snapshotChannel != null) {
+			snapshotChannel.close();
+			snapshotChannel = null;
+		}
 		if (server != null) {
 			server.disconnect();
+			server = null;
 		}
-		client.disconnect();
-		messageListeners.clear();
+		if (client != null) {
+			client.disconnect();
+			client = null;
+		}
+		dispatcher.clear();
+		isDedicated = false;
 	}
 	
 	public boolean isServer() {
 		return isServer;
 	}
 	
+	/**
+	 * Returns true if this instance is running in a dedicated server process.
+	 */
+	public boolean isDedicated() {
+		return isDedicated;
+	}
+	
+	/**
+	 * Returns the participant that is a dedicated server, or {@code null} if
+	 * the session is not hosted by a dedicated server. This is only known once
+	 * the connect message of the server has been received.
+	 */
+	public Participant getDedicatedServer() {
+		for (Participant i : getParticipants()) {
+			if (!i.isLocal() && "true".equals(i.getMeta("dedicated"))) {
+				return i;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the participant that owns the session, or {@code null} if this
+	 * instance owns the session itself. This is only known once the connect
+	 * message of the owner has been received.
+	 */
+	public Participant getSessionOwner() {
+		for (Participant i : getParticipants()) {
+			if (!i.isLocal() && "true".equals(i.getMeta("server"))) {
+				return i;
+			}
+		}
+		return null;
+	}
+	
 	/**
 	 * Returns the participant with the specified name, or {@code null} if no
 	 * such participant exists in the current multiplayer session.
@@ -157,44 +338,64 @@ public class Multiplayer implements ConnectionListener {
 	/**
 	 * Invoked whenever one of the other clients connects to the current
 	 * session. Connects will be sent to all listeners as 'fake' messages.
+	 * Participants that connect again after being connected before are counted
+	 * as reconnects.
 	 */
 	public void connected(Participant participant) {
 		
+		if (!connectedParticipants.add(participant.getName())) {
+			reconnects.increment();
+		}
+		
 		Message message = new Message();
 		message.setType(MESSAGE_INIT);
 		message.setParameter("id", participant.getName());
 		receiveQueue.add(message);
 		
-		if (settings.debug) {
-			settings.getLogger().info("Connected: " + participant.getName());
+		if (session.getConfig().isDebug()) {
+			Settings.getInstance().getLogger().info("Connected: " + participant.getName());
 		}
 	}
 	
 	/**
 	 * Invoked whenever one of the other clients disconnects from the current
 	 * session. Disconnects will be sent to all listeners as 'fake' messages.
+	 * The peer is removed from the snapshot codec when the message is flushed,
+	 * as the codec is only used from the game thread.
 	 */
 	public void disconnected(Participant participant) { 
 		
-		Message message = new Message();
-		message.setType(MESSAGE_DISCONNECT);
+		int peer = "true".equals(participant.getMeta("dedicated")) ? 
+				DEDICATED_SERVER_ID : session.getContestantId(participant.getName());
+		SnapshotChannel channel = snapshotChannel;
+		if (channel != null) {
+			channel.removePeer(peer);
+		}
+		
+		Message message = new DisconnectMessage(peer);
 		message.setParameter("id", participant.getName());
 		receiveQueue.add(message);
 		
-		if (settings.debug) {
-			settings.getLogger().info("Disconnected: " + participant.getName());
+		if (session.getConfig().isDebug()) {
+			Settings.getInstance().getLogger().info("Disconnected: " + participant.getName());
 		}
 	}
 	
 	/**
 	 * Invoked when a message has been received from one of the other clients.
 	 * The message will be added to the receive queue, which will be flushed
-	 * during the next frame.
+	 * during the next frame. When flight recorder events are enabled the time of
+	 * receiving is stored, so that the queue latency can be recorded.
 	 */
 	public void messageReceived(Message message, Participant from) {
+		messagesReceived.increment();
+		bytesReceived.add(getPayloadSize(message));
+		if (new FlightEvents.MessageEvent().isEnabled()) {
+			receiveTimes.put(message, System.nanoTime());
+		}
 		receiveQueue.add(message);
-		if (settings.debug) {
-			settings.getLogger().info("<<< " + message.toString());
+		if (session.getConfig().isDebug()) {
+			Settings.getInstance().getLogger().info("<<< " + message.toString());
 		}
 	}
 	
@@ -204,28 +405,171 @@ public class Multiplayer implements ConnectionListener {
 	 * class for creating and sending certain types of messages directly.
 	 */
 	private void sendMessage(Message message) {
+		FlightEvents.MessageEvent event = new FlightEvents.MessageEvent();
+		event.begin();
 		client.send(message);
-		if (settings.debug) {
-			settings.getLogger().info(">>> " + message.toString());
+		event.end();
+		
+		int size = getPayloadSize(message);
+		messagesSent.increment();
+		bytesSent.add(size);
+		
+		if (event.shouldCommit()) {
+			event.type = message.getType();
+			event.sent = true;
+			event.size = size;
+			event.commit();
+		}
+		if (session.getConfig().isDebug()) {
+			Settings.getInstance().getLogger().info(">>> " + message.toString());
+		}
+	}
+	
+	/**
+	 * Measures the connections with all peers, and adapts the send rate. This
+	 * method should be called every frame while the game is running.
+	 */
+	public void update(float dt) {
+		
+		pingTimer += dt;
+		if (pingTimer >= pingInterval) {
+			sendPingMessage();
+			pingTimer = 0f;
+		}
+		
+		if (peerLinks.isEmpty()) {
+			sendRate = normalRate;
+			return;
+		}
+		
+		float highestRate = 0f;
+		float congestionRate = Float.MAX_VALUE;
+		for (PeerLink i : peerLinks.values()) {
+			highestRate = Math.max(highestRate, i.getRate());
+			congestionRate = Math.min(congestionRate, i.getCongestionRate());
+		}
+		sendRate = Math.min(highestRate, congestionRate);
+	}
+	
+	/**
+	 * Sends a ping message to all peers. The message contains the time at which
+	 * it was sent, which is returned in the pong message.
+	 */
+	private void sendPingMessage() {
+		Message message = new Message();
+		message.setType(MESSAGE_PING);
+		message.setParameter("from", session.getConfig().getName());
+		message.setParameter("time", "" + getTime());
+		sendMessage(message);
+	}
+	
+	/**
+	 * Registers the listeners that answer ping messages from other peers, and
+	 * that process the answers to our own ping messages. Both are handled in
+	 * the game thread, so the measured round-trip time includes the time that
+	 * messages wait in the receive queue.
+	 */
+	private void addPingListeners() {
+		
+		dispatcher.addListener(MESSAGE_PING, new MessageListener() {
+			public void messageReceived(Message message) {
+				String from = message.getParameter("from");
+				if ((from == null) || from.equals(session.getConfig().getName())) {
+					return;
+				}
+				PeerLink link = getPeerLink(from);
+				Message pong = new Message();
+				pong.setType(MESSAGE_PONG);
+				pong.setParameter("from", session.getConfig().getName());
+				pong.setParameter("to", link.getName());
+				pong.setParameter("time", message.getParameter("time"));
+				pong.setParameter("loss", "" + link.takeReceiveLoss());
+				pong.setParameter("throughput", "" + link.takeReceiveThroughput(getTime() / 1000f));
+				sendMessage(pong);
+			}
+		});
+		
+		dispatcher.addListener(MESSAGE_PONG, new MessageListener() {
+			public void messageReceived(Message message) {
+				String from = message.getParameter("from");
+				if ((from == null) || !session.getConfig().getName().equals(message.getParameter("to"))) {
+					return;
+				}
+				try {
+					float roundTripTime = (getTime() - Integer.parseInt(message.getParameter("time"))) / 1000f;
+					getPeerLink(from).pongReceived(roundTripTime, 
+							Float.parseFloat(message.getParameter("loss")), 
+							Float.parseFloat(message.getParameter("throughput")));
+				} catch (NumberFormatException e) {
+					Settings.getInstance().getLogger().warning("Invalid pong message: " + message);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Returns the link with the peer with the specified name, which is created
+	 * when it does not exist yet.
+	 */
+	private PeerLink getPeerLink(String name) {
+		PeerLink link = peerLinks.get(name);
+		if (link == null) {
+			link = new PeerLink(name, normalRate, normalRate * MIN_RATE_FACTOR, 
+					normalRate * MAX_RATE_FACTOR);
+			peerLinks.put(name, link);
 		}
+		return link;
+	}
+	
+	/**
+	 * Marks the peers that are in a close battle with a local car, which
+	 * requires a higher send rate. The battle is with the peer that sends the
+	 * state of the other car, which is not necessarily the peer with the same
+	 * name. Cars whose state has not been received in a snapshot yet are
+	 * ignored, so that links are only created for actual peers.
+	 * @param battles The contestants that are in a close battle.
+	 */
+	public void setBattles(Collection<Contestant> battles) {
+		
+		for (PeerLink i : peerLinks.values()) {
+			i.setBattle(false);
+		}
+		
+		for (Contestant i : battles) {
+			String peer = carPeers.get(session.getContestantId(i.getName()));
+			if (peer != null) {
+				getPeerLink(peer).setBattle(true);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the time since this instance was created, in milliseconds.
+	 */
+	private int getTime() {
+		return (int) ((System.nanoTime() - startTime) / 1000000L);
 	}
 	
 	/**
 	 * Sends the initial connection message, containing basic information such
-	 * as the driver name, car, etc.
+	 * as the driver name, car, etc. The session settings are not included, they
+	 * are sent by the session owner in the start message.
 	 */
 	public void sendConnectMessage() {
+		
+		SessionConfig config = session.getConfig();
+		
 		Message message = new Message();
 		message.setType(MESSAGE_CONNECT);
-		message.setParameter("id", settings.name);
-		message.setParameter("car", settings.car);
-		message.setParameter("circuit", settings.circuit);
-		message.setParameter("mode", "" + settings.mode);
-		message.setParameter("aiActive", "" + settings.aiActive);
-		message.setParameter("aiLevel", "" + settings.aiLevel);
-		message.setParameter("laps", "" + settings.laps);
+		message.setParameter("id", config.getName());
+		message.setParameter("car", config.getCar());
+		message.setParameter("circuit", config.getCircuit());
+		message.setParameter("autoGears", "" + config.isAutoGears());
+		message.setParameter("autoReverse", "" + config.isAutoReverse());
 		message.setParameter("ip", Server.getLocalHost());
 		message.setParameter("version", Ferrari3D.VERSION.toString());
+		message.setParameter("dedicated", "" + isDedicated);
+		message.setParameter("server", "" + isServer);
 		sendMessage(message);
 	}
 	
@@ -233,8 +577,199 @@ public class Multiplayer implements ConnectionListener {
 	 * Sends a message with position and lap data for the specified contestant.
 	 * This message should be sent every frame. When the game is running as a
 	 * server, it should also send update data for all AI cars.
+	 * <p>
+	 * The data is sent in the binary format of {@link StateCodec}, unless the
+	 * text format has been selected in the settings.
 	 */	
 	public void sendUpdateMessage(Contestant contestant) {
+		
+		if (session.getConfig().isTextUpdates()) {
+			sendTextUpdateMessage(contestant);
+			return;
+		}
+		
+		getState(contestant, carState);
+		
+		Message message = new Message();
+		message.setType(MESSAGE_UPDATE);
+		message.setParameter("state", stateCodec.encode(carState));
+		sendMessage(message);
+	}
+	
+	/**
+	 * Sends a single message with position and lap data for all specified
+	 * contestants. This replaces calling {@link #sendUpdateMessage(Contestant)}
+	 * for every contestant, as the overhead of sending a message is only paid
+	 * once per network tick. Every snapshot has a tick number, which is 
+	 * incremented for every snapshot sent by this peer.
+	 * <p>
+	 * Snapshots are encoded by {@link SnapshotCodec}, as the difference with
+	 * the last snapshot that all other peers have acknowledged. In local 
+	 * multiplayer sessions they are sent over UDP, see {@link SnapshotChannel}.
+	 * <p>
+	 * When the text format has been selected in the settings, a separate update
+	 * message is sent for every contestant instead.
+	 */
+	public void sendSnapshotMessage(List<Contestant> contestants) {
+		
+		if (session.getConfig().isTextUpdates()) {
+			for (Contestant i : contestants) {
+				sendTextUpdateMessage(i);
+			}
+			return;
+		}
+		
+		int sender = session.getContestantId(session.getConfig().getName());
+		snapshot.clear();
+		snapshot.setSender((sender != -1) ? sender : DEDICATED_SERVER_ID);
+		snapshot.setTick(++snapshotTick);
+		snapshot.setTime(getTime());
+		for (Contestant i : contestants) {
+			getState(i, snapshot.add());
+		}
+		
+		if (snapshotChannel != null) {
+			try {
+				int size = snapshotChannel.send(snapshot.getSender(), 
+						snapshotCodec.encodeBinary(snapshot));
+				messagesSent.increment();
+				bytesSent.add(size);
+				return;
+			} catch (IOException e) {
+				Settings.getInstance().getLogger().warning("Could not send snapshot over UDP: " + e);
+			}
+		}
+		
+		Message message = new Message();
+		message.setType(MESSAGE_SNAPSHOT);
+		message.setParameter("states", snapshotCodec.encode(snapshot));
+		sendMessage(message);
+	}
+	
+	/**
+	 * Decodes a snapshot message that was received from another peer. The
+	 * car states in the snapshot can be mapped to contestants using 
+	 * {@link Session#getContestant(int)}. Received snapshots are counted, so
+	 * that lost snapshots can be reported to the peer that sent them.
+	 * @return True if the message was decoded, false if it is not a valid
+	 *         snapshot message.
+	 */
+	public boolean readSnapshotMessage(Message message, Snapshot dest) {
+		
+		if (!message.getType().equals(MESSAGE_SNAPSHOT)) {
+			return false;
+		}
+		
+		int size = 0;
+		if (message instanceof BinarySnapshotMessage) {
+			byte[] payload = ((BinarySnapshotMessage) message).payload;
+			if (!snapshotCodec.decodeBinary(ByteBuffer.wrap(payload), dest)) {
+				return false;
+			}
+			size = payload.length;
+		} else {
+			String states = message.getParameter("states");
+			if ((states == null) || !snapshotCodec.decode(states, dest)) {
+				return false;
+			}
+			size = states.length() * 3 / 4;
+		}
+		
+		lastReceivedTick = dest.getTick();
+		String sender = getPeerName(dest.getSender());
+		if (sender != null) {
+			getPeerLink(sender).snapshotReceived(dest.getTick(), size);
+			for (int i = 0; i < dest.getSize(); i++) {
+				carPeers.put(dest.get(i).id, sender);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the name of the peer that sends snapshots with the specified
+	 * sender ID, or {@code null} if the peer is not known.
+	 */
+	private String getPeerName(int sender) {
+		if (sender == DEDICATED_SERVER_ID) {
+			Participant server = getDedicatedServer();
+			return (server != null) ? server.getName() : null;
+		}
+		Contestant contestant = session.getContestant(sender);
+		return (contestant != null) ? contestant.getName() : null;
+	}
+	
+	/**
+	 * Sends the state of the local player's controls to the dedicated server.
+	 * The message also acknowledges the last snapshot received from the server.
+	 * Until the first snapshot has been received over UDP, an empty packet is
+	 * also sent through the snapshot channel so that the server learns where
+	 * to send snapshots.
+	 * @param controls The pressed controls, as a bitmask where bit {@code n}
+	 *        is set for {@code Player.CONTROL_XXX} with value {@code n}.
+	 * @param gearChange The number of gears changed up (positive) or down
+	 *        (negative) since the last input message.
+	 */
+	public void sendInputMessage(int controls, int gearChange) {
+		
+		if ((snapshotChannel != null) && (snapshotChannel.getPacketsReceived() == 0)) {
+			try {
+				snapshotChannel.register(session.getContestantId(session.getConfig().getName()));
+			} catch (IOException e) {
+				Settings.getInstance().getLogger().warning("Could not register snapshot channel: " + e);
+			}
+		}
+		
+		Message message = new Message();
+		message.setType(MESSAGE_INPUT);
+		message.setParameter("id", session.getConfig().getName());
+		message.setParameter("controls", "" + controls);
+		message.setParameter("gear", "" + gearChange);
+		message.setParameter("ack", "" + lastReceivedTick);
+		sendMessage(message);
+	}
+	
+	/**
+	 * Records that a peer has received a snapshot, for peers that acknowledge
+	 * snapshots through input messages instead of their own snapshots.
+	 * @param peer The contestant ID of the peer.
+	 */
+	public void acknowledgeSnapshot(int peer, int tick) {
+		snapshotCodec.acknowledge(peer, tick);
+	}
+	
+	/**
+	 * Returns the codec used for the snapshots sent by this peer. The codec
+	 * keeps track of the snapshots that have been acknowledged by every peer.
+	 */
+	public SnapshotCodec getSnapshotCodec() {
+		return snapshotCodec;
+	}
+	
+	/**
+	 * Copies the position and lap data of a contestant to a car state.
+	 */
+	private void getState(Contestant contestant, CarState dest) {
+		ImmutableVector3D position = contestant.getPosition();
+		dest.id = session.getContestantId(contestant.getName());
+		dest.x = position.getX();
+		dest.y = position.getY();
+		dest.z = position.getZ();
+		dest.orientation = contestant.getOrientation();
+		dest.direction = contestant.getDirection();
+		dest.speed = contestant.getSpeed();
+		dest.angularSpeed = contestant.getAngularSpeed();
+		dest.lap = contestant.getLap();
+		dest.intermediate = contestant.getIntermediate();
+		dest.point = contestant.getPoint();
+		dest.laptime = contestant.getCurrentLaptime().getTime();
+	}
+	
+	/**
+	 * Sends a message with position and lap data for the specified contestant,
+	 * in the text format that was used before the binary format was added.
+	 */
+	private void sendTextUpdateMessage(Contestant contestant) {
 		Message message = new Message();
 		message.setType(MESSAGE_UPDATE);
 		message.setParameter("id", contestant.getName());
@@ -250,13 +785,111 @@ public class Multiplayer implements ConnectionListener {
 		sendMessage(message);
 	}
 	
+	/**
+	 * Creates the roster for the session, which contains the names and cars of
+	 * all contestants in the order of their IDs. This should be called by the
+	 * session owner before the start message is sent. The roster consists of
+	 * the specified players, followed by AI cars that fill the grid when AI is
+	 * active.
+	 * @param players The names and cars of all players, in the order in which
+	 *        they have connected.
+	 * @return The roster, which is also used for the IDs in the session.
+	 */
+	public Map<String,String> createRoster(Map<String,String> players) {
+		
+		Map<String,String> contestants = new LinkedHashMap<String,String>(players);
+		
+		if (session.getConfig().isAIActive()) {
+			String aiCar = Settings.getInstance().cars.get(0);
+			for (int i = contestants.size(); contestants.size() < Settings.MAX_CONTESTANTS; i++) {
+				if (!contestants.containsKey("AI-" + i)) {
+					contestants.put("AI-" + i, aiCar);
+				}
+			}
+		}
+		
+		setRoster(contestants);
+		return roster;
+	}
+	
+	/**
+	 * Reads the roster and the session settings from a start message. Other
+	 * peers use the roster instead of their own list of participants, so that
+	 * participants that were rejected or joined too late do not take part.
+	 * @return True if the roster was read, false if the message was not sent
+	 *         by the session owner and should be ignored.
+	 */
+	public boolean receiveStartMessage(Message message) {
+		
+		Participant owner = getSessionOwner();
+		if ((owner == null) || !owner.getName().equals(message.getParameter("from"))) {
+			return false;
+		}
+		
+		Map<String,String> contestants = new LinkedHashMap<String,String>();
+		try {
+			int numContestants = Integer.parseInt(message.getParameter("contestants"));
+			for (int i = 0; i < numContestants; i++) {
+				String name = message.getParameter("name" + i);
+				String car = message.getParameter("car" + i);
+				if ((name == null) || (car == null)) {
+					return false;
+				}
+				contestants.put(name, car);
+			}
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		
+		setRoster(contestants);
+		return true;
+	}
+	
+	private void setRoster(Map<String,String> contestants) {
+		roster = Collections.unmodifiableMap(contestants);
+		session.setRoster(new ArrayList<String>(contestants.keySet()));
+	}
+	
+	/**
+	 * Returns the names and cars of all contestants in the order of their IDs,
+	 * or {@code null} when the game has not been started.
+	 */
+	public Map<String,String> getRoster() {
+		return roster;
+	}
+	
 	/**
 	 * Sends a message that the game has been started. This should be sent by the
-	 * server when the menu is terminated and loading of the game is beginning. 
+	 * session owner when the menu is terminated and loading of the game is
+	 * beginning. The message contains the session settings and the roster
+	 * created by {@link #createRoster(Map)}.
+	 * @throws IllegalStateException if no roster has been created.
 	 */
 	public void sendStartMessage() {
+		
+		if (roster == null) {
+			throw new IllegalStateException("Roster not created");
+		}
+		
+		SessionConfig config = session.getConfig();
+		int mode = (session.getMode() == Session.SessionMode.TIME) ? Settings.MODE_TIME : 
+				Settings.MODE_RACE;
+		
 		Message message = new Message();
 		message.setType(MESSAGE_START);
+		message.setParameter("from", config.getName());
+		message.setParameter("circuit", config.getCircuit());
+		message.setParameter("mode", "" + mode);
+		message.setParameter("aiActive", "" + config.isAIActive());
+		message.setParameter("aiLevel", "" + config.getAILevel());
+		message.setParameter("laps", "" + session.getLaps());
+		message.setParameter("contestants", "" + roster.size());
+		int index = 0;
+		for (Map.Entry<String,String> i : roster.entrySet()) {
+			message.setParameter("name" + index, i.getKey());
+			message.setParameter("car" + index, i.getValue());
+			index++;
+		}
 		sendMessage(message);
 	}
 	
@@ -321,29 +954,189 @@ public class Multiplayer implements ConnectionListener {
 	
 	/**
 	 * Flushes the queue of all received messages since the last time this method 
-	 * was called. All listeners will be notified for each received message.
+	 * was called. Every message is passed to the listeners registered for its
+	 * type. Messages that are received while the queue is being flushed are
+	 * left for the next frame.
 	 */
 	public void flushReceivedMessages() {
-		Message[] flushed = receiveQueue.flush();
-		for (Message i : flushed) {
-			for (MessageListener j : messageListeners) {
-				j.messageReceived(i);
+		int numMessages = receiveQueue.size();
+		long flushTime = System.nanoTime();
+		for (int i = 0; i < numMessages; i++) {
+			Message message = receiveQueue.poll();
+			if (message == null) {
+				break;
+			}
+			if (message instanceof DisconnectMessage) {
+				snapshotCodec.removePeer(((DisconnectMessage) message).peer);
+			}
+			
+			FlightEvents.MessageEvent event = new FlightEvents.MessageEvent();
+			event.begin();
+			dispatcher.dispatch(message, getContestantId(message));
+			event.end();
+			if (!receiveTimes.isEmpty()) {
+				commitReceiveEvent(event, message, flushTime, receiveTimes.remove(message));
 			}
 		}
 	}
 	
-	public void addMessageListener(MessageListener ml) {
-		if (!messageListeners.contains(ml)) {
-			messageListeners.add(ml);
+	/**
+	 * Returns the ID of the contestant that a message is about. Only update
+	 * and input messages are routed by contestant, for all other messages this
+	 * returns {@code MessageDispatcher.NO_ID}.
+	 */
+	private int getContestantId(Message message) {
+		if (message.getType().equals(MESSAGE_INPUT)) {
+			String id = message.getParameter("id");
+			return (id != null) ? session.getContestantId(id) : MessageDispatcher.NO_ID;
+		}
+		if (message.getType().equals(MESSAGE_UPDATE)) {
+			String encodedState = message.getParameter("state");
+			if (encodedState != null) {
+				return stateCodec.decodeId(encodedState);
+			}
+			String id = message.getParameter("id");
+			if (id != null) {
+				return session.getContestantId(id);
+			}
 		}
+		return MessageDispatcher.NO_ID;
+	}
+	
+	/**
+	 * Returns the size of the encoded payload of a snapshot message, or 0 for
+	 * other messages. Snapshots make up nearly all of the traffic, and their
+	 * payload has already been encoded, so it can be counted without encoding
+	 * the message again. Other messages are only counted in the number of
+	 * messages.
+	 */
+	private static int getPayloadSize(Message message) {
+		if (!message.getType().equals(MESSAGE_SNAPSHOT)) {
+			return 0;
+		}
+		if (message instanceof BinarySnapshotMessage) {
+			return ((BinarySnapshotMessage) message).payload.length;
+		}
+		String states = message.getParameter("states");
+		return (states != null) ? states.length() : 0;
+	}
+	
+	/**
+	 * Emits a flight recorder event for a received message. Messages that were
+	 * not received from the network, such as connects, do not have a receive
+	 * time and are ignored.
+	 */
+	private void commitReceiveEvent(FlightEvents.MessageEvent event, Message message, 
+			long flushTime, Long receiveTime) {
+		if ((receiveTime != null) && event.shouldCommit()) {
+			event.type = message.getType();
+			event.sent = false;
+			event.size = getPayloadSize(message);
+			event.queueLatency = flushTime - receiveTime;
+			event.commit();
+		}
+	}
+	
+	/**
+	 * Registers a listener that is notified of all received messages of the
+	 * specified types.
+	 */
+	public void addMessageListener(MessageListener ml, String... types) {
+		for (String type : types) {
+			dispatcher.addListener(type, ml);
+		}
+	}
+	
+	/**
+	 * Registers a listener that is notified of received messages of the
+	 * specified type about one contestant. Other listeners for the same type
+	 * will not receive those messages.
+	 * @param id The ID of the contestant, see {@link Session#getContestantId(String)}.
+	 */
+	public void addMessageListener(MessageListener ml, String type, int id) {
+		dispatcher.addListener(type, id, ml);
 	}
 	
 	public void removeMessageListener(MessageListener ml) {
-		messageListeners.remove(ml);
+		dispatcher.removeListener(ml);
 	}
 	
+	/**
+	 * Returns the time between snapshots, in seconds. This is adapted to the
+	 * connections with the other peers, see {@link #getSendRate()}.
+	 */
 	public float getUpdateInterval() {
-		return updateInterval;
+		return 1f / sendRate;
+	}
+	
+	/**
+	 * Returns the number of snapshots sent per second.
+	 */
+	public float getSendRate() {
+		return sendRate;
+	}
+	
+	/**
+	 * Returns the links with all peers that have been measured or that have
+	 * sent snapshots.
+	 */
+	public Collection<PeerLink> getPeerLinks() {
+		return peerLinks.values();
+	}
+	
+	/**
+	 * Returns the highest round-trip time of all peers, in seconds.
+	 */
+	public float getRoundTripTime() {
+		float roundTripTime = 0f;
+		for (PeerLink i : peerLinks.values()) {
+			roundTripTime = Math.max(roundTripTime, i.getRoundTripTime());
+		}
+		return roundTripTime;
+	}
+	
+	/**
+	 * Returns the highest fraction of snapshots that was reported lost by any
+	 * of the peers.
+	 */
+	public float getLoss() {
+		float loss = 0f;
+		for (PeerLink i : peerLinks.values()) {
+			loss = Math.max(loss, i.getLoss());
+		}
+		return loss;
+	}
+	
+	/**
+	 * Returns the number of received messages that are waiting to be passed
+	 * to the listeners during the next frame.
+	 */
+	public int getReceiveQueueDepth() {
+		return receiveQueue.size();
+	}
+	
+	public RateMeter getMessagesSent() {
+		return messagesSent;
+	}
+	
+	public RateMeter getMessagesReceived() {
+		return messagesReceived;
+	}
+	
+	/**
+	 * Returns the number of bytes sent, measured as the size of the encoded
+	 * snapshot payloads. See {@link #getPayloadSize(Message)}.
+	 */
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+	
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+	
+	public long getReconnects() {
+		return reconnects.sum();
 	}
 	
 	/**
@@ -355,8 +1148,51 @@ public class Multiplayer implements ConnectionListener {
 		if (instances.containsKey(session)) {
 			return instances.get(session);
 		}
-		Multiplayer instance = new Multiplayer();
+		Multiplayer instance = new Multiplayer(session);
 		instances.put(session, instance);
 		return instance;
 	}
+	
+	/**
+	 * Releases the {@code Multiplayer} instance for the specified session, if
+	 * one exists. When the instance is still connected it will be stopped. This
+	 * should be called when the session is no longer used, otherwise the 
+	 * instance will never be garbage collected.
+	 */
+	public static void releaseInstanceForSession(Session session) {
+		Multiplayer instance = instances.remove(session);
+		if (instance != null) {
+			instance.stop();
+		}
+	}
+	
+	/**
+	 * Snapshot message that was received over UDP. The message contains the
+	 * encoded snapshot as bytes, instead of as a Base64 parameter, because it
+	 * is decoded in the same process.
+	 */
+	private static class BinarySnapshotMessage extends Message {
+		
+		private byte[] payload;
+		
+		public BinarySnapshotMessage(ByteBuffer payload) {
+			setType(MESSAGE_SNAPSHOT);
+			this.payload = new byte[payload.remaining()];
+			payload.get(this.payload);
+		}
+	}
+	
+	/**
+	 * Disconnect message for a participant that has left the session. The
+	 * message contains the peer ID that the participant used in snapshots.
+	 */
+	private static class DisconnectMessage extends Message {
+		
+		private int peer;
+		
+		public DisconnectMessage(int peer) {
+			setType(MESSAGE_DISCONNECT);
+			this.peer = peer;
+		}
+	}
 }
@@ -22,10 +22,18 @@ public class Player extends Contestant {
 	private int[] controlset;
 	private boolean autoGears;
 	private boolean autoReverse;
+	private boolean controlsEnabled;
 	
 	private float warningTime;
 	private float penaltyTime;
 	
+	public static final int CONTROL_ACCELERATE = 0;
+	public static final int CONTROL_BRAKE = 1;
+	public static final int CONTROL_LEFT = 2;
+	public static final int CONTROL_RIGHT = 3;
+	public static final int CONTROL_GEAR_UP = 4;
+	public static final int CONTROL_GEAR_DOWN = 5;
+	
 	/**
 	 * Creates a new {@code Player} that will use the specified controller.
 	 * @param controller The object that will provide input for this player.
@@ -37,8 +45,9 @@ public class Player extends Contestant {
 
 		this.controller = controller;
 		this.controlset = controlset;
-		this.autoGears = Settings.getInstance().autoGears;
-		this.autoReverse = Settings.getInstance().autoReverse;
+		this.autoGears = session.getConfig().isAutoGears();
+		this.autoReverse = session.getConfig().isAutoReverse();
+		this.controlsEnabled = true;
 		
 		warningTime = 0f;
 		penaltyTime = 0f;
@@ -61,10 +70,10 @@ public class Player extends Contestant {
 		
 		// Driving controls
 						
-		if (controller.isKeyPressed(controlset[0])) { physics.setAccelerator(1f); }
-		if (controller.isKeyPressed(controlset[1])) { physics.setBrakes(1f); }
-		if (controller.isKeyPressed(controlset[2])) { physics.setSteering(-1f); }
-		if (controller.isKeyPressed(controlset[3])) { physics.setSteering(1f); }
+		if (isControlPressed(CONTROL_ACCELERATE)) { physics.setAccelerator(1f); }
+		if (isControlPressed(CONTROL_BRAKE)) { physics.setBrakes(1f); }
+		if (isControlPressed(CONTROL_LEFT)) { physics.setSteering(-1f); }
+		if (isControlPressed(CONTROL_RIGHT)) { physics.setSteering(1f); }
 		
 		// Gear controls
 		
@@ -76,8 +85,8 @@ public class Player extends Contestant {
 				physics.setGearChange(-1); 
 			}
 		} else {
-			if (controller.isKeyReleased(controlset[4])) { physics.setGearChange(1); }
-			if (controller.isKeyReleased(controlset[5])) { physics.setGearChange(-1); }			
+			if (isControlReleased(CONTROL_GEAR_UP)) { physics.setGearChange(1); }
+			if (isControlReleased(CONTROL_GEAR_DOWN)) { physics.setGearChange(-1); }			
 		}
 		
 		// Reverse controls
@@ -122,6 +131,41 @@ public class Player extends Contestant {
 		}
 	}
 	
+	/**
+	 * Changes the driving aids for this player. By default the driving aids
+	 * are read from the session configuration.
+	 */
+	public void setDrivingAids(boolean autoGears, boolean autoReverse) {
+		this.autoGears = autoGears;
+		this.autoReverse = autoReverse;
+	}
+	
+	/**
+	 * Returns true if the specified control is currently pressed. By default
+	 * this checks the key for the control in the control set.
+	 * @param control One of the {@code CONTROL_XXX} constants.
+	 */
+	protected boolean isControlPressed(int control) {
+		return controlsEnabled && controller.isKeyPressed(controlset[control]);
+	}
+	
+	/**
+	 * Returns true if the specified control was released during the last frame.
+	 * @param control One of the {@code CONTROL_XXX} constants.
+	 */
+	protected boolean isControlReleased(int control) {
+		return controlsEnabled && controller.isKeyReleased(controlset[control]);
+	}
+	
+	/**
+	 * Enables or disables the keyboard controls of this player. While the
+	 * controls are disabled all keys are treated as not pressed, for example
+	 * while the player is watching a replay during a multiplayer session.
+	 */
+	public void setControlsEnabled(boolean controlsEnabled) {
+		this.controlsEnabled = controlsEnabled;
+	}
+	
 	/**
 	 * Returns if this contestant is currently having a penalty. During this time
 	 * the accelerator's effect will be reduced.
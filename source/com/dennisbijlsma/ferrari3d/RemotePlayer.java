@@ -0,0 +1,107 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// RemotePlayer
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d;
+
+import com.dennisbijlsma.messaging.Message;
+
+/**
+ * A human-controlled {@code Contestant} whose input is received from a client
+ * of the {@link DedicatedServer}. The client sends the state of its controls
+ * in input messages, which are applied until the next input message arrives.
+ * The car itself is simulated by the server, in the same way as a local
+ * {@code Player}. The pressed controls are sent as a bitmask, where bit
+ * {@code n} is set when {@code Player.CONTROL_XXX} with value {@code n} is
+ * pressed.
+ * <p>
+ * Gear changes are sent as the number of changes since the previous input
+ * message, and are applied one per frame, so that they are not lost when the
+ * client sends input less often than the server simulates.
+ */
+public class RemotePlayer extends Player implements MessageListener {
+
+	private Multiplayer multiplayer;
+	private int controls;
+	private int pendingGearUp;
+	private int pendingGearDown;
+	private int numReceivedMessages;
+
+	/**
+	 * Creates a new {@code RemotePlayer} that receives its input through the
+	 * specified multiplayer session.
+	 */
+	public RemotePlayer(String name, Session session, Multiplayer multiplayer) {
+		super(name, session, null, null);
+		this.multiplayer = multiplayer;
+		controls = 0;
+		pendingGearUp = 0;
+		pendingGearDown = 0;
+		numReceivedMessages = 0;
+	}
+
+	/**
+	 * Invoked when an input message has been received from the client. The
+	 * message also acknowledges the last snapshot that the client received,
+	 * so that the server can send deltas against it.
+	 */
+	public void messageReceived(Message message) {
+
+		if (!message.getType().equals(Multiplayer.MESSAGE_INPUT)) {
+			return;
+		}
+
+		try {
+			controls = Integer.parseInt(message.getParameter("controls"));
+			int gearChange = Integer.parseInt(message.getParameter("gear"));
+			if (gearChange > 0) {
+				pendingGearUp += gearChange;
+			} else {
+				pendingGearDown -= gearChange;
+			}
+
+			int ack = Integer.parseInt(message.getParameter("ack"));
+			if (ack > 0) {
+				multiplayer.acknowledgeSnapshot(getSession().getContestantId(getName()), ack);
+			}
+		} catch (NumberFormatException e) {
+			return;
+		}
+
+		numReceivedMessages++;
+	}
+
+	@Override
+	protected boolean isControlPressed(int control) {
+		return (control <= CONTROL_RIGHT) && ((controls & (1 << control)) != 0);
+	}
+
+	@Override
+	protected boolean isControlReleased(int control) {
+		if ((control == CONTROL_GEAR_UP) && (pendingGearUp > 0)) {
+			pendingGearUp--;
+			return true;
+		}
+		if ((control == CONTROL_GEAR_DOWN) && (pendingGearDown > 0)) {
+			pendingGearDown--;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Releases all controls. This should be called when the client has
+	 * disconnected, so that the car does not keep driving.
+	 */
+	public void releaseControls() {
+		controls = 0;
+		pendingGearUp = 0;
+		pendingGearDown = 0;
+	}
+
+	public int getNumReceivedMessages() {
+		return numReceivedMessages;
+	}
+}
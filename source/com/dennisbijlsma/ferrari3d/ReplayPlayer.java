@@ -0,0 +1,200 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// ReplayPlayer
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d;
+
+import com.dennisbijlsma.core3d.Vector3D;
+import com.dennisbijlsma.ferrari3d.util.ReplaySource;
+import com.dennisbijlsma.ferrari3d.util.ReplayTrack;
+
+/**
+ * Plays back a replay at a variable speed, forwards or in reverse. The state of
+ * a car is interpolated between the two recorded frames around the current
+ * time, so that playback is smooth at any frame rate and in slow motion.
+ * <p>
+ * Frames are decoded in blocks, which are cached for every track. Playing the
+ * replay in either direction therefore only decodes every frame once, and no
+ * objects are allocated during playback.
+ */
+public class ReplayPlayer {
+
+	private ReplaySource source;
+	private float time;
+	private float speed;
+	private boolean reverse;
+
+	private float[][] blocks;
+	private int[] blockStarts;
+	private float[] nextFrame;
+	private float[] state;
+	private Vector3D position;
+
+	public static final float MIN_SPEED = 0.1f;
+	public static final float MAX_SPEED = 8f;
+	private static final int BLOCK_FRAMES = 250;
+
+	/**
+	 * Creates a new player for the specified replay. Playback starts at the
+	 * beginning of the replay, at normal speed.
+	 */
+	public ReplayPlayer(ReplaySource source) {
+
+		this.source = source;
+		this.time = 0f;
+		this.speed = 1f;
+		this.reverse = false;
+
+		blocks = new float[source.getNumTracks()][BLOCK_FRAMES * ReplayTrack.NUM_FIELDS];
+		blockStarts = new int[source.getNumTracks()];
+		for (int i = 0; i < blockStarts.length; i++) {
+			blockStarts[i] = -1;
+		}
+		nextFrame = new float[ReplayTrack.NUM_FIELDS];
+		state = new float[ReplayTrack.NUM_FIELDS];
+		position = new Vector3D();
+	}
+
+	/**
+	 * Advances the playback time.
+	 * @param dt Delta time since the last update, in seconds.
+	 * @return False if the end of the replay has been reached while playing
+	 *         forwards, or the start while playing in reverse, true otherwise.
+	 */
+	public boolean update(float dt) {
+
+		float delta = dt * speed;
+		setTime(reverse ? time - delta : time + delta);
+
+		return reverse ? (time > 0f) : (time < getDuration());
+	}
+
+	/**
+	 * Changes the playback time. The time is limited to the duration of the
+	 * replay.
+	 * @param time Time since the start of the replay, in seconds.
+	 */
+	public void setTime(float time) {
+		this.time = Math.max(0f, Math.min(time, getDuration()));
+	}
+
+	public float getTime() {
+		return time;
+	}
+
+	/**
+	 * Returns the duration of the replay, in seconds.
+	 */
+	public float getDuration() {
+		return Math.max(0, source.getNumFrames() - 1) / source.getFrameRate();
+	}
+
+	/**
+	 * Changes the playback speed. The value is limited to the range between
+	 * {@code MIN_SPEED} and {@code MAX_SPEED}.
+	 */
+	public void setSpeed(float speed) {
+		this.speed = Math.max(MIN_SPEED, Math.min(speed, MAX_SPEED));
+	}
+
+	public float getSpeed() {
+		return speed;
+	}
+
+	public void setReverse(boolean reverse) {
+		this.reverse = reverse;
+	}
+
+	public boolean isReverse() {
+		return reverse;
+	}
+
+	/**
+	 * Stores the interpolated state of a car at the current playback time in
+	 * {@code dest}, in the order defined by the constants in {@link ReplayTrack}.
+	 * Angles are interpolated along the shortest way around the circle. The gear
+	 * is taken from the closest frame.
+	 */
+	public void getState(int track, float[] dest) {
+
+		int numFrames = source.getNumFrames();
+		if (numFrames == 0) {
+			throw new IllegalStateException("Replay contains no frames");
+		}
+
+		float framePosition = time * source.getFrameRate();
+		int frame = Math.min((int) framePosition, numFrames - 1);
+		float fraction = framePosition - frame;
+
+		float[] block = loadBlock(track, frame);
+		int offset = (frame - blockStarts[track]) * ReplayTrack.NUM_FIELDS;
+		float[] next = block;
+		int nextOffset = offset;
+
+		if (frame + 1 < numFrames) {
+			if (frame + 1 < blockStarts[track] + BLOCK_FRAMES) {
+				nextOffset = offset + ReplayTrack.NUM_FIELDS;
+			} else {
+				source.getFrame(track, frame + 1, nextFrame);
+				next = nextFrame;
+				nextOffset = 0;
+			}
+		}
+
+		ReplayTrack.interpolate(block, offset, next, nextOffset, fraction, dest);
+	}
+
+	/**
+	 * Returns the block of decoded frames that contains the specified frame,
+	 * decoding it if it is not in the cache.
+	 */
+	private float[] loadBlock(int track, int frame) {
+
+		int blockStart = frame - frame % BLOCK_FRAMES;
+		float[] block = blocks[track];
+
+		if (blockStarts[track] != blockStart) {
+			int end = Math.min(blockStart + BLOCK_FRAMES, source.getNumFrames());
+			for (int i = blockStart; i < end; i++) {
+				source.getFrame(track, i, nextFrame);
+				System.arraycopy(nextFrame, 0, block, (i - blockStart) * ReplayTrack.NUM_FIELDS,
+						ReplayTrack.NUM_FIELDS);
+			}
+			blockStarts[track] = blockStart;
+		}
+
+		return block;
+	}
+
+	/**
+	 * Moves a contestant and its car to the interpolated state of a track at
+	 * the current playback time.
+	 */
+	public void apply(int track, Contestant contestant) {
+
+		getState(track, state);
+
+		position.setVector(state[ReplayTrack.X], state[ReplayTrack.Y], state[ReplayTrack.Z]);
+		contestant.setPosition(position);
+		contestant.setDirection(state[ReplayTrack.DIRECTION]);
+		contestant.setOrientation(state[ReplayTrack.ORIENTATION]);
+		contestant.setSpeed(state[ReplayTrack.SPEED]);
+
+		contestant.getCar().setPosition(state[ReplayTrack.X], state[ReplayTrack.Z]);
+		contestant.getCar().setOrientation(state[ReplayTrack.DIRECTION]);
+	}
+
+	/**
+	 * Moves only the car of a contestant to the interpolated state of a track
+	 * at the current playback time. The state of the contestant itself is not
+	 * changed, so that it can continue to be simulated while the replay is
+	 * shown. The car should be moved after the contestant has been updated.
+	 */
+	public void show(int track, Contestant contestant) {
+		getState(track, state);
+		contestant.getCar().setPosition(state[ReplayTrack.X], state[ReplayTrack.Z]);
+		contestant.getCar().setOrientation(state[ReplayTrack.DIRECTION]);
+	}
+}
@@ -6,13 +6,17 @@
 
 package com.dennisbijlsma.ferrari3d;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import com.dennisbijlsma.ferrari3d.util.Settings;
+
 /**
  * The {@code Session} stores a set of contestants that participate against each
  * other. The rules of which contestant is considered the winner are dependant on
@@ -26,6 +30,11 @@ public class Session {
 	private boolean started;
 	private boolean finished;
 	private Set<Contestant> contestants;
+	private SessionConfig config;
+	private File telemetryFile;
+	private String[] roster;
+	private String[] contestantIds;
+	private Contestant[] contestantsById;
 	
 	public enum SessionMode { 
 		TIME,
@@ -34,11 +43,21 @@ public class Session {
 
 	/**
 	 * Creates a new session with the specified mode. Initially no contestants
-	 * will be added to the session.
+	 * will be added to the session. The configuration is created from the
+	 * current settings.
 	 */
 	public Session(SessionMode mode, int laps) {
+		this(mode, laps, new SessionConfig(Settings.getInstance()));
+	}
+	
+	/**
+	 * Creates a new session with the specified mode and configuration. Initially
+	 * no contestants will be added to the session.
+	 */
+	public Session(SessionMode mode, int laps, SessionConfig config) {
 		this.mode = mode;
 		this.laps = laps;
+		this.config = config;
 		started = false;
 		finished = false;
 		contestants = new HashSet<Contestant>();
@@ -57,6 +76,24 @@ public class Session {
 		return laps;
 	}
 	
+	/**
+	 * Replaces the configuration for this session. This is needed because the
+	 * session is created before the settings are changed in the menu.
+	 * @throws IllegalStateException if the session was already started.
+	 */
+	public void setConfig(SessionConfig config) {
+		
+		if (started) {
+			throw new IllegalStateException("Session already started");
+		}
+		
+		this.config = config;
+	}
+	
+	public SessionConfig getConfig() {
+		return config;
+	}
+	
 	public void setStarted() {
 		started = true;
 		finished = false;
@@ -78,6 +115,18 @@ public class Session {
 		return finished;
 	}
 	
+	/**
+	 * Sets the file to which the telemetry of this session is recorded. This
+	 * will be {@code null} if telemetry is not recorded.
+	 */
+	public void setTelemetryFile(File telemetryFile) {
+		this.telemetryFile = telemetryFile;
+	}
+	
+	public File getTelemetryFile() {
+		return telemetryFile;
+	}
+	
 	/**
 	 * Adds the specified contestant to the session. Once added, there is no way
 	 * to remove the contestant from the session.
@@ -91,6 +140,7 @@ public class Session {
 		
 		if (!contestants.contains(contestant)) {
 			contestants.add(contestant);
+			contestantIds = null;
 		}
 	}
 	
@@ -98,6 +148,82 @@ public class Session {
 		return contestants;
 	}
 	
+	/**
+	 * Sets the names of all contestants in the order of their IDs. In multiplayer
+	 * sessions the roster is created by the session owner and distributed to all
+	 * other peers, so that every peer assigns the same IDs to the same
+	 * contestants, regardless of which contestants it knows locally.
+	 * @throws IllegalStateException if the session was already started.
+	 */
+	public void setRoster(List<String> names) {
+		
+		if (started) {
+			throw new IllegalStateException("Session already started");
+		}
+		
+		roster = names.toArray(new String[names.size()]);
+		contestantIds = null;
+	}
+	
+	/**
+	 * Returns a number that identifies the contestant with the specified name.
+	 * When a roster has been set the ID is the index in the roster. Otherwise
+	 * IDs are assigned in alphabetical order of the names.
+	 * @return The ID, or -1 when no contestant with that name exists.
+	 */
+	public int getContestantId(String name) {
+		updateContestantIds();
+		if (roster != null) {
+			int id = Arrays.asList(contestantIds).indexOf(name);
+			return ((id >= 0) && (contestantsById[id] != null)) ? id : -1;
+		}
+		int id = Arrays.binarySearch(contestantIds, name);
+		return (id >= 0) ? id : -1;
+	}
+	
+	/**
+	 * Returns the contestant with the specified ID. This is the inverse of
+	 * {@link #getContestantId(String)}.
+	 * @return The contestant, or {@code null} when the ID is not valid.
+	 */
+	public Contestant getContestant(int id) {
+		updateContestantIds();
+		return ((id >= 0) && (id < contestantsById.length)) ? contestantsById[id] : null;
+	}
+	
+	private void updateContestantIds() {
+		
+		if (contestantIds != null) {
+			return;
+		}
+		
+		if (roster != null) {
+			contestantsById = new Contestant[roster.length];
+			for (Contestant i : contestants) {
+				int id = Arrays.asList(roster).indexOf(i.getName());
+				if (id >= 0) {
+					contestantsById[id] = i;
+				}
+			}
+			contestantIds = roster;
+			return;
+		}
+		
+		Contestant[] sorted = contestants.toArray(new Contestant[contestants.size()]);
+		Arrays.sort(sorted, new Comparator<Contestant>() {
+			public int compare(Contestant a, Contestant b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		
+		String[] names = new String[sorted.length];
+		for (int i = 0; i < sorted.length; i++) {
+			names[i] = sorted[i].getName();
+		}
+		contestantsById = sorted;
+		contestantIds = names;
+	}
+	
 	public int getNumContestants() {
 		return contestants.size();
 	}
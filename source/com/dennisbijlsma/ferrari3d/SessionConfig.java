@@ -0,0 +1,313 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// SessionConfig
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d;
+
+import com.dennisbijlsma.ferrari3d.util.Settings;
+import com.dennisbijlsma.ferrari3d.util.TelemetryChannel;
+
+/**
+ * Immutable configuration for a single {@code Session}. Contestants, loaders
+ * and other classes that participate in a session read their configuration
+ * from here instead of from the global {@code Settings}, so that several
+ * sessions with different configurations can exist in the same JVM.
+ * <p>
+ * A configuration is normally created from the {@code Settings}, which provide
+ * the defaults. The {@code withXXX} methods return a copy of the configuration
+ * with a single value changed.
+ */
+public final class SessionConfig {
+
+	private String name;
+	private String car;
+	private String circuit;
+	private boolean aiActive;
+	private int aiLevel;
+	private boolean splitscreen;
+	private String namePlayer2;
+	private String carPlayer2;
+
+	private int units;
+	private int defaultCamera;
+	private boolean enableReplays;
+	private int replayRate;
+	private int replayDuration;
+	private String telemetry;
+	private boolean showSAT;
+	private boolean showFramerate;
+	private boolean sound;
+	private boolean autoGears;
+	private boolean autoReverse;
+	private int multiplayerMode;
+	private String multiplayerServer;
+	private String multiplayerSession;
+	private boolean textUpdates;
+	private boolean udpSnapshots;
+	private int udpRedundancy;
+	private int udpLoss;
+	private boolean debug;
+
+	/**
+	 * Creates a new {@code SessionConfig} that contains the current values of
+	 * the specified settings. Later changes to the settings do not affect the
+	 * created configuration.
+	 */
+	public SessionConfig(Settings settings) {
+
+		name = settings.name;
+		car = settings.car;
+		circuit = settings.circuit;
+		aiActive = settings.aiActive;
+		aiLevel = settings.aiLevel;
+		splitscreen = settings.splitscreen;
+		namePlayer2 = settings.namePlayer2;
+		carPlayer2 = settings.carPlayer2;
+
+		units = settings.units;
+		defaultCamera = settings.defaultCamera;
+		enableReplays = settings.enableReplays;
+		replayRate = settings.replayRate;
+		replayDuration = settings.replayDuration;
+		telemetry = settings.telemetry;
+		showSAT = settings.showSAT;
+		showFramerate = settings.showFramerate;
+		sound = settings.sound;
+		autoGears = settings.autoGears;
+		autoReverse = settings.autoReverse;
+		multiplayerMode = settings.multiplayerMode;
+		multiplayerServer = settings.multiplayerServer;
+		multiplayerSession = settings.multiplayerSession;
+		textUpdates = settings.textUpdates;
+		udpSnapshots = settings.udpSnapshots;
+		udpRedundancy = settings.udpRedundancy;
+		udpLoss = settings.udpLoss;
+		debug = settings.debug;
+	}
+
+	/**
+	 * Private copy constructor, used by the {@code withXXX} methods.
+	 */
+	private SessionConfig(SessionConfig other) {
+
+		name = other.name;
+		car = other.car;
+		circuit = other.circuit;
+		aiActive = other.aiActive;
+		aiLevel = other.aiLevel;
+		splitscreen = other.splitscreen;
+		namePlayer2 = other.namePlayer2;
+		carPlayer2 = other.carPlayer2;
+
+		units = other.units;
+		defaultCamera = other.defaultCamera;
+		enableReplays = other.enableReplays;
+		replayRate = other.replayRate;
+		replayDuration = other.replayDuration;
+		telemetry = other.telemetry;
+		showSAT = other.showSAT;
+		showFramerate = other.showFramerate;
+		sound = other.sound;
+		autoGears = other.autoGears;
+		autoReverse = other.autoReverse;
+		multiplayerMode = other.multiplayerMode;
+		multiplayerServer = other.multiplayerServer;
+		multiplayerSession = other.multiplayerSession;
+		textUpdates = other.textUpdates;
+		udpSnapshots = other.udpSnapshots;
+		udpRedundancy = other.udpRedundancy;
+		udpLoss = other.udpLoss;
+		debug = other.debug;
+	}
+
+	/**
+	 * Returns a copy of this configuration for the specified player and car.
+	 */
+	public SessionConfig withPlayer(String name, String car) {
+		SessionConfig copy = new SessionConfig(this);
+		copy.name = name;
+		copy.car = car;
+		return copy;
+	}
+
+	public SessionConfig withCircuit(String circuit) {
+		SessionConfig copy = new SessionConfig(this);
+		copy.circuit = circuit;
+		return copy;
+	}
+
+	public SessionConfig withAI(boolean aiActive, int aiLevel) {
+		SessionConfig copy = new SessionConfig(this);
+		copy.aiActive = aiActive;
+		copy.aiLevel = aiLevel;
+		return copy;
+	}
+
+	public SessionConfig withSplitscreen(boolean splitscreen) {
+		SessionConfig copy = new SessionConfig(this);
+		copy.splitscreen = splitscreen;
+		return copy;
+	}
+
+	public SessionConfig withSound(boolean sound) {
+		SessionConfig copy = new SessionConfig(this);
+		copy.sound = sound;
+		return copy;
+	}
+
+	public SessionConfig withDebug(boolean debug) {
+		SessionConfig copy = new SessionConfig(this);
+		copy.debug = debug;
+		return copy;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getCar() {
+		return car;
+	}
+
+	public String getCircuit() {
+		return circuit;
+	}
+
+	public boolean isAIActive() {
+		return aiActive;
+	}
+
+	/**
+	 * Returns the AI difficulty level, one of the {@code Settings.AI_XXX}
+	 * constants.
+	 */
+	public int getAILevel() {
+		return aiLevel;
+	}
+
+	public boolean isSplitscreen() {
+		return splitscreen;
+	}
+
+	public String getNamePlayer2() {
+		return namePlayer2;
+	}
+
+	public String getCarPlayer2() {
+		return carPlayer2;
+	}
+
+	/**
+	 * Returns the units used for displaying speed, one of the
+	 * {@code Settings.UNITS_XXX} constants.
+	 */
+	public int getUnits() {
+		return units;
+	}
+
+	public int getDefaultCamera() {
+		return defaultCamera;
+	}
+
+	public boolean isEnableReplays() {
+		return enableReplays;
+	}
+
+	/**
+	 * Returns the number of replay frames recorded per second.
+	 */
+	public int getReplayRate() {
+		return replayRate;
+	}
+
+	/**
+	 * Returns the number of seconds that can be shown in an instant replay.
+	 */
+	public int getReplayDuration() {
+		return replayDuration;
+	}
+
+	/**
+	 * Returns the channels that should be recorded by the telemetry. When the
+	 * telemetry is disabled this returns an empty array.
+	 */
+	public TelemetryChannel[] getTelemetryChannels() {
+		if (telemetry == null) {
+			return new TelemetryChannel[0];
+		}
+		return TelemetryChannel.parseList(telemetry);
+	}
+
+	public boolean isShowSAT() {
+		return showSAT;
+	}
+
+	public boolean isShowFramerate() {
+		return showFramerate;
+	}
+
+	public boolean isSound() {
+		return sound;
+	}
+
+	public boolean isAutoGears() {
+		return autoGears;
+	}
+
+	public boolean isAutoReverse() {
+		return autoReverse;
+	}
+
+	/**
+	 * Returns the multiplayer mode, one of the {@code Settings.MULTIPLAYER_XXX}
+	 * constants.
+	 */
+	public int getMultiplayerMode() {
+		return multiplayerMode;
+	}
+
+	public String getMultiplayerServer() {
+		return multiplayerServer;
+	}
+
+	public String getMultiplayerSession() {
+		return multiplayerSession;
+	}
+
+	/**
+	 * Returns true if car updates should be sent in the text format instead of
+	 * the binary format. Updates in both formats are always accepted.
+	 */
+	public boolean isTextUpdates() {
+		return textUpdates;
+	}
+
+	/**
+	 * Returns true if snapshots should be sent over UDP in local multiplayer
+	 * sessions. All other messages are always sent over the reliable connection.
+	 */
+	public boolean isUdpSnapshots() {
+		return udpSnapshots;
+	}
+
+	/**
+	 * Returns the number of snapshots that are included in every UDP packet.
+	 */
+	public int getUdpRedundancy() {
+		return udpRedundancy;
+	}
+
+	/**
+	 * Returns the percentage of UDP packets that should be dropped, to test
+	 * the game under packet loss.
+	 */
+	public int getUdpLoss() {
+		return udpLoss;
+	}
+
+	public boolean isDebug() {
+		return debug;
+	}
+}
@@ -0,0 +1,419 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// SnapshotChannel
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.dennisbijlsma.ferrari3d.util.Settings;
+import com.dennisbijlsma.ferrari3d.util.StateCodec;
+
+/**
+ * Sends snapshots over UDP, next to the reliable connection of the messaging
+ * library. Snapshots are sent at a high rate and only the most recent one is
+ * relevant, so there is no point in retransmitting lost packets. Over TCP a
+ * single lost packet delays all later snapshots until it has been resent.
+ * <p>
+ * Like the messaging library, the channel uses a star topology. The channel
+ * on the server relays every packet it receives to all other peers, whose
+ * addresses are learned from the packets they send. Peers only send packets
+ * to the server. When a peer leaves the session it should be removed with
+ * {@link #removePeer(int)}.
+ * <p>
+ * Every packet contains the ID of the sending peer, a sequence number, and the
+ * most recent snapshots sent by that peer, oldest first. Including earlier
+ * snapshots means that a lost packet does not lose a snapshot, as long as one
+ * of the next packets arrives. When the snapshots do not all fit in a single
+ * packet, the oldest ones are left out. Packets that are older than the last
+ * packet received from the same peer are dropped. Snapshots that are received
+ * more than once should be ignored by the listener.
+ * <p>
+ * For testing, the channel can drop a percentage of the packets it sends.
+ */
+public class SnapshotChannel implements Runnable {
+
+	private DatagramChannel channel;
+	private SocketAddress server;
+	private Map<Integer,SocketAddress> peers;
+	private Listener listener;
+	private Thread thread;
+	private volatile boolean closed;
+
+	private int redundancy;
+	private byte[][] recent;
+	private int[] recentLengths;
+	private int numRecent;
+	private int sequence;
+	private ByteBuffer sendBuffer;
+	private Map<Integer,Integer> lastSequences;
+	private volatile float simulatedLoss;
+	private Random random;
+
+	private LongAdder packetsSent;
+	private LongAdder packetsReceived;
+	private LongAdder packetsDropped;
+	private LongAdder packetsStale;
+
+	private static final int VERSION = 1;
+	private static final int MAX_PACKET_SIZE = 1400;
+	private static final int MAX_REDUNDANCY = 8;
+
+	/**
+	 * Listener that is notified when a snapshot is received. The listener is
+	 * called from the thread that receives packets, not from the game thread.
+	 */
+	public interface Listener {
+
+		/**
+		 * Invoked for every snapshot in a received packet.
+		 * @param payload The snapshot as passed to {@link SnapshotChannel#send(int, ByteBuffer)}.
+		 *        The buffer is reused after this method returns.
+		 */
+		public void snapshotReceived(ByteBuffer payload);
+	}
+
+	/**
+	 * Creates the channel for the server, which listens on the specified port.
+	 * @param redundancy The number of snapshots included in every packet.
+	 * @throws IOException if the port cannot be opened.
+	 */
+	public SnapshotChannel(int port, int redundancy, Listener listener) throws IOException {
+		this(new InetSocketAddress(port), null, redundancy, listener);
+	}
+
+	/**
+	 * Creates the channel for a peer that sends to the server at the
+	 * specified address. The channel listens on a random port.
+	 * @param redundancy The number of snapshots included in every packet.
+	 * @throws IOException if the channel cannot be opened.
+	 */
+	public SnapshotChannel(InetSocketAddress server, int redundancy, Listener listener)
+			throws IOException {
+		this(new InetSocketAddress(0), server, redundancy, listener);
+	}
+
+	private SnapshotChannel(InetSocketAddress local, SocketAddress server, int redundancy,
+			Listener listener) throws IOException {
+
+		this.channel = DatagramChannel.open();
+		this.channel.bind(local);
+		this.server = server;
+		this.peers = new ConcurrentHashMap<Integer,SocketAddress>();
+		this.listener = listener;
+		this.closed = false;
+
+		this.redundancy = Math.max(1, Math.min(redundancy, MAX_REDUNDANCY));
+		this.recent = new byte[this.redundancy][MAX_PACKET_SIZE];
+		this.recentLengths = new int[this.redundancy];
+		this.numRecent = 0;
+		this.sequence = 0;
+		this.sendBuffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+		this.lastSequences = new ConcurrentHashMap<Integer,Integer>();
+		this.simulatedLoss = 0f;
+		this.random = new Random();
+
+		packetsSent = new LongAdder();
+		packetsReceived = new LongAdder();
+		packetsDropped = new LongAdder();
+		packetsStale = new LongAdder();
+	}
+
+	/**
+	 * Starts the background thread that receives packets.
+	 */
+	public void start() {
+		thread = new Thread(this, "Ferrari3D-SnapshotChannel");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Closes the channel. The background thread stops once the channel has
+	 * been closed.
+	 */
+	public void close() {
+		closed = true;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			Settings.getInstance().getLogger().warning("Could not close snapshot channel: " + e);
+		}
+	}
+
+	/**
+	 * Sends a snapshot, together with the previous snapshots sent through this
+	 * channel. This method should be called from a single thread.
+	 * @param sender The ID of the local peer.
+	 * @param payload The encoded snapshot, from its current position to its limit.
+	 * @return The size of the packet, in bytes.
+	 * @throws IOException if the packet could not be sent, or if the snapshot
+	 *         does not fit in a packet.
+	 */
+	public int send(int sender, ByteBuffer payload) throws IOException {
+
+		int length = payload.remaining();
+		int headerSize = 1 + getVarintSize(sender) + getVarintSize(sequence + 1) + 1;
+		if (headerSize + getVarintSize(length) + length > MAX_PACKET_SIZE) {
+			throw new IOException("Snapshot too large for packet: " + length);
+		}
+
+		// Shift the recent snapshots, the oldest is overwritten
+		byte[] oldest = recent[recent.length - 1];
+		System.arraycopy(recent, 0, recent, 1, recent.length - 1);
+		System.arraycopy(recentLengths, 0, recentLengths, 1, recentLengths.length - 1);
+		recent[0] = oldest;
+		recentLengths[0] = length;
+		payload.get(recent[0], 0, length);
+		numRecent = Math.min(numRecent + 1, redundancy);
+
+		// Leave out the oldest snapshots that do not fit in the packet
+		int numSnapshots = 0;
+		int packetSize = headerSize;
+		while (numSnapshots < numRecent) {
+			int snapshotSize = getVarintSize(recentLengths[numSnapshots]) + recentLengths[numSnapshots];
+			if (packetSize + snapshotSize > MAX_PACKET_SIZE) {
+				break;
+			}
+			packetSize += snapshotSize;
+			numSnapshots++;
+		}
+
+		sendBuffer.clear();
+		sendBuffer.put((byte) VERSION);
+		StateCodec.writeVarint(sender, sendBuffer);
+		StateCodec.writeVarint(++sequence, sendBuffer);
+		StateCodec.writeVarint(numSnapshots, sendBuffer);
+		for (int i = numSnapshots - 1; i >= 0; i--) {
+			StateCodec.writeVarint(recentLengths[i], sendBuffer);
+			sendBuffer.put(recent[i], 0, recentLengths[i]);
+		}
+		sendBuffer.flip();
+
+		int size = sendBuffer.remaining();
+		if (server != null) {
+			sendPacket(sendBuffer, server);
+		} else {
+			for (SocketAddress i : peers.values()) {
+				sendPacket(sendBuffer, i);
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Stops sending packets to a peer, and forgets the sequence number of the
+	 * last packet received from it. This should be called when the peer has
+	 * left the session, so that a peer that joins later with the same ID is
+	 * not ignored.
+	 * @param sender The ID of the peer.
+	 */
+	public void removePeer(int sender) {
+		peers.remove(sender);
+		lastSequences.remove(sender);
+	}
+
+	/**
+	 * Sends a packet without snapshots to the server, so that the server
+	 * learns the address of this peer. This is needed by peers that receive
+	 * snapshots without sending any.
+	 * @param sender The ID of the local peer.
+	 * @throws IOException if the packet could not be sent.
+	 */
+	public void register(int sender) throws IOException {
+		if (server == null) {
+			return;
+		}
+		sendBuffer.clear();
+		sendBuffer.put((byte) VERSION);
+		StateCodec.writeVarint(sender, sendBuffer);
+		StateCodec.writeVarint(++sequence, sendBuffer);
+		StateCodec.writeVarint(0, sendBuffer);
+		sendBuffer.flip();
+		sendPacket(sendBuffer, server);
+	}
+
+	/**
+	 * Returns the number of bytes needed to write a value using
+	 * {@link StateCodec#writeVarint(int, ByteBuffer)}.
+	 */
+	private static int getVarintSize(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	private void sendPacket(ByteBuffer packet, SocketAddress dest) throws IOException {
+		if ((simulatedLoss > 0f) && (random.nextFloat() < simulatedLoss)) {
+			packetsDropped.increment();
+			return;
+		}
+		packet.rewind();
+		channel.send(packet, dest);
+		packetsSent.increment();
+	}
+
+	/**
+	 * Receives packets until the channel is closed.
+	 */
+	public void run() {
+
+		ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+		ByteBuffer relayBuffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+
+		while (!closed) {
+			try {
+				buffer.clear();
+				SocketAddress from = channel.receive(buffer);
+				buffer.flip();
+				packetsReceived.increment();
+
+				int sender = readHeader(buffer);
+				if (sender != -1) {
+					if (server == null) {
+						peers.put(sender, from);
+						relay(buffer, relayBuffer, from);
+					}
+					readSnapshots(buffer);
+				}
+			} catch (ClosedChannelException e) {
+				break;
+			} catch (IOException e) {
+				Settings.getInstance().getLogger().warning("Could not receive snapshot: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Sends a packet that was received by the server to all other peers.
+	 */
+	private void relay(ByteBuffer packet, ByteBuffer relayBuffer, SocketAddress from)
+			throws IOException {
+		relayBuffer.clear();
+		relayBuffer.put(packet.duplicate().rewind());
+		relayBuffer.flip();
+		for (SocketAddress i : peers.values()) {
+			if (!i.equals(from)) {
+				sendPacket(relayBuffer, i);
+			}
+		}
+	}
+
+	/**
+	 * Reads the header of a packet.
+	 * @return The ID of the peer that sent the packet, or -1 if the packet is
+	 *         invalid, or if it is older than the last packet received from
+	 *         the same peer.
+	 */
+	private int readHeader(ByteBuffer packet) {
+
+		try {
+			if (packet.get() != VERSION) {
+				return -1;
+			}
+
+			int sender = StateCodec.readVarint(packet);
+			int packetSequence = StateCodec.readVarint(packet);
+			if (sender < 0) {
+				return -1;
+			}
+			Integer lastSequence = lastSequences.get(sender);
+			if ((lastSequence != null) && (packetSequence <= lastSequence)) {
+				packetsStale.increment();
+				return -1;
+			}
+			lastSequences.put(sender, packetSequence);
+			return sender;
+		} catch (BufferUnderflowException e) {
+			Settings.getInstance().getLogger().warning("Invalid snapshot packet");
+			return -1;
+		}
+	}
+
+	/**
+	 * Passes all snapshots in a packet to the listener.
+	 */
+	private void readSnapshots(ByteBuffer packet) {
+
+		try {
+			int numSnapshots = StateCodec.readVarint(packet);
+			int limit = packet.limit();
+			for (int i = 0; i < numSnapshots; i++) {
+				int length = StateCodec.readVarint(packet);
+				if ((length < 0) || (length > packet.remaining())) {
+					return;
+				}
+				packet.limit(packet.position() + length);
+				ByteBuffer payload = packet.slice();
+				packet.position(packet.limit());
+				packet.limit(limit);
+				listener.snapshotReceived(payload);
+			}
+		} catch (BufferUnderflowException e) {
+			Settings.getInstance().getLogger().warning("Invalid snapshot packet");
+		}
+	}
+
+	/**
+	 * Drops a fraction of all packets sent through this channel, including
+	 * packets relayed by the server. This should only be used for testing.
+	 * @param loss The fraction of packets to drop, between 0 and 1.
+	 */
+	public void setSimulatedLoss(float loss) {
+		simulatedLoss = loss;
+	}
+
+	/**
+	 * Returns the address that this channel is listening on.
+	 * @throws IOException if the address cannot be determined.
+	 */
+	public InetSocketAddress getLocalAddress() throws IOException {
+		return (InetSocketAddress) channel.getLocalAddress();
+	}
+
+	/**
+	 * Returns the number of peers that the server sends packets to.
+	 */
+	public int getNumPeers() {
+		return peers.size();
+	}
+
+	public long getPacketsSent() {
+		return packetsSent.sum();
+	}
+
+	public long getPacketsReceived() {
+		return packetsReceived.sum();
+	}
+
+	/**
+	 * Returns the number of packets that were dropped because of simulated
+	 * packet loss.
+	 */
+	public long getPacketsDropped() {
+		return packetsDropped.sum();
+	}
+
+	/**
+	 * Returns the number of packets that were ignored because they arrived
+	 * after a more recent packet from the same peer.
+	 */
+	public long getPacketsStale() {
+		return packetsStale.sum();
+	}
+}
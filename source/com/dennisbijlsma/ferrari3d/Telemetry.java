@@ -0,0 +1,61 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// Telemetry
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d;
+
+import com.dennisbijlsma.ferrari3d.simulation.SimulationListener;
+import com.dennisbijlsma.ferrari3d.util.TelemetryChannel;
+import com.dennisbijlsma.ferrari3d.util.TelemetryWriter;
+
+/**
+ * Samples the telemetry channels of every car after each tick, and passes them
+ * to a {@link TelemetryWriter}. This class can be used both from the game loop
+ * and as a listener for a {@code RaceSimulation}. Sampling does not allocate
+ * any objects.
+ */
+public class Telemetry implements SimulationListener {
+
+	private TelemetryWriter writer;
+	private TelemetryChannel[] channels;
+	private float[] values;
+
+	public Telemetry(TelemetryWriter writer) {
+		this.writer = writer;
+		this.channels = writer.getChannels();
+		this.values = new float[channels.length];
+	}
+
+	/**
+	 * Records a sample for every car. The index of a car in the array is used
+	 * to identify it, so the same order should be used for every tick.
+	 */
+	public void tickSimulated(int tick, Contestant[] cars) {
+		for (int i = 0; i < cars.length; i++) {
+			for (int j = 0; j < channels.length; j++) {
+				values[j] = getValue(cars[i], channels[j]);
+			}
+			writer.record(tick, i, values);
+		}
+	}
+
+	private float getValue(Contestant c, TelemetryChannel channel) {
+		switch (channel) {
+			case SPEED : return c.getSpeed();
+			case RPM : return c.getRPM();
+			case GEAR : return c.getGear();
+			case THROTTLE : return c.getAccelerator();
+			case BRAKE : return c.getBrakes();
+			case STEERING : return c.getSteering();
+			case ANGULAR_SPEED : return c.getAngularSpeed();
+			case X : return c.getPosition().getX();
+			case Y : return c.getPosition().getY();
+			case Z : return c.getPosition().getZ();
+			case ON_TRACK : return c.isOnTrack() ? 1f : 0f;
+			case POINT : return c.getPoint();
+			default : throw new IllegalArgumentException("Unknown channel: " + channel);
+		}
+	}
+}
@@ -8,16 +8,17 @@ package com.dennisbijlsma.ferrari3d.editor;
 
 import java.awt.Image;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
@@ -30,6 +31,7 @@ import com.dennisbijlsma.core3d.scene.SceneGraphNode;
 import com.dennisbijlsma.core3d.scene.SharedModel;
 import com.dennisbijlsma.core3d.scene.Primitive;
 import com.dennisbijlsma.ferrari3d.util.CircuitPoint;
+import com.dennisbijlsma.ferrari3d.util.FlightEvents;
 import com.dennisbijlsma.ferrari3d.util.Utils;
 import nl.colorize.util.LoadUtils;
 import nl.colorize.util.ResourceFile;
@@ -47,6 +49,8 @@ public class ContentLoader {
 	private Map<ResourceFile,Model> modelCache;
 	private Map<ResourceFile,Image> textureCache;
 	private Map<ResourceFile,Document> xmlCache;	
+	private LongAdder cacheHits;
+	private LongAdder cacheMisses;
 	
 	/**
 	 * Creates a new {@code ContentLoader} instance.
@@ -55,6 +59,8 @@ public class ContentLoader {
 		modelCache = new HashMap<ResourceFile,Model>();
 		textureCache = new HashMap<ResourceFile,Image>();
 		xmlCache = new HashMap<ResourceFile,Document>();
+		cacheHits = new LongAdder();
+		cacheMisses = new LongAdder();
 	}
 
 	/**
@@ -69,11 +75,15 @@ public class ContentLoader {
 	 */
 	public ContentFile load(String name, ResourceFile resource, boolean shared) throws Exception {
 	
+		FlightEvents.ContentLoadEvent event = new FlightEvents.ContentLoadEvent();
+		event.begin();
+		long startTime = System.nanoTime();
+		
 		ContentFile file = new ContentFile(name, resource, null);
 								
 		// Parse XML
 		
-		Document document = getXML(resource);
+		Document document = getXML(resource, event);
 		Element rootNode = document.getDocumentElement();
 		Element metaNode = getFirstChild(rootNode, "meta");
 		Element carNode = getFirstChild(rootNode, "carData");
@@ -94,6 +104,7 @@ public class ContentLoader {
 			file.carCameras.add(parseVector3D(i));
 		}
 		
+		long parseTime = System.nanoTime() - startTime;
 		file.points.addAll(parseCircuitPoints(document));
 		file.startgrid.addAll(parseCircuitStartGrid(document));
 		for (Element i : getChildNodes(getFirstChild(circuitNode, "circuitCameras"))) {
@@ -109,6 +120,14 @@ public class ContentLoader {
 			model.addChild(parseSceneGraphNode(i, file.getPathPrefix(), shared));
 		}
 		
+		event.end();
+		if (event.shouldCommit()) {
+			event.resource = resource.getPath();
+			event.parseTime = parseTime;
+			event.buildTime = System.nanoTime() - startTime - parseTime;
+			event.commit();
+		}
+		
 		return file;
 	}
 	
@@ -411,6 +430,9 @@ public class ContentLoader {
 		if (modelCache.get(resource) == null) {
 			Model geometry = new Model("", url, url);
 			modelCache.put(resource, geometry);
+			cacheMisses.increment();
+		} else {
+			cacheHits.increment();
 		}
 		
 		return new SharedModel("", modelCache.get(resource), false);
@@ -425,24 +447,60 @@ public class ContentLoader {
 		if (!textureCache.containsKey(resource)) {
 			Image image = LoadUtils.loadImage(resource.getStream());
 			textureCache.put(resource, image);
+			cacheMisses.increment();
+		} else {
+			cacheHits.increment();
 		}
 		return textureCache.get(resource);
 	}
 	
 	/**
 	 * Loads an XML document. When the document was loaded before it is returned
-	 * from the cache.
+	 * from the cache. The size of the document is stored in the event.
 	 * @throws Exception when the XML could not be parsed.
 	 */
-	private Document getXML(ResourceFile resource) throws Exception {
+	private Document getXML(ResourceFile resource, FlightEvents.ContentLoadEvent event) 
+			throws Exception {
 		if (!xmlCache.containsKey(resource)) {
-			InputStream stream = resource.getStream();
-			Document document = parseXML(stream);
+			byte[] xml = LoadUtils.toByteArray(resource.getStream());
+			Document document = parseXML(new ByteArrayInputStream(xml));
 			xmlCache.put(resource, document);
+			event.bytes = xml.length;
+			cacheMisses.increment();
+		} else {
+			cacheHits.increment();
 		}
 		return xmlCache.get(resource);
 	}
 	
+	public int getNumCachedModels() {
+		return modelCache.size();
+	}
+	
+	public int getNumCachedTextures() {
+		return textureCache.size();
+	}
+	
+	public int getNumCachedDocuments() {
+		return xmlCache.size();
+	}
+	
+	/**
+	 * Returns the number of models, textures and XML documents that were
+	 * returned from the cache.
+	 */
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+	
+	/**
+	 * Returns the number of models, textures and XML documents that had to be
+	 * loaded because they were not in the cache.
+	 */
+	public long getCacheMisses() {
+		return cacheMisses.sum();
+	}
+	
 	/**
 	 * Creates a new content file at the specified location.
 	 * @throws IllegalArgumentException when the target file already exists.
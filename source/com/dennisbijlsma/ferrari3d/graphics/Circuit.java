@@ -14,7 +14,6 @@ import com.dennisbijlsma.core3d.scene.Primitive;
 import com.dennisbijlsma.core3d.scene.SceneGraphGroupNode;
 import com.dennisbijlsma.ferrari3d.CircuitData;
 import com.dennisbijlsma.ferrari3d.util.CircuitPoint;
-import com.dennisbijlsma.ferrari3d.util.Settings;
 
 /**
  * The visual representation of the circuit. Apart from the geometry this class 
@@ -34,9 +33,10 @@ public class Circuit implements CircuitData {
 	 * consists of the circuit geometry, as well as meta data that was loaded from
 	 * an .f3d file.
 	 * @param circuitName The name of the circuit.
+	 * @param debug When true, markers are added for all circuit points.
 	 */
 	public Circuit(String circuitName, SceneGraphGroupNode geometry, CircuitPoint[] points,
-			Vector3D[] cameras, Vector3D[] startinggrid) {
+			Vector3D[] cameras, Vector3D[] startinggrid, boolean debug) {
 		
 		if (geometry.getChild("circuit") == null) {
 			throw new IllegalArgumentException("Invalid circuit geometry");
@@ -52,7 +52,7 @@ public class Circuit implements CircuitData {
 		
 		// Debug information
 		
-		if (!Settings.getInstance().debug) {
+		if (!debug) {
 			return;
 		}
 		
@@ -19,10 +19,11 @@ import com.dennisbijlsma.core3d.scene.Model;
 import com.dennisbijlsma.core3d.scene.Primitive;
 import com.dennisbijlsma.core3d.scene.SceneGraph;
 import com.dennisbijlsma.core3d.scene.SceneGraphGroupNode;
+import com.dennisbijlsma.ferrari3d.SessionConfig;
 import com.dennisbijlsma.ferrari3d.editor.ContentFile;
 import com.dennisbijlsma.ferrari3d.editor.ContentLoader;
 import com.dennisbijlsma.ferrari3d.util.CircuitPoint;
-import com.dennisbijlsma.ferrari3d.util.Settings;
+import com.dennisbijlsma.ferrari3d.util.FlightEvents;
 import com.dennisbijlsma.ferrari3d.util.Utils;
 import nl.colorize.util.ResourceFile;
 
@@ -71,7 +72,7 @@ public class Loader {
 						
 		// Camera (default)
 		
-		recreateCameras(scene, display, true);
+		recreateCameras(scene, display, false);
 		
 		// Lighting
 
@@ -82,13 +83,14 @@ public class Loader {
 	/**
 	 * Recreates the camera's for the virtual world. This method must be called
 	 * if splitscreen mode is started or stopped.
-	 * @param overrule Overrules the settings and creates a single camera.
+	 * @param splitscreen When true, creates two cameras for splitscreen mode.
+	 *        When false, creates a single camera.
 	 */
-	public static void recreateCameras(SceneGraph scene, Display display, boolean overrule) {
+	public static void recreateCameras(SceneGraph scene, Display display, boolean splitscreen) {
 		
 		scene.removeAllCameras();
 	
-		if (Settings.getInstance().splitscreen && !overrule) {
+		if (splitscreen) {
 			scene.addCamera(new Camera(display, Camera.SplitScreen.TOP));
 			scene.addCamera(new Camera(display, Camera.SplitScreen.BOTTOM));
 		} else {
@@ -133,9 +135,13 @@ public class Loader {
 	 * @param carName The name of the car to load.
 	 * @param scene The scene graph that will contain the car (needed for LOD).
 	 * @param camera The main camera to follow the car (needed for LOD).
+	 * @param config The configuration of the session the car is used in.
 	 * @return A new <code>Car</code> object.
 	 */
-	public static Car loadCar(String carName, SceneGraph scene, Camera camera) {
+	public static Car loadCar(String carName, SceneGraph scene, Camera camera, SessionConfig config) {
+		
+		FlightEvents.LoadEvent event = new FlightEvents.LoadEvent();
+		event.begin();
 		
 		// Load or create geometry
 		
@@ -153,7 +159,7 @@ public class Loader {
 		
 		Primitive lodBox = Primitive.createBox(LOD_SIZE);
 		lodBox.applyColor(LOD_COLOR);
-		float lodDistance = !Settings.getInstance().splitscreen ? LOD_DISTANCE : 100000f; //TODO
+		float lodDistance = !config.isSplitscreen() ? LOD_DISTANCE : 100000f; //TODO
 		LODNode lodNode = new LODNode("lodNode", carNode, lodBox, camera.getPosition(), lodDistance);
 		
 		// Load data
@@ -165,6 +171,8 @@ public class Loader {
 		car.setCarName(carName);
 		car.setInfo(carInfo);
 		car.setCameras(carCameras);
+		
+		commitLoadEvent(event, "car", carName);
 		return car;
 	}
 	
@@ -172,9 +180,13 @@ public class Loader {
 	 * Loads and creates a circuit with the specified name.
 	 * @param circuitName The name of the circuit to load.
 	 * @param scene The scene graph that will contain the car (needed for sprites).
+	 * @param config The configuration of the session the circuit is used in.
 	 * @return A new <code>Circuit</code> object.
 	 */
-	public static Circuit loadCircuit(String circuitName, SceneGraph scene) {
+	public static Circuit loadCircuit(String circuitName, SceneGraph scene, SessionConfig config) {
+		
+		FlightEvents.LoadEvent event = new FlightEvents.LoadEvent();
+		event.begin();
 		
 		// Load geometry
 		
@@ -208,7 +220,28 @@ public class Loader {
 			i.setVector(i.getX() * f, i.getY() * f, i.getZ() * f); 
 		}
 		
-		return new Circuit(circuitName, circuitNode, points, cameras, startinggrid);		
+		Circuit circuit = new Circuit(circuitName, circuitNode, points, cameras, startinggrid, 
+				config.isDebug());
+		
+		commitLoadEvent(event, "circuit", circuitName);
+		return circuit;
+	}
+	
+	private static void commitLoadEvent(FlightEvents.LoadEvent event, String type, String name) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.type = type;
+			event.name = name;
+			event.commit();
+		}
+	}
+	
+	/**
+	 * Returns the loader that is used for all cars and circuits, so that its
+	 * cache can be monitored.
+	 */
+	public static ContentLoader getContentLoader() {
+		return loader;
 	}
 	
 	/**
@@ -226,6 +259,6 @@ public class Loader {
 		points[1] = new CircuitPoint(0f, 0f, 0f, 0f, 0f, true);
 		points[2] = new CircuitPoint(1000f, 1000f, 0f, 0f, 0f, true);
 		
-		return new Circuit("test", circuitNode, points, new Vector3D[0], new Vector3D[0]);		
+		return new Circuit("test", circuitNode, points, new Vector3D[0], new Vector3D[0], false);		
 	}
 }
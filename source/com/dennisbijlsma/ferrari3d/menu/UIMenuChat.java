@@ -40,7 +40,7 @@ public class UIMenuChat extends UIMenuWidget implements MessageListener {
 		super(WIDGET_TEXTURE_WIDTH, COMPONENT_HEIGHT, false);
 		
 		this.multiplayer = multiplayer;
-		this.multiplayer.addMessageListener(this);
+		this.multiplayer.addMessageListener(this, Multiplayer.MESSAGE_CHAT);
 		messages = new ArrayList<String>();
 		
 		chatButton = new UIMenuButton(Settings.getInstance().getText("menu.lobby.chat"));
@@ -106,8 +106,6 @@ public class UIMenuChat extends UIMenuWidget implements MessageListener {
 	}
 
 	public void messageReceived(Message message) {
-		if (message.getType().equals(Multiplayer.MESSAGE_CHAT)) {
-			addMessage(message.getParameter("from"), message.getParameter("message"));
-		}
+		addMessage(message.getParameter("from"), message.getParameter("message"));
 	}
 }
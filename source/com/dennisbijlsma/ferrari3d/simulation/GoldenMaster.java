@@ -0,0 +1,153 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// GoldenMaster
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.simulation;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.dennisbijlsma.ferrari3d.util.Settings;
+
+/**
+ * Regression test that compares the outcome of a fixed set of races against
+ * checked-in golden files. A race is simulated for every combination of the
+ * circuits in {@code circuits.xml}, the cars in {@code cars.xml} and a number
+ * of fixed seeds. The {@code RaceTrace} of every race is compared against the
+ * file with the same name in the golden directory.
+ * <p>
+ * Changes that are not supposed to alter the behavior of the simulation, such
+ * as performance improvements, should pass without updating the golden files.
+ * Changes that do alter the behavior should regenerate them with the
+ * {@code -update} option, and the changed files should be committed together
+ * with the change.
+ * <p>
+ * Usage: {@code GoldenMaster [-dir path] [-update]}
+ */
+public class GoldenMaster {
+
+	private File dir;
+
+	public static final File DEFAULT_DIR = new File("source.test/golden");
+	private static final long[] SEEDS = { 1L, 2L, 3L };
+	private static final int NUM_CARS = 6;
+	private static final int LAPS = 2;
+
+	public GoldenMaster(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Simulates all races, and returns their traces. The settings must have been
+	 * initialized before this method is called.
+	 * @throws Exception if a circuit or car could not be loaded.
+	 */
+	public List<RaceTrace> simulate() throws Exception {
+
+		Settings settings = Settings.getInstance();
+		List<RaceTrace> traces = new ArrayList<RaceTrace>();
+
+		for (String circuitName : settings.circuits) {
+			SimulatedCircuit circuit = SimulatedCircuit.load(circuitName);
+			int cars = Math.min(NUM_CARS, circuit.getNumStartingGridPositions());
+
+			for (String carName : settings.cars) {
+				Map<String,String> carInfo = SimulatedCar.loadCarInfo(carName);
+				RaceSimulation simulation = new RaceSimulation(circuit, carName, carInfo,
+						cars, LAPS, Settings.AI_NORMAL);
+
+				for (long seed : SEEDS) {
+					RaceTrace trace = new RaceTrace(circuitName + " / " + carName + " / seed " + seed);
+					trace.setResult(simulation.run(seed, trace));
+					traces.add(trace);
+				}
+			}
+		}
+
+		return traces;
+	}
+
+	/**
+	 * Simulates all races and compares them against the golden files.
+	 * @return A list of differences, which is empty if all races are equal.
+	 * @throws Exception if a race could not be simulated or a file is invalid.
+	 */
+	public List<String> verify() throws Exception {
+
+		List<String> differences = new ArrayList<String>();
+		for (RaceTrace trace : simulate()) {
+			File file = getFile(trace);
+			if (file.exists()) {
+				differences.addAll(trace.compare(RaceTrace.read(file)));
+			} else {
+				differences.add(trace.getDescription() + ": missing golden file " + file);
+			}
+		}
+		return differences;
+	}
+
+	/**
+	 * Simulates all races and overwrites the golden files with the results.
+	 * @return The number of files that were written.
+	 * @throws Exception if a race could not be simulated or a file could not
+	 *         be written.
+	 */
+	public int update() throws Exception {
+
+		dir.mkdirs();
+
+		List<RaceTrace> traces = simulate();
+		for (RaceTrace trace : traces) {
+			trace.write(getFile(trace));
+		}
+		return traces.size();
+	}
+
+	private File getFile(RaceTrace trace) {
+		String name = trace.getDescription().replaceAll("[^A-Za-z0-9]+", "_");
+		return new File(dir, name + ".txt");
+	}
+
+	/**
+	 * Command line entry point. Exits with status 1 if any race differs from
+	 * its golden file.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		System.setProperty("java.awt.headless", "true");
+		Settings.getInstance().init();
+
+		File dir = DEFAULT_DIR;
+		boolean update = false;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-dir")) { dir = new File(args[++i]); }
+			else if (args[i].equals("-update")) { update = true; }
+			else { throw new IllegalArgumentException("Unknown option: " + args[i]); }
+		}
+
+		GoldenMaster goldenMaster = new GoldenMaster(dir);
+		long start = System.currentTimeMillis();
+
+		if (update) {
+			int written = goldenMaster.update();
+			System.out.println("Updated " + written + " golden files in " + dir);
+		} else {
+			List<String> differences = goldenMaster.verify();
+			long elapsed = System.currentTimeMillis() - start;
+			for (String i : differences) {
+				System.out.println(i);
+			}
+			System.out.println(differences.isEmpty() ? "All races equal to golden files" :
+					differences.size() + " differences");
+			System.out.println("Finished in " + elapsed + " ms");
+			if (!differences.isEmpty()) {
+				System.exit(1);
+			}
+		}
+	}
+}
@@ -0,0 +1,261 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// LaptimeHistogram
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.simulation;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Streaming statistics for lap times. Times are counted in fixed-size bins, and
+ * the mean and variance are updated incrementally. The amount of memory used
+ * does not depend on the number of lap times that are added.
+ * <p>
+ * Histograms that were filled by different threads can be combined with
+ * {@link #merge(LaptimeHistogram)}. Instances are not thread safe. Histograms
+ * can be written to and read from a stream, so that they can also be filled by
+ * different processes.
+ */
+public class LaptimeHistogram {
+
+	private int minTime;
+	private int binSize;
+	private long[] bins;
+	private long underflow;
+	private long overflow;
+
+	private long count;
+	private double mean;
+	private double m2;
+	private int fastest;
+	private int slowest;
+
+	/**
+	 * Creates a new histogram with bins between {@code minTime} and
+	 * {@code maxTime}. Times outside of this range are still included in the
+	 * mean and variance, but are counted as underflow or overflow.
+	 * @param minTime Lower bound of the first bin, in milliseconds.
+	 * @param maxTime Upper bound of the last bin, in milliseconds.
+	 * @param binSize Size of each bin, in milliseconds.
+	 */
+	public LaptimeHistogram(int minTime, int maxTime, int binSize) {
+
+		if ((maxTime <= minTime) || (binSize <= 0)) {
+			throw new IllegalArgumentException("Invalid histogram range");
+		}
+
+		this.minTime = minTime;
+		this.binSize = binSize;
+		bins = new long[(maxTime - minTime + binSize - 1) / binSize];
+
+		count = 0L;
+		mean = 0.0;
+		m2 = 0.0;
+		fastest = Integer.MAX_VALUE;
+		slowest = Integer.MIN_VALUE;
+	}
+
+	/**
+	 * Adds a lap time to this histogram.
+	 * @param time The lap time in milliseconds.
+	 */
+	public void add(int time) {
+
+		int bin = (time - minTime) / binSize;
+		if (time < minTime) {
+			underflow++;
+		} else if (bin >= bins.length) {
+			overflow++;
+		} else {
+			bins[bin]++;
+		}
+
+		// Welford's algorithm for the running mean and variance
+		count++;
+		double delta = time - mean;
+		mean += delta / count;
+		m2 += delta * (time - mean);
+
+		fastest = Math.min(fastest, time);
+		slowest = Math.max(slowest, time);
+	}
+
+	/**
+	 * Adds all lap times counted by another histogram to this one. Both
+	 * histograms must have been created with the same bins.
+	 * @throws IllegalArgumentException if the bins of the histograms differ.
+	 */
+	public void merge(LaptimeHistogram other) {
+
+		if ((other.minTime != minTime) || (other.binSize != binSize) ||
+				(other.bins.length != bins.length)) {
+			throw new IllegalArgumentException("Histograms have different bins");
+		}
+
+		if (other.count == 0L) {
+			return;
+		}
+
+		for (int i = 0; i < bins.length; i++) {
+			bins[i] += other.bins[i];
+		}
+		underflow += other.underflow;
+		overflow += other.overflow;
+
+		// Combine the partial variances (Chan et al.)
+		long total = count + other.count;
+		double delta = other.mean - mean;
+		m2 += other.m2 + delta * delta * ((double) count * other.count / total);
+		mean += delta * other.count / total;
+		count = total;
+
+		fastest = Math.min(fastest, other.fastest);
+		slowest = Math.max(slowest, other.slowest);
+	}
+
+	/**
+	 * Writes the contents of this histogram to a stream.
+	 * @throws IOException if an error occurs while writing.
+	 */
+	public void write(DataOutput out) throws IOException {
+
+		out.writeInt(minTime);
+		out.writeInt(binSize);
+		out.writeInt(bins.length);
+		for (long i : bins) {
+			out.writeLong(i);
+		}
+		out.writeLong(underflow);
+		out.writeLong(overflow);
+
+		out.writeLong(count);
+		out.writeDouble(mean);
+		out.writeDouble(m2);
+		out.writeInt(fastest);
+		out.writeInt(slowest);
+	}
+
+	/**
+	 * Reads a histogram from a stream that was created by
+	 * {@link #write(DataOutput)}.
+	 * @throws IOException if an error occurs while reading.
+	 */
+	public static LaptimeHistogram read(DataInput in) throws IOException {
+
+		int minTime = in.readInt();
+		int binSize = in.readInt();
+		int numBins = in.readInt();
+
+		LaptimeHistogram histogram = new LaptimeHistogram(minTime, minTime + numBins * binSize, binSize);
+		for (int i = 0; i < numBins; i++) {
+			histogram.bins[i] = in.readLong();
+		}
+		histogram.underflow = in.readLong();
+		histogram.overflow = in.readLong();
+
+		histogram.count = in.readLong();
+		histogram.mean = in.readDouble();
+		histogram.m2 = in.readDouble();
+		histogram.fastest = in.readInt();
+		histogram.slowest = in.readInt();
+		return histogram;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the mean lap time in milliseconds, or 0 if no times were added.
+	 */
+	public double getMean() {
+		return mean;
+	}
+
+	/**
+	 * Returns the standard deviation of the lap times in milliseconds.
+	 */
+	public double getStandardDeviation() {
+		if (count < 2L) {
+			return 0.0;
+		}
+		return Math.sqrt(m2 / (count - 1));
+	}
+
+	public int getFastest() {
+		return fastest;
+	}
+
+	public int getSlowest() {
+		return slowest;
+	}
+
+	/**
+	 * Returns the approximate lap time below which the specified fraction of
+	 * all lap times fall. The returned value is the upper bound of the bin in
+	 * which the percentile is located.
+	 * @param fraction Value between 0 and 1, for example 0.5 for the median.
+	 */
+	public int getPercentile(float fraction) {
+
+		if (count == 0L) {
+			return 0;
+		}
+
+		long target = (long) Math.ceil(fraction * count);
+		long seen = underflow;
+		if (seen >= target) {
+			return minTime;
+		}
+
+		for (int i = 0; i < bins.length; i++) {
+			seen += bins[i];
+			if (seen >= target) {
+				return minTime + (i + 1) * binSize;
+			}
+		}
+
+		return slowest;
+	}
+
+	/**
+	 * Returns the fraction of lap times that are faster than the specified time.
+	 * The result is rounded to the resolution of the bins.
+	 */
+	public float getFractionBelow(int time) {
+
+		if (count == 0L) {
+			return 0f;
+		}
+
+		long below = underflow;
+		int lastBin = Math.min((time - minTime) / binSize, bins.length);
+		for (int i = 0; i < lastBin; i++) {
+			below += bins[i];
+		}
+		if (time < minTime) {
+			below = 0L;
+		}
+
+		return (float) below / count;
+	}
+
+	public int getNumBins() {
+		return bins.length;
+	}
+
+	/**
+	 * Returns the lower bound of the specified bin, in milliseconds.
+	 */
+	public int getBinStart(int bin) {
+		return minTime + bin * binSize;
+	}
+
+	public long getBinCount(int bin) {
+		return bins[bin];
+	}
+}
@@ -0,0 +1,223 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// MonteCarloSimulator
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.simulation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.dennisbijlsma.ferrari3d.util.Settings;
+import com.dennisbijlsma.ferrari3d.util.Utils;
+
+/**
+ * Command line tool that runs a large number of randomized races without
+ * rendering, and reports the distribution of the outcomes. Every race uses a
+ * different seed, which randomizes the AI personalities and the order of the
+ * starting grid. Races are spread over all available processors.
+ * <p>
+ * Each worker thread aggregates the races it simulates into its own
+ * {@code RaceStatistics}, these are merged once all races have finished. The
+ * amount of memory used therefore does not depend on the number of races.
+ * <p>
+ * Usage: {@code MonteCarloSimulator [-races n] [-laps n] [-cars n]
+ * [-level easy|normal|hard|all] [-circuit name] [-car name] [-seed n]
+ * [-threads n] [-reference laptime]}
+ */
+public class MonteCarloSimulator {
+
+	private ExecutorService executor;
+	private int threads;
+
+	private static final int DEFAULT_RACES = 1000;
+	private static final int DEFAULT_LAPS = 3;
+	static final String[] LEVEL_NAMES = { "easy", "normal", "hard" };
+	static final int[] LEVELS = { Settings.AI_EASY, Settings.AI_NORMAL, Settings.AI_HARD };
+
+	/**
+	 * Creates a new {@code MonteCarloSimulator} that will run races using the
+	 * specified number of threads.
+	 */
+	public MonteCarloSimulator(int threads) {
+		this.threads = threads;
+		this.executor = Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * Runs the specified number of races and returns the aggregated results.
+	 * Race {@code n} uses {@code baseSeed + n} as its seed, so the results of
+	 * a run can be reproduced regardless of the number of threads.
+	 * @throws InterruptedException if interrupted while waiting for the races.
+	 */
+	public RaceStatistics simulate(final RaceSimulation simulation, final long races,
+			final long baseSeed) throws InterruptedException {
+
+		final AtomicLong nextRace = new AtomicLong(0L);
+		List<Future<RaceStatistics>> workers = new ArrayList<Future<RaceStatistics>>();
+
+		for (int i = 0; i < threads; i++) {
+			workers.add(executor.submit(new Callable<RaceStatistics>() {
+				public RaceStatistics call() {
+					RaceStatistics partial = new RaceStatistics(simulation.getNumCars());
+					long race = nextRace.getAndIncrement();
+					while (race < races) {
+						partial.add(simulation.run(baseSeed + race));
+						race = nextRace.getAndIncrement();
+					}
+					return partial;
+				}
+			}));
+		}
+
+		RaceStatistics statistics = new RaceStatistics(simulation.getNumCars());
+		for (Future<RaceStatistics> i : workers) {
+			try {
+				statistics.merge(i.get());
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("Race simulation failed", e.getCause());
+			}
+		}
+		return statistics;
+	}
+
+	/**
+	 * Stops the threads used to simulate races. No more races can be simulated
+	 * after this method has been called.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	public int getNumThreads() {
+		return threads;
+	}
+
+	/**
+	 * Prints a report for the specified statistics.
+	 * @param referenceTime Lap time to compare the AI against, or 0 for none.
+	 */
+	public static void printReport(String title, RaceStatistics stats, int referenceTime) {
+
+		System.out.println("== " + title);
+		System.out.println(String.format("Races: %d (%d not finished)", stats.getNumRaces(),
+				stats.getNumUnfinishedRaces()));
+
+		// By grid slot
+
+		System.out.println();
+		System.out.print("Grid    Win%  ");
+		for (int i = 1; i <= stats.getNumCars(); i++) {
+			System.out.print(String.format("   P%-3d", i));
+		}
+		System.out.println();
+
+		for (int i = 0; i < stats.getNumCars(); i++) {
+			System.out.print(String.format("%-4d  %5.1f  ", i + 1,
+					100f * stats.getWinProbabilityByGrid(i)));
+			for (int j = 1; j <= stats.getNumCars(); j++) {
+				System.out.print(String.format("  %5.1f", 100f * stats.getPositionProbabilityByGrid(i, j)));
+			}
+			System.out.println();
+		}
+
+		// By skill level
+
+		System.out.println();
+		System.out.println("Skill   Starts    Win%   Mean lap     Stdev   Median");
+		for (int i = 0; i < RaceStatistics.SKILL_LEVELS; i++) {
+			if (stats.getStartsBySkill(i) == 0L) {
+				continue;
+			}
+			LaptimeHistogram laptimes = stats.getLaptimesBySkill(i);
+			System.out.println(String.format("%.1f   %7d   %5.1f   %9s   %6.3f   %s", i / 10f,
+					stats.getStartsBySkill(i), 100f * stats.getWinProbabilityBySkill(i),
+					Utils.timeFormat(Math.round((float) laptimes.getMean()), false),
+					laptimes.getStandardDeviation() / 1000.0,
+					Utils.timeFormat(laptimes.getPercentile(0.5f), false)));
+		}
+
+		// Lap times
+
+		LaptimeHistogram laptimes = stats.getLaptimes();
+		System.out.println();
+		System.out.println(String.format("Laps: %d, fastest %s, p10 %s, median %s, p90 %s",
+				laptimes.getCount(), Utils.timeFormat(laptimes.getFastest(), false),
+				Utils.timeFormat(laptimes.getPercentile(0.1f), false),
+				Utils.timeFormat(laptimes.getPercentile(0.5f), false),
+				Utils.timeFormat(laptimes.getPercentile(0.9f), false)));
+
+		if (referenceTime > 0) {
+			System.out.println(String.format("Laps faster than reference %s: %.1f%%",
+					Utils.timeFormat(referenceTime, false),
+					100f * laptimes.getFractionBelow(referenceTime)));
+		}
+
+		System.out.println();
+	}
+
+	/**
+	 * Command line entry point.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		System.setProperty("java.awt.headless", "true");
+
+		Settings settings = Settings.getInstance();
+		settings.init();
+
+		long races = DEFAULT_RACES;
+		int laps = DEFAULT_LAPS;
+		int cars = Settings.MAX_CONTESTANTS;
+		String level = "all";
+		String circuitName = settings.circuit;
+		String carName = settings.car;
+		long seed = System.currentTimeMillis();
+		int threads = Runtime.getRuntime().availableProcessors();
+		int reference = 0;
+
+		for (int i = 0; i < args.length - 1; i += 2) {
+			String value = args[i + 1];
+			if (args[i].equals("-races")) { races = Long.parseLong(value); }
+			else if (args[i].equals("-laps")) { laps = Integer.parseInt(value); }
+			else if (args[i].equals("-cars")) { cars = Integer.parseInt(value); }
+			else if (args[i].equals("-level")) { level = value; }
+			else if (args[i].equals("-circuit")) { circuitName = value; }
+			else if (args[i].equals("-car")) { carName = value; }
+			else if (args[i].equals("-seed")) { seed = Long.parseLong(value); }
+			else if (args[i].equals("-threads")) { threads = Integer.parseInt(value); }
+			else if (args[i].equals("-reference")) { reference = Integer.parseInt(value); }
+			else { throw new IllegalArgumentException("Unknown option: " + args[i]); }
+		}
+
+		SimulatedCircuit circuit = SimulatedCircuit.load(circuitName);
+		Map<String,String> carInfo = SimulatedCar.loadCarInfo(carName);
+		cars = Math.min(cars, circuit.getNumStartingGridPositions());
+
+		MonteCarloSimulator simulator = new MonteCarloSimulator(threads);
+		System.out.println(String.format("%s, %s, %d cars, %d laps, seed %d, %d threads",
+				circuitName, carName, cars, laps, seed, threads));
+		System.out.println();
+
+		for (int i = 0; i < LEVELS.length; i++) {
+			if (level.equals("all") || level.equals(LEVEL_NAMES[i])) {
+				RaceSimulation simulation = new RaceSimulation(circuit, carName, carInfo,
+						cars, laps, LEVELS[i]);
+				long start = System.currentTimeMillis();
+				RaceStatistics stats = simulator.simulate(simulation, races, seed);
+				long elapsed = System.currentTimeMillis() - start;
+				printReport("AI level " + LEVEL_NAMES[i] + " (" + elapsed + " ms)", stats, reference);
+			}
+		}
+
+		simulator.shutdown();
+	}
+}
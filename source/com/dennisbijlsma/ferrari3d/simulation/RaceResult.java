@@ -0,0 +1,132 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// RaceResult
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.simulation;
+
+import com.dennisbijlsma.ferrari3d.util.Laptime;
+
+/**
+ * The outcome of a single simulated race. For every car the starting grid slot,
+ * the AI personality, the final race position and all completed laps are
+ * stored. Entries are indexed by starting grid slot.
+ */
+public class RaceResult {
+
+	private long seed;
+	private boolean completed;
+	private float simulatedTime;
+	private Entry[] entries;
+
+	/**
+	 * Creates a new {@code RaceResult}.
+	 * @param completed True if the race was finished within the time limit.
+	 * @param simulatedTime The amount of simulated time, in seconds.
+	 * @param entries The result for every car, indexed by grid slot.
+	 */
+	public RaceResult(long seed, boolean completed, float simulatedTime, Entry[] entries) {
+		this.seed = seed;
+		this.completed = completed;
+		this.simulatedTime = simulatedTime;
+		this.entries = entries;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	public boolean isCompleted() {
+		return completed;
+	}
+
+	public float getSimulatedTime() {
+		return simulatedTime;
+	}
+
+	public int getNumEntries() {
+		return entries.length;
+	}
+
+	/**
+	 * Returns the result for the car that started from the specified grid slot.
+	 * @throws ArrayIndexOutOfBoundsException if no car started from that slot.
+	 */
+	public Entry getEntry(int gridSlot) {
+		return entries[gridSlot];
+	}
+
+	/**
+	 * Returns the entry that finished at the specified race position, or
+	 * {@code null} if no such entry exists.
+	 */
+	public Entry getEntryAtPosition(int position) {
+		for (Entry i : entries) {
+			if (i.getPosition() == position) {
+				return i;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Result of a single car in the race.
+	 */
+	public static class Entry {
+
+		private String name;
+		private int gridSlot;
+		private float skill;
+		private float aggression;
+		private int position;
+		private Laptime[] laps;
+
+		public Entry(String name, int gridSlot, float skill, float aggression, int position,
+				Laptime[] laps) {
+			this.name = name;
+			this.gridSlot = gridSlot;
+			this.skill = skill;
+			this.aggression = aggression;
+			this.position = position;
+			this.laps = laps;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getGridSlot() {
+			return gridSlot;
+		}
+
+		public float getSkill() {
+			return skill;
+		}
+
+		public float getAggression() {
+			return aggression;
+		}
+
+		/**
+		 * Returns the final race position, between 1 and the number of cars.
+		 */
+		public int getPosition() {
+			return position;
+		}
+
+		/**
+		 * Returns the number of laps this car has completed.
+		 */
+		public int getNumLaps() {
+			return laps.length;
+		}
+
+		/**
+		 * Returns the lap time for the specified completed lap, starting at 0.
+		 */
+		public Laptime getLaptime(int index) {
+			return laps[index];
+		}
+	}
+}
@@ -0,0 +1,217 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// RaceSimulation
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.simulation;
+
+import java.util.Map;
+import java.util.Random;
+
+import com.dennisbijlsma.ferrari3d.AI;
+import com.dennisbijlsma.ferrari3d.CircuitData;
+import com.dennisbijlsma.ferrari3d.Contestant;
+import com.dennisbijlsma.ferrari3d.Session;
+import com.dennisbijlsma.ferrari3d.SessionConfig;
+import com.dennisbijlsma.ferrari3d.util.Laptime;
+import com.dennisbijlsma.ferrari3d.util.Settings;
+
+/**
+ * Runs a race between AI contestants without rendering. The simulation uses the
+ * same {@code Session}, {@code AI} and {@code CarPhysics} classes as the game,
+ * but advances time with a fixed delta as fast as possible instead of in real
+ * time.
+ * <p>
+ * All random decisions are taken from a {@code Random} created from the seed
+ * passed to {@link #run(long)}, so running the same race twice produces the
+ * same result. A single instance can be used to run races from multiple threads
+ * at the same time, as long as the circuit data is not modified. Every race uses
+ * its own {@code Session}, configured with a {@code SessionConfig} that is
+ * created once from the settings and then shared by all races.
+ */
+public class RaceSimulation {
+
+	private CircuitData circuit;
+	private String carName;
+	private Map<String,String> carInfo;
+	private int numCars;
+	private int laps;
+	private int aiLevel;
+	private SessionConfig config;
+	private boolean randomGrid;
+	private float fixedSkill;
+	private float fixedAggression;
+
+	public static final float DELTA_TIME = 0.04f;
+	private static final float MAX_LAP_TIME = Laptime.TIME_NOT_SET / 1000f;
+	private static final float START_ORIENTATION = 1.57f;
+
+	/**
+	 * Creates a new {@code RaceSimulation}. All cars in the race will use the
+	 * same car info.
+	 * @param numCars The number of AI cars, limited by the size of the grid.
+	 * @param aiLevel One of the {@code Settings.AI_XXX} constants.
+	 */
+	public RaceSimulation(CircuitData circuit, String carName, Map<String,String> carInfo,
+			int numCars, int laps, int aiLevel) {
+		this.circuit = circuit;
+		this.carName = carName;
+		this.carInfo = carInfo;
+		this.numCars = numCars;
+		this.laps = laps;
+		this.aiLevel = aiLevel;
+		this.config = new SessionConfig(Settings.getInstance()).withAI(true, aiLevel)
+				.withSound(false).withDebug(false);
+		this.randomGrid = true;
+		this.fixedSkill = -1f;
+		this.fixedAggression = -1f;
+	}
+
+	/**
+	 * When true, the cars are placed on the grid in random order. When false,
+	 * car {@code n} will always start from grid slot {@code n}.
+	 */
+	public void setRandomGrid(boolean randomGrid) {
+		this.randomGrid = randomGrid;
+	}
+
+	public boolean isRandomGrid() {
+		return randomGrid;
+	}
+
+	/**
+	 * Gives all AI contestants the same fixed personality, instead of one that
+	 * is generated from the AI level. This removes the variation between
+	 * drivers, which is needed when the results of different car setups should
+	 * be compared.
+	 * @param skill Driving skill, between 0 and 1.
+	 * @param aggression Aggression when overtaking, between 0 and 1.
+	 */
+	public void setFixedDriver(float skill, float aggression) {
+		this.fixedSkill = skill;
+		this.fixedAggression = aggression;
+	}
+
+	public boolean hasFixedDriver() {
+		return fixedSkill >= 0f;
+	}
+
+	public int getNumCars() {
+		return numCars;
+	}
+
+	public int getLaps() {
+		return laps;
+	}
+
+	public int getAILevel() {
+		return aiLevel;
+	}
+
+	/**
+	 * Runs a complete race. The race ends when the first car completes the last
+	 * lap, or when the time limit has passed.
+	 * @param seed Seed for all random decisions made during the race.
+	 * @return The result of the race.
+	 */
+	public RaceResult run(long seed) {
+		return run(seed, null);
+	}
+
+	/**
+	 * Runs a complete race, and notifies a listener after every tick.
+	 * @param seed Seed for all random decisions made during the race.
+	 * @param listener Notified after every tick, or {@code null} for none.
+	 * @return The result of the race.
+	 */
+	public RaceResult run(long seed, SimulationListener listener) {
+
+		Random random = new Random(seed);
+		Session session = new Session(Session.SessionMode.RACE, laps, config);
+		AI[] cars = new AI[numCars];
+		int[] grid = createGrid(random);
+
+		for (int i = 0; i < numCars; i++) {
+			cars[i] = createAI("AI-" + (i + 1), session, random);
+			cars[i].setCar(new SimulatedCar(carName, carInfo));
+			cars[i].setCircuitData(circuit);
+			cars[i].setPosition(circuit.getStartingGridPosition(grid[i]));
+			cars[i].setOrientation(START_ORIENTATION);
+			session.addContestant(cars[i]);
+		}
+
+		session.setStarted();
+
+		// Simulate
+
+		float maxTime = laps * MAX_LAP_TIME;
+		float time = 0f;
+		int tick = 0;
+
+		while (!session.isFinished() && (time < maxTime)) {
+			for (Contestant i : session.getContestants()) {
+				i.update(DELTA_TIME);
+			}
+
+			for (Contestant i : session.getContestants()) {
+				if (i.getLap() > laps) {
+					session.setFinished();
+				}
+			}
+
+			if (listener != null) {
+				listener.tickSimulated(tick, cars);
+			}
+
+			time += DELTA_TIME;
+			tick++;
+		}
+
+		// Collect results
+
+		RaceResult.Entry[] entries = new RaceResult.Entry[numCars];
+		for (int i = 0; i < numCars; i++) {
+			AI car = cars[i];
+			Laptime[] completedLaps = new Laptime[car.getLap() - 1];
+			for (int j = 0; j < completedLaps.length; j++) {
+				completedLaps[j] = car.getLaptime(j + 1);
+			}
+			entries[grid[i]] = new RaceResult.Entry(car.getName(), grid[i], car.getSkill(),
+					car.getAggression(), session.getRacePosition(car), completedLaps);
+		}
+
+		return new RaceResult(seed, session.isFinished(), time, entries);
+	}
+
+	private AI createAI(String name, Session session, Random random) {
+		if (hasFixedDriver()) {
+			return new AI(name, session, fixedSkill, fixedAggression, random);
+		} else {
+			return new AI(name, session, aiLevel, random);
+		}
+	}
+
+	/**
+	 * Returns the grid slot for every car. When random grids are enabled the
+	 * order is shuffled, otherwise every car starts from its own index.
+	 */
+	private int[] createGrid(Random random) {
+
+		int[] grid = new int[numCars];
+		for (int i = 0; i < numCars; i++) {
+			grid[i] = i;
+		}
+
+		if (randomGrid) {
+			for (int i = numCars - 1; i > 0; i--) {
+				int j = random.nextInt(i + 1);
+				int temp = grid[i];
+				grid[i] = grid[j];
+				grid[j] = temp;
+			}
+		}
+
+		return grid;
+	}
+}
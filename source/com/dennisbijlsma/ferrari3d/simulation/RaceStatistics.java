@@ -0,0 +1,285 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// RaceStatistics
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.simulation;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Aggregates the results of many simulated races. Win counts and the
+ * distribution of finishing positions are kept both per starting grid slot and
+ * per AI skill level. Lap times are added to a {@code LaptimeHistogram}. Only
+ * counters are stored, so the amount of memory used does not depend on the
+ * number of races that are added.
+ * <p>
+ * Instances are not thread safe. When races are simulated in parallel every
+ * thread should use its own instance, which are combined afterwards using
+ * {@link #merge(RaceStatistics)}. The same applies to races simulated by
+ * different processes, which send their statistics using
+ * {@link #write(DataOutput)}.
+ */
+public class RaceStatistics {
+
+	private int numCars;
+	private long races;
+	private long unfinishedRaces;
+	private long[] winsByGrid;
+	private long[][] positionsByGrid;
+	private long[] startsBySkill;
+	private long[] winsBySkill;
+	private long[][] positionsBySkill;
+	private LaptimeHistogram laptimes;
+	private LaptimeHistogram[] laptimesBySkill;
+
+	/** Skill levels are rounded to one decimal, between 0 and 1. */
+	public static final int SKILL_LEVELS = 11;
+
+	private static final int HISTOGRAM_MIN = 30000;
+	private static final int HISTOGRAM_MAX = 300000;
+	private static final int HISTOGRAM_BIN = 100;
+
+	/**
+	 * Creates a new {@code RaceStatistics} for races with the specified number
+	 * of cars.
+	 */
+	public RaceStatistics(int numCars) {
+
+		this.numCars = numCars;
+
+		winsByGrid = new long[numCars];
+		positionsByGrid = new long[numCars][numCars];
+		startsBySkill = new long[SKILL_LEVELS];
+		winsBySkill = new long[SKILL_LEVELS];
+		positionsBySkill = new long[SKILL_LEVELS][numCars];
+
+		laptimes = createHistogram();
+		laptimesBySkill = new LaptimeHistogram[SKILL_LEVELS];
+		for (int i = 0; i < SKILL_LEVELS; i++) {
+			laptimesBySkill[i] = createHistogram();
+		}
+	}
+
+	private LaptimeHistogram createHistogram() {
+		return new LaptimeHistogram(HISTOGRAM_MIN, HISTOGRAM_MAX, HISTOGRAM_BIN);
+	}
+
+	/**
+	 * Adds the result of a race. Races that did not finish within the time
+	 * limit are counted, but otherwise ignored.
+	 * @throws IllegalArgumentException if the race has a different number of cars.
+	 */
+	public void add(RaceResult result) {
+
+		if (result.getNumEntries() != numCars) {
+			throw new IllegalArgumentException("Race has " + result.getNumEntries() + " cars");
+		}
+
+		races++;
+
+		if (!result.isCompleted()) {
+			unfinishedRaces++;
+			return;
+		}
+
+		for (int i = 0; i < numCars; i++) {
+			RaceResult.Entry entry = result.getEntry(i);
+			int position = entry.getPosition() - 1;
+			int skill = getSkillLevel(entry.getSkill());
+
+			positionsByGrid[i][position]++;
+			positionsBySkill[skill][position]++;
+			startsBySkill[skill]++;
+
+			if (position == 0) {
+				winsByGrid[i]++;
+				winsBySkill[skill]++;
+			}
+
+			for (int j = 0; j < entry.getNumLaps(); j++) {
+				int time = entry.getLaptime(j).getTime();
+				laptimes.add(time);
+				laptimesBySkill[skill].add(time);
+			}
+		}
+	}
+
+	/**
+	 * Adds all races counted by another {@code RaceStatistics} to this one.
+	 * @throws IllegalArgumentException if the statistics are for a different
+	 *         number of cars.
+	 */
+	public void merge(RaceStatistics other) {
+
+		if (other.numCars != numCars) {
+			throw new IllegalArgumentException("Statistics have different number of cars");
+		}
+
+		races += other.races;
+		unfinishedRaces += other.unfinishedRaces;
+
+		for (int i = 0; i < numCars; i++) {
+			winsByGrid[i] += other.winsByGrid[i];
+			for (int j = 0; j < numCars; j++) {
+				positionsByGrid[i][j] += other.positionsByGrid[i][j];
+			}
+		}
+
+		for (int i = 0; i < SKILL_LEVELS; i++) {
+			startsBySkill[i] += other.startsBySkill[i];
+			winsBySkill[i] += other.winsBySkill[i];
+			for (int j = 0; j < numCars; j++) {
+				positionsBySkill[i][j] += other.positionsBySkill[i][j];
+			}
+			laptimesBySkill[i].merge(other.laptimesBySkill[i]);
+		}
+
+		laptimes.merge(other.laptimes);
+	}
+
+	/**
+	 * Writes all counters to a stream.
+	 * @throws IOException if an error occurs while writing.
+	 */
+	public void write(DataOutput out) throws IOException {
+
+		out.writeInt(numCars);
+		out.writeLong(races);
+		out.writeLong(unfinishedRaces);
+
+		for (int i = 0; i < numCars; i++) {
+			out.writeLong(winsByGrid[i]);
+			for (int j = 0; j < numCars; j++) {
+				out.writeLong(positionsByGrid[i][j]);
+			}
+		}
+
+		for (int i = 0; i < SKILL_LEVELS; i++) {
+			out.writeLong(startsBySkill[i]);
+			out.writeLong(winsBySkill[i]);
+			for (int j = 0; j < numCars; j++) {
+				out.writeLong(positionsBySkill[i][j]);
+			}
+			laptimesBySkill[i].write(out);
+		}
+
+		laptimes.write(out);
+	}
+
+	/**
+	 * Reads statistics from a stream that was created by
+	 * {@link #write(DataOutput)}.
+	 * @throws IOException if an error occurs while reading.
+	 */
+	public static RaceStatistics read(DataInput in) throws IOException {
+
+		RaceStatistics stats = new RaceStatistics(in.readInt());
+		stats.races = in.readLong();
+		stats.unfinishedRaces = in.readLong();
+
+		for (int i = 0; i < stats.numCars; i++) {
+			stats.winsByGrid[i] = in.readLong();
+			for (int j = 0; j < stats.numCars; j++) {
+				stats.positionsByGrid[i][j] = in.readLong();
+			}
+		}
+
+		for (int i = 0; i < SKILL_LEVELS; i++) {
+			stats.startsBySkill[i] = in.readLong();
+			stats.winsBySkill[i] = in.readLong();
+			for (int j = 0; j < stats.numCars; j++) {
+				stats.positionsBySkill[i][j] = in.readLong();
+			}
+			stats.laptimesBySkill[i] = LaptimeHistogram.read(in);
+		}
+
+		stats.laptimes = LaptimeHistogram.read(in);
+		return stats;
+	}
+
+	public int getNumCars() {
+		return numCars;
+	}
+
+	public long getNumRaces() {
+		return races;
+	}
+
+	public long getNumUnfinishedRaces() {
+		return unfinishedRaces;
+	}
+
+	private long getNumFinishedRaces() {
+		return races - unfinishedRaces;
+	}
+
+	/**
+	 * Returns the probability that the car starting from the specified grid
+	 * slot wins the race.
+	 */
+	public float getWinProbabilityByGrid(int gridSlot) {
+		return ratio(winsByGrid[gridSlot], getNumFinishedRaces());
+	}
+
+	/**
+	 * Returns the probability that the car starting from the specified grid
+	 * slot finishes at the specified race position.
+	 * @param position Race position, between 1 and the number of cars.
+	 */
+	public float getPositionProbabilityByGrid(int gridSlot, int position) {
+		return ratio(positionsByGrid[gridSlot][position - 1], getNumFinishedRaces());
+	}
+
+	/**
+	 * Returns the probability that an AI with the specified skill level wins
+	 * a race it participates in.
+	 * @param skill Skill level index, see {@link #getSkillLevel(float)}.
+	 */
+	public float getWinProbabilityBySkill(int skill) {
+		return ratio(winsBySkill[skill], startsBySkill[skill]);
+	}
+
+	/**
+	 * Returns the probability that an AI with the specified skill level
+	 * finishes at the specified race position.
+	 */
+	public float getPositionProbabilityBySkill(int skill, int position) {
+		return ratio(positionsBySkill[skill][position - 1], startsBySkill[skill]);
+	}
+
+	/**
+	 * Returns the number of times an AI with the specified skill level started
+	 * a race that was finished.
+	 */
+	public long getStartsBySkill(int skill) {
+		return startsBySkill[skill];
+	}
+
+	public LaptimeHistogram getLaptimes() {
+		return laptimes;
+	}
+
+	public LaptimeHistogram getLaptimesBySkill(int skill) {
+		return laptimesBySkill[skill];
+	}
+
+	private float ratio(long count, long total) {
+		if (total == 0L) {
+			return 0f;
+		}
+		return (float) count / total;
+	}
+
+	/**
+	 * Returns the skill level index for an AI skill value. The index is the
+	 * skill rounded to one decimal and multiplied by 10.
+	 */
+	public static int getSkillLevel(float skill) {
+		int level = Math.round(skill * 10f);
+		return Math.max(0, Math.min(level, SKILL_LEVELS - 1));
+	}
+}
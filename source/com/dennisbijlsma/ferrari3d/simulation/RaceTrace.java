@@ -0,0 +1,309 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// RaceTrace
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.simulation;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.dennisbijlsma.core3d.ImmutableVector3D;
+import com.dennisbijlsma.ferrari3d.Contestant;
+import com.dennisbijlsma.ferrari3d.util.Laptime;
+
+/**
+ * Fingerprint of a single simulated race, used to detect changes in the
+ * behavior of the simulation. After every tick the complete state of all cars
+ * is reduced to a 32-bit hash, and when the race has finished the lap times,
+ * sector times and final positions are stored. Traces can be written to and
+ * read from a plain text file, so that they can be checked in and compared
+ * with {@code diff}.
+ * <p>
+ * The hashes use the exact bit patterns of all floating point values. Any
+ * change to the physics or AI, no matter how small, will therefore show up as
+ * a diverging tick, even if the lap times happen to stay the same.
+ */
+public class RaceTrace implements SimulationListener {
+
+	private String description;
+	private int[] hashes;
+	private int numTicks;
+	private boolean completed;
+	private int[] positions;
+	private int[][] laptimes;
+
+	private static final String HEADER = "# Ferrari3D race trace";
+	private static final int HASHES_PER_LINE = 8;
+	private static final int FNV_OFFSET = 0x811C9DC5;
+	private static final int FNV_PRIME = 0x01000193;
+
+	/**
+	 * Creates a new, empty trace. The description should identify the race
+	 * configuration, traces with a different description are never equal.
+	 */
+	public RaceTrace(String description) {
+		this.description = description;
+		this.hashes = new int[1024];
+		this.numTicks = 0;
+		this.completed = false;
+		this.positions = new int[0];
+		this.laptimes = new int[0][];
+	}
+
+	/**
+	 * Hashes the state of all cars after a tick. Ticks are expected to arrive
+	 * in order, starting at 0.
+	 */
+	public void tickSimulated(int tick, Contestant[] cars) {
+
+		int hash = FNV_OFFSET;
+		for (Contestant i : cars) {
+			ImmutableVector3D position = i.getPosition();
+			hash = mix(hash, Float.floatToIntBits(position.getX()));
+			hash = mix(hash, Float.floatToIntBits(position.getY()));
+			hash = mix(hash, Float.floatToIntBits(position.getZ()));
+			hash = mix(hash, Float.floatToIntBits(i.getOrientation()));
+			hash = mix(hash, Float.floatToIntBits(i.getDirection()));
+			hash = mix(hash, Float.floatToIntBits(i.getSpeed()));
+			hash = mix(hash, Float.floatToIntBits(i.getAngularSpeed()));
+			hash = mix(hash, i.getLap());
+			hash = mix(hash, i.getIntermediate());
+			hash = mix(hash, i.getPoint());
+			hash = mix(hash, i.getGear());
+			hash = mix(hash, i.getRPM());
+		}
+
+		if (numTicks == hashes.length) {
+			hashes = Arrays.copyOf(hashes, hashes.length * 2);
+		}
+		hashes[numTicks] = hash;
+		numTicks = tick + 1;
+	}
+
+	private static int mix(int hash, int value) {
+		for (int i = 0; i < 4; i++) {
+			hash = (hash ^ ((value >>> (i * 8)) & 0xFF)) * FNV_PRIME;
+		}
+		return hash;
+	}
+
+	/**
+	 * Stores the outcome of the race. Entries in the result are indexed by
+	 * grid slot, so the stored times are as well.
+	 */
+	public void setResult(RaceResult result) {
+
+		completed = result.isCompleted();
+		positions = new int[result.getNumEntries()];
+		laptimes = new int[result.getNumEntries()][];
+
+		for (int i = 0; i < result.getNumEntries(); i++) {
+			RaceResult.Entry entry = result.getEntry(i);
+			positions[i] = entry.getPosition();
+			laptimes[i] = new int[entry.getNumLaps() * 4];
+			for (int j = 0; j < entry.getNumLaps(); j++) {
+				Laptime laptime = entry.getLaptime(j);
+				laptimes[i][j * 4] = laptime.getTime();
+				laptimes[i][j * 4 + 1] = laptime.getSectorTime(0);
+				laptimes[i][j * 4 + 2] = laptime.getSectorTime(1);
+				laptimes[i][j * 4 + 3] = laptime.getSectorTime(2);
+			}
+		}
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public int getNumTicks() {
+		return numTicks;
+	}
+
+	public int getHash(int tick) {
+		return hashes[tick];
+	}
+
+	/**
+	 * Compares this trace against an expected trace, and returns a description
+	 * of every difference. Only the first diverging tick is reported, since all
+	 * later ticks will normally diverge as well.
+	 * @return A list of differences, which is empty if the traces are equal.
+	 */
+	public List<String> compare(RaceTrace expected) {
+
+		List<String> differences = new ArrayList<String>();
+		String prefix = description + ": ";
+
+		if (!description.equals(expected.description)) {
+			differences.add(prefix + "expected race " + expected.description);
+			return differences;
+		}
+
+		int ticks = Math.min(numTicks, expected.numTicks);
+		for (int i = 0; i < ticks; i++) {
+			if (hashes[i] != expected.hashes[i]) {
+				differences.add(String.format("%sfirst diverging tick is %d (%.2f s)",
+						prefix, i, (i + 1) * RaceSimulation.DELTA_TIME));
+				break;
+			}
+		}
+
+		if (numTicks != expected.numTicks) {
+			differences.add(prefix + "expected " + expected.numTicks + " ticks, was " + numTicks);
+		}
+
+		if (completed != expected.completed) {
+			differences.add(prefix + "expected completed " + expected.completed + ", was " + completed);
+		}
+
+		if (positions.length != expected.positions.length) {
+			differences.add(prefix + "expected " + expected.positions.length + " cars, was " +
+					positions.length);
+			return differences;
+		}
+
+		for (int i = 0; i < positions.length; i++) {
+			if (positions[i] != expected.positions[i]) {
+				differences.add(prefix + "grid slot " + i + " expected position " +
+						expected.positions[i] + ", was " + positions[i]);
+			}
+
+			int[] actualTimes = laptimes[i];
+			int[] expectedTimes = expected.laptimes[i];
+			if (actualTimes.length != expectedTimes.length) {
+				differences.add(prefix + "grid slot " + i + " expected " + (expectedTimes.length / 4) +
+						" laps, was " + (actualTimes.length / 4));
+			}
+
+			for (int j = 0; j < Math.min(actualTimes.length, expectedTimes.length); j += 4) {
+				if (!Arrays.equals(Arrays.copyOfRange(actualTimes, j, j + 4),
+						Arrays.copyOfRange(expectedTimes, j, j + 4))) {
+					differences.add(prefix + "grid slot " + i + " lap " + (j / 4 + 1) + " expected " +
+							formatLap(expectedTimes, j) + ", was " + formatLap(actualTimes, j));
+				}
+			}
+		}
+
+		return differences;
+	}
+
+	private static String formatLap(int[] times, int offset) {
+		return times[offset] + " (" + times[offset + 1] + " / " + times[offset + 2] + " / " +
+				times[offset + 3] + ")";
+	}
+
+	/**
+	 * Writes this trace to a text file.
+	 * @throws IOException if an error occurs while writing.
+	 */
+	public void write(File file) throws IOException {
+
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+				new FileOutputStream(file), "UTF-8"));
+
+		try {
+			writer.print(HEADER + "\n");
+			writer.print("race " + description + "\n");
+			writer.print("completed " + completed + "\n");
+
+			for (int i = 0; i < positions.length; i++) {
+				writer.print("position " + i + " " + positions[i] + "\n");
+				for (int j = 0; j < laptimes[i].length; j += 4) {
+					writer.print("lap " + i + " " + laptimes[i][j] + " " + laptimes[i][j + 1] + " " +
+							laptimes[i][j + 2] + " " + laptimes[i][j + 3] + "\n");
+				}
+			}
+
+			writer.print("ticks " + numTicks + "\n");
+			for (int i = 0; i < numTicks; i += HASHES_PER_LINE) {
+				StringBuilder line = new StringBuilder();
+				for (int j = i; j < Math.min(i + HASHES_PER_LINE, numTicks); j++) {
+					line.append(j > i ? " " : "");
+					line.append(String.format("%08x", hashes[j]));
+				}
+				writer.print(line + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+
+		if (writer.checkError()) {
+			throw new IOException("Error while writing " + file);
+		}
+	}
+
+	/**
+	 * Reads a trace from a text file that was created by {@link #write(File)}.
+	 * @throws IOException if an error occurs while reading, or if the file is
+	 *         not a valid trace.
+	 */
+	public static RaceTrace read(File file) throws IOException {
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+
+		try {
+			if (!HEADER.equals(reader.readLine())) {
+				throw new IOException("Not a race trace: " + file);
+			}
+
+			RaceTrace trace = null;
+			List<Integer> positions = new ArrayList<Integer>();
+			List<List<Integer>> laptimes = new ArrayList<List<Integer>>();
+			String line = null;
+
+			while ((line = reader.readLine()) != null) {
+				String[] tokens = line.split(" ");
+				if (tokens[0].equals("race")) {
+					trace = new RaceTrace(line.substring(5));
+				} else if (tokens[0].equals("completed")) {
+					trace.completed = Boolean.parseBoolean(tokens[1]);
+				} else if (tokens[0].equals("position")) {
+					positions.add(Integer.parseInt(tokens[2]));
+					laptimes.add(new ArrayList<Integer>());
+				} else if (tokens[0].equals("lap")) {
+					for (int i = 2; i < tokens.length; i++) {
+						laptimes.get(Integer.parseInt(tokens[1])).add(Integer.parseInt(tokens[i]));
+					}
+				} else if (tokens[0].equals("ticks")) {
+					trace.numTicks = Integer.parseInt(tokens[1]);
+					trace.hashes = new int[trace.numTicks];
+					for (int i = 0; i < trace.numTicks; i += HASHES_PER_LINE) {
+						String[] hashTokens = reader.readLine().split(" ");
+						for (int j = 0; j < hashTokens.length; j++) {
+							trace.hashes[i + j] = (int) Long.parseLong(hashTokens[j], 16);
+						}
+					}
+				} else {
+					throw new IOException("Invalid line in " + file + ": " + line);
+				}
+			}
+
+			trace.positions = new int[positions.size()];
+			trace.laptimes = new int[positions.size()][];
+			for (int i = 0; i < positions.size(); i++) {
+				trace.positions[i] = positions.get(i);
+				trace.laptimes[i] = new int[laptimes.get(i).size()];
+				for (int j = 0; j < trace.laptimes[i].length; j++) {
+					trace.laptimes[i][j] = laptimes.get(i).get(j);
+				}
+			}
+			return trace;
+		} catch (RuntimeException e) {
+			throw new IOException("Invalid race trace: " + file, e);
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,284 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// SetupSweep
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.simulation;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.dennisbijlsma.ferrari3d.CircuitData;
+import com.dennisbijlsma.ferrari3d.util.Laptime;
+import com.dennisbijlsma.ferrari3d.util.Settings;
+import com.dennisbijlsma.ferrari3d.util.Utils;
+
+/**
+ * Command line tool that drives laps with every combination of a number of car
+ * setup parameters, and writes the lap and sector times to a results file. A
+ * single AI with a fixed personality drives each combination, using the same
+ * seed every time, so that differences in lap time are caused by the setup
+ * only.
+ * <p>
+ * Combinations are numbered, with the last parameter changing fastest. The
+ * range of combination numbers is split recursively and simulated on a
+ * {@code ForkJoinPool}, so that idle threads steal work from busy ones when
+ * some setups take longer to drive than others.
+ * <p>
+ * Usage: {@code SetupSweep -param key=min:max:step [-param ...] [-circuit name]
+ * [-car name] [-laps n] [-skill n] [-seed n] [-threads n] [-out file]}
+ */
+public class SetupSweep {
+
+	private CircuitData circuit;
+	private String carName;
+	private Map<String,String> baseInfo;
+	private SweepParameter[] parameters;
+	private int laps;
+	private float skill;
+	private long seed;
+
+	private static final int DEFAULT_LAPS = 2;
+	private static final float DEFAULT_SKILL = 1f;
+	private static final float AGGRESSION = 0.5f;
+	private static final int SPLIT_THRESHOLD = 2;
+	private static final String DEFAULT_OUTPUT = "sweep.dat";
+
+	/**
+	 * Creates a new {@code SetupSweep}. Car info keys that are not swept keep
+	 * the value from {@code baseInfo}.
+	 * @throws IllegalArgumentException if a parameter is not a car info key, or
+	 *         if there are too many combinations.
+	 */
+	public SetupSweep(CircuitData circuit, String carName, Map<String,String> baseInfo,
+			List<SweepParameter> parameters) {
+
+		this.circuit = circuit;
+		this.carName = carName;
+		this.baseInfo = baseInfo;
+		this.parameters = parameters.toArray(new SweepParameter[0]);
+		this.laps = DEFAULT_LAPS;
+		this.skill = DEFAULT_SKILL;
+		this.seed = 0L;
+
+		long combinations = 1L;
+		for (SweepParameter i : this.parameters) {
+			if (!baseInfo.containsKey(i.getKey())) {
+				throw new IllegalArgumentException("Unknown car info key: " + i.getKey());
+			}
+			combinations *= i.getNumValues();
+		}
+
+		if (combinations > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Too many combinations: " + combinations);
+		}
+	}
+
+	/**
+	 * Sets the number of laps driven for every combination. The fastest lap is
+	 * stored, so using more than one lap excludes the standing start.
+	 */
+	public void setLaps(int laps) {
+		this.laps = laps;
+	}
+
+	public int getLaps() {
+		return laps;
+	}
+
+	/**
+	 * Sets the skill of the AI driver, between 0 and 1.
+	 */
+	public void setSkill(float skill) {
+		this.skill = skill;
+	}
+
+	public float getSkill() {
+		return skill;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	public int getNumCombinations() {
+		int combinations = 1;
+		for (SweepParameter i : parameters) {
+			combinations *= i.getNumValues();
+		}
+		return combinations;
+	}
+
+	/**
+	 * Returns the index of each parameter's value for the specified
+	 * combination.
+	 */
+	private int[] getValueIndices(int combination) {
+		int[] indices = new int[parameters.length];
+		for (int i = parameters.length - 1; i >= 0; i--) {
+			indices[i] = combination % parameters[i].getNumValues();
+			combination /= parameters[i].getNumValues();
+		}
+		return indices;
+	}
+
+	/**
+	 * Returns the car info used for the specified combination.
+	 */
+	public Map<String,String> getCarInfo(int combination) {
+		Map<String,String> info = new HashMap<String,String>(baseInfo);
+		int[] indices = getValueIndices(combination);
+		for (int i = 0; i < parameters.length; i++) {
+			info.put(parameters[i].getKey(), parameters[i].formatValue(indices[i]));
+		}
+		return info;
+	}
+
+	/**
+	 * Drives laps with every combination and returns the results.
+	 */
+	public SweepResults run(ForkJoinPool pool) {
+
+		String[] keys = new String[parameters.length];
+		for (int i = 0; i < parameters.length; i++) {
+			keys[i] = parameters[i].getKey();
+		}
+
+		SweepResults results = new SweepResults(keys, getNumCombinations());
+		pool.invoke(new SweepTask(results, 0, getNumCombinations()));
+		return results;
+	}
+
+	/**
+	 * Drives the laps for a single combination and stores the fastest lap.
+	 */
+	private void simulate(SweepResults results, int combination) {
+
+		RaceSimulation simulation = new RaceSimulation(circuit, carName,
+				getCarInfo(combination), 1, laps, Settings.AI_HARD);
+		simulation.setRandomGrid(false);
+		simulation.setFixedDriver(skill, AGGRESSION);
+
+		RaceResult.Entry entry = simulation.run(seed).getEntry(0);
+		Laptime fastest = null;
+		for (int i = 0; i < entry.getNumLaps(); i++) {
+			if ((fastest == null) || (entry.getLaptime(i).compareTo(fastest) < 0)) {
+				fastest = entry.getLaptime(i);
+			}
+		}
+
+		int[] indices = getValueIndices(combination);
+		float[] values = new float[parameters.length];
+		for (int i = 0; i < parameters.length; i++) {
+			values[i] = parameters[i].getValue(indices[i]);
+		}
+
+		results.setRow(combination, values, fastest);
+	}
+
+	/**
+	 * Simulates a range of combinations. Ranges larger than the threshold are
+	 * split in half, so that the pool can distribute the work.
+	 */
+	private class SweepTask extends RecursiveAction {
+
+		private SweepResults results;
+		private int from;
+		private int to;
+
+		private static final long serialVersionUID = 1L;
+
+		public SweepTask(SweepResults results, int from, int to) {
+			this.results = results;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= SPLIT_THRESHOLD) {
+				for (int i = from; i < to; i++) {
+					simulate(results, i);
+				}
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new SweepTask(results, from, middle), new SweepTask(results, middle, to));
+			}
+		}
+	}
+
+	/**
+	 * Command line entry point.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		System.setProperty("java.awt.headless", "true");
+
+		Settings settings = Settings.getInstance();
+		settings.init();
+
+		List<SweepParameter> parameters = new ArrayList<SweepParameter>();
+		String circuitName = settings.circuit;
+		String carName = settings.car;
+		int laps = DEFAULT_LAPS;
+		float skill = DEFAULT_SKILL;
+		long seed = 0L;
+		int threads = Runtime.getRuntime().availableProcessors();
+		File output = new File(DEFAULT_OUTPUT);
+
+		for (int i = 0; i < args.length - 1; i += 2) {
+			String value = args[i + 1];
+			if (args[i].equals("-param")) { parameters.add(SweepParameter.parse(value)); }
+			else if (args[i].equals("-circuit")) { circuitName = value; }
+			else if (args[i].equals("-car")) { carName = value; }
+			else if (args[i].equals("-laps")) { laps = Integer.parseInt(value); }
+			else if (args[i].equals("-skill")) { skill = Float.parseFloat(value); }
+			else if (args[i].equals("-seed")) { seed = Long.parseLong(value); }
+			else if (args[i].equals("-threads")) { threads = Integer.parseInt(value); }
+			else if (args[i].equals("-out")) { output = new File(value); }
+			else { throw new IllegalArgumentException("Unknown option: " + args[i]); }
+		}
+
+		SetupSweep sweep = new SetupSweep(SimulatedCircuit.load(circuitName), carName,
+				SimulatedCar.loadCarInfo(carName), parameters);
+		sweep.setLaps(laps);
+		sweep.setSkill(skill);
+		sweep.setSeed(seed);
+
+		System.out.println(String.format("%s, %s, %d combinations, %d laps, %d threads",
+				circuitName, carName, sweep.getNumCombinations(), laps, threads));
+		for (SweepParameter i : parameters) {
+			System.out.println("  " + i);
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		long start = System.currentTimeMillis();
+		SweepResults results = sweep.run(pool);
+		long elapsed = System.currentTimeMillis() - start;
+		pool.shutdown();
+
+		results.write(output);
+		System.out.println(String.format("Finished in %d ms, results written to %s",
+				elapsed, output.getAbsolutePath()));
+
+		int fastest = results.getFastestRow();
+		if (fastest != -1) {
+			System.out.print("Fastest lap " + Utils.timeFormat(results.getLaptime(fastest), false));
+			for (int i = 0; i < results.getNumParameters(); i++) {
+				System.out.print(" " + results.getParameterKey(i) + "=" +
+						results.getParameterValue(i, fastest));
+			}
+			System.out.println();
+		}
+	}
+}
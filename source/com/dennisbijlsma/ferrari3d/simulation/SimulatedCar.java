@@ -0,0 +1,65 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// SimulatedCar
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.simulation;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.w3c.dom.Document;
+
+import com.dennisbijlsma.ferrari3d.editor.ContentLoader;
+import com.dennisbijlsma.ferrari3d.graphics.AbstractCar;
+import nl.colorize.util.ResourceFile;
+import nl.colorize.util.XMLUtils;
+
+/**
+ * Non-visual implementation of {@code AbstractCar}, used when running sessions
+ * without rendering. Only the car info is loaded from the car's content file,
+ * the geometry is never created.
+ */
+public class SimulatedCar extends AbstractCar {
+
+	/**
+	 * Creates a new {@code SimulatedCar} with the specified car info. The map is
+	 * copied, so that changes to it do not affect this car.
+	 */
+	public SimulatedCar(String carName, Map<String,String> info) {
+		super();
+		setCarName(carName);
+		setInfo(new HashMap<String,String>(info));
+	}
+
+	@Override
+	public void setPosition(float x, float z) {
+
+	}
+
+	@Override
+	public void setOrientation(float angle) {
+
+	}
+
+	@Override
+	public void doGearChange(boolean up) {
+
+	}
+
+	@Override
+	public void doNextLap() {
+
+	}
+
+	/**
+	 * Loads the car info for the car with the specified name. Only the car info
+	 * is parsed from the content file, no geometry is loaded.
+	 * @throws Exception if the car's content file could not be loaded.
+	 */
+	public static Map<String,String> loadCarInfo(String carName) throws Exception {
+		ResourceFile resource = new ResourceFile("cars/" + carName + "/" + carName + ".xml");
+		Document document = XMLUtils.parseXML(resource.getStream());
+		return new ContentLoader().parseCarInfo(document);
+	}
+}
@@ -0,0 +1,123 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// SimulatedCircuit
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.simulation;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.w3c.dom.Document;
+
+import com.dennisbijlsma.core3d.ImmutableVector3D;
+import com.dennisbijlsma.core3d.Vector3D;
+import com.dennisbijlsma.ferrari3d.CircuitData;
+import com.dennisbijlsma.ferrari3d.editor.ContentLoader;
+import com.dennisbijlsma.ferrari3d.util.CircuitPoint;
+import nl.colorize.util.ResourceFile;
+import nl.colorize.util.XMLUtils;
+
+/**
+ * Non-visual implementation of the {@code CircuitData} interface. Only the
+ * circuit points and starting grid are loaded, the geometry is never created.
+ * <p>
+ * Instances of this class are never modified after loading, so a single
+ * instance can be shared by simulations running in different threads.
+ */
+public class SimulatedCircuit implements CircuitData {
+
+	private String circuitName;
+	private CircuitPoint[] points;
+	private CircuitPoint[] intermediates;
+	private Vector3D[] startinggrid;
+
+	/** Same scale that is applied by {@code Loader} when loading the circuit. */
+	private static final float CIRCUIT_SCALE = 10f;
+
+	/**
+	 * Creates a new {@code SimulatedCircuit} from already scaled circuit data.
+	 */
+	public SimulatedCircuit(String circuitName, CircuitPoint[] points, Vector3D[] startinggrid) {
+
+		this.circuitName = circuitName;
+		this.points = points;
+		this.startinggrid = startinggrid;
+
+		List<CircuitPoint> found = new ArrayList<CircuitPoint>();
+		for (CircuitPoint i : points) {
+			if (i.isIntermediate()) {
+				found.add(i);
+			}
+		}
+		intermediates = found.toArray(new CircuitPoint[0]);
+	}
+
+	/** {@inheritDoc} */
+	public String getCircuitName() {
+		return circuitName;
+	}
+
+	/** {@inheritDoc} */
+	public CircuitPoint getPoint(int index) {
+		if ((index < 0) || (index >= points.length)) {
+			index = 0;
+		}
+		return points[index];
+	}
+
+	/** {@inheritDoc} */
+	public int getNumPoints() {
+		return points.length;
+	}
+
+	/** {@inheritDoc} */
+	public CircuitPoint getIntermediate(int index) {
+		if ((index < 0) || (index >= intermediates.length)) {
+			return null;
+		}
+		return intermediates[index];
+	}
+
+	/**
+	 * Returns {@code null}, as simulated circuits have no cameras.
+	 */
+	public ImmutableVector3D getClosestCamera(ImmutableVector3D v) {
+		return null;
+	}
+
+	/** {@inheritDoc} */
+	public ImmutableVector3D getStartingGridPosition(int index) {
+		return startinggrid[index];
+	}
+
+	public int getNumStartingGridPositions() {
+		return startinggrid.length;
+	}
+
+	/**
+	 * Loads the circuit with the specified name. Only the circuit data is parsed
+	 * from the content file, no geometry is loaded.
+	 * @throws Exception if the circuit's content file could not be loaded.
+	 */
+	public static SimulatedCircuit load(String circuitName) throws Exception {
+
+		ResourceFile resource = new ResourceFile("circuits/" + circuitName + "/" +
+				circuitName + ".xml");
+		Document document = XMLUtils.parseXML(resource.getStream());
+		ContentLoader loader = new ContentLoader();
+
+		CircuitPoint[] points = loader.parseCircuitPoints(document).toArray(new CircuitPoint[0]);
+		Vector3D[] startinggrid = loader.parseCircuitStartGrid(document).toArray(new Vector3D[0]);
+
+		float f = CIRCUIT_SCALE;
+		for (CircuitPoint i : points) {
+			i.pointX *= f; i.pointY *= f; i.altX *= f; i.altY *= f;
+		}
+		for (Vector3D i : startinggrid) {
+			i.setVector(i.getX() * f, i.getY() * f, i.getZ() * f);
+		}
+
+		return new SimulatedCircuit(circuitName, points, startinggrid);
+	}
+}
@@ -0,0 +1,415 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// SimulationFarm
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.simulation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.dennisbijlsma.ferrari3d.util.Settings;
+
+/**
+ * Command line tool that distributes a large batch of race simulations over a
+ * number of worker processes on the local machine. The batch is split into
+ * {@code WorkUnit}s for every combination of circuit, car and AI level. Each
+ * worker is a separate JVM running {@code SimulationWorker}, which connects to
+ * the coordinator over a socket on the loopback interface.
+ * <p>
+ * Results are merged as soon as a unit has been completed. When a worker
+ * crashes or stops responding the unit it was working on is put back in the
+ * queue and a new worker is started in its place. Units that fail on every
+ * attempt are reported, but do not stop the rest of the batch. Running every
+ * worker in its own process isolates crashes in native code, and keeps the
+ * heap of each worker small.
+ * <p>
+ * Usage: {@code SimulationFarm [-races n] [-unit n] [-workers n] [-heap size]
+ * [-circuit name,...|all] [-car name,...|all] [-level easy|normal|hard|all]
+ * [-cars n] [-laps n] [-seed n] [-reference laptime]}
+ */
+public class SimulationFarm {
+
+	private int numWorkers;
+	private String maxHeap;
+
+	private BlockingQueue<WorkUnit> queue;
+	private CountDownLatch remaining;
+	private AtomicInteger activeWorkers;
+	private int completedUnits;
+	private int totalUnits;
+	private Map<String,RaceStatistics> results;
+	private List<WorkUnit> failedUnits;
+
+	private static final int MAX_ATTEMPTS = 3;
+	private static final int CONNECT_TIMEOUT = 60000;
+	private static final int ACCEPT_POLL_TIME = 1000;
+	private static final int UNIT_TIMEOUT = 3600000;
+	private static final long QUEUE_POLL_TIME = 100L;
+	private static final int DEFAULT_RACES = 1000;
+	private static final int DEFAULT_UNIT_SIZE = 100;
+	private static final int DEFAULT_LAPS = 3;
+	private static final String DEFAULT_HEAP = "256m";
+
+	/**
+	 * Creates a new {@code SimulationFarm} that will use the specified number of
+	 * worker processes.
+	 * @param maxHeap Maximum heap size for each worker, for example "256m".
+	 */
+	public SimulationFarm(int numWorkers, String maxHeap) {
+		this.numWorkers = numWorkers;
+		this.maxHeap = maxHeap;
+	}
+
+	/**
+	 * Simulates all units and returns the merged statistics. The returned map
+	 * contains an entry for every configuration key, in the order in which
+	 * the units were passed to this method.
+	 * @throws IOException if all workers have failed before the batch was
+	 *         completed.
+	 * @throws InterruptedException if interrupted while waiting for the workers.
+	 */
+	public Map<String,RaceStatistics> run(List<WorkUnit> units) throws IOException,
+			InterruptedException {
+
+		queue = new LinkedBlockingQueue<WorkUnit>(units);
+		remaining = new CountDownLatch(units.size());
+		activeWorkers = new AtomicInteger(numWorkers);
+		completedUnits = 0;
+		totalUnits = units.size();
+		results = new LinkedHashMap<String,RaceStatistics>();
+		failedUnits = Collections.synchronizedList(new ArrayList<WorkUnit>());
+
+		for (WorkUnit i : units) {
+			results.put(i.getConfigurationKey(), new RaceStatistics(i.getNumCars()));
+		}
+
+		List<WorkerSlot> slots = new ArrayList<WorkerSlot>();
+		for (int i = 0; i < numWorkers; i++) {
+			WorkerSlot slot = new WorkerSlot(i);
+			slot.start();
+			slots.add(slot);
+		}
+
+		while (!remaining.await(1L, TimeUnit.SECONDS)) {
+			if (activeWorkers.get() == 0) {
+				break;
+			}
+		}
+
+		for (WorkerSlot i : slots) {
+			i.join();
+		}
+
+		if (remaining.getCount() > 0) {
+			throw new IOException("All workers failed, " + remaining.getCount() +
+					" units were not simulated");
+		}
+
+		return results;
+	}
+
+	/**
+	 * Returns the units that could not be simulated during the last call to
+	 * {@link #run(List)}, because their worker failed on every attempt.
+	 */
+	public List<WorkUnit> getFailedUnits() {
+		return new ArrayList<WorkUnit>(failedUnits);
+	}
+
+	/**
+	 * Merges the statistics for a completed unit.
+	 */
+	private void completed(WorkUnit unit, RaceStatistics stats) {
+		synchronized (results) {
+			results.get(unit.getConfigurationKey()).merge(stats);
+			completedUnits++;
+			System.out.println(String.format("[%d/%d] %s", completedUnits, totalUnits, unit));
+		}
+		remaining.countDown();
+	}
+
+	/**
+	 * Puts a unit back in the queue after its worker has failed. When the unit
+	 * has already been attempted the maximum number of times it is given up.
+	 * @return True if the unit was given up.
+	 */
+	private boolean retry(WorkUnit unit) {
+		if (unit == null) {
+			return false;
+		}
+
+		if (unit.addAttempt() >= MAX_ATTEMPTS) {
+			System.out.println("Giving up on unit " + unit);
+			failedUnits.add(unit);
+			remaining.countDown();
+			return true;
+		} else {
+			queue.add(unit);
+			return false;
+		}
+	}
+
+	/**
+	 * Starts a new worker process that will connect to the specified port.
+	 */
+	private Process launchWorker(int port) throws IOException {
+
+		String java = System.getProperty("java.home") + File.separator + "bin" +
+				File.separator + "java";
+
+		List<String> command = new ArrayList<String>();
+		command.add(java);
+		command.add("-Xmx" + maxHeap);
+		command.add("-Djava.awt.headless=true");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(SimulationWorker.class.getName());
+		command.add(String.valueOf(port));
+
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+		return builder.start();
+	}
+
+	/**
+	 * Returns true if the process has exited.
+	 */
+	private static boolean hasExited(Process process) {
+		try {
+			process.exitValue();
+			return true;
+		} catch (IllegalThreadStateException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Thread that manages one worker process. Units are taken from the queue
+	 * and sent to the worker one at a time. When the worker fails the unit is
+	 * retried and a new worker is started, until the worker has failed a
+	 * number of times in a row. Failures caused by a unit that is given up
+	 * are blamed on the unit, not on the worker, so a single unit that cannot
+	 * be simulated does not stop the slot.
+	 */
+	private class WorkerSlot extends Thread {
+
+		private int index;
+		private Process process;
+		private WorkUnit current;
+		private int failures;
+
+		public WorkerSlot(int index) {
+			super("SimulationFarm-" + index);
+			this.index = index;
+			this.failures = 0;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while ((remaining.getCount() > 0) && (failures < MAX_ATTEMPTS)) {
+					try {
+						serve();
+					} catch (IOException e) {
+						failures++;
+						System.out.println("Worker " + index + " failed: " + e);
+						if (retry(current)) {
+							failures = 0;
+						}
+						current = null;
+					} finally {
+						if (process != null) {
+							process.destroy();
+							process = null;
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				retry(current);
+			} finally {
+				activeWorkers.decrementAndGet();
+			}
+		}
+
+		/**
+		 * Starts a worker and sends units to it until all units are done.
+		 */
+		private void serve() throws IOException, InterruptedException {
+
+			Socket socket = connect();
+			socket.setSoTimeout(UNIT_TIMEOUT);
+
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(
+						socket.getInputStream()));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+						socket.getOutputStream()));
+
+				while (remaining.getCount() > 0) {
+					current = queue.poll(QUEUE_POLL_TIME, TimeUnit.MILLISECONDS);
+					if (current == null) {
+						continue;
+					}
+
+					out.writeByte(SimulationWorker.COMMAND_UNIT);
+					current.write(out);
+					out.flush();
+
+					int id = in.readInt();
+					if (id != current.getId()) {
+						throw new IOException("Worker returned unit " + id + " instead of " +
+								current.getId());
+					}
+
+					completed(current, RaceStatistics.read(in));
+					current = null;
+					failures = 0;
+				}
+
+				out.writeByte(SimulationWorker.COMMAND_STOP);
+				out.flush();
+			} finally {
+				socket.close();
+			}
+		}
+
+		/**
+		 * Starts a new worker process and waits for it to connect.
+		 */
+		private Socket connect() throws IOException {
+
+			ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName(null));
+			server.setSoTimeout(ACCEPT_POLL_TIME);
+
+			try {
+				process = launchWorker(server.getLocalPort());
+				long start = System.currentTimeMillis();
+
+				while (true) {
+					try {
+						return server.accept();
+					} catch (SocketTimeoutException e) {
+						if (hasExited(process)) {
+							throw new IOException("Worker exited with code " + process.exitValue());
+						}
+						if (System.currentTimeMillis() - start > CONNECT_TIMEOUT) {
+							throw new IOException("Worker did not connect");
+						}
+					}
+				}
+			} finally {
+				server.close();
+			}
+		}
+	}
+
+	/**
+	 * Parses a comma separated list of names. The value "all" is replaced with
+	 * all available names.
+	 */
+	private static List<String> parseNames(String value, List<String> available) {
+		if (value.equals("all")) {
+			return available;
+		}
+		return Arrays.asList(value.split(","));
+	}
+
+	/**
+	 * Command line entry point.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		System.setProperty("java.awt.headless", "true");
+
+		Settings settings = Settings.getInstance();
+		settings.init();
+
+		int races = DEFAULT_RACES;
+		int unitSize = DEFAULT_UNIT_SIZE;
+		int workers = Runtime.getRuntime().availableProcessors();
+		String heap = DEFAULT_HEAP;
+		String circuitNames = settings.circuit;
+		String carNames = settings.car;
+		String level = "all";
+		int cars = Settings.MAX_CONTESTANTS;
+		int laps = DEFAULT_LAPS;
+		long seed = System.currentTimeMillis();
+		int reference = 0;
+
+		for (int i = 0; i < args.length - 1; i += 2) {
+			String value = args[i + 1];
+			if (args[i].equals("-races")) { races = Integer.parseInt(value); }
+			else if (args[i].equals("-unit")) { unitSize = Integer.parseInt(value); }
+			else if (args[i].equals("-workers")) { workers = Integer.parseInt(value); }
+			else if (args[i].equals("-heap")) { heap = value; }
+			else if (args[i].equals("-circuit")) { circuitNames = value; }
+			else if (args[i].equals("-car")) { carNames = value; }
+			else if (args[i].equals("-level")) { level = value; }
+			else if (args[i].equals("-cars")) { cars = Integer.parseInt(value); }
+			else if (args[i].equals("-laps")) { laps = Integer.parseInt(value); }
+			else if (args[i].equals("-seed")) { seed = Long.parseLong(value); }
+			else if (args[i].equals("-reference")) { reference = Integer.parseInt(value); }
+			else { throw new IllegalArgumentException("Unknown option: " + args[i]); }
+		}
+
+		// Create work units, every configuration uses the same seeds
+
+		List<WorkUnit> units = new ArrayList<WorkUnit>();
+		for (String circuitName : parseNames(circuitNames, settings.circuits)) {
+			int gridSize = SimulatedCircuit.load(circuitName).getNumStartingGridPositions();
+			for (String carName : parseNames(carNames, settings.cars)) {
+				for (int i = 0; i < MonteCarloSimulator.LEVELS.length; i++) {
+					if (!level.equals("all") && !level.equals(MonteCarloSimulator.LEVEL_NAMES[i])) {
+						continue;
+					}
+					for (int j = 0; j < races; j += unitSize) {
+						units.add(new WorkUnit(units.size(), circuitName, carName,
+								MonteCarloSimulator.LEVELS[i], Math.min(cars, gridSize), laps,
+								seed + j, Math.min(unitSize, races - j)));
+					}
+				}
+			}
+		}
+
+		System.out.println(String.format("%d units, %d races per configuration, seed %d, %d workers",
+				units.size(), races, seed, workers));
+
+		SimulationFarm farm = new SimulationFarm(workers, heap);
+		long start = System.currentTimeMillis();
+		Map<String,RaceStatistics> results = farm.run(units);
+		long elapsed = System.currentTimeMillis() - start;
+
+		System.out.println(String.format("Finished in %d ms", elapsed));
+		System.out.println();
+
+		for (Map.Entry<String,RaceStatistics> entry : results.entrySet()) {
+			MonteCarloSimulator.printReport(entry.getKey(), entry.getValue(), reference);
+		}
+
+		for (WorkUnit i : farm.getFailedUnits()) {
+			System.out.println("Not simulated: " + i);
+		}
+	}
+}
@@ -0,0 +1,24 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// SimulationListener
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.simulation;
+
+import com.dennisbijlsma.ferrari3d.Contestant;
+
+/**
+ * Implementations of this interface can be passed to a {@code RaceSimulation}
+ * to inspect the state of the race after every tick. The callback is invoked
+ * from the thread that runs the race.
+ */
+public interface SimulationListener {
+
+	/**
+	 * Invoked after all cars have been updated for a tick.
+	 * @param tick The number of the tick, starting at 0.
+	 * @param cars All cars in the race, in the order in which they were created.
+	 */
+	public void tickSimulated(int tick, Contestant[] cars);
+}
@@ -0,0 +1,108 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// SimulationWorker
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.simulation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.dennisbijlsma.ferrari3d.util.Settings;
+
+/**
+ * Worker process for the {@code SimulationFarm}. The worker connects to the
+ * coordinator on the local machine, and then repeatedly receives a
+ * {@code WorkUnit}, simulates its races and sends back the statistics. Loaded
+ * circuits and cars are cached for as long as the worker is running.
+ * <p>
+ * Usage: {@code SimulationWorker port}
+ */
+public class SimulationWorker {
+
+	private Map<String,SimulatedCircuit> circuits;
+	private Map<String,Map<String,String>> cars;
+
+	/** Sent by the coordinator, followed by a {@code WorkUnit}. */
+	static final int COMMAND_UNIT = 1;
+	/** Sent by the coordinator when the worker should exit. */
+	static final int COMMAND_STOP = 2;
+
+	public SimulationWorker() {
+		circuits = new HashMap<String,SimulatedCircuit>();
+		cars = new HashMap<String,Map<String,String>>();
+	}
+
+	/**
+	 * Simulates all races in a unit and returns the aggregated statistics.
+	 * @throws Exception if the circuit or car could not be loaded.
+	 */
+	public RaceStatistics simulate(WorkUnit unit) throws Exception {
+
+		if (!circuits.containsKey(unit.getCircuit())) {
+			circuits.put(unit.getCircuit(), SimulatedCircuit.load(unit.getCircuit()));
+		}
+
+		if (!cars.containsKey(unit.getCar())) {
+			cars.put(unit.getCar(), SimulatedCar.loadCarInfo(unit.getCar()));
+		}
+
+		RaceSimulation simulation = new RaceSimulation(circuits.get(unit.getCircuit()),
+				unit.getCar(), cars.get(unit.getCar()), unit.getNumCars(), unit.getLaps(),
+				unit.getAILevel());
+
+		RaceStatistics stats = new RaceStatistics(unit.getNumCars());
+		for (int i = 0; i < unit.getNumRaces(); i++) {
+			stats.add(simulation.run(unit.getFirstSeed() + i));
+		}
+		return stats;
+	}
+
+	/**
+	 * Receives and simulates units until the coordinator sends the stop
+	 * command, or until the connection is closed.
+	 * @throws Exception if the connection fails or a unit cannot be simulated.
+	 */
+	public void run(int port) throws Exception {
+
+		Socket socket = new Socket(InetAddress.getByName(null), port);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+		try {
+			while (in.readByte() == COMMAND_UNIT) {
+				WorkUnit unit = WorkUnit.read(in);
+				RaceStatistics stats = simulate(unit);
+				out.writeInt(unit.getId());
+				stats.write(out);
+				out.flush();
+			}
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Command line entry point.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		System.setProperty("java.awt.headless", "true");
+		Settings.getInstance().init();
+
+		try {
+			new SimulationWorker().run(Integer.parseInt(args[0]));
+		} catch (IOException e) {
+			// The coordinator has stopped or lost the connection
+			System.exit(1);
+		}
+	}
+}
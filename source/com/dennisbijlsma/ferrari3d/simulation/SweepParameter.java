@@ -0,0 +1,111 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// SweepParameter
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.simulation;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Range of values for one car info key, used by {@code SetupSweep}. The range
+ * includes both the minimum and the maximum value. Keys that are parsed as
+ * integers by the car physics can only be swept in whole steps.
+ */
+public class SweepParameter {
+
+	private String key;
+	private float[] values;
+	private boolean integer;
+
+	private static final Set<String> INTEGER_KEYS = new HashSet<String>(Arrays.asList(
+			"gears", "minRPM", "maxRPM", "neutralRPM", "gearRatio", "gearStart"));
+
+	/**
+	 * Creates a new {@code SweepParameter} from {@code min} to {@code max} with
+	 * the specified step size.
+	 * @throws IllegalArgumentException if the range or step size is invalid.
+	 */
+	public SweepParameter(String key, float min, float max, float step) {
+
+		if ((max < min) || (step <= 0f)) {
+			throw new IllegalArgumentException("Invalid range for " + key);
+		}
+
+		this.key = key;
+		this.integer = INTEGER_KEYS.contains(key);
+
+		if (integer && ((min != Math.round(min)) || (step != Math.round(step)))) {
+			throw new IllegalArgumentException(key + " can only have whole values");
+		}
+
+		// Steps are counted instead of accumulated to avoid rounding errors
+		int count = (int) Math.floor((max - min) / step + 0.0001f) + 1;
+		values = new float[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = min + i * step;
+		}
+	}
+
+	/**
+	 * Parses a parameter from a string in the format {@code key=min:max:step}.
+	 * A single value ({@code key=value}) is also allowed.
+	 * @throws IllegalArgumentException if the string is not in this format.
+	 */
+	public static SweepParameter parse(String str) {
+
+		int separator = str.indexOf('=');
+		if (separator <= 0) {
+			throw new IllegalArgumentException("Invalid parameter: " + str);
+		}
+
+		String key = str.substring(0, separator);
+		String[] range = str.substring(separator + 1).split(":");
+
+		try {
+			if (range.length == 1) {
+				float value = Float.parseFloat(range[0]);
+				return new SweepParameter(key, value, value, 1f);
+			} else if (range.length == 3) {
+				return new SweepParameter(key, Float.parseFloat(range[0]),
+						Float.parseFloat(range[1]), Float.parseFloat(range[2]));
+			}
+		} catch (NumberFormatException e) {
+			// Handled below
+		}
+
+		throw new IllegalArgumentException("Invalid parameter: " + str);
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public int getNumValues() {
+		return values.length;
+	}
+
+	public float getValue(int index) {
+		return values[index];
+	}
+
+	/**
+	 * Returns the value with the specified index in the format used for car
+	 * info. Integer keys are formatted without decimals.
+	 */
+	public String formatValue(int index) {
+		if (integer) {
+			return String.valueOf(Math.round(values[index]));
+		} else {
+			return String.valueOf(values[index]);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return key + "=" + values[0] + ":" + values[values.length - 1] + " (" + values.length + ")";
+	}
+}
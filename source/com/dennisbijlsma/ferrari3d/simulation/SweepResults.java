@@ -0,0 +1,196 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// SweepResults
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.simulation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import com.dennisbijlsma.ferrari3d.util.Laptime;
+
+/**
+ * Results of a {@code SetupSweep}. Every row contains the values of the swept
+ * parameters for one combination, and the lap time and sector times that were
+ * driven with it. Laps that were not completed have a time of
+ * {@code Laptime.TIME_NOT_SET}.
+ * <p>
+ * Data is stored by column, both in memory and in the results file. The file
+ * starts with a header containing the parameter keys and the number of rows,
+ * followed by one column of floats per parameter and four columns of ints for
+ * the lap time and the three sector times. Rows can be written from multiple
+ * threads at the same time, as long as every thread writes to different rows.
+ */
+public class SweepResults {
+
+	private String[] keys;
+	private float[][] parameters;
+	private int[][] times;
+
+	private static final int MAGIC = 0x46335357;
+	private static final int VERSION = 1;
+	private static final int LAPTIME = 0;
+	private static final int TIME_COLUMNS = 4;
+
+	/**
+	 * Creates a new {@code SweepResults} with the specified number of rows. All
+	 * rows are initially marked as not completed.
+	 */
+	public SweepResults(String[] keys, int rows) {
+
+		this.keys = keys.clone();
+
+		parameters = new float[keys.length][rows];
+		times = new int[TIME_COLUMNS][rows];
+		for (int i = 0; i < rows; i++) {
+			times[LAPTIME][i] = Laptime.TIME_NOT_SET;
+		}
+	}
+
+	/**
+	 * Stores the parameter values and lap time for a row.
+	 * @param laptime The driven lap, or {@code null} if no lap was completed.
+	 */
+	public void setRow(int row, float[] values, Laptime laptime) {
+
+		for (int i = 0; i < keys.length; i++) {
+			parameters[i][row] = values[i];
+		}
+
+		if (laptime != null) {
+			times[LAPTIME][row] = laptime.getTime();
+			for (int i = 0; i < 3; i++) {
+				times[i + 1][row] = laptime.getSectorTime(i);
+			}
+		}
+	}
+
+	public int getNumRows() {
+		return times[LAPTIME].length;
+	}
+
+	public int getNumParameters() {
+		return keys.length;
+	}
+
+	public String getParameterKey(int index) {
+		return keys[index];
+	}
+
+	public float getParameterValue(int index, int row) {
+		return parameters[index][row];
+	}
+
+	public int getLaptime(int row) {
+		return times[LAPTIME][row];
+	}
+
+	/**
+	 * Returns the time for the specified sector, or {@code Laptime.SECTOR_NOT_SET}
+	 * if the lap was not completed.
+	 * @param sector The sector index, between 0 and 2.
+	 */
+	public int getSectorTime(int row, int sector) {
+		return times[sector + 1][row];
+	}
+
+	public boolean isCompleted(int row) {
+		return times[LAPTIME][row] < Laptime.TIME_NOT_SET;
+	}
+
+	/**
+	 * Returns the row with the fastest lap time, or -1 if no row has a
+	 * completed lap.
+	 */
+	public int getFastestRow() {
+		int fastest = -1;
+		for (int i = 0; i < getNumRows(); i++) {
+			if (isCompleted(i) && ((fastest == -1) || (getLaptime(i) < getLaptime(fastest)))) {
+				fastest = i;
+			}
+		}
+		return fastest;
+	}
+
+	/**
+	 * Writes these results to a file.
+	 * @throws IOException if an error occurs while writing.
+	 */
+	public void write(File file) throws IOException {
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)));
+
+		try {
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeInt(getNumRows());
+			out.writeShort(keys.length);
+			for (String i : keys) {
+				out.writeUTF(i);
+			}
+
+			for (float[] column : parameters) {
+				for (float value : column) {
+					out.writeFloat(value);
+				}
+			}
+
+			for (int[] column : times) {
+				for (int value : column) {
+					out.writeInt(value);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads results from a file that was created by {@link #write(File)}.
+	 * @throws IOException if an error occurs while reading, or if the file is
+	 *         not a results file.
+	 */
+	public static SweepResults read(File file) throws IOException {
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+
+		try {
+			if ((in.readInt() != MAGIC) || (in.readShort() != VERSION)) {
+				throw new IOException("Not a sweep results file: " + file);
+			}
+
+			int rows = in.readInt();
+			String[] keys = new String[in.readShort()];
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = in.readUTF();
+			}
+
+			SweepResults results = new SweepResults(keys, rows);
+			for (float[] column : results.parameters) {
+				for (int i = 0; i < rows; i++) {
+					column[i] = in.readFloat();
+				}
+			}
+
+			for (int[] column : results.times) {
+				for (int i = 0; i < rows; i++) {
+					column[i] = in.readInt();
+				}
+			}
+
+			return results;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,122 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// WorkUnit
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.simulation;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A batch of races that is simulated by a single worker process. All races in
+ * a unit use the same circuit, car and AI level, and use consecutive seeds
+ * starting from {@code firstSeed}. Units are sent to workers using
+ * {@link #write(DataOutput)}.
+ */
+public class WorkUnit {
+
+	private int id;
+	private String circuit;
+	private String car;
+	private int aiLevel;
+	private int numCars;
+	private int laps;
+	private long firstSeed;
+	private int races;
+	private int attempts;
+
+	public WorkUnit(int id, String circuit, String car, int aiLevel, int numCars, int laps,
+			long firstSeed, int races) {
+		this.id = id;
+		this.circuit = circuit;
+		this.car = car;
+		this.aiLevel = aiLevel;
+		this.numCars = numCars;
+		this.laps = laps;
+		this.firstSeed = firstSeed;
+		this.races = races;
+		this.attempts = 0;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getCircuit() {
+		return circuit;
+	}
+
+	public String getCar() {
+		return car;
+	}
+
+	public int getAILevel() {
+		return aiLevel;
+	}
+
+	public int getNumCars() {
+		return numCars;
+	}
+
+	public int getLaps() {
+		return laps;
+	}
+
+	public long getFirstSeed() {
+		return firstSeed;
+	}
+
+	public int getNumRaces() {
+		return races;
+	}
+
+	/**
+	 * Returns a key that is the same for all units with the same circuit, car
+	 * and AI level. The results of these units can be merged.
+	 */
+	public String getConfigurationKey() {
+		return circuit + " / " + car + " / AI level " + aiLevel;
+	}
+
+	/**
+	 * Registers that an attempt has been made to simulate this unit.
+	 * @return The number of attempts so far, including this one.
+	 */
+	public int addAttempt() {
+		attempts++;
+		return attempts;
+	}
+
+	/**
+	 * Writes this unit to a stream. The number of attempts is not included.
+	 * @throws IOException if an error occurs while writing.
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(id);
+		out.writeUTF(circuit);
+		out.writeUTF(car);
+		out.writeInt(aiLevel);
+		out.writeInt(numCars);
+		out.writeInt(laps);
+		out.writeLong(firstSeed);
+		out.writeInt(races);
+	}
+
+	/**
+	 * Reads a unit from a stream that was created by {@link #write(DataOutput)}.
+	 * @throws IOException if an error occurs while reading.
+	 */
+	public static WorkUnit read(DataInput in) throws IOException {
+		return new WorkUnit(in.readInt(), in.readUTF(), in.readUTF(), in.readInt(), in.readInt(),
+				in.readInt(), in.readLong(), in.readInt());
+	}
+
+	@Override
+	public String toString() {
+		return "#" + id + " " + getConfigurationKey() + ", seeds " + firstSeed + "-" +
+				(firstSeed + races - 1);
+	}
+}
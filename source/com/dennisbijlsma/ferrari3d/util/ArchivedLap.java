@@ -0,0 +1,73 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// ArchivedLap
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.util;
+
+/**
+ * A lap that has been stored in the {@link SessionArchive}, along with the
+ * session in which it was driven.
+ */
+public final class ArchivedLap {
+
+	private int session;
+	private String circuit;
+	private String car;
+	private String driver;
+	private long date;
+	private int lap;
+	private Laptime laptime;
+
+	public ArchivedLap(int session, String circuit, String car, String driver, long date, int lap,
+			Laptime laptime) {
+		this.session = session;
+		this.circuit = circuit;
+		this.car = car;
+		this.driver = driver;
+		this.date = date;
+		this.lap = lap;
+		this.laptime = laptime;
+	}
+
+	/**
+	 * Returns the number of the session in the archive.
+	 */
+	public int getSession() {
+		return session;
+	}
+
+	public String getCircuit() {
+		return circuit;
+	}
+
+	public String getCar() {
+		return car;
+	}
+
+	public String getDriver() {
+		return driver;
+	}
+
+	/**
+	 * Returns the date on which the session was completed, in milliseconds
+	 * since the epoch.
+	 */
+	public long getDate() {
+		return date;
+	}
+
+	public int getLap() {
+		return lap;
+	}
+
+	public Laptime getLaptime() {
+		return laptime;
+	}
+
+	@Override
+	public String toString() {
+		return driver + " / " + car + " / " + circuit + " / lap " + lap + ": " + laptime;
+	}
+}
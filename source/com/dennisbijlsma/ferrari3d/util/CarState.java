@@ -0,0 +1,45 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// CarState
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.util;
+
+/**
+ * The state of a car as it is sent to the other multiplayer peers. Instances
+ * are reused for every message, so all fields are public and mutable.
+ */
+public class CarState {
+
+	public int id;
+	public float x;
+	public float y;
+	public float z;
+	public float orientation;
+	public float direction;
+	public float speed;
+	public float angularSpeed;
+	public int lap;
+	public int intermediate;
+	public int point;
+	public int laptime;
+
+	/**
+	 * Copies all fields from another state.
+	 */
+	public void set(CarState other) {
+		id = other.id;
+		x = other.x;
+		y = other.y;
+		z = other.z;
+		orientation = other.orientation;
+		direction = other.direction;
+		speed = other.speed;
+		angularSpeed = other.angularSpeed;
+		lap = other.lap;
+		intermediate = other.intermediate;
+		point = other.point;
+		laptime = other.laptime;
+	}
+}
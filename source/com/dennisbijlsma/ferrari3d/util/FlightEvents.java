@@ -0,0 +1,159 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// FlightEvents
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events emitted by the game. They allow hitches and
+ * garbage collection pauses to be matched to what happened in the game, in
+ * JDK Mission Control.
+ * <p>
+ * All events are disabled by default. When an event is disabled, creating and
+ * committing it is optimized away by the JIT compiler, so they can be left in
+ * place in release builds. They can be enabled with the settings file
+ * {@code data/ferrari3d.jfc}, which can be combined with the default settings:
+ * <pre>
+ * -XX:StartFlightRecording:settings=default,settings=data/ferrari3d.jfc
+ * </pre>
+ * Fields that are expensive to calculate should only be set when
+ * {@code shouldCommit()} returns true.
+ */
+public final class FlightEvents {
+
+	private FlightEvents() {
+	}
+
+	/**
+	 * One update of the game loop.
+	 */
+	@Name("ferrari3d.Tick")
+	@Label("Game Tick")
+	@Category({ "Ferrari3D", "Game" })
+	@Enabled(false)
+	@StackTrace(false)
+	public static final class TickEvent extends Event {
+
+		@Label("Contestants")
+		public int contestants;
+
+		@Label("Delta Time")
+		@Description("Delta time passed to the game loop, in seconds")
+		public float dt;
+	}
+
+	/**
+	 * Loading a car or circuit, including the creation of its scene graph.
+	 */
+	@Name("ferrari3d.Load")
+	@Label("Load Car or Circuit")
+	@Category({ "Ferrari3D", "Loading" })
+	@Enabled(false)
+	@StackTrace(false)
+	public static final class LoadEvent extends Event {
+
+		@Label("Type")
+		public String type;
+
+		@Label("Name")
+		public String name;
+	}
+
+	/**
+	 * Loading a content file. The parse time is the time spent reading and
+	 * parsing the XML, the build time is the time spent creating the models.
+	 */
+	@Name("ferrari3d.ContentLoad")
+	@Label("Load Content File")
+	@Category({ "Ferrari3D", "Loading" })
+	@Enabled(false)
+	@StackTrace(false)
+	public static final class ContentLoadEvent extends Event {
+
+		@Label("Resource")
+		public String resource;
+
+		@Label("Bytes")
+		@Description("Size of the XML file, or 0 when it was cached")
+		@DataAmount
+		public long bytes;
+
+		@Label("Parse Time")
+		@Timespan(Timespan.NANOSECONDS)
+		public long parseTime;
+
+		@Label("Build Time")
+		@Timespan(Timespan.NANOSECONDS)
+		public long buildTime;
+	}
+
+	/**
+	 * A multiplayer message that was sent or received. For received messages
+	 * the queue latency is the time between receiving the message and passing
+	 * it to the listeners during the game loop.
+	 */
+	@Name("ferrari3d.Message")
+	@Label("Multiplayer Message")
+	@Category({ "Ferrari3D", "Multiplayer" })
+	@Enabled(false)
+	@StackTrace(false)
+	public static final class MessageEvent extends Event {
+
+		@Label("Type")
+		public String type;
+
+		@Label("Sent")
+		public boolean sent;
+
+		@Label("Size")
+		@Description("Size of the encoded snapshot payload, 0 for other message types")
+		@DataAmount
+		public int size;
+
+		@Label("Queue Latency")
+		@Timespan(Timespan.NANOSECONDS)
+		public long queueLatency;
+	}
+
+	/**
+	 * A sector completed by a contestant. When the last sector of a lap is
+	 * completed the lap time is also set.
+	 */
+	@Name("ferrari3d.Sector")
+	@Label("Sector Completed")
+	@Category({ "Ferrari3D", "Race" })
+	@Enabled(false)
+	@StackTrace(false)
+	public static final class SectorEvent extends Event {
+
+		@Label("Contestant")
+		public String contestant;
+
+		@Label("Lap")
+		public int lap;
+
+		@Label("Sector")
+		public int sector;
+
+		@Label("Sector Time")
+		@Timespan(Timespan.MILLISECONDS)
+		public long sectorTime;
+
+		@Label("Lap Time")
+		@Description("Time of the completed lap, or 0 when the lap is not completed")
+		@Timespan(Timespan.MILLISECONDS)
+		public long laptime;
+	}
+}
@@ -0,0 +1,349 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// JitterBuffer
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.util;
+
+/**
+ * Buffers the states received for a remote car, and plays them back with a
+ * small delay so that the car moves smoothly even though states arrive at
+ * irregular intervals. The delay adapts to the interval between states and to
+ * the variation in network latency (jitter).
+ * <p>
+ * Every state is stored with the time at which the sender created it. The
+ * offset between the sender's clock and the local clock is estimated from the
+ * states that arrive with the lowest latency. The state at a certain local time
+ * is then obtained by looking up the sender time minus the playout delay:
+ * <ul>
+ *   <li>Between two states the position is interpolated with a cubic Hermite
+ *       spline, using velocities estimated from the neighbouring states.</li>
+ *   <li>After the most recent state the position is extrapolated using the
+ *       last known velocity, for at most {@code MAX_EXTRAPOLATION} seconds.</li>
+ * </ul>
+ * When a new state changes the position that was being shown, for example
+ * because the extrapolation was wrong, the difference is not applied at once
+ * but blended out over a short time. Only very large differences are applied
+ * immediately.
+ * <p>
+ * All states are preallocated, adding and sampling states does not create any
+ * objects.
+ */
+public class JitterBuffer {
+
+	private CarState[] states;
+	private float[] times;
+	private int start;
+	private int size;
+
+	private boolean hasClock;
+	private float clockOffset;
+	private float jitter;
+	private float interval;
+	private float targetDelay;
+	private float playoutDelay;
+
+	private boolean hasOutput;
+	private float lastSampleTime;
+	private float lastRenderTime;
+	private CarState output;
+	private CarState raw;
+	private float correctionX;
+	private float correctionY;
+	private float correctionZ;
+	private float correctionOrientation;
+	private float correctionDirection;
+
+	private static final int DEFAULT_CAPACITY = 16;
+	private static final float SMOOTHING = 0.1f;
+	private static final float CLOCK_DRIFT = 0.01f;
+	private static final float JITTER_FACTOR = 2f;
+	private static final float MIN_DELAY = 0.02f;
+	private static final float DELAY_ADJUST_RATE = 0.1f;
+	private static final float MAX_EXTRAPOLATION = 0.5f;
+	private static final float CORRECTION_TIME = 0.15f;
+	private static final float SNAP_DISTANCE = 25f;
+	private static final float PI = (float) Math.PI;
+
+	public JitterBuffer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a buffer that can hold the specified number of states. When the
+	 * buffer is full, adding a state removes the oldest state.
+	 */
+	public JitterBuffer(int capacity) {
+		states = new CarState[capacity];
+		for (int i = 0; i < capacity; i++) {
+			states[i] = new CarState();
+		}
+		times = new float[capacity];
+		output = new CarState();
+		raw = new CarState();
+		clear();
+	}
+
+	/**
+	 * Removes all states from the buffer, and resets the estimates for the
+	 * clock offset and jitter.
+	 */
+	public void clear() {
+		start = 0;
+		size = 0;
+		hasClock = false;
+		clockOffset = 0f;
+		jitter = 0f;
+		interval = 0f;
+		targetDelay = MIN_DELAY;
+		playoutDelay = MIN_DELAY;
+		hasOutput = false;
+		resetCorrection();
+	}
+
+	/**
+	 * Adds a state to the buffer. States that are not newer than the most
+	 * recent state in the buffer are ignored.
+	 * @param senderTime The time at which the state was created, in seconds,
+	 *        according to the sender's clock.
+	 * @param localTime The time at which the state was received, in seconds,
+	 *        according to the local clock.
+	 */
+	public void add(CarState state, float senderTime, float localTime) {
+
+		if ((size > 0) && (senderTime <= getTime(size - 1))) {
+			return;
+		}
+
+		updateClock(senderTime, localTime);
+
+		if (size == states.length) {
+			start = (start + 1) % states.length;
+			size--;
+		}
+		int index = (start + size) % states.length;
+		states[index].set(state);
+		times[index] = senderTime;
+		size++;
+
+		// The difference between what was shown and what should have been
+		// shown according to the new state is blended out
+		if (hasOutput) {
+			interpolate(lastRenderTime, raw);
+			correctionX = output.x - raw.x;
+			correctionY = output.y - raw.y;
+			correctionZ = output.z - raw.z;
+			correctionOrientation = angleDifference(output.orientation, raw.orientation);
+			correctionDirection = angleDifference(output.direction, raw.direction);
+			if (correctionX * correctionX + correctionZ * correctionZ > SNAP_DISTANCE * SNAP_DISTANCE) {
+				resetCorrection();
+			}
+		}
+	}
+
+	/**
+	 * Updates the estimates for the clock offset, the jitter, and the interval
+	 * between states.
+	 */
+	private void updateClock(float senderTime, float localTime) {
+
+		float offset = senderTime - localTime;
+
+		if (!hasClock) {
+			clockOffset = offset;
+			hasClock = true;
+		} else if (offset > clockOffset) {
+			clockOffset = offset;
+		} else {
+			clockOffset += (offset - clockOffset) * CLOCK_DRIFT;
+		}
+
+		jitter += ((clockOffset - offset) - jitter) * SMOOTHING;
+
+		// The delay is adjusted gradually, except when the interval is not yet
+		// known because fewer than two states were received
+		boolean knownInterval = (interval > 0f);
+		if (size > 0) {
+			float gap = senderTime - getTime(size - 1);
+			interval = knownInterval ? interval + (gap - interval) * SMOOTHING : gap;
+		}
+
+		targetDelay = Math.max(MIN_DELAY, interval + JITTER_FACTOR * jitter);
+		if (!hasOutput || !knownInterval) {
+			playoutDelay = targetDelay;
+		}
+	}
+
+	/**
+	 * Obtains the state that should be shown at the specified local time.
+	 * @return False if no states have been added yet, true otherwise.
+	 */
+	public boolean sample(float localTime, CarState dest) {
+
+		if (size == 0) {
+			return false;
+		}
+
+		float dt = hasOutput ? Math.max(localTime - lastSampleTime, 0f) : 0f;
+		float maxAdjust = DELAY_ADJUST_RATE * dt;
+		playoutDelay += Math.max(-maxAdjust, Math.min(targetDelay - playoutDelay, maxAdjust));
+
+		float renderTime = localTime + clockOffset - playoutDelay;
+		interpolate(renderTime, dest);
+
+		float decay = (float) Math.exp(-dt / CORRECTION_TIME);
+		correctionX *= decay;
+		correctionY *= decay;
+		correctionZ *= decay;
+		correctionOrientation *= decay;
+		correctionDirection *= decay;
+
+		dest.x += correctionX;
+		dest.y += correctionY;
+		dest.z += correctionZ;
+		dest.orientation += correctionOrientation;
+		dest.direction += correctionDirection;
+
+		output.set(dest);
+		hasOutput = true;
+		lastSampleTime = localTime;
+		lastRenderTime = renderTime;
+		return true;
+	}
+
+	/**
+	 * Calculates the state at the specified time, according to the sender's
+	 * clock, without any error correction.
+	 */
+	private void interpolate(float time, CarState dest) {
+
+		int newest = size - 1;
+
+		if ((size == 1) || (time <= getTime(0))) {
+			dest.set(getState((time <= getTime(0)) ? 0 : newest));
+			return;
+		}
+
+		if (time >= getTime(newest)) {
+			extrapolate(time, dest);
+			return;
+		}
+
+		int i = 0;
+		while (getTime(i + 1) < time) {
+			i++;
+		}
+
+		CarState a = getState(i);
+		CarState b = getState(i + 1);
+		float h = getTime(i + 1) - getTime(i);
+		float s = (time - getTime(i)) / h;
+
+		float s2 = s * s;
+		float s3 = s2 * s;
+		float h00 = 2f * s3 - 3f * s2 + 1f;
+		float h10 = s3 - 2f * s2 + s;
+		float h01 = -2f * s3 + 3f * s2;
+		float h11 = s3 - s2;
+
+		dest.set(a);
+		dest.x = h00 * a.x + h10 * h * getVelocityX(i) + h01 * b.x + h11 * h * getVelocityX(i + 1);
+		dest.y = h00 * a.y + h10 * h * getVelocityY(i) + h01 * b.y + h11 * h * getVelocityY(i + 1);
+		dest.z = h00 * a.z + h10 * h * getVelocityZ(i) + h01 * b.z + h11 * h * getVelocityZ(i + 1);
+		dest.orientation = a.orientation + angleDifference(b.orientation, a.orientation) * s;
+		dest.direction = a.direction + angleDifference(b.direction, a.direction) * s;
+		dest.speed = a.speed + (b.speed - a.speed) * s;
+		dest.angularSpeed = a.angularSpeed + (b.angularSpeed - a.angularSpeed) * s;
+	}
+
+	/**
+	 * Calculates the state after the most recent state, by moving the car with
+	 * its last known velocity.
+	 */
+	private void extrapolate(float time, CarState dest) {
+
+		int newest = size - 1;
+		CarState last = getState(newest);
+		CarState previous = getState(newest - 1);
+		float h = getTime(newest) - getTime(newest - 1);
+		float t = Math.min(time - getTime(newest), MAX_EXTRAPOLATION);
+
+		dest.set(last);
+		dest.x += (last.x - previous.x) / h * t;
+		dest.y += (last.y - previous.y) / h * t;
+		dest.z += (last.z - previous.z) / h * t;
+		dest.orientation += angleDifference(last.orientation, previous.orientation) / h * t;
+		dest.direction += angleDifference(last.direction, previous.direction) / h * t;
+	}
+
+	/**
+	 * Returns the velocity at a state, estimated from the neighbouring states.
+	 */
+	private float getVelocityX(int i) {
+		int a = Math.max(i - 1, 0);
+		int b = Math.min(i + 1, size - 1);
+		return (getState(b).x - getState(a).x) / (getTime(b) - getTime(a));
+	}
+
+	private float getVelocityY(int i) {
+		int a = Math.max(i - 1, 0);
+		int b = Math.min(i + 1, size - 1);
+		return (getState(b).y - getState(a).y) / (getTime(b) - getTime(a));
+	}
+
+	private float getVelocityZ(int i) {
+		int a = Math.max(i - 1, 0);
+		int b = Math.min(i + 1, size - 1);
+		return (getState(b).z - getState(a).z) / (getTime(b) - getTime(a));
+	}
+
+	/**
+	 * Returns the difference between two angles, in the range -PI to PI.
+	 */
+	private static float angleDifference(float a, float b) {
+		float difference = (a - b) % (2f * PI);
+		if (difference > PI) {
+			difference -= 2f * PI;
+		} else if (difference < -PI) {
+			difference += 2f * PI;
+		}
+		return difference;
+	}
+
+	private void resetCorrection() {
+		correctionX = 0f;
+		correctionY = 0f;
+		correctionZ = 0f;
+		correctionOrientation = 0f;
+		correctionDirection = 0f;
+	}
+
+	private CarState getState(int i) {
+		return states[(start + i) % states.length];
+	}
+
+	private float getTime(int i) {
+		return times[(start + i) % states.length];
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the current playout delay, in seconds. This is the time between
+	 * the sender creating a state and the state being shown, excluding the
+	 * lowest observed network latency.
+	 */
+	public float getPlayoutDelay() {
+		return playoutDelay;
+	}
+
+	/**
+	 * Returns the estimated jitter, in seconds.
+	 */
+	public float getJitter() {
+		return jitter;
+	}
+}
@@ -0,0 +1,231 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// LapTrace
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The recorded state of a car during a single lap, used to race against a
+ * ghost. Frames are sampled at a fixed interval of lap time, so the state at
+ * any point in the lap can be found directly from the lap time without
+ * searching.
+ * <p>
+ * Traces are stored in a small file with a header, followed by the chunks of a
+ * {@link ReplayTrack}. The chunks are memory-mapped when the trace is opened,
+ * and only the chunk around the requested lap time is decoded. Since the ghost
+ * is always read in order every frame is only decoded once.
+ * <p>
+ * Instances of this class are not thread safe.
+ */
+public class LapTrace {
+
+	private String circuit;
+	private String car;
+	private String driver;
+	private int laptime;
+	private float frameRate;
+	private int framesPerChunk;
+	private int numFrames;
+	private int[] offsets;
+	private int[] lengths;
+	private MappedByteBuffer buffer;
+
+	private byte[] chunk;
+	private int loadedChunk;
+	private ReplayTrack.Cursor cursor;
+	private float[] frameA;
+	private float[] frameB;
+	private int cachedFrame;
+
+	private static final int MAGIC = 0x4633474C;
+	private static final int VERSION = 1;
+	public static final float FRAME_RATE = 25f;
+
+	/**
+	 * Opens a lap trace file.
+	 * @throws IOException if the file cannot be read or is not a valid trace.
+	 */
+	public LapTrace(File file) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			if ((raf.readInt() != MAGIC) || (raf.readInt() != VERSION)) {
+				throw new IOException("Not a lap trace: " + file);
+			}
+
+			circuit = raf.readUTF();
+			car = raf.readUTF();
+			driver = raf.readUTF();
+			laptime = raf.readInt();
+			frameRate = raf.readFloat();
+			framesPerChunk = raf.readInt();
+			numFrames = raf.readInt();
+
+			int numChunks = raf.readInt();
+			offsets = new int[numChunks];
+			lengths = new int[numChunks];
+			int offset = 0;
+			for (int i = 0; i < numChunks; i++) {
+				offsets[i] = offset;
+				lengths[i] = raf.readInt();
+				offset += lengths[i];
+			}
+
+			long dataOffset = raf.getFilePointer();
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, dataOffset,
+					raf.length() - dataOffset);
+		} finally {
+			// The mapping remains valid after the file has been closed
+			raf.close();
+		}
+
+		chunk = new byte[0];
+		loadedChunk = -1;
+		cursor = new ReplayTrack.Cursor(framesPerChunk);
+		frameA = new float[ReplayTrack.NUM_FIELDS];
+		frameB = new float[ReplayTrack.NUM_FIELDS];
+		cachedFrame = -1;
+	}
+
+	/**
+	 * Stores the interpolated state of the car at the specified lap time in
+	 * {@code dest}, in the order defined by the constants in {@link ReplayTrack}.
+	 * @param time The lap time in milliseconds.
+	 * @return False if the time is beyond the end of the lap, in which case
+	 *         {@code dest} contains the last frame.
+	 */
+	public boolean getState(int time, float[] dest) {
+
+		float framePosition = Math.max(0f, time / 1000f * frameRate);
+		int frame = (int) framePosition;
+
+		if (frame >= numFrames - 1) {
+			getFrame(numFrames - 1, dest);
+			cachedFrame = -1;
+			return false;
+		}
+
+		// Frames are usually requested in order, so the next frame from the
+		// previous call can be reused instead of decoded again
+		if (frame != cachedFrame) {
+			if (frame == cachedFrame + 1) {
+				float[] temp = frameA;
+				frameA = frameB;
+				frameB = temp;
+			} else {
+				getFrame(frame, frameA);
+			}
+			getFrame(frame + 1, frameB);
+			cachedFrame = frame;
+		}
+
+		ReplayTrack.interpolate(frameA, 0, frameB, 0, framePosition - frame, dest);
+		return true;
+	}
+
+	private void getFrame(int frame, float[] dest) {
+
+		int chunkIndex = frame / framesPerChunk;
+		if (chunkIndex != loadedChunk) {
+			if (chunk.length < lengths[chunkIndex]) {
+				chunk = new byte[lengths[chunkIndex]];
+			}
+			buffer.position(offsets[chunkIndex]);
+			buffer.get(chunk, 0, lengths[chunkIndex]);
+			loadedChunk = chunkIndex;
+			cursor.reset();
+		}
+
+		cursor.read(chunk, frame, dest);
+	}
+
+	public String getCircuit() {
+		return circuit;
+	}
+
+	public String getCar() {
+		return car;
+	}
+
+	public String getDriver() {
+		return driver;
+	}
+
+	/**
+	 * Returns the lap time of this trace, in milliseconds.
+	 */
+	public int getLaptime() {
+		return laptime;
+	}
+
+	public int getNumFrames() {
+		return numFrames;
+	}
+
+	/**
+	 * Writes a lap trace file. The track must have been recorded at
+	 * {@code FRAME_RATE}, starting at the beginning of the lap. The file is
+	 * first written under a temporary name, so that an existing trace is only
+	 * replaced once the new one is complete.
+	 * @throws IOException if an error occurs while writing.
+	 */
+	public static void write(File file, String circuit, String car, String driver, int laptime,
+			ReplayTrack track) throws IOException {
+
+		File tempFile = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tempFile)));
+
+		byte[] openChunk = track.getOpenChunk();
+		int numChunks = track.getNumChunks() + ((openChunk.length > 0) ? 1 : 0);
+
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(circuit);
+			out.writeUTF(car);
+			out.writeUTF(driver);
+			out.writeInt(laptime);
+			out.writeFloat(FRAME_RATE);
+			out.writeInt(track.getFramesPerChunk());
+			out.writeInt(track.getNumFrames());
+			out.writeInt(numChunks);
+			for (int i = 0; i < track.getNumChunks(); i++) {
+				out.writeInt(track.getChunk(i).length);
+			}
+			if (openChunk.length > 0) {
+				out.writeInt(openChunk.length);
+			}
+
+			for (int i = 0; i < track.getNumChunks(); i++) {
+				out.write(track.getChunk(i));
+			}
+			out.write(openChunk);
+		} finally {
+			out.close();
+		}
+
+		if ((file.exists() && !file.delete()) || !tempFile.renameTo(file)) {
+			throw new IOException("Could not replace lap trace " + file);
+		}
+	}
+
+	/**
+	 * Returns the file in which the trace for a circuit and car is stored.
+	 */
+	public static File getFile(File dir, String circuit, String car) {
+		return new File(dir, (circuit + "-" + car).replaceAll("[^A-Za-z0-9]+", "_") + ".f3g");
+	}
+}
@@ -0,0 +1,141 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// LatencyHistogram
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds. The histogram has a fixed number of
+ * buckets: every power of two is divided into 16 buckets of equal size, so the
+ * error of a percentile is at most 1/16th of its value. Durations can be
+ * recorded by one thread while another thread reads the percentiles, without
+ * any locking. Percentiles that are read while durations are being recorded
+ * are approximate.
+ */
+public class LatencyHistogram {
+
+	private AtomicLongArray counts;
+	private AtomicLong total;
+	private AtomicLong max;
+	private long[] snapshot;
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 40;
+	private static final int NUM_BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(NUM_BUCKETS);
+		total = new AtomicLong(0L);
+		max = new AtomicLong(0L);
+		snapshot = new long[NUM_BUCKETS];
+	}
+
+	/**
+	 * Records a duration. Durations longer than about 18 minutes are recorded
+	 * in the last bucket.
+	 */
+	public void record(long nanos) {
+
+		if (nanos < 0L) {
+			nanos = 0L;
+		}
+
+		counts.incrementAndGet(getBucket(nanos));
+		total.addAndGet(nanos);
+
+		long currentMax = max.get();
+		while ((nanos > currentMax) && !max.compareAndSet(currentMax, nanos)) {
+			currentMax = max.get();
+		}
+	}
+
+	private static int getBucket(long nanos) {
+
+		if (nanos < SUB_BUCKETS) {
+			return (int) nanos;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		if (exponent > MAX_EXPONENT) {
+			return NUM_BUCKETS - 1;
+		}
+
+		int shift = exponent - SUB_BUCKET_BITS;
+		int subBucket = (int) (nanos >>> shift) & (SUB_BUCKETS - 1);
+		return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Returns the largest duration that is recorded in a bucket.
+	 */
+	private static long getBucketLimit(int bucket) {
+
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+
+		int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+		int subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1L;
+	}
+
+	/**
+	 * Returns the duration below which the specified percentage of durations
+	 * fall. The returned value is never larger than the longest duration.
+	 * Readers share a scratch array, so that reading percentiles does not
+	 * allocate, which means they are synchronized with each other. Recording
+	 * is never blocked by readers.
+	 * @param percentile The percentage, 0 - 100.
+	 */
+	public synchronized long getPercentile(double percentile) {
+
+		long count = 0L;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+
+		if (count == 0L) {
+			return 0L;
+		}
+
+		long rank = Math.max((long) Math.ceil(count * percentile / 100.0), 1L);
+		long seen = 0L;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(getBucketLimit(i), getMax());
+			}
+		}
+
+		return getMax();
+	}
+
+	/**
+	 * Returns the number of recorded durations.
+	 */
+	public long getCount() {
+		long count = 0L;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the sum of all recorded durations, in nanoseconds.
+	 */
+	public long getTotal() {
+		return total.get();
+	}
+}
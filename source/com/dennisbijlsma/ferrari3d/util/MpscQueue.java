@@ -0,0 +1,94 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// MpscQueue
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.util;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free queue for passing objects from any number of producer threads to
+ * a single consumer thread. Adding an element is a single atomic exchange of
+ * the tail of the queue, so producers never wait for each other or for the
+ * consumer. Only one thread may remove elements.
+ * <p>
+ * An element becomes visible to the consumer shortly after the exchange, when
+ * the producer has linked it to the previous element. Elements are always
+ * removed in the order in which they were added.
+ */
+public class MpscQueue<E> {
+
+	private AtomicReference<Node<E>> tail;
+	private Node<E> head;
+	private LongAdder added;
+	private volatile long removed;
+
+	public MpscQueue() {
+		Node<E> stub = new Node<E>(null);
+		head = stub;
+		tail = new AtomicReference<Node<E>>(stub);
+		added = new LongAdder();
+		removed = 0L;
+	}
+
+	/**
+	 * Adds an element to the end of the queue. This method can be called from
+	 * any thread.
+	 * @throws NullPointerException if the element is {@code null}.
+	 */
+	public void add(E element) {
+
+		if (element == null) {
+			throw new NullPointerException();
+		}
+
+		Node<E> node = new Node<E>(element);
+		Node<E> previous = tail.getAndSet(node);
+		previous.next = node;
+		added.increment();
+	}
+
+	/**
+	 * Removes the first element from the queue. This method should only be
+	 * called from the consumer thread.
+	 * @return The removed element, or {@code null} if the queue is empty.
+	 */
+	public E poll() {
+
+		Node<E> next = head.next;
+		if (next == null) {
+			return null;
+		}
+
+		E element = next.element;
+		next.element = null;
+		head = next;
+		removed++;
+		return element;
+	}
+
+	/**
+	 * Returns the number of elements in the queue. While elements are being
+	 * added or removed the returned value is an estimate.
+	 */
+	public int size() {
+		return (int) Math.max(added.sum() - removed, 0L);
+	}
+
+	/**
+	 * Element in the linked list that forms the queue. The head of the queue is
+	 * a node whose element has already been removed.
+	 */
+	private static class Node<E> {
+
+		private E element;
+		private volatile Node<E> next;
+
+		public Node(E element) {
+			this.element = element;
+		}
+	}
+}
@@ -0,0 +1,239 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// PeerLink
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.util;
+
+/**
+ * Measurements of the connection with one multiplayer peer, and the rate at
+ * which snapshots should be sent to that peer. The connection is measured with
+ * ping messages, which the peer answers with a pong message. The pong message
+ * also reports how many of our snapshots the peer has received since the last
+ * ping, and at what rate.
+ * <p>
+ * The send rate is adapted in the same way as TCP adapts its window: it is
+ * increased gradually while the connection is fine, and decreased sharply
+ * when the connection becomes congested. The connection is considered
+ * congested when snapshots are lost, or when the round-trip time grows well
+ * beyond the lowest round-trip time seen, which means that messages are
+ * waiting in a queue somewhere. During a close battle with the peer's car the
+ * rate is raised to the maximum, unless the connection is congested.
+ * <p>
+ * The receiving side of the measurements is also tracked here: the ticks of
+ * the snapshots received from the peer, which are used to report loss back to
+ * the peer.
+ */
+public class PeerLink {
+
+	private String name;
+	private float minRate;
+	private float normalRate;
+	private float maxRate;
+
+	private boolean measured;
+	private float roundTripTime;
+	private float roundTripVariance;
+	private float minRoundTripTime;
+	private float loss;
+	private float throughput;
+	private float congestionRate;
+	private boolean battle;
+
+	private int firstTick;
+	private int lastTick;
+	private int ticksReceived;
+	private long bytesReceived;
+	private float measureTime;
+
+	private static final float RTT_SMOOTHING = 0.125f;
+	private static final float VARIANCE_SMOOTHING = 0.25f;
+	private static final float LOSS_LIMIT = 0.05f;
+	private static final float QUEUE_DELAY_LIMIT = 0.05f;
+	private static final float RATE_INCREASE = 0.1f;
+	private static final float RATE_DECREASE = 0.5f;
+
+	/**
+	 * Creates the link for a peer.
+	 * @param normalRate The rate at which snapshots are sent to the peer when
+	 *        there is no battle, in snapshots per second.
+	 * @param minRate The lowest rate, used when the connection is congested.
+	 * @param maxRate The highest rate, used during close battles.
+	 */
+	public PeerLink(String name, float normalRate, float minRate, float maxRate) {
+		this.name = name;
+		this.minRate = minRate;
+		this.normalRate = normalRate;
+		this.maxRate = maxRate;
+
+		measured = false;
+		roundTripTime = 0f;
+		roundTripVariance = 0f;
+		minRoundTripTime = 0f;
+		loss = 0f;
+		throughput = 0f;
+		congestionRate = maxRate;
+		battle = false;
+
+		firstTick = -1;
+		lastTick = -1;
+		ticksReceived = 0;
+		bytesReceived = 0L;
+		measureTime = -1f;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Updates the measurements when a pong message is received, and adapts
+	 * the send rate.
+	 * @param roundTripTime The time between sending the ping and receiving the
+	 *        pong, in seconds.
+	 * @param loss The fraction of snapshots that the peer did not receive.
+	 * @param throughput The number of bytes per second received by the peer.
+	 */
+	public void pongReceived(float roundTripTime, float loss, float throughput) {
+
+		if (!measured) {
+			this.roundTripTime = roundTripTime;
+			this.roundTripVariance = roundTripTime / 2f;
+			this.minRoundTripTime = roundTripTime;
+			measured = true;
+		} else {
+			float error = Math.abs(roundTripTime - this.roundTripTime);
+			this.roundTripVariance += (error - roundTripVariance) * VARIANCE_SMOOTHING;
+			this.roundTripTime += (roundTripTime - this.roundTripTime) * RTT_SMOOTHING;
+			this.minRoundTripTime = Math.min(minRoundTripTime, roundTripTime);
+		}
+		this.loss = loss;
+		this.throughput = throughput;
+
+		if (isCongested()) {
+			congestionRate = Math.max(congestionRate * RATE_DECREASE, minRate);
+		} else {
+			congestionRate = Math.min(congestionRate + RATE_INCREASE * maxRate, maxRate);
+		}
+	}
+
+	/**
+	 * Returns true when the last measurements indicate that the connection is
+	 * congested. The queueing delay is the smoothed round-trip time minus the
+	 * lowest round-trip time, and is allowed to grow up to the lowest
+	 * round-trip time itself, so that slow connections are not punished.
+	 */
+	public boolean isCongested() {
+		float queueDelay = roundTripTime - minRoundTripTime;
+		return (loss > LOSS_LIMIT) ||
+				(queueDelay > Math.max(QUEUE_DELAY_LIMIT, minRoundTripTime));
+	}
+
+	/**
+	 * Marks whether the local player is in a close battle with the car of this
+	 * peer, which requires a higher send rate.
+	 */
+	public void setBattle(boolean battle) {
+		this.battle = battle;
+	}
+
+	public boolean isBattle() {
+		return battle;
+	}
+
+	/**
+	 * Returns the rate at which snapshots should be sent to this peer, in
+	 * snapshots per second.
+	 */
+	public float getRate() {
+		return Math.min(battle ? maxRate : normalRate, congestionRate);
+	}
+
+	/**
+	 * Returns the highest rate that the connection currently allows, in
+	 * snapshots per second.
+	 */
+	public float getCongestionRate() {
+		return congestionRate;
+	}
+
+	/**
+	 * Registers a snapshot received from this peer.
+	 * @param size The size of the snapshot, in bytes.
+	 */
+	public void snapshotReceived(int tick, int size) {
+		if (firstTick == -1) {
+			firstTick = tick;
+		}
+		lastTick = Math.max(lastTick, tick);
+		ticksReceived++;
+		bytesReceived += size;
+	}
+
+	/**
+	 * Returns the fraction of the snapshots sent by this peer since the last
+	 * call to this method that have not been received, and starts a new
+	 * measurement. The new measurement starts after the last received tick,
+	 * so that snapshots lost in between are also counted.
+	 */
+	public float takeReceiveLoss() {
+
+		int expected = lastTick - firstTick + 1;
+		if ((firstTick == -1) || (expected <= 0)) {
+			return 0f;
+		}
+
+		float receiveLoss = Math.max(1f - (float) ticksReceived / expected, 0f);
+		firstTick = lastTick + 1;
+		ticksReceived = 0;
+		return receiveLoss;
+	}
+
+	/**
+	 * Returns the number of bytes per second received from this peer since the
+	 * last call to this method, and starts a new measurement.
+	 * @param time The current time, in seconds.
+	 */
+	public float takeReceiveThroughput(float time) {
+		float elapsed = time - measureTime;
+		float receiveThroughput = ((measureTime >= 0f) && (elapsed > 0f)) ? bytesReceived / elapsed : 0f;
+		bytesReceived = 0L;
+		measureTime = time;
+		return receiveThroughput;
+	}
+
+	/**
+	 * Returns the smoothed round-trip time, in seconds.
+	 */
+	public float getRoundTripTime() {
+		return roundTripTime;
+	}
+
+	public float getRoundTripVariance() {
+		return roundTripVariance;
+	}
+
+	public float getMinRoundTripTime() {
+		return minRoundTripTime;
+	}
+
+	/**
+	 * Returns the fraction of our snapshots that the peer reported as lost.
+	 */
+	public float getLoss() {
+		return loss;
+	}
+
+	/**
+	 * Returns the number of bytes per second that the peer reported receiving
+	 * from us.
+	 */
+	public float getThroughput() {
+		return throughput;
+	}
+
+	public boolean isMeasured() {
+		return measured;
+	}
+}
@@ -0,0 +1,66 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// RateMeter
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts events and measures how many events occur per second. Counting uses
+ * a striped counter, so threads that count events never contend with each
+ * other or with threads that read the rate. The rate is measured over a window
+ * of at least one second, which ends when the rate was last read.
+ */
+public class RateMeter {
+
+	private LongAdder count;
+	private long windowStart;
+	private long windowCount;
+	private double rate;
+
+	private static final long WINDOW = 1000000000L;
+
+	public RateMeter() {
+		count = new LongAdder();
+		windowStart = System.nanoTime();
+		windowCount = 0L;
+		rate = 0.0;
+	}
+
+	public void increment() {
+		count.increment();
+	}
+
+	public void add(long n) {
+		count.add(n);
+	}
+
+	/**
+	 * Returns the total number of events counted.
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the number of events per second. When less than a second has
+	 * passed since the rate was last measured, the previous rate is returned.
+	 */
+	public synchronized double getRate() {
+
+		long now = System.nanoTime();
+		long elapsed = now - windowStart;
+
+		if (elapsed >= WINDOW) {
+			long currentCount = count.sum();
+			rate = (currentCount - windowCount) * 1000000000.0 / elapsed;
+			windowStart = now;
+			windowCount = currentCount;
+		}
+
+		return rate;
+	}
+}
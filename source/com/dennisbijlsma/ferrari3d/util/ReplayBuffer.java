@@ -0,0 +1,170 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// ReplayBuffer
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.util;
+
+/**
+ * Ring buffer that holds the most recent frames for all cars in a session.
+ * The data is stored column-wise, with one array per value. Within a column
+ * the values of all cars for the same frame are next to each other, so
+ * recording a frame writes a single contiguous range in every column. When the
+ * buffer is full the oldest frame is overwritten.
+ * <p>
+ * Frames are numbered from the oldest frame that is still in the buffer, so
+ * frame 0 moves forward once the buffer is full.
+ * <p>
+ * Cars that are controlled by another computer are recorded in the same way
+ * as local cars, at the position in which they are shown. Their jitter buffer
+ * has already placed the received states on the local clock, so the buffer
+ * does not need to know when the states arrived.
+ */
+public class ReplayBuffer implements ReplaySource {
+
+	private String[] names;
+	private int numCars;
+	private int capacity;
+	private float frameRate;
+	private float frameTime;
+	private float time;
+	private long recordedFrames;
+	private int row;
+
+	private float[] x;
+	private float[] y;
+	private float[] z;
+	private float[] direction;
+	private float[] orientation;
+	private float[] speed;
+	private byte[] gear;
+
+	/**
+	 * Creates a new buffer. The names of all cars must be known in advance.
+	 * @param names The names of the cars, one for every slot.
+	 * @param frameRate The number of frames recorded per second.
+	 * @param duration The number of seconds kept in the buffer.
+	 */
+	public ReplayBuffer(String[] names, float frameRate, float duration) {
+
+		this.names = names;
+		this.numCars = names.length;
+		this.capacity = Math.max(2, (int) Math.ceil(duration * frameRate) + 1);
+		this.frameRate = frameRate;
+		this.frameTime = 1f / frameRate;
+		this.time = 0f;
+		this.recordedFrames = 0L;
+		this.row = -1;
+
+		int size = capacity * numCars;
+		x = new float[size];
+		y = new float[size];
+		z = new float[size];
+		direction = new float[size];
+		orientation = new float[size];
+		speed = new float[size];
+		gear = new byte[size];
+	}
+
+	/**
+	 * Advances the recording time. When this returns true a new frame has been
+	 * started, and the caller should record every car using {@link #record(int,
+	 * float, float, float, float, float, float, int)}. The first call always
+	 * returns true.
+	 * @param dt Delta time since the last call, in seconds.
+	 */
+	public boolean nextFrame(float dt) {
+
+		if (recordedFrames > 0L) {
+			time += dt;
+			if (time < frameTime) {
+				return false;
+			}
+
+			// Carry the remainder, so that frames are spaced at the frame rate
+			// on average even when it is not a multiple of the tick rate
+			time = (time - frameTime) % frameTime;
+		}
+
+		recordedFrames++;
+		row = (row + 1) % capacity;
+		return true;
+	}
+
+	/**
+	 * Records the state of a car in the current frame.
+	 */
+	public void record(int slot, float x, float y, float z, float direction, float orientation,
+			float speed, int gear) {
+		int index = row * numCars + slot;
+		this.x[index] = x;
+		this.y[index] = y;
+		this.z[index] = z;
+		this.direction[index] = direction;
+		this.orientation[index] = orientation;
+		this.speed[index] = speed;
+		this.gear[index] = (byte) gear;
+	}
+
+	/** {@inheritDoc} */
+	public void getFrame(int track, int frame, float[] dest) {
+
+		int numFrames = getNumFrames();
+		if ((frame < 0) || (frame >= numFrames)) {
+			throw new IndexOutOfBoundsException("Invalid frame: " + frame);
+		}
+
+		int frameRow = (int) ((recordedFrames - numFrames + frame) % capacity);
+		int index = frameRow * numCars + track;
+		dest[ReplayTrack.X] = x[index];
+		dest[ReplayTrack.Y] = y[index];
+		dest[ReplayTrack.Z] = z[index];
+		dest[ReplayTrack.DIRECTION] = direction[index];
+		dest[ReplayTrack.ORIENTATION] = orientation[index];
+		dest[ReplayTrack.SPEED] = speed[index];
+		dest[ReplayTrack.GEAR] = gear[index];
+	}
+
+	public int getNumTracks() {
+		return numCars;
+	}
+
+	public String getName(int track) {
+		return names[track];
+	}
+
+	/**
+	 * Returns the number of frames that are currently in the buffer.
+	 */
+	public int getNumFrames() {
+		return (int) Math.min(recordedFrames, capacity);
+	}
+
+	/**
+	 * Returns the total number of frames recorded, including the frames that
+	 * have since been overwritten.
+	 */
+	public long getRecordedFrames() {
+		return recordedFrames;
+	}
+
+	public float getFrameRate() {
+		return frameRate;
+	}
+
+	/**
+	 * Returns the maximum number of frames that fit in the buffer.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the approximate number of bytes used by the recorded frames. All
+	 * frames are allocated when the buffer is created.
+	 */
+	public long getMemoryUsage() {
+		return (long) capacity * numCars * (6 * 4 + 1);
+	}
+}
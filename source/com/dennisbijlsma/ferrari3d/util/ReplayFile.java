@@ -0,0 +1,189 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// ReplayFile
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a replay that was saved by a {@link ReplayWriter}. The header and the
+ * index are read when the file is opened, the chunks are accessed through a
+ * memory-mapped buffer. Only the chunk that contains the requested frame is
+ * decoded, so any point in the replay can be accessed in constant time
+ * regardless of the size of the file.
+ * <p>
+ * Instances of this class are not thread safe.
+ */
+public class ReplayFile implements ReplaySource {
+
+	private String circuit;
+	private long seed;
+	private float frameRate;
+	private int framesPerChunk;
+	private int numFrames;
+	private String[] names;
+	private String[] cars;
+	private int[] trackFrames;
+	private long[][] offsets;
+	private int[][] lengths;
+	private MappedByteBuffer buffer;
+
+	private byte[][] loadedChunks;
+	private int[] loadedChunkIndexes;
+	private ReplayTrack.Cursor[] cursors;
+
+	/**
+	 * Opens a replay file.
+	 * @throws IOException if the file cannot be read or is not a valid replay.
+	 */
+	public ReplayFile(File file) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			readHeader(raf);
+
+			raf.seek(raf.length() - 12);
+			long indexOffset = raf.readLong();
+			if (raf.readInt() != ReplayWriter.MAGIC) {
+				throw new IOException("Replay file is incomplete: " + file);
+			}
+			raf.seek(indexOffset);
+			readIndex(raf);
+
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0L, indexOffset);
+		} finally {
+			// The mapping remains valid after the file has been closed
+			raf.close();
+		}
+
+		loadedChunks = new byte[names.length][];
+		loadedChunkIndexes = new int[names.length];
+		cursors = new ReplayTrack.Cursor[names.length];
+		for (int i = 0; i < names.length; i++) {
+			loadedChunkIndexes[i] = -1;
+			cursors[i] = new ReplayTrack.Cursor(framesPerChunk);
+		}
+	}
+
+	private void readHeader(RandomAccessFile raf) throws IOException {
+
+		if (raf.readInt() != ReplayWriter.MAGIC) {
+			throw new IOException("Not a replay file");
+		}
+
+		int version = raf.readInt();
+		if (version != ReplayWriter.VERSION) {
+			throw new IOException("Unsupported replay file version: " + version);
+		}
+
+		circuit = raf.readUTF();
+		seed = raf.readLong();
+		frameRate = raf.readFloat();
+		framesPerChunk = raf.readInt();
+
+		int numTracks = raf.readInt();
+		names = new String[numTracks];
+		cars = new String[numTracks];
+		for (int i = 0; i < numTracks; i++) {
+			names[i] = raf.readUTF();
+			cars[i] = raf.readUTF();
+		}
+	}
+
+	private void readIndex(RandomAccessFile raf) throws IOException {
+
+		numFrames = raf.readInt();
+		trackFrames = new int[names.length];
+		offsets = new long[names.length][];
+		lengths = new int[names.length][];
+
+		for (int i = 0; i < names.length; i++) {
+			trackFrames[i] = raf.readInt();
+			int numChunks = raf.readInt();
+			offsets[i] = new long[numChunks];
+			lengths[i] = new int[numChunks];
+			for (int j = 0; j < numChunks; j++) {
+				offsets[i][j] = raf.readLong();
+				lengths[i][j] = raf.readInt();
+			}
+		}
+	}
+
+	/** {@inheritDoc} */
+	public void getFrame(int track, int frame, float[] dest) {
+
+		if ((frame < 0) || (frame >= trackFrames[track])) {
+			throw new IndexOutOfBoundsException("Invalid frame: " + frame);
+		}
+
+		int chunk = frame / framesPerChunk;
+		if (loadedChunkIndexes[track] != chunk) {
+			loadChunk(track, chunk);
+		}
+		cursors[track].read(loadedChunks[track], frame, dest);
+	}
+
+	/**
+	 * Copies a chunk from the mapped file into the buffer for a track. The
+	 * buffer is reused as long as it is large enough.
+	 */
+	private void loadChunk(int track, int chunk) {
+
+		int length = lengths[track][chunk];
+		if ((loadedChunks[track] == null) || (loadedChunks[track].length < length)) {
+			loadedChunks[track] = new byte[length];
+		}
+
+		buffer.position((int) offsets[track][chunk]);
+		buffer.get(loadedChunks[track], 0, length);
+		loadedChunkIndexes[track] = chunk;
+		cursors[track].reset();
+	}
+
+	public String getCircuit() {
+		return circuit;
+	}
+
+	/**
+	 * Returns the seed that was used to create the session, or 0 if the seed is
+	 * not known.
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	public int getNumTracks() {
+		return names.length;
+	}
+
+	public String getName(int track) {
+		return names[track];
+	}
+
+	public String getCar(int track) {
+		return cars[track];
+	}
+
+	public int getNumFrames() {
+		return numFrames;
+	}
+
+	public float getFrameRate() {
+		return frameRate;
+	}
+
+	/**
+	 * Returns the duration of the replay, in seconds.
+	 */
+	public float getDuration() {
+		return Math.max(0, numFrames - 1) / frameRate;
+	}
+}
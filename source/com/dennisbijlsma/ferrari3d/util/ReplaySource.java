@@ -0,0 +1,41 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// ReplaySource
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.util;
+
+/**
+ * Provides the recorded frames of a replay. A replay consists of a number of
+ * tracks, one for every car, that are all sampled at the same frame rate.
+ * Replays can be recorded in memory by a {@link SessionReplay}, or read from a
+ * file using {@link ReplayFile}.
+ */
+public interface ReplaySource {
+
+	public int getNumTracks();
+
+	/**
+	 * Returns the name of the contestant that is recorded in a track.
+	 */
+	public String getName(int track);
+
+	/**
+	 * Returns the number of frames that is available for all tracks.
+	 */
+	public int getNumFrames();
+
+	/**
+	 * Returns the number of frames recorded per second.
+	 */
+	public float getFrameRate();
+
+	/**
+	 * Stores the values of a frame in {@code dest}, in the order defined by the
+	 * constants in {@link ReplayTrack}. The array must have a length of at least
+	 * {@code ReplayTrack.NUM_FIELDS}.
+	 * @throws IndexOutOfBoundsException if the frame does not exist.
+	 */
+	public void getFrame(int track, int frame, float[] dest);
+}
@@ -0,0 +1,334 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// ReplayTrack
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.util;
+
+import java.util.Arrays;
+
+/**
+ * Compressed recording of the state of a single car over a complete session.
+ * Every frame stores the position, direction, orientation, speed and gear.
+ * <p>
+ * Values are quantized to fixed-point integers before they are stored. Each
+ * value is then predicted from the two previous frames, and only the error in
+ * that prediction is stored as a variable-length integer. A bitmask at the
+ * start of every frame indicates which values have a non-zero error. Since cars
+ * move smoothly most errors are zero or very small, and most frames take only a
+ * few bytes.
+ * <p>
+ * Frames are grouped in chunks. The first frame of every chunk is a keyframe
+ * that is stored without prediction, so that every chunk can be decoded on its
+ * own. Completed chunks are trimmed to their exact size, adding a frame only
+ * writes to the current chunk.
+ */
+public class ReplayTrack {
+
+	private int framesPerChunk;
+	private byte[][] chunks;
+	private int numChunks;
+	private byte[] current;
+	private int currentSize;
+	private int numFrames;
+	private int[] previous;
+	private int[] beforePrevious;
+	private int[] quantized;
+	private Cursor cursor;
+
+	public static final int X = 0;
+	public static final int Y = 1;
+	public static final int Z = 2;
+	public static final int DIRECTION = 3;
+	public static final int ORIENTATION = 4;
+	public static final int SPEED = 5;
+	public static final int GEAR = 6;
+	public static final int NUM_FIELDS = 7;
+
+	public static final int DEFAULT_FRAMES_PER_CHUNK = 250;
+	private static final float TWO_PI = (float) (Math.PI * 2.0);
+	private static final float[] SCALE = { 64f, 64f, 64f, 1024f, 1024f, 16f, 1f };
+	private static final int MAX_FRAME_SIZE = 1 + NUM_FIELDS * 5;
+
+	/**
+	 * Creates a new, empty track.
+	 * @param framesPerChunk The number of frames between two keyframes.
+	 */
+	public ReplayTrack(int framesPerChunk) {
+		this.framesPerChunk = framesPerChunk;
+		this.chunks = new byte[16][];
+		this.numChunks = 0;
+		this.current = new byte[framesPerChunk * MAX_FRAME_SIZE];
+		this.currentSize = 0;
+		this.numFrames = 0;
+		this.previous = new int[NUM_FIELDS];
+		this.beforePrevious = new int[NUM_FIELDS];
+		this.quantized = new int[NUM_FIELDS];
+		this.cursor = new Cursor(framesPerChunk);
+	}
+
+	public ReplayTrack() {
+		this(DEFAULT_FRAMES_PER_CHUNK);
+	}
+
+	/**
+	 * Adds a frame to the end of this track.
+	 */
+	public void add(float x, float y, float z, float direction, float orientation, float speed,
+			int gear) {
+
+		quantized[X] = quantize(x, X);
+		quantized[Y] = quantize(y, Y);
+		quantized[Z] = quantize(z, Z);
+		quantized[DIRECTION] = quantize(direction, DIRECTION);
+		quantized[ORIENTATION] = quantize(orientation, ORIENTATION);
+		quantized[SPEED] = quantize(speed, SPEED);
+		quantized[GEAR] = gear;
+
+		int frameInChunk = numFrames % framesPerChunk;
+		currentSize = encodeFrame(current, currentSize, quantized, previous, beforePrevious,
+				frameInChunk);
+		numFrames++;
+
+		if (frameInChunk == framesPerChunk - 1) {
+			closeChunk();
+		}
+	}
+
+	private static int quantize(float value, int field) {
+		return Math.round(value * SCALE[field]);
+	}
+
+	/**
+	 * Encodes a frame, and updates the previous values with the values of the
+	 * frame. The predictor uses linear extrapolation from the two previous
+	 * frames, or only the previous frame if this is the second frame in the
+	 * chunk. The gear is always predicted to stay the same.
+	 * @return The offset directly after the encoded frame.
+	 */
+	private static int encodeFrame(byte[] buffer, int offset, int[] values, int[] previous,
+			int[] beforePrevious, int frameInChunk) {
+
+		int maskOffset = offset++;
+		int mask = 0;
+
+		for (int i = 0; i < NUM_FIELDS; i++) {
+			int error = values[i] - predict(i, previous, beforePrevious, frameInChunk);
+			if (error != 0) {
+				mask |= 1 << i;
+				offset = writeVarInt(buffer, offset, (error << 1) ^ (error >> 31));
+			}
+			beforePrevious[i] = previous[i];
+			previous[i] = values[i];
+		}
+
+		buffer[maskOffset] = (byte) mask;
+		return offset;
+	}
+
+	/**
+	 * Decodes a frame, and updates the previous values. This is the inverse of
+	 * {@link #encodeFrame(byte[], int, int[], int[], int[], int)}.
+	 * @return The offset directly after the decoded frame.
+	 */
+	private static int decodeFrame(byte[] buffer, int offset, int[] values, int[] previous,
+			int frameInChunk) {
+
+		int mask = buffer[offset++] & 0xFF;
+
+		for (int i = 0; i < NUM_FIELDS; i++) {
+			int value = predict(i, values, previous, frameInChunk);
+			if ((mask & (1 << i)) != 0) {
+				int zigzag = 0;
+				int shift = 0;
+				byte b = 0;
+				do {
+					b = buffer[offset++];
+					zigzag |= (b & 0x7F) << shift;
+					shift += 7;
+				} while ((b & 0x80) != 0);
+				value += (zigzag >>> 1) ^ -(zigzag & 1);
+			}
+			previous[i] = values[i];
+			values[i] = value;
+		}
+
+		return offset;
+	}
+
+	private static int predict(int field, int[] previous, int[] beforePrevious, int frameInChunk) {
+		if (frameInChunk == 0) {
+			return 0;
+		} else if ((frameInChunk == 1) || (field == GEAR)) {
+			return previous[field];
+		} else {
+			return 2 * previous[field] - beforePrevious[field];
+		}
+	}
+
+	private static int writeVarInt(byte[] buffer, int offset, int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[offset++] = (byte) value;
+		return offset;
+	}
+
+	/**
+	 * Copies the current chunk to an array of its exact size, and starts a new
+	 * chunk.
+	 */
+	private void closeChunk() {
+		if (numChunks == chunks.length) {
+			chunks = Arrays.copyOf(chunks, chunks.length * 2);
+		}
+		chunks[numChunks] = Arrays.copyOf(current, currentSize);
+		numChunks++;
+		currentSize = 0;
+	}
+
+	/**
+	 * Decodes the specified frame and stores its values in {@code dest}. The
+	 * array must have a length of at least {@code NUM_FIELDS}. The gear is
+	 * stored as a float.
+	 * <p>
+	 * Decoding a frame requires decoding all frames before it in the same chunk.
+	 * Consecutive frames are decoded from where the last call left off, so
+	 * reading the track in order costs constant time per frame.
+	 * @throws IndexOutOfBoundsException if the frame does not exist.
+	 */
+	public void get(int frame, float[] dest) {
+
+		if ((frame < 0) || (frame >= numFrames)) {
+			throw new IndexOutOfBoundsException("Invalid frame: " + frame);
+		}
+
+		int chunk = frame / framesPerChunk;
+		cursor.read((chunk < numChunks) ? chunks[chunk] : current, frame, dest);
+	}
+
+	/**
+	 * Interpolates between two frames and stores the result in {@code dest}.
+	 * Angles are interpolated along the shortest way around the circle. The gear
+	 * is taken from the closest frame.
+	 * @param fraction Between 0 (frame {@code a}) and 1 (frame {@code b}).
+	 */
+	public static void interpolate(float[] a, int offsetA, float[] b, int offsetB, float fraction,
+			float[] dest) {
+
+		for (int i = 0; i < NUM_FIELDS; i++) {
+			float valueA = a[offsetA + i];
+			float valueB = b[offsetB + i];
+			if ((i == DIRECTION) || (i == ORIENTATION)) {
+				float delta = valueB - valueA;
+				delta -= TWO_PI * (float) Math.floor((delta + Math.PI) / TWO_PI);
+				dest[i] = valueA + delta * fraction;
+			} else if (i == GEAR) {
+				dest[i] = (fraction < 0.5f) ? valueA : valueB;
+			} else {
+				dest[i] = valueA + (valueB - valueA) * fraction;
+			}
+		}
+	}
+
+	public int getNumFrames() {
+		return numFrames;
+	}
+
+	/**
+	 * Returns the number of completed chunks. The chunk that frames are
+	 * currently added to is not included.
+	 */
+	public int getNumChunks() {
+		return numChunks;
+	}
+
+	/**
+	 * Returns the encoded data for a completed chunk. The returned array is
+	 * never modified once the chunk has been completed.
+	 */
+	public byte[] getChunk(int index) {
+		if (index >= numChunks) {
+			throw new IndexOutOfBoundsException("Chunk not completed: " + index);
+		}
+		return chunks[index];
+	}
+
+	/**
+	 * Returns a copy of the encoded data for the chunk that frames are
+	 * currently added to. The array is empty if that chunk contains no frames.
+	 */
+	public byte[] getOpenChunk() {
+		return Arrays.copyOf(current, currentSize);
+	}
+
+	public int getFramesPerChunk() {
+		return framesPerChunk;
+	}
+
+	/**
+	 * Returns the number of bytes used to store the encoded frames. This does
+	 * not include the buffer for the current chunk, which has a fixed size.
+	 */
+	public long getEncodedSize() {
+		long size = currentSize;
+		for (int i = 0; i < numChunks; i++) {
+			size += chunks[i].length;
+		}
+		return size;
+	}
+
+	/**
+	 * Decodes frames from encoded chunks. The cursor remembers the last frame it
+	 * has decoded, so that the next frame in the same chunk can be decoded
+	 * without starting from the keyframe.
+	 */
+	static class Cursor {
+
+		private int framesPerChunk;
+		private int frame;
+		private int offset;
+		private int[] values;
+		private int[] previous;
+
+		public Cursor(int framesPerChunk) {
+			this.framesPerChunk = framesPerChunk;
+			this.frame = -1;
+			this.offset = 0;
+			this.values = new int[NUM_FIELDS];
+			this.previous = new int[NUM_FIELDS];
+		}
+
+		/**
+		 * Decodes a frame and stores the dequantized values in {@code dest}.
+		 * @param chunk The encoded data of the chunk that contains the frame.
+		 */
+		public void read(byte[] chunk, int frame, float[] dest) {
+
+			int chunkIndex = frame / framesPerChunk;
+			if ((this.frame < 0) || (frame < this.frame) || (this.frame / framesPerChunk != chunkIndex)) {
+				this.frame = chunkIndex * framesPerChunk - 1;
+				this.offset = 0;
+			}
+
+			while (this.frame < frame) {
+				this.frame++;
+				offset = decodeFrame(chunk, offset, values, previous, this.frame % framesPerChunk);
+			}
+
+			for (int i = 0; i < NUM_FIELDS; i++) {
+				dest[i] = values[i] / SCALE[i];
+			}
+		}
+
+		/**
+		 * Forgets the last decoded frame. This must be called when the data of
+		 * the chunk is replaced.
+		 */
+		public void reset() {
+			frame = -1;
+		}
+	}
+}
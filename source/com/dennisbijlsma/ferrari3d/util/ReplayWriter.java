@@ -0,0 +1,245 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// ReplayWriter
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Saves a {@link SessionReplay} to a file while it is being recorded. Every
+ * time a chunk is completed it is passed to a background thread, which appends
+ * it to the file. The thread that records the replay therefore never has to
+ * wait for disk I/O. The queue of pending chunks has a fixed capacity, chunks
+ * that do not fit are not lost but written when the writer is closed.
+ * <p>
+ * The file starts with a header that describes the circuit, the seed and the
+ * tracks. The chunks follow in the order in which they were completed. When
+ * the writer is closed the remaining frames are written, followed by an index
+ * with the location of every chunk. See {@link ReplayFile} for reading the
+ * file.
+ */
+public class ReplayWriter implements Runnable {
+
+	private File file;
+	private SessionReplay replay;
+	private String circuit;
+	private long seed;
+	private BlockingQueue<PendingChunk> queue;
+	private Thread thread;
+	private long[][] offsets;
+	private int[][] lengths;
+	private volatile IOException error;
+
+	static final int MAGIC = 0x46335250;
+	static final int VERSION = 1;
+	private static final int QUEUE_CAPACITY = 64;
+	private static final PendingChunk END_OF_REPLAY = new PendingChunk(-1, -1, null);
+
+	/**
+	 * Creates a new writer for the specified replay. All tracks must have been
+	 * added to the replay before the writer is created.
+	 * @param seed The seed used to create the session, or 0 if not known.
+	 */
+	public ReplayWriter(File file, SessionReplay replay, String circuit, long seed) {
+		this.file = file;
+		this.replay = replay;
+		this.circuit = circuit;
+		this.seed = seed;
+		this.queue = new ArrayBlockingQueue<PendingChunk>(QUEUE_CAPACITY);
+		this.offsets = new long[replay.getNumTracks()][16];
+		this.lengths = new int[replay.getNumTracks()][16];
+		for (long[] i : offsets) {
+			Arrays.fill(i, -1L);
+		}
+	}
+
+	/**
+	 * Attaches this writer to the replay and starts the background thread.
+	 */
+	public void start() {
+		replay.setWriter(this);
+		thread = new Thread(this, "Ferrari3D-ReplayWriter");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Called by the replay when a chunk has been completed. This never blocks,
+	 * when the queue is full the chunk will be written by {@link #close()}
+	 * instead.
+	 */
+	void chunkCompleted(int track, int chunk, byte[] data) {
+		queue.offer(new PendingChunk(track, chunk, data));
+	}
+
+	/**
+	 * Stops recording and tells the background thread to finish the file. This
+	 * does not wait for the file to be written, use {@link #waitForCompletion()}
+	 * for that.
+	 */
+	public void close() {
+
+		replay.setWriter(null);
+
+		for (int i = 0; i < replay.getNumTracks(); i++) {
+			ReplayTrack track = replay.getTrack(i);
+			byte[] openChunk = track.getOpenChunk();
+			if (openChunk.length > 0) {
+				putPendingChunk(new PendingChunk(i, track.getNumChunks(), openChunk));
+			}
+		}
+
+		putPendingChunk(END_OF_REPLAY);
+	}
+
+	private void putPendingChunk(PendingChunk chunk) {
+		try {
+			queue.put(chunk);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Waits until the background thread has finished writing the file.
+	 * @throws IOException if an error occurred while writing.
+	 * @throws InterruptedException if the current thread was interrupted.
+	 */
+	public void waitForCompletion() throws IOException, InterruptedException {
+		thread.join();
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 * Writes chunks until the end of the replay is reached.
+	 */
+	public void run() {
+
+		DataOutputStream out = null;
+
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			writeHeader(out);
+
+			PendingChunk chunk = queue.take();
+			while (chunk != END_OF_REPLAY) {
+				writeChunk(out, chunk.track, chunk.chunk, chunk.data);
+				chunk = queue.take();
+			}
+
+			writeSkippedChunks(out);
+			writeIndex(out);
+		} catch (IOException e) {
+			error = e;
+		} catch (InterruptedException e) {
+			error = new IOException("Replay writer interrupted");
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					error = (error == null) ? e : error;
+				}
+			}
+		}
+
+		if (error != null) {
+			Settings.getInstance().getLogger().warning("Could not save replay: " + error);
+		}
+	}
+
+	private void writeHeader(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeUTF(circuit);
+		out.writeLong(seed);
+		out.writeFloat(replay.getFrameRate());
+		out.writeInt(replay.getFramesPerChunk());
+		out.writeInt(replay.getNumTracks());
+		for (int i = 0; i < replay.getNumTracks(); i++) {
+			out.writeUTF(replay.getName(i));
+			out.writeUTF(replay.getCar(i));
+		}
+	}
+
+	private void writeChunk(DataOutputStream out, int track, int chunk, byte[] data)
+			throws IOException {
+
+		if (chunk >= offsets[track].length) {
+			int size = Math.max(chunk + 1, offsets[track].length * 2);
+			int oldSize = offsets[track].length;
+			offsets[track] = Arrays.copyOf(offsets[track], size);
+			lengths[track] = Arrays.copyOf(lengths[track], size);
+			Arrays.fill(offsets[track], oldSize, size, -1L);
+		}
+
+		offsets[track][chunk] = out.size();
+		lengths[track][chunk] = data.length;
+		out.write(data);
+	}
+
+	/**
+	 * Writes the completed chunks that did not fit in the queue. The recording
+	 * thread has stopped adding frames at this point, so the tracks can be read
+	 * directly.
+	 */
+	private void writeSkippedChunks(DataOutputStream out) throws IOException {
+		for (int i = 0; i < replay.getNumTracks(); i++) {
+			ReplayTrack track = replay.getTrack(i);
+			for (int j = 0; j < track.getNumChunks(); j++) {
+				if ((j >= offsets[i].length) || (offsets[i][j] < 0L)) {
+					writeChunk(out, i, j, track.getChunk(j));
+				}
+			}
+		}
+	}
+
+	private void writeIndex(DataOutputStream out) throws IOException {
+
+		long indexOffset = out.size();
+		out.writeInt(replay.getNumFrames());
+
+		for (int i = 0; i < replay.getNumTracks(); i++) {
+			ReplayTrack track = replay.getTrack(i);
+			int numChunks = (track.getNumFrames() + replay.getFramesPerChunk() - 1) /
+					replay.getFramesPerChunk();
+			out.writeInt(track.getNumFrames());
+			out.writeInt(numChunks);
+			for (int j = 0; j < numChunks; j++) {
+				out.writeLong(offsets[i][j]);
+				out.writeInt(lengths[i][j]);
+			}
+		}
+
+		out.writeLong(indexOffset);
+		out.writeInt(MAGIC);
+	}
+
+	/**
+	 * A completed chunk that is waiting to be written.
+	 */
+	private static class PendingChunk {
+
+		private int track;
+		private int chunk;
+		private byte[] data;
+
+		public PendingChunk(int track, int chunk, byte[] data) {
+			this.track = track;
+			this.chunk = chunk;
+			this.data = data;
+		}
+	}
+}
@@ -0,0 +1,496 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// SessionArchive
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Local archive of all completed sessions. The archive is stored in a
+ * directory that contains three files, which are only ever appended to:
+ * <ul>
+ *   <li>{@code names.dat} contains the names of circuits, cars and drivers.
+ *       Records refer to names by their index in this file.</li>
+ *   <li>{@code laps.dat} contains a fixed size record for every lap, with the
+ *       lap and sector times.</li>
+ *   <li>{@code sessions.dat} contains the results of every session, and the
+ *       location of its telemetry file.</li>
+ * </ul>
+ * When the archive is opened the lap records are scanned once to build an
+ * index per circuit, per car and per driver. Queries start from the smallest
+ * index that matches, and only read the lap records in that index from a
+ * memory-mapped buffer. Queries therefore remain fast when the archive
+ * contains years of data.
+ * <p>
+ * All methods in this class are thread safe.
+ */
+public class SessionArchive {
+
+	private File dir;
+	private List<String> names;
+	private Map<String,Integer> nameIds;
+	private int numLaps;
+	private int numSessions;
+	private List<RecordList> circuitIndex;
+	private List<RecordList> carIndex;
+	private List<RecordList> driverIndex;
+	private MappedByteBuffer laps;
+
+	private static final String NAMES_FILE = "names.dat";
+	private static final String LAPS_FILE = "laps.dat";
+	private static final String SESSIONS_FILE = "sessions.dat";
+	private static final int LAP_RECORD_SIZE = 44;
+
+	/**
+	 * Opens the archive in the specified directory. When the directory does not
+	 * exist yet an empty archive is created.
+	 * @throws IOException if the archive cannot be read.
+	 */
+	public SessionArchive(File dir) throws IOException {
+
+		this.dir = dir;
+		names = new ArrayList<String>();
+		nameIds = new HashMap<String,Integer>();
+		circuitIndex = new ArrayList<RecordList>();
+		carIndex = new ArrayList<RecordList>();
+		driverIndex = new ArrayList<RecordList>();
+
+		dir.mkdirs();
+		readNames();
+		readLaps();
+		numSessions = countSessions();
+	}
+
+	/**
+	 * Reads all names. A name that was only partially written is removed from
+	 * the file, so that names appended later can be read again.
+	 */
+	private void readNames() throws IOException {
+
+		File file = new File(dir, NAMES_FILE);
+		if (!file.exists()) {
+			return;
+		}
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		long complete = 0L;
+		try {
+			while (true) {
+				String name = in.readUTF();
+				nameIds.put(name, names.size());
+				names.add(name);
+				complete += 2 + getEncodedLength(name);
+			}
+		} catch (EOFException e) {
+			// End of the file
+		} finally {
+			in.close();
+		}
+
+		truncate(NAMES_FILE, complete);
+	}
+
+	/**
+	 * Returns the number of bytes used by {@code DataOutput.writeUTF()} for
+	 * the characters in a string, excluding the length.
+	 */
+	private int getEncodedLength(String name) {
+		int length = 0;
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if ((c >= 0x0001) && (c <= 0x007F)) {
+				length += 1;
+			} else if (c <= 0x07FF) {
+				length += 2;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Scans all lap records and builds the indexes. A record that was only
+	 * partially written, for example because the game crashed, is removed from
+	 * the file, otherwise all records appended after it would be misaligned.
+	 */
+	private void readLaps() throws IOException {
+
+		File file = new File(dir, LAPS_FILE);
+		truncate(LAPS_FILE, file.length() / LAP_RECORD_SIZE * LAP_RECORD_SIZE);
+		mapLaps();
+
+		for (int i = 0; i < numLaps; i++) {
+			int offset = i * LAP_RECORD_SIZE;
+			addToIndex(circuitIndex, laps.getInt(offset + 4), i);
+			addToIndex(carIndex, laps.getInt(offset + 8), i);
+			addToIndex(driverIndex, laps.getInt(offset + 12), i);
+		}
+	}
+
+	private void mapLaps() throws IOException {
+
+		File file = new File(dir, LAPS_FILE);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			numLaps = (int) (raf.length() / LAP_RECORD_SIZE);
+			laps = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0L,
+					(long) numLaps * LAP_RECORD_SIZE);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private int countSessions() throws IOException {
+
+		File file = new File(dir, SESSIONS_FILE);
+		if (!file.exists()) {
+			return 0;
+		}
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		int count = 0;
+		long complete = 0L;
+		try {
+			while (true) {
+				int length = in.readInt();
+				in.readFully(new byte[length]);
+				count++;
+				complete += 4 + length;
+			}
+		} catch (EOFException e) {
+			// End of the file
+		} finally {
+			in.close();
+		}
+
+		truncate(SESSIONS_FILE, complete);
+		return count;
+	}
+
+	/**
+	 * Removes everything after the last complete record from one of the files.
+	 * This does nothing if the file does not exist or is already shorter.
+	 */
+	private void truncate(String fileName, long length) throws IOException {
+
+		File file = new File(dir, fileName);
+		if (!file.exists() || (file.length() <= length)) {
+			return;
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void addToIndex(List<RecordList> index, int nameId, int record) {
+		while (index.size() <= nameId) {
+			index.add(new RecordList());
+		}
+		index.get(nameId).add(record);
+	}
+
+	/**
+	 * Adds a completed session to the archive.
+	 * @param mode The name of the session mode.
+	 * @param date The date on which the session was completed, in milliseconds
+	 *        since the epoch.
+	 * @param telemetry The telemetry file of the session, or {@code null}. The
+	 *        file is not copied, only its location is stored.
+	 * @param drivers The names of the contestants, in order of their final
+	 *        position.
+	 * @param cars The car of every contestant.
+	 * @param laptimes The completed laps of every contestant, starting with the
+	 *        first lap. Laps that do not have a time are not stored.
+	 * @return The number of the session in the archive.
+	 * @throws IOException if an error occurs while writing.
+	 */
+	public synchronized int addSession(String circuit, String mode, long date, File telemetry,
+			String[] drivers, String[] cars, Laptime[][] laptimes) throws IOException {
+
+		int session = numSessions;
+		int circuitId = getNameId(circuit);
+
+		ByteArrayOutputStream lapBytes = new ByteArrayOutputStream();
+		DataOutputStream lapOut = new DataOutputStream(lapBytes);
+		ByteArrayOutputStream sessionBytes = new ByteArrayOutputStream();
+		DataOutputStream sessionOut = new DataOutputStream(sessionBytes);
+		int firstLap = numLaps;
+		int addedLaps = 0;
+
+		sessionOut.writeInt(session);
+		sessionOut.writeLong(date);
+		sessionOut.writeInt(circuitId);
+		sessionOut.writeUTF(mode);
+		sessionOut.writeUTF((telemetry != null) ? telemetry.getAbsolutePath() : "");
+		sessionOut.writeInt(drivers.length);
+
+		for (int i = 0; i < drivers.length; i++) {
+			int driverId = getNameId(drivers[i]);
+			int carId = getNameId(cars[i]);
+			sessionOut.writeInt(driverId);
+			sessionOut.writeInt(carId);
+			sessionOut.writeInt(laptimes[i].length);
+
+			for (int j = 0; j < laptimes[i].length; j++) {
+				Laptime laptime = laptimes[i][j];
+				if (laptime.getTime() == Laptime.TIME_NOT_SET) {
+					continue;
+				}
+				lapOut.writeInt(session);
+				lapOut.writeInt(circuitId);
+				lapOut.writeInt(carId);
+				lapOut.writeInt(driverId);
+				lapOut.writeLong(date);
+				lapOut.writeInt(j + 1);
+				lapOut.writeInt(laptime.getTime());
+				lapOut.writeInt(laptime.getSectorTime(0));
+				lapOut.writeInt(laptime.getSectorTime(1));
+				lapOut.writeInt(laptime.getSectorTime(2));
+
+				addToIndex(circuitIndex, circuitId, firstLap + addedLaps);
+				addToIndex(carIndex, carId, firstLap + addedLaps);
+				addToIndex(driverIndex, driverId, firstLap + addedLaps);
+				addedLaps++;
+			}
+		}
+
+		append(LAPS_FILE, lapBytes.toByteArray());
+
+		byte[] sessionRecord = sessionBytes.toByteArray();
+		ByteArrayOutputStream sessionFile = new ByteArrayOutputStream();
+		DataOutputStream sessionFileOut = new DataOutputStream(sessionFile);
+		sessionFileOut.writeInt(sessionRecord.length);
+		sessionFileOut.write(sessionRecord);
+		append(SESSIONS_FILE, sessionFile.toByteArray());
+
+		mapLaps();
+		numSessions++;
+		return session;
+	}
+
+	/**
+	 * Returns the ID of a name, adding it to the names file if it does not
+	 * exist yet.
+	 */
+	private int getNameId(String name) throws IOException {
+
+		Integer id = nameIds.get(name);
+		if (id != null) {
+			return id;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new DataOutputStream(bytes).writeUTF(name);
+		append(NAMES_FILE, bytes.toByteArray());
+
+		nameIds.put(name, names.size());
+		names.add(name);
+		return names.size() - 1;
+	}
+
+	private void append(String fileName, byte[] data) throws IOException {
+		BufferedOutputStream out = new BufferedOutputStream(
+				new FileOutputStream(new File(dir, fileName), true));
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Returns the fastest laps that match the specified criteria. Every
+	 * criterium can be {@code null} or 0 to match all laps.
+	 * @param from Only laps driven on or after this date are returned.
+	 * @param to Only laps driven before this date are returned.
+	 * @param limit The maximum number of laps to return.
+	 */
+	public synchronized List<ArchivedLap> getFastestLaps(String circuit, String car, String driver,
+			long from, long to, int limit) {
+
+		List<ArchivedLap> result = new ArrayList<ArchivedLap>();
+		int[] records = findRecords(circuit, car, driver, from, to);
+
+		// Sorting the times first means only the returned laps are created
+		long[] sorted = new long[records.length];
+		for (int i = 0; i < records.length; i++) {
+			sorted[i] = ((long) laps.getInt(records[i] * LAP_RECORD_SIZE + 28) << 32) | records[i];
+		}
+		Arrays.sort(sorted);
+
+		for (int i = 0; i < Math.min(limit, sorted.length); i++) {
+			result.add(readLap((int) sorted[i]));
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns the times for one sector of all laps that match the specified
+	 * criteria, sorted from fast to slow. Every criterium can be {@code null} or
+	 * 0 to match all laps.
+	 * @param sector The sector, 0 - 2.
+	 */
+	public synchronized int[] getSectorTimes(String circuit, String car, String driver,
+			long from, long to, int sector) {
+
+		int[] records = findRecords(circuit, car, driver, from, to);
+		int[] times = new int[records.length];
+		int count = 0;
+
+		for (int record : records) {
+			int time = laps.getInt(record * LAP_RECORD_SIZE + 32 + sector * 4);
+			if (time != Laptime.SECTOR_NOT_SET) {
+				times[count++] = time;
+			}
+		}
+
+		times = Arrays.copyOf(times, count);
+		Arrays.sort(times);
+		return times;
+	}
+
+	/**
+	 * Returns the numbers of all lap records that match the specified criteria.
+	 * The candidates are taken from the smallest matching index, and then
+	 * checked against the other criteria.
+	 */
+	private int[] findRecords(String circuit, String car, String driver, long from, long to) {
+
+		RecordList candidates = null;
+		int[] criteria = { getCriterium(circuit), getCriterium(car), getCriterium(driver) };
+		List<List<RecordList>> indexes = new ArrayList<List<RecordList>>();
+		indexes.add(circuitIndex);
+		indexes.add(carIndex);
+		indexes.add(driverIndex);
+
+		for (int i = 0; i < criteria.length; i++) {
+			if (criteria[i] == -2) {
+				return new int[0];
+			}
+			if (criteria[i] >= 0) {
+				RecordList list = getIndex(indexes.get(i), criteria[i]);
+				if ((candidates == null) || (list.size < candidates.size)) {
+					candidates = list;
+				}
+			}
+		}
+
+		int numCandidates = (candidates != null) ? candidates.size : numLaps;
+		int[] records = new int[numCandidates];
+		int count = 0;
+
+		for (int i = 0; i < numCandidates; i++) {
+			int record = (candidates != null) ? candidates.records[i] : i;
+			int offset = record * LAP_RECORD_SIZE;
+			if (matches(criteria[0], laps.getInt(offset + 4)) &&
+					matches(criteria[1], laps.getInt(offset + 8)) &&
+					matches(criteria[2], laps.getInt(offset + 12)) &&
+					matchesDate(laps.getLong(offset + 16), from, to)) {
+				records[count++] = record;
+			}
+		}
+
+		return Arrays.copyOf(records, count);
+	}
+
+	/**
+	 * Returns the ID for a name that is used as a criterium, -1 if the name is
+	 * {@code null}, or -2 if the name does not occur in the archive.
+	 */
+	private int getCriterium(String name) {
+		if (name == null) {
+			return -1;
+		}
+		Integer id = nameIds.get(name);
+		return (id != null) ? id : -2;
+	}
+
+	private RecordList getIndex(List<RecordList> index, int nameId) {
+		if (nameId >= index.size()) {
+			return new RecordList();
+		}
+		return index.get(nameId);
+	}
+
+	private boolean matches(int criterium, int nameId) {
+		return (criterium < 0) || (criterium == nameId);
+	}
+
+	private boolean matchesDate(long date, long from, long to) {
+		return ((from == 0L) || (date >= from)) && ((to == 0L) || (date < to));
+	}
+
+	private ArchivedLap readLap(int record) {
+		int offset = record * LAP_RECORD_SIZE;
+		Laptime laptime = new Laptime(laps.getInt(offset + 32), laps.getInt(offset + 36),
+				laps.getInt(offset + 40));
+		laptime.setTime(laps.getInt(offset + 28));
+		return new ArchivedLap(laps.getInt(offset), names.get(laps.getInt(offset + 4)),
+				names.get(laps.getInt(offset + 8)), names.get(laps.getInt(offset + 12)),
+				laps.getLong(offset + 16), laps.getInt(offset + 24), laptime);
+	}
+
+	public synchronized int getNumSessions() {
+		return numSessions;
+	}
+
+	public synchronized int getNumLaps() {
+		return numLaps;
+	}
+
+	/**
+	 * Returns the names of all circuits, cars and drivers in the archive.
+	 */
+	public synchronized List<String> getNames() {
+		return Collections.unmodifiableList(new ArrayList<String>(names));
+	}
+
+	/**
+	 * List of lap record numbers that grows as records are added. Records are
+	 * always added in ascending order.
+	 */
+	private static class RecordList {
+
+		private int[] records;
+		private int size;
+
+		public RecordList() {
+			records = new int[16];
+			size = 0;
+		}
+
+		public void add(int record) {
+			if (size == records.length) {
+				records = Arrays.copyOf(records, size * 2);
+			}
+			records[size++] = record;
+		}
+	}
+}
@@ -0,0 +1,196 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// SessionReplay
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the state of all cars during a complete session. Every car is stored
+ * in its own {@link ReplayTrack}, which are all sampled at the same fixed frame
+ * rate. Frames are only recorded when enough time has elapsed since the
+ * previous frame, so the recording rate does not depend on the frame rate of
+ * the game.
+ * <p>
+ * Because the tracks are compressed the entire session can be kept in memory.
+ * A 60 minute race with 20 cars uses about 7 MB. The replay can also be saved
+ * to disk while it is being recorded, by attaching a {@link ReplayWriter}.
+ */
+public class SessionReplay implements ReplaySource {
+
+	private float frameRate;
+	private float frameTime;
+	private float time;
+	private int numFrames;
+	private List<String> names;
+	private List<String> cars;
+	private List<ReplayTrack> tracks;
+	private ReplayWriter writer;
+	private float[] frame;
+
+	public static final float DEFAULT_FRAME_RATE = 25f;
+
+	/**
+	 * Creates a new, empty replay.
+	 * @param frameRate The number of frames recorded per second.
+	 */
+	public SessionReplay(float frameRate) {
+		this.frameRate = frameRate;
+		this.frameTime = 1f / frameRate;
+		this.time = 0f;
+		this.numFrames = 0;
+		this.names = new ArrayList<String>();
+		this.cars = new ArrayList<String>();
+		this.tracks = new ArrayList<ReplayTrack>();
+		this.frame = new float[ReplayTrack.NUM_FIELDS];
+	}
+
+	public SessionReplay() {
+		this(DEFAULT_FRAME_RATE);
+	}
+
+	/**
+	 * Adds a track for a car. Cars must be added before the first frame is
+	 * recorded.
+	 * @param name The name of the contestant.
+	 * @param car The name of the car model.
+	 * @return The index of the track.
+	 * @throws IllegalStateException if frames have already been recorded.
+	 */
+	public int addTrack(String name, String car) {
+
+		if (numFrames > 0) {
+			throw new IllegalStateException("Replay already started");
+		}
+
+		names.add(name);
+		cars.add(car);
+		tracks.add(new ReplayTrack());
+		return tracks.size() - 1;
+	}
+
+	/**
+	 * Advances the recording time. When this returns true the caller should add
+	 * a frame for every track using {@link #record(int, float, float, float,
+	 * float, float, float, int)}. The first call always returns true.
+	 * @param dt Delta time since the last call, in seconds.
+	 * @return True if a new frame should be recorded.
+	 */
+	public boolean nextFrame(float dt) {
+
+		if (numFrames > 0) {
+			time += dt;
+			if (time < frameTime) {
+				return false;
+			}
+
+			// Carry the remainder, so that frames are spaced at the frame rate
+			// on average even when it is not a multiple of the tick rate
+			time = (time - frameTime) % frameTime;
+		}
+
+		numFrames++;
+		return true;
+	}
+
+	/**
+	 * Records the state of a car for the current frame.
+	 */
+	public void record(int track, float x, float y, float z, float direction, float orientation,
+			float speed, int gear) {
+
+		ReplayTrack replayTrack = tracks.get(track);
+		int completedChunks = replayTrack.getNumChunks();
+		replayTrack.add(x, y, z, direction, orientation, speed, gear);
+
+		if ((writer != null) && (replayTrack.getNumChunks() > completedChunks)) {
+			writer.chunkCompleted(track, completedChunks, replayTrack.getChunk(completedChunks));
+		}
+	}
+
+	/**
+	 * Adds a frame for every track by copying it from another replay. This can
+	 * be used instead of {@link #nextFrame(float)} to record a frame that has
+	 * already been recorded into a {@link ReplayBuffer}. Both replays should
+	 * contain the same tracks in the same order.
+	 */
+	public void addFrame(ReplaySource source, int sourceFrame) {
+
+		numFrames++;
+
+		for (int i = 0; i < tracks.size(); i++) {
+			source.getFrame(i, sourceFrame, frame);
+			record(i, frame[ReplayTrack.X], frame[ReplayTrack.Y], frame[ReplayTrack.Z],
+					frame[ReplayTrack.DIRECTION], frame[ReplayTrack.ORIENTATION],
+					frame[ReplayTrack.SPEED], (int) frame[ReplayTrack.GEAR]);
+		}
+	}
+
+	/**
+	 * Attaches a writer that is notified every time a chunk is completed. This
+	 * should be done before the first frame is recorded, chunks that were
+	 * completed earlier are written when the writer is closed.
+	 */
+	void setWriter(ReplayWriter writer) {
+		this.writer = writer;
+	}
+
+	/** {@inheritDoc} */
+	public void getFrame(int track, int frame, float[] dest) {
+		tracks.get(track).get(frame, dest);
+	}
+
+	public int getNumTracks() {
+		return tracks.size();
+	}
+
+	public String getName(int track) {
+		return names.get(track);
+	}
+
+	public String getCar(int track) {
+		return cars.get(track);
+	}
+
+	public ReplayTrack getTrack(int track) {
+		return tracks.get(track);
+	}
+
+	public int getNumFrames() {
+		return numFrames;
+	}
+
+	public float getFrameRate() {
+		return frameRate;
+	}
+
+	/**
+	 * Returns the number of frames in every chunk, which is the same for all
+	 * tracks.
+	 */
+	public int getFramesPerChunk() {
+		return ReplayTrack.DEFAULT_FRAMES_PER_CHUNK;
+	}
+
+	/**
+	 * Returns the duration of the recording, in seconds.
+	 */
+	public float getDuration() {
+		return Math.max(0, numFrames - 1) / frameRate;
+	}
+
+	/**
+	 * Returns the total number of bytes used by all tracks.
+	 */
+	public long getEncodedSize() {
+		long size = 0L;
+		for (ReplayTrack i : tracks) {
+			size += i.getEncodedSize();
+		}
+		return size;
+	}
+}
@@ -53,6 +53,9 @@ public final class Settings extends Configuration {
 	public int units;
 	public int defaultCamera;
 	public boolean enableReplays;
+	public int replayRate;
+	public int replayDuration;
+	public String telemetry;
 	public boolean showSAT;
 	public boolean showFramerate;
 	public boolean fullscreen;
@@ -66,6 +69,10 @@ public final class Settings extends Configuration {
 	public int multiplayerMode;
 	public String multiplayerServer;
 	public String multiplayerSession;
+	public boolean textUpdates;
+	public boolean udpSnapshots;
+	public int udpRedundancy;
+	public int udpLoss;
 	public boolean report;
 	public boolean debug;
 	
@@ -100,6 +107,7 @@ public final class Settings extends Configuration {
 	public static final BufferedImage ICON = Utils.loadImage("data/graphics/icon.png");
 	public static final BufferedImage EDITOR_ICON = Utils.loadImage("data/graphics/icon.png");
 	public static final int LOCAL_MULTIPLAYER_PORT = 22220;
+	public static final int LOCAL_SNAPSHOT_PORT = 22221;
 	public static final String INTERNET_MULTIPLAYER_SERVER = "http://ferrari3d-server.appspot.com/";
 	public static final String WEB_ROOT = "http://www.dennisbijlsma.com/data/ferrari3d/";
 	public static final String LOAD_RECORDS_URL = WEB_ROOT+"get_records.php";
@@ -201,6 +209,9 @@ public final class Settings extends Configuration {
 		units = getIntProperty("settings.units");
 		defaultCamera = getIntProperty("settings.defaultCamera");
 		enableReplays = getBooleanProperty("settings.enableReplays");
+		replayRate = getIntProperty("settings.replayRate", 25);
+		replayDuration = getIntProperty("settings.replayDuration", 60);
+		telemetry = getProperty("settings.telemetry", "");
 		showSAT = getBooleanProperty("settings.showSAT");
 		showFramerate = getBooleanProperty("settings.showFramerate");
 		fullscreen = getBooleanProperty("settings.fullscreen");
@@ -215,6 +226,10 @@ public final class Settings extends Configuration {
 		multiplayerMode = getIntProperty("multiplayer.mode");
 		multiplayerServer = getProperty("multiplayer.server");
 		multiplayerSession = getProperty("multiplayer.session");
+		textUpdates = getBooleanProperty("multiplayer.textUpdates", false);
+		udpSnapshots = getBooleanProperty("multiplayer.udpSnapshots", true);
+		udpRedundancy = getIntProperty("multiplayer.udpRedundancy", 3);
+		udpLoss = getIntProperty("multiplayer.udpLoss", 0);
 		
 		report = getBooleanProperty("config.report");
 		debug = getBooleanProperty("config.debug");
@@ -250,6 +265,9 @@ public final class Settings extends Configuration {
 			writer.println("settings.units=" + units);
 			writer.println("settings.defaultCamera=" + defaultCamera);
 			writer.println("settings.enableReplays=" + enableReplays);
+			writer.println("settings.replayRate=" + replayRate);
+			writer.println("settings.replayDuration=" + replayDuration);
+			writer.println("settings.telemetry=" + telemetry);
 			writer.println("settings.showSAT=" + showSAT);
 			writer.println("settings.showFramerate=" + showFramerate);
 			writer.println("settings.fullscreen=" + fullscreen);
@@ -264,6 +282,10 @@ public final class Settings extends Configuration {
 			writer.println("multiplayer.mode=" + multiplayerMode);
 			writer.println("multiplayer.server=" + multiplayerServer);
 			writer.println("multiplayer.session=" + multiplayerSession);
+			writer.println("multiplayer.textUpdates=" + textUpdates);
+			writer.println("multiplayer.udpSnapshots=" + udpSnapshots);
+			writer.println("multiplayer.udpRedundancy=" + udpRedundancy);
+			writer.println("multiplayer.udpLoss=" + udpLoss);
 			
 			writer.println("config.report=" + report);
 			writer.println("config.debug=" + debug);
@@ -294,6 +316,9 @@ public final class Settings extends Configuration {
 		units = UNITS_KMH;
 		defaultCamera = 3;
 		enableReplays = false;
+		replayRate = 25;
+		replayDuration = 60;
+		telemetry = "";
 		showSAT = true;
 		showFramerate = false;
 		fullscreen = false;
@@ -308,11 +333,33 @@ public final class Settings extends Configuration {
 		multiplayerMode = MULTIPLAYER_LOCAL;
 		multiplayerServer = "127.0.0.1";
 		multiplayerSession = Platform.getUserAccount();
+		textUpdates = false;
+		udpSnapshots = true;
+		udpRedundancy = 3;
+		udpLoss = 0;
 		
 		report = false;
 		debug = false;
 	}
 	
+	/**
+	 * Returns the value of an int property, or the specified default value if
+	 * the property does not exist. This is used for properties that were added
+	 * after the settings file was created, which should have the same value as
+	 * in {@link #defaults()}.
+	 */
+	private int getIntProperty(String name, int defaultValue) {
+		return propertyExists(name) ? getIntProperty(name) : defaultValue;
+	}
+	
+	private String getProperty(String name, String defaultValue) {
+		return propertyExists(name) ? getProperty(name) : defaultValue;
+	}
+	
+	private boolean getBooleanProperty(String name, boolean defaultValue) {
+		return propertyExists(name) ? getBooleanProperty(name) : defaultValue;
+	}
+	
 	/** {@inheritDoc} */
 	@Override
 	protected boolean isCompatibleFileVersion() {
@@ -0,0 +1,105 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// Snapshot
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.util;
+
+/**
+ * The state of all cars that a multiplayer peer is responsible for, at a
+ * certain network tick. Snapshots are sent as a single message, instead of a
+ * message per car. The {@code CarState} objects in a snapshot are reused when
+ * it is cleared, so a snapshot does not create objects once it has grown to the
+ * number of cars in the session.
+ */
+public class Snapshot {
+
+	private int sender;
+	private int tick;
+	private int time;
+	private CarState[] states;
+	private int size;
+
+	private static final int DEFAULT_CAPACITY = 8;
+
+	public Snapshot() {
+		sender = -1;
+		tick = 0;
+		time = 0;
+		states = new CarState[DEFAULT_CAPACITY];
+		size = 0;
+	}
+
+	/**
+	 * Removes all car states from this snapshot.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Adds a car state to this snapshot and returns it. The fields of the
+	 * returned state should be filled in by the caller.
+	 */
+	public CarState add() {
+
+		if (size == states.length) {
+			CarState[] newStates = new CarState[states.length * 2];
+			System.arraycopy(states, 0, newStates, 0, states.length);
+			states = newStates;
+		}
+
+		if (states[size] == null) {
+			states[size] = new CarState();
+		}
+		return states[size++];
+	}
+
+	public CarState get(int index) {
+		if ((index < 0) || (index >= size)) {
+			throw new IndexOutOfBoundsException("Invalid index: " + index);
+		}
+		return states[index];
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public void setSender(int sender) {
+		this.sender = sender;
+	}
+
+	/**
+	 * Returns the ID of the peer that sent this snapshot. This is the ID of the
+	 * contestant that is controlled by the player on that peer.
+	 */
+	public int getSender() {
+		return sender;
+	}
+
+	public void setTick(int tick) {
+		this.tick = tick;
+	}
+
+	/**
+	 * Returns the network tick at which this snapshot was taken. Ticks are
+	 * counted separately by every peer.
+	 */
+	public int getTick() {
+		return tick;
+	}
+
+	public void setTime(int time) {
+		this.time = time;
+	}
+
+	/**
+	 * Returns the time at which this snapshot was taken, in milliseconds. Like
+	 * ticks, time is measured separately by every peer.
+	 */
+	public int getTime() {
+		return time;
+	}
+}
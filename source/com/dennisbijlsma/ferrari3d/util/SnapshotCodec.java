@@ -0,0 +1,505 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// SnapshotCodec
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.util;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes snapshots as differences against an earlier snapshot that all other
+ * peers have received. Every peer acknowledges the snapshots it received from
+ * every other peer, by including the tick of the last one in its own snapshots
+ * together with a bitmask of the ticks before it. The sender uses the newest
+ * snapshot that was acknowledged by all peers as the baseline, as a snapshot is
+ * broadcast and the same message is received by every peer. Because snapshots
+ * can be lost, the last snapshot acknowledged by one peer is not necessarily
+ * received by the others.
+ * <p>
+ * For every car a bitmask indicates which of the quantized fields of
+ * {@link StateCodec} have changed since the baseline. Only the changed fields
+ * are written, as the difference with the baseline. A keyframe is simply a
+ * snapshot that is encoded against an empty baseline. Keyframes are sent
+ * periodically, and whenever a peer has not yet acknowledged a snapshot or
+ * falls too far behind.
+ * <p>
+ * An encoded snapshot has the following layout, where all integers are
+ * variable length:
+ * <pre>
+ *   version        byte
+ *   flags          byte, 1 for a delta
+ *   sender         the ID of the sending peer
+ *   tick
+ *   time           the time at which the snapshot was created, in milliseconds
+ *   baseline       the tick of the baseline, only for deltas
+ *   acks           the number of acks, followed by the peer ID, tick and mask
+ *                  of each. Bit n of the mask is set when tick - n - 1 was
+ *                  also received.
+ *   cars           the number of cars, followed by the ID, bitmask and changed
+ *                  fields of each car
+ * </pre>
+ * Peers are identified by the contestant ID of the player on that peer. Both
+ * encoding and decoding should be done from the same thread.
+ */
+public class SnapshotCodec {
+
+	private StateCodec codec;
+	private int localId;
+	private History sent;
+	private Map<Integer,History> received;
+	private Map<Integer,Acks> acks;
+	private int lastKeyframe;
+	private int[] base;
+	private int[] differences;
+	private int numKeyframes;
+	private int numDeltas;
+
+	private static final int FLAG_DELTA = 1;
+	private static final int HISTORY_SIZE = 32;
+	private static final int MAX_DELTA_TICKS = HISTORY_SIZE / 2;
+	private static final int KEYFRAME_INTERVAL = 50;
+	private static final int HEADER_SIZE = 2 + 5 * 5;
+
+	public SnapshotCodec() {
+		codec = new StateCodec(256);
+		localId = -1;
+		sent = new History();
+		received = new HashMap<Integer,History>();
+		acks = new HashMap<Integer,Acks>();
+		lastKeyframe = Integer.MIN_VALUE;
+		base = new int[StateCodec.NUM_FIELDS];
+		differences = new int[StateCodec.NUM_FIELDS];
+		numKeyframes = 0;
+		numDeltas = 0;
+	}
+
+	/**
+	 * Encodes a snapshot, using the snapshot's sender as the ID of the local
+	 * peer. The encoded snapshot is stored, so that it can be used as the
+	 * baseline for later snapshots.
+	 * @return The encoded snapshot, as a Base64 string.
+	 */
+	public String encode(Snapshot snapshot) {
+		ByteBuffer buffer = encodeBinary(snapshot);
+		return codec.toBase64(buffer);
+	}
+
+	/**
+	 * Encodes a snapshot in the same way as {@link #encode(Snapshot)}, but
+	 * without converting it to Base64.
+	 * @return A buffer containing the encoded snapshot, ready for reading. The
+	 *         buffer is reused by the next call to this class.
+	 */
+	public ByteBuffer encodeBinary(Snapshot snapshot) {
+
+		localId = snapshot.getSender();
+		int tick = snapshot.getTick();
+		Frame baseline = getBaseline(tick);
+		if (baseline == null) {
+			lastKeyframe = tick;
+			numKeyframes++;
+		} else {
+			numDeltas++;
+		}
+
+		ByteBuffer buffer = getBuffer(HEADER_SIZE + received.size() * 15 +
+				snapshot.getSize() * (5 + 3 + StateCodec.NUM_FIELDS * 5));
+		buffer.put((byte) StateCodec.VERSION);
+		buffer.put((byte) ((baseline != null) ? FLAG_DELTA : 0));
+		StateCodec.writeVarint(localId, buffer);
+		StateCodec.writeVarint(tick, buffer);
+		StateCodec.writeVarint(snapshot.getTime(), buffer);
+		if (baseline != null) {
+			StateCodec.writeVarint(baseline.tick, buffer);
+		}
+
+		StateCodec.writeVarint(received.size(), buffer);
+		for (Map.Entry<Integer,History> entry : received.entrySet()) {
+			StateCodec.writeVarint(entry.getKey(), buffer);
+			StateCodec.writeVarint(entry.getValue().latest, buffer);
+			StateCodec.writeVarint(entry.getValue().getMask(), buffer);
+		}
+
+		Frame frame = sent.put(tick, snapshot.getSize());
+		StateCodec.writeVarint(snapshot.getSize(), buffer);
+		for (int i = 0; i < snapshot.getSize(); i++) {
+			CarState state = snapshot.get(i);
+			int offset = i * StateCodec.NUM_FIELDS;
+			frame.ids[i] = state.id;
+			StateCodec.quantize(state, frame.fields, offset);
+			StateCodec.writeVarint(state.id, buffer);
+			getBaseFields(baseline, state.id, base);
+			writeFields(frame.fields, offset, base, buffer);
+		}
+
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Returns the snapshot to use as a baseline for the snapshot with the
+	 * specified tick, or {@code null} if a keyframe should be sent.
+	 */
+	private Frame getBaseline(int tick) {
+
+		if (received.isEmpty() || (tick - lastKeyframe >= KEYFRAME_INTERVAL)) {
+			return null;
+		}
+
+		for (int baselineTick = tick - 1; baselineTick >= tick - MAX_DELTA_TICKS; baselineTick--) {
+			Frame baseline = sent.get(baselineTick);
+			if ((baseline != null) && isAcknowledged(baselineTick)) {
+				return baseline;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns true if all peers have acknowledged the snapshot with the
+	 * specified tick.
+	 */
+	private boolean isAcknowledged(int tick) {
+		for (Integer peer : received.keySet()) {
+			Acks peerAcks = acks.get(peer);
+			if ((peerAcks == null) || !peerAcks.contains(tick)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the bitmask and the changed fields of a car.
+	 */
+	private void writeFields(int[] values, int offset, int[] base, ByteBuffer dest) {
+
+		int mask = 0;
+		for (int i = 0; i < StateCodec.NUM_FIELDS; i++) {
+			differences[i] = difference(i, values[offset + i], base[i]);
+			if (differences[i] != 0) {
+				mask |= 1 << i;
+			}
+		}
+
+		StateCodec.writeVarint(mask, dest);
+		for (int i = 0; i < StateCodec.NUM_FIELDS; i++) {
+			if (differences[i] != 0) {
+				StateCodec.writeSignedVarint(differences[i], dest);
+			}
+		}
+	}
+
+	/**
+	 * Copies the quantized fields of a car in a baseline to {@code dest}. If
+	 * there is no baseline, or the baseline does not contain the car, all
+	 * fields are set to 0.
+	 */
+	private static void getBaseFields(Frame baseline, int id, int[] dest) {
+		int index = (baseline != null) ? baseline.indexOf(id) : -1;
+		if (index == -1) {
+			Arrays.fill(dest, 0);
+		} else {
+			System.arraycopy(baseline.fields, index * StateCodec.NUM_FIELDS, dest, 0, dest.length);
+		}
+	}
+
+	private static int difference(int field, int value, int base) {
+		if ((field == StateCodec.FIELD_ORIENTATION) || (field == StateCodec.FIELD_DIRECTION)) {
+			return (short) (value - base);
+		}
+		return value - base;
+	}
+
+	private static int apply(int field, int base, int difference) {
+		if ((field == StateCodec.FIELD_ORIENTATION) || (field == StateCodec.FIELD_DIRECTION)) {
+			return (base + difference) & 0xFFFF;
+		}
+		return base + difference;
+	}
+
+	/**
+	 * Decodes a snapshot that was received from another peer. Any car states
+	 * that were previously in the snapshot are removed. Acks for snapshots
+	 * sent by the local peer are recorded.
+	 * @return True if the snapshot was decoded. False if the text is not a
+	 *         valid snapshot, if it is older than a snapshot that was already
+	 *         received from the same peer, or if it is a delta against a
+	 *         baseline that is no longer available.
+	 */
+	public boolean decode(String text, Snapshot dest) {
+		ByteBuffer buffer = getBuffer(text.length() / 4 * 3);
+		if (!codec.fromBase64(text, buffer)) {
+			dest.clear();
+			return false;
+		}
+		return decodeBinary(buffer, dest);
+	}
+
+	/**
+	 * Decodes a snapshot that was encoded by {@link #encodeBinary(Snapshot)}.
+	 * The snapshot is read from the buffer's current position.
+	 * @return True if the snapshot was decoded, see {@link #decode(String, Snapshot)}.
+	 */
+	public boolean decodeBinary(ByteBuffer buffer, Snapshot dest) {
+
+		dest.clear();
+		Frame frame = null;
+		try {
+			if (buffer.get() != StateCodec.VERSION) {
+				return false;
+			}
+			boolean delta = (buffer.get() & FLAG_DELTA) != 0;
+			int sender = StateCodec.readVarint(buffer);
+			int tick = StateCodec.readVarint(buffer);
+			int time = StateCodec.readVarint(buffer);
+			if (sender == localId) {
+				return false;
+			}
+			History history = received.get(sender);
+			if ((history != null) && (tick <= history.latest)) {
+				return false;
+			}
+			Frame baseline = null;
+			if (delta) {
+				baseline = (history != null) ? history.get(StateCodec.readVarint(buffer)) : null;
+				if (baseline == null) {
+					return false;
+				}
+			}
+
+			int numAcks = StateCodec.readVarint(buffer);
+			for (int i = 0; i < numAcks; i++) {
+				int peer = StateCodec.readVarint(buffer);
+				int ack = StateCodec.readVarint(buffer);
+				int mask = StateCodec.readVarint(buffer);
+				if (peer == localId) {
+					getAcks(sender).add(ack, mask);
+				}
+			}
+
+			int size = StateCodec.readVarint(buffer);
+			if ((size < 0) || (size > buffer.remaining())) {
+				return false;
+			}
+
+			if (history == null) {
+				history = new History();
+				received.put(sender, history);
+			}
+			frame = history.put(tick, size);
+			for (int i = 0; i < size; i++) {
+				int id = StateCodec.readVarint(buffer);
+				int offset = i * StateCodec.NUM_FIELDS;
+				getBaseFields(baseline, id, base);
+				int mask = StateCodec.readVarint(buffer);
+				for (int j = 0; j < StateCodec.NUM_FIELDS; j++) {
+					int difference = ((mask & (1 << j)) != 0) ? StateCodec.readSignedVarint(buffer) : 0;
+					frame.fields[offset + j] = apply(j, base[j], difference);
+				}
+				frame.ids[i] = id;
+
+				CarState state = dest.add();
+				state.id = id;
+				StateCodec.dequantize(frame.fields, offset, state);
+			}
+
+			history.latest = tick;
+			dest.setSender(sender);
+			dest.setTick(tick);
+			dest.setTime(time);
+			return true;
+		} catch (BufferUnderflowException e) {
+			// The frame was only partially decoded and cannot be a baseline
+			if (frame != null) {
+				frame.tick = -1;
+			}
+			dest.clear();
+			return false;
+		}
+	}
+
+	/**
+	 * Records that a peer has received the snapshot with the specified tick,
+	 * for peers that acknowledge snapshots without sending snapshots of their
+	 * own. The peer is added to the peers that need to acknowledge a snapshot
+	 * before it can be used as a baseline.
+	 */
+	public void acknowledge(int peer, int tick) {
+		if (!received.containsKey(peer)) {
+			received.put(peer, new History());
+		}
+		getAcks(peer).add(tick, 0);
+	}
+
+	/**
+	 * Forgets a peer that has left the session. Snapshots no longer need to be
+	 * acknowledged by the peer before they can be used as a baseline.
+	 */
+	public void removePeer(int peer) {
+		received.remove(peer);
+		acks.remove(peer);
+	}
+
+	private Acks getAcks(int peer) {
+		Acks peerAcks = acks.get(peer);
+		if (peerAcks == null) {
+			peerAcks = new Acks();
+			acks.put(peer, peerAcks);
+		}
+		return peerAcks;
+	}
+
+	/**
+	 * Returns the buffer used for encoding and decoding, after clearing it and
+	 * making sure that it can hold at least the specified number of bytes.
+	 */
+	private ByteBuffer getBuffer(int capacity) {
+		if (codec.getBuffer().capacity() < capacity) {
+			codec = new StateCodec(Math.max(capacity, codec.getBuffer().capacity() * 2));
+		}
+		codec.getBuffer().clear();
+		return codec.getBuffer();
+	}
+
+	/**
+	 * Returns the number of snapshots that were encoded as keyframes.
+	 */
+	public int getNumKeyframes() {
+		return numKeyframes;
+	}
+
+	/**
+	 * Returns the number of snapshots that were encoded as deltas.
+	 */
+	public int getNumDeltas() {
+		return numDeltas;
+	}
+
+	/**
+	 * The quantized car states of a snapshot.
+	 */
+	private static class Frame {
+
+		private int tick;
+		private int size;
+		private int[] ids;
+		private int[] fields;
+
+		public Frame() {
+			tick = -1;
+			ids = new int[0];
+			fields = new int[0];
+		}
+
+		public int indexOf(int id) {
+			for (int i = 0; i < size; i++) {
+				if (ids[i] == id) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * Stores the most recent snapshots of a peer, indexed by tick.
+	 */
+	private static class History {
+
+		private Frame[] frames;
+		private int latest;
+
+		public History() {
+			frames = new Frame[HISTORY_SIZE];
+			for (int i = 0; i < frames.length; i++) {
+				frames[i] = new Frame();
+			}
+			latest = 0;
+		}
+
+		public Frame put(int tick, int size) {
+			Frame frame = frames[(tick & 0x7FFFFFFF) % HISTORY_SIZE];
+			if (frame.ids.length < size) {
+				frame.ids = new int[size];
+				frame.fields = new int[size * StateCodec.NUM_FIELDS];
+			}
+			frame.tick = tick;
+			frame.size = size;
+			return frame;
+		}
+
+		public Frame get(int tick) {
+			Frame frame = frames[(tick & 0x7FFFFFFF) % HISTORY_SIZE];
+			return (frame.tick == tick) ? frame : null;
+		}
+
+		/**
+		 * Returns a bitmask of the snapshots before the latest one that are
+		 * still available as a baseline. Bit n is set for tick
+		 * {@code latest - n - 1}.
+		 */
+		public int getMask() {
+			int mask = 0;
+			for (int i = 0; i < HISTORY_SIZE - 1; i++) {
+				if (get(latest - i - 1) != null) {
+					mask |= 1 << i;
+				}
+			}
+			return mask;
+		}
+	}
+
+	/**
+	 * The snapshots of the local peer that have been acknowledged by another
+	 * peer. Acks can arrive out of order, so every ack is merged with those
+	 * that were received earlier.
+	 */
+	private static class Acks {
+
+		private int latest;
+		private int mask;
+
+		public Acks() {
+			latest = -1;
+			mask = 0;
+		}
+
+		public void add(int tick, int tickMask) {
+
+			if (latest < 0) {
+				latest = tick;
+				mask = tickMask;
+			} else if (tick > latest) {
+				int shift = tick - latest;
+				mask = (shift < 32) ? ((mask << shift) | (1 << (shift - 1))) : 0;
+				mask |= tickMask;
+				latest = tick;
+			} else if (tick < latest) {
+				int shift = latest - tick;
+				if (shift <= 32) {
+					mask |= 1 << (shift - 1);
+				}
+				if (shift < 32) {
+					mask |= tickMask << shift;
+				}
+			} else {
+				mask |= tickMask;
+			}
+		}
+
+		public boolean contains(int tick) {
+			int age = latest - tick;
+			if (age == 0) {
+				return latest >= 0;
+			}
+			return (age > 0) && (age <= 32) && ((mask & (1 << (age - 1))) != 0);
+		}
+	}
+}
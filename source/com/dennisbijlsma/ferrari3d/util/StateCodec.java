@@ -0,0 +1,335 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// StateCodec
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.util;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary encoding for the state of a car. The state is written as a fixed
+ * layout of quantized values, which is about a tenth of the size of the text
+ * format and can be encoded and decoded without parsing numbers. Each encoded
+ * message starts with the version of the layout, followed by the ID of the car
+ * as a variable length integer:
+ * <pre>
+ *   version        byte
+ *   id             varint
+ *   x, y, z        int, in 1/1000 units
+ *   orientation    unsigned short, in 1/65536 of a circle
+ *   direction      unsigned short, in 1/65536 of a circle
+ *   speed          short, in 1/100 units
+ *   angularSpeed   short, in 1/1000 units
+ *   lap            unsigned short
+ *   intermediate   byte
+ *   point          unsigned short
+ *   laptime        int, in milliseconds
+ * </pre>
+ * The quantized values can also be obtained as an array of integers, which is
+ * used by {@link SnapshotCodec} to encode differences between states.
+ * <p>
+ * Because the messaging library can only send text, encoded messages are
+ * converted to Base64. All buffers are reused, so the only object created
+ * while encoding is the resulting string, and decoding creates no objects.
+ * Instances of this class are not thread safe.
+ */
+public class StateCodec {
+
+	private ByteBuffer buffer;
+	private char[] chars;
+
+	public static final int VERSION = 3;
+	public static final int MAX_STATE_SIZE = 5 + 12 + 8 + 5 + 4;
+	public static final int NUM_FIELDS = 11;
+	public static final int FIELD_ORIENTATION = 3;
+	public static final int FIELD_DIRECTION = 4;
+
+	private static final int DEFAULT_CAPACITY = 1 + MAX_STATE_SIZE;
+	private static final float POSITION_SCALE = 1000f;
+	private static final float ANGLE_SCALE = 65536f / (2f * (float) Math.PI);
+	private static final float SPEED_SCALE = 100f;
+	private static final float ANGULAR_SPEED_SCALE = 1000f;
+	private static final char[] BASE64_CHARS =
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+	private static final byte[] BASE64_VALUES = new byte[128];
+
+	static {
+		for (int i = 0; i < BASE64_VALUES.length; i++) {
+			BASE64_VALUES[i] = -1;
+		}
+		for (int i = 0; i < BASE64_CHARS.length; i++) {
+			BASE64_VALUES[BASE64_CHARS[i]] = (byte) i;
+		}
+	}
+
+	/**
+	 * Creates a codec that can encode and decode a single car state.
+	 */
+	public StateCodec() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a codec with buffers of the specified size in bytes.
+	 */
+	public StateCodec(int capacity) {
+		buffer = ByteBuffer.allocate(capacity);
+		chars = new char[(capacity + 2) / 3 * 4];
+	}
+
+	/**
+	 * Encodes the state of a car.
+	 * @return The encoded state, as a Base64 string.
+	 */
+	public String encode(CarState state) {
+		buffer.clear();
+		buffer.put((byte) VERSION);
+		writeState(state, buffer);
+		buffer.flip();
+		return toBase64(buffer);
+	}
+
+	/**
+	 * Decodes the state of a car.
+	 * @return True if the state was decoded, false if the text is not a valid
+	 *         state or was encoded with a different version.
+	 */
+	public boolean decode(String text, CarState dest) {
+
+		if (!fromBase64(text, buffer) || (buffer.get() != VERSION)) {
+			return false;
+		}
+
+		try {
+			readState(buffer, dest);
+			return true;
+		} catch (BufferUnderflowException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Decodes only the ID of the car from an encoded state. This is cheaper
+	 * than decoding the whole state when only messages for a certain car are
+	 * needed.
+	 * @return The ID, or -1 if the text is not a valid state.
+	 */
+	public int decodeId(String text) {
+
+		// The version and the longest ID fit in the first 8 characters
+		if (!fromBase64(text, Math.min(text.length(), 8), buffer) || (buffer.get() != VERSION)) {
+			return -1;
+		}
+
+		try {
+			return readVarint(buffer);
+		} catch (BufferUnderflowException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Writes the state of a car to a buffer, starting at its current position.
+	 */
+	public static void writeState(CarState state, ByteBuffer dest) {
+		writeVarint(state.id, dest);
+		dest.putInt(Math.round(state.x * POSITION_SCALE));
+		dest.putInt(Math.round(state.y * POSITION_SCALE));
+		dest.putInt(Math.round(state.z * POSITION_SCALE));
+		dest.putShort(quantizeAngle(state.orientation));
+		dest.putShort(quantizeAngle(state.direction));
+		dest.putShort(clampShort(Math.round(state.speed * SPEED_SCALE)));
+		dest.putShort(clampShort(Math.round(state.angularSpeed * ANGULAR_SPEED_SCALE)));
+		dest.putShort((short) Math.min(state.lap, 0xFFFF));
+		dest.put((byte) state.intermediate);
+		dest.putShort((short) Math.min(state.point, 0xFFFF));
+		dest.putInt(state.laptime);
+	}
+
+	/**
+	 * Reads the state of a car from a buffer, starting at its current position.
+	 * @throws BufferUnderflowException if the buffer does not contain a state.
+	 */
+	public static void readState(ByteBuffer src, CarState dest) {
+		dest.id = readVarint(src);
+		dest.x = src.getInt() / POSITION_SCALE;
+		dest.y = src.getInt() / POSITION_SCALE;
+		dest.z = src.getInt() / POSITION_SCALE;
+		dest.orientation = (src.getShort() & 0xFFFF) / ANGLE_SCALE;
+		dest.direction = (src.getShort() & 0xFFFF) / ANGLE_SCALE;
+		dest.speed = src.getShort() / SPEED_SCALE;
+		dest.angularSpeed = src.getShort() / ANGULAR_SPEED_SCALE;
+		dest.lap = src.getShort() & 0xFFFF;
+		dest.intermediate = src.get();
+		dest.point = src.getShort() & 0xFFFF;
+		dest.laptime = src.getInt();
+	}
+
+	/**
+	 * Converts all fields of a car state, except the ID, to the quantized
+	 * values that are used in the binary format. The values are stored in
+	 * {@code dest}, starting at {@code offset}, in the order of the layout.
+	 * Angles are stored as unsigned values.
+	 */
+	public static void quantize(CarState state, int[] dest, int offset) {
+		dest[offset] = Math.round(state.x * POSITION_SCALE);
+		dest[offset + 1] = Math.round(state.y * POSITION_SCALE);
+		dest[offset + 2] = Math.round(state.z * POSITION_SCALE);
+		dest[offset + FIELD_ORIENTATION] = quantizeAngle(state.orientation) & 0xFFFF;
+		dest[offset + FIELD_DIRECTION] = quantizeAngle(state.direction) & 0xFFFF;
+		dest[offset + 5] = clampShort(Math.round(state.speed * SPEED_SCALE));
+		dest[offset + 6] = clampShort(Math.round(state.angularSpeed * ANGULAR_SPEED_SCALE));
+		dest[offset + 7] = Math.min(state.lap, 0xFFFF);
+		dest[offset + 8] = (byte) state.intermediate;
+		dest[offset + 9] = Math.min(state.point, 0xFFFF);
+		dest[offset + 10] = state.laptime;
+	}
+
+	/**
+	 * Converts quantized values, as created by {@link #quantize(CarState, int[], int)},
+	 * back to the fields of a car state. The ID of the state is not changed.
+	 */
+	public static void dequantize(int[] src, int offset, CarState dest) {
+		dest.x = src[offset] / POSITION_SCALE;
+		dest.y = src[offset + 1] / POSITION_SCALE;
+		dest.z = src[offset + 2] / POSITION_SCALE;
+		dest.orientation = (src[offset + FIELD_ORIENTATION] & 0xFFFF) / ANGLE_SCALE;
+		dest.direction = (src[offset + FIELD_DIRECTION] & 0xFFFF) / ANGLE_SCALE;
+		dest.speed = src[offset + 5] / SPEED_SCALE;
+		dest.angularSpeed = src[offset + 6] / ANGULAR_SPEED_SCALE;
+		dest.lap = src[offset + 7];
+		dest.intermediate = src[offset + 8];
+		dest.point = src[offset + 9];
+		dest.laptime = src[offset + 10];
+	}
+
+	/**
+	 * Converts an angle to a fraction of a circle. Angles are stored modulo a
+	 * full circle, so the decoded angle is always between 0 and 2 PI.
+	 */
+	private static short quantizeAngle(float angle) {
+		return (short) Math.round(angle * ANGLE_SCALE);
+	}
+
+	private static short clampShort(int value) {
+		return (short) Math.max(Short.MIN_VALUE, Math.min(value, Short.MAX_VALUE));
+	}
+
+	/**
+	 * Writes a non-negative integer using 7 bits per byte, so that small
+	 * values only take a single byte.
+	 */
+	public static void writeVarint(int value, ByteBuffer dest) {
+		while ((value & ~0x7F) != 0) {
+			dest.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		dest.put((byte) value);
+	}
+
+	/**
+	 * Writes an integer that can be negative. The value is zigzag encoded, so
+	 * that values close to 0 take a single byte regardless of their sign.
+	 */
+	public static void writeSignedVarint(int value, ByteBuffer dest) {
+		writeVarint((value << 1) ^ (value >> 31), dest);
+	}
+
+	public static int readSignedVarint(ByteBuffer src) {
+		int value = readVarint(src);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	public static int readVarint(ByteBuffer src) {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = src.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new BufferUnderflowException();
+	}
+
+	/**
+	 * Converts the remaining bytes in a buffer to a Base64 string.
+	 */
+	public String toBase64(ByteBuffer src) {
+
+		int length = 0;
+		while (src.remaining() >= 3) {
+			int bits = ((src.get() & 0xFF) << 16) | ((src.get() & 0xFF) << 8) | (src.get() & 0xFF);
+			chars[length++] = BASE64_CHARS[(bits >>> 18) & 0x3F];
+			chars[length++] = BASE64_CHARS[(bits >>> 12) & 0x3F];
+			chars[length++] = BASE64_CHARS[(bits >>> 6) & 0x3F];
+			chars[length++] = BASE64_CHARS[bits & 0x3F];
+		}
+
+		if (src.remaining() > 0) {
+			int remaining = src.remaining();
+			int bits = (src.get() & 0xFF) << 16;
+			if (remaining == 2) {
+				bits |= (src.get() & 0xFF) << 8;
+			}
+			chars[length++] = BASE64_CHARS[(bits >>> 18) & 0x3F];
+			chars[length++] = BASE64_CHARS[(bits >>> 12) & 0x3F];
+			chars[length++] = (remaining == 2) ? BASE64_CHARS[(bits >>> 6) & 0x3F] : '=';
+			chars[length++] = '=';
+		}
+
+		return new String(chars, 0, length);
+	}
+
+	/**
+	 * Decodes a Base64 string into a buffer. The buffer is cleared first, and
+	 * is ready for reading afterwards.
+	 * @return False if the string contains invalid characters or does not fit
+	 *         in the buffer.
+	 */
+	public boolean fromBase64(String text, ByteBuffer dest) {
+		return fromBase64(text, text.length(), dest);
+	}
+
+	private boolean fromBase64(String text, int length, ByteBuffer dest) {
+
+		dest.clear();
+		int bits = 0;
+		int numBits = 0;
+
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			if (c == '=') {
+				break;
+			}
+			if ((c >= BASE64_VALUES.length) || (BASE64_VALUES[c] < 0)) {
+				return false;
+			}
+
+			bits = (bits << 6) | BASE64_VALUES[c];
+			numBits += 6;
+			if (numBits >= 8) {
+				numBits -= 8;
+				if (!dest.hasRemaining()) {
+					return false;
+				}
+				dest.put((byte) (bits >>> numBits));
+			}
+		}
+
+		dest.flip();
+		return dest.hasRemaining();
+	}
+
+	/**
+	 * Returns the buffer that is used for encoding and decoding. Callers can
+	 * use this to write or read their own layout, using the static methods in
+	 * this class.
+	 */
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+}
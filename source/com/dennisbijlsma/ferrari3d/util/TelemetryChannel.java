@@ -0,0 +1,54 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// TelemetryChannel
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The values that can be sampled by the telemetry. Every channel is stored as
+ * a float, values such as the gear and the circuit point are stored as whole
+ * numbers and the on-track flag is stored as 0 or 1.
+ */
+public enum TelemetryChannel {
+	SPEED,
+	RPM,
+	GEAR,
+	THROTTLE,
+	BRAKE,
+	STEERING,
+	ANGULAR_SPEED,
+	X,
+	Y,
+	Z,
+	ON_TRACK,
+	POINT;
+
+	/**
+	 * Parses a comma separated list of channel names. Names are not case
+	 * sensitive, the name {@code all} selects every channel. Unknown names are
+	 * ignored.
+	 * @return The channels in the list, or an empty array if the list is empty.
+	 */
+	public static TelemetryChannel[] parseList(String list) {
+
+		if (list.trim().equalsIgnoreCase("all")) {
+			return values();
+		}
+
+		List<TelemetryChannel> channels = new ArrayList<TelemetryChannel>();
+		for (String i : list.split(",")) {
+			for (TelemetryChannel j : values()) {
+				if (j.name().equalsIgnoreCase(i.trim()) && !channels.contains(j)) {
+					channels.add(j);
+				}
+			}
+		}
+
+		return channels.toArray(new TelemetryChannel[0]);
+	}
+}
@@ -0,0 +1,230 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// TelemetryFile
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Reads a telemetry file that was saved by a {@link TelemetryWriter}. The
+ * complete file is loaded into memory, with one array per channel. Files that
+ * were not closed properly, for example because the game crashed, can still be
+ * read up to the last complete block.
+ * <p>
+ * This class can also be used from the command line to export a telemetry
+ * file to CSV. Usage: {@code TelemetryFile <input> [output]}. When no output
+ * file is specified the CSV is written to standard out.
+ */
+public class TelemetryFile {
+
+	private TelemetryChannel[] channels;
+	private String[] cars;
+	private int numRows;
+	private int[] ticks;
+	private byte[] carIndexes;
+	private float[][] columns;
+
+	/**
+	 * Reads a telemetry file.
+	 * @throws IOException if the file cannot be read or is not a telemetry file.
+	 */
+	public TelemetryFile(File file) throws IOException {
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+
+		try {
+			readHeader(in);
+
+			ticks = new int[1024];
+			carIndexes = new byte[1024];
+			columns = new float[channels.length][1024];
+			numRows = 0;
+
+			while (readBlock(in)) {
+				// Blocks are appended to the columns
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private void readHeader(DataInputStream in) throws IOException {
+
+		if (in.readInt() != TelemetryWriter.MAGIC) {
+			throw new IOException("Not a telemetry file");
+		}
+
+		int version = in.readInt();
+		if (version != TelemetryWriter.VERSION) {
+			throw new IOException("Unsupported telemetry file version: " + version);
+		}
+
+		channels = new TelemetryChannel[in.readInt()];
+		for (int i = 0; i < channels.length; i++) {
+			channels[i] = TelemetryChannel.valueOf(in.readUTF());
+		}
+
+		cars = new String[in.readInt()];
+		for (int i = 0; i < cars.length; i++) {
+			cars[i] = in.readUTF();
+		}
+	}
+
+	/**
+	 * Reads the next block and appends it to the columns.
+	 * @return False if the end of the file has been reached.
+	 */
+	private boolean readBlock(DataInputStream in) throws IOException {
+
+		int rows = 0;
+		int[] blockTicks = null;
+		byte[] blockCars = null;
+		float[][] blockColumns = null;
+
+		try {
+			rows = in.readInt();
+			if (rows == 0) {
+				return false;
+			}
+
+			blockTicks = new int[rows];
+			for (int i = 0; i < rows; i++) {
+				blockTicks[i] = in.readInt();
+			}
+			blockCars = new byte[rows];
+			in.readFully(blockCars);
+
+			blockColumns = new float[channels.length][rows];
+			for (float[] column : blockColumns) {
+				for (int i = 0; i < rows; i++) {
+					column[i] = in.readFloat();
+				}
+			}
+		} catch (EOFException e) {
+			// The file was not closed, ignore the incomplete block
+			return false;
+		}
+
+		if (numRows + rows > ticks.length) {
+			int size = Math.max(numRows + rows, ticks.length * 2);
+			ticks = Arrays.copyOf(ticks, size);
+			carIndexes = Arrays.copyOf(carIndexes, size);
+			for (int i = 0; i < columns.length; i++) {
+				columns[i] = Arrays.copyOf(columns[i], size);
+			}
+		}
+
+		System.arraycopy(blockTicks, 0, ticks, numRows, rows);
+		System.arraycopy(blockCars, 0, carIndexes, numRows, rows);
+		for (int i = 0; i < columns.length; i++) {
+			System.arraycopy(blockColumns[i], 0, columns[i], numRows, rows);
+		}
+		numRows += rows;
+		return true;
+	}
+
+	/**
+	 * Writes all samples as CSV. The first line contains the names of the
+	 * columns, every following line contains one sample.
+	 * @throws IOException if an error occurs while writing.
+	 */
+	public void exportCSV(Writer out) throws IOException {
+
+		StringBuilder line = new StringBuilder("tick,car");
+		for (TelemetryChannel i : channels) {
+			line.append(',').append(i.name().toLowerCase());
+		}
+		out.write(line.toString());
+		out.write('\n');
+
+		for (int i = 0; i < numRows; i++) {
+			line.setLength(0);
+			line.append(ticks[i]).append(',').append(cars[carIndexes[i]]);
+			for (float[] column : columns) {
+				line.append(',').append(column[i]);
+			}
+			out.write(line.toString());
+			out.write('\n');
+		}
+
+		out.flush();
+	}
+
+	public TelemetryChannel[] getChannels() {
+		return channels;
+	}
+
+	public int getNumCars() {
+		return cars.length;
+	}
+
+	public String getCarName(int car) {
+		return cars[car];
+	}
+
+	public int getNumRows() {
+		return numRows;
+	}
+
+	public int getTick(int row) {
+		return ticks[row];
+	}
+
+	public int getCar(int row) {
+		return carIndexes[row];
+	}
+
+	/**
+	 * Returns the value of a channel for the specified row.
+	 * @throws IllegalArgumentException if the channel was not recorded.
+	 */
+	public float getValue(int row, TelemetryChannel channel) {
+		for (int i = 0; i < channels.length; i++) {
+			if (channels[i] == channel) {
+				return columns[i][row];
+			}
+		}
+		throw new IllegalArgumentException("Channel not recorded: " + channel);
+	}
+
+	/**
+	 * Exports a telemetry file to CSV from the command line.
+	 */
+	public static void main(String[] args) throws IOException {
+
+		if ((args.length < 1) || (args.length > 2)) {
+			System.out.println("Usage: TelemetryFile <input> [output]");
+			System.exit(1);
+		}
+
+		TelemetryFile telemetry = new TelemetryFile(new File(args[0]));
+		Writer out = null;
+		if (args.length == 2) {
+			out = new BufferedWriter(new FileWriter(args[1]));
+		} else {
+			out = new BufferedWriter(new OutputStreamWriter(System.out));
+		}
+
+		try {
+			telemetry.exportCSV(out);
+		} finally {
+			if (args.length == 2) {
+				out.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,281 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// TelemetryWriter
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Streams telemetry samples to a file. Samples are stored in blocks of rows,
+ * with one array per channel. All blocks are allocated when the writer is
+ * created and are used as a ring buffer: the thread that records samples fills
+ * a block, and then publishes it to a background thread that appends it to
+ * the file. The two threads only communicate through two counters, so neither
+ * thread ever waits for the other. When the background thread falls behind
+ * and all blocks are full, new samples are dropped instead.
+ * <p>
+ * The file starts with a header that describes the channels and the cars,
+ * followed by the blocks. Within a block the tick and the car of every row
+ * are stored first, followed by the values of every channel. The file ends
+ * with an empty block. See {@link TelemetryFile} for reading the file.
+ */
+public class TelemetryWriter implements Runnable {
+
+	private File file;
+	private TelemetryChannel[] channels;
+	private String[] cars;
+	private Block[] blocks;
+	private AtomicLong published;
+	private AtomicLong consumed;
+	private Block current;
+	private long droppedRows;
+	private volatile boolean closed;
+	private Thread thread;
+	private ByteBuffer buffer;
+	private volatile IOException error;
+
+	static final int MAGIC = 0x46335445;
+	static final int VERSION = 1;
+	private static final int BLOCK_ROWS = 1024;
+	private static final int NUM_BLOCKS = 16;
+	private static final long POLL_INTERVAL = 5000000L;
+
+	/**
+	 * Creates a new writer.
+	 * @param channels The channels that will be recorded for every sample.
+	 * @param cars The names of the cars, in the order of their index.
+	 */
+	public TelemetryWriter(File file, TelemetryChannel[] channels, String[] cars) {
+
+		this.file = file;
+		this.channels = channels;
+		this.cars = cars;
+		this.published = new AtomicLong(0L);
+		this.consumed = new AtomicLong(0L);
+		this.droppedRows = 0L;
+		this.closed = false;
+
+		blocks = new Block[NUM_BLOCKS];
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i] = new Block(channels.length);
+		}
+		buffer = ByteBuffer.allocate(4 + BLOCK_ROWS * (5 + 4 * channels.length));
+	}
+
+	/**
+	 * Starts the background thread.
+	 */
+	public void start() {
+		thread = new Thread(this, "Ferrari3D-TelemetryWriter");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Records a sample. This method never blocks and does not allocate any
+	 * objects. It should always be called from the same thread.
+	 * @param tick The number of the tick in which the sample was taken.
+	 * @param car The index of the car.
+	 * @param values The value of every channel, in the order of the channels
+	 *        passed to the constructor.
+	 */
+	public void record(int tick, int car, float[] values) {
+
+		if (current == null) {
+			long index = published.get();
+			if (index - consumed.get() >= blocks.length) {
+				droppedRows++;
+				return;
+			}
+			current = blocks[(int) (index % blocks.length)];
+			current.rows = 0;
+		}
+
+		int row = current.rows;
+		current.ticks[row] = tick;
+		current.cars[row] = (byte) car;
+		for (int i = 0; i < channels.length; i++) {
+			current.columns[i][row] = values[i];
+		}
+
+		current.rows++;
+		if (current.rows == BLOCK_ROWS) {
+			publish();
+		}
+	}
+
+	/**
+	 * Passes the current block to the background thread. The counter is updated
+	 * after the block has been filled, so the background thread will always see
+	 * the complete block.
+	 */
+	private void publish() {
+		current = null;
+		published.lazySet(published.get() + 1L);
+	}
+
+	/**
+	 * Stops recording and tells the background thread to finish the file. This
+	 * does not wait for the file to be written, use {@link #waitForCompletion()}
+	 * for that.
+	 */
+	public void close() {
+
+		if ((current != null) && (current.rows > 0)) {
+			publish();
+		}
+
+		closed = true;
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Waits until the background thread has finished writing the file.
+	 * @throws IOException if an error occurred while writing.
+	 * @throws InterruptedException if the current thread was interrupted.
+	 */
+	public void waitForCompletion() throws IOException, InterruptedException {
+		thread.join();
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 * Writes blocks until the writer is closed.
+	 */
+	public void run() {
+
+		FileOutputStream stream = null;
+
+		try {
+			stream = new FileOutputStream(file);
+			FileChannel out = stream.getChannel();
+			writeHeader(out);
+
+			while (true) {
+				long index = consumed.get();
+				if (index < published.get()) {
+					writeBlock(out, blocks[(int) (index % blocks.length)]);
+					consumed.lazySet(index + 1L);
+				} else if (closed) {
+					// Blocks are published before the writer is closed
+					if (index >= published.get()) {
+						break;
+					}
+				} else {
+					LockSupport.parkNanos(this, POLL_INTERVAL);
+				}
+			}
+
+			buffer.clear();
+			buffer.putInt(0);
+			write(out);
+		} catch (IOException e) {
+			error = e;
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+					error = (error == null) ? e : error;
+				}
+			}
+		}
+
+		if (error != null) {
+			Settings.getInstance().getLogger().warning("Could not save telemetry: " + error);
+		}
+	}
+
+	private void writeHeader(FileChannel out) throws IOException {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(bytes);
+		header.writeInt(MAGIC);
+		header.writeInt(VERSION);
+		header.writeInt(channels.length);
+		for (TelemetryChannel i : channels) {
+			header.writeUTF(i.name());
+		}
+		header.writeInt(cars.length);
+		for (String i : cars) {
+			header.writeUTF(i);
+		}
+
+		ByteBuffer headerBuffer = ByteBuffer.wrap(bytes.toByteArray());
+		while (headerBuffer.hasRemaining()) {
+			out.write(headerBuffer);
+		}
+	}
+
+	/**
+	 * Writes a block to the file. The block is first copied to a buffer, which
+	 * is then written at once.
+	 */
+	private void writeBlock(FileChannel out, Block block) throws IOException {
+
+		buffer.clear();
+		buffer.putInt(block.rows);
+		for (int i = 0; i < block.rows; i++) {
+			buffer.putInt(block.ticks[i]);
+		}
+		buffer.put(block.cars, 0, block.rows);
+
+		for (float[] column : block.columns) {
+			for (int i = 0; i < block.rows; i++) {
+				buffer.putFloat(column[i]);
+			}
+		}
+
+		write(out);
+	}
+
+	private void write(FileChannel out) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+	}
+
+	public TelemetryChannel[] getChannels() {
+		return channels;
+	}
+
+	/**
+	 * Returns the number of samples that were dropped because the background
+	 * thread could not keep up.
+	 */
+	public long getDroppedRows() {
+		return droppedRows;
+	}
+
+	/**
+	 * A block of samples, with one array for every channel.
+	 */
+	private static class Block {
+
+		private int rows;
+		private int[] ticks;
+		private byte[] cars;
+		private float[][] columns;
+
+		public Block(int numChannels) {
+			rows = 0;
+			ticks = new int[BLOCK_ROWS];
+			cars = new byte[BLOCK_ROWS];
+			columns = new float[numChannels][BLOCK_ROWS];
+		}
+	}
+}
@@ -0,0 +1,113 @@
+//-----------------------------------------------------------------------------
+// Ferrari3D
+// TickProfiler
+// (c) 2009 Dennis Bijlsma, BSD license
+//-----------------------------------------------------------------------------
+
+package com.dennisbijlsma.ferrari3d.util;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+/**
+ * Measures how long every stage of the game loop takes. The duration of each
+ * stage is recorded in a {@link LatencyHistogram}, from which the median, the
+ * 99th percentile and the longest duration can be obtained while the game is
+ * running.
+ * <p>
+ * Stages are timed by passing the start time of the stage to
+ * {@link #record(Stage, long)}, which returns the current time so that it can
+ * be used as the start time of the next stage. This means every stage only
+ * costs a single call to {@code System.nanoTime()}.
+ */
+public class TickProfiler {
+
+	private LatencyHistogram[] histograms;
+	private RateMeter ticks;
+
+	public enum Stage {
+		CONTROLS("Controls"),
+		MULTIPLAYER_SEND("Multiplayer send"),
+		MESSAGE_FLUSH("Message flush"),
+		CONTESTANT_CONTROLS("Car controls"),
+		CONTESTANT_PHYSICS("Car physics"),
+		CONTESTANT_LAP_DATA("Car lap data"),
+		CONTESTANT_GRAPHICS("Car graphics"),
+		RECORDING("Recording"),
+		REPLAY("Replay"),
+		CAMERA_HUD("Camera and HUD"),
+		TICK("Total");
+
+		private String label;
+
+		private Stage(String label) {
+			this.label = label;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+	}
+
+	public TickProfiler() {
+		histograms = new LatencyHistogram[Stage.values().length];
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new LatencyHistogram();
+		}
+		ticks = new RateMeter();
+	}
+
+	/**
+	 * Records the duration of a stage, which is the time between the start time
+	 * and now.
+	 * @param start The time at which the stage started, as obtained from
+	 *        {@code System.nanoTime()}.
+	 * @return The current time, from {@code System.nanoTime()}.
+	 */
+	public long record(Stage stage, long start) {
+		long now = System.nanoTime();
+		histograms[stage.ordinal()].record(now - start);
+		if (stage == Stage.TICK) {
+			ticks.increment();
+		}
+		return now;
+	}
+
+	public LatencyHistogram getHistogram(Stage stage) {
+		return histograms[stage.ordinal()];
+	}
+
+	/**
+	 * Returns the meter that counts the number of completed ticks.
+	 */
+	public RateMeter getTicks() {
+		return ticks;
+	}
+
+	/**
+	 * Writes the statistics for all stages as a table. All durations are in
+	 * microseconds.
+	 * @throws IOException if an error occurs while writing.
+	 */
+	public void dump(Writer writer) throws IOException {
+
+		PrintWriter out = new PrintWriter(writer);
+		out.println(String.format("%-18s %10s %10s %10s %10s %10s", "Stage", "Count", "Mean",
+				"p50", "p99", "Max"));
+
+		for (Stage stage : Stage.values()) {
+			LatencyHistogram histogram = getHistogram(stage);
+			long count = histogram.getCount();
+			out.println(String.format("%-18s %10d %10.1f %10.1f %10.1f %10.1f", stage.getLabel(),
+					count, (count > 0L) ? histogram.getTotal() / 1000f / count : 0f,
+					histogram.getPercentile(50.0) / 1000f, histogram.getPercentile(99.0) / 1000f,
+					histogram.getMax() / 1000f));
+		}
+
+		out.flush();
+		if (out.checkError()) {
+			throw new IOException("Could not write profiler statistics");
+		}
+	}
+}
@@ -9,6 +9,7 @@ package com.dennisbijlsma.ferrari3d.util;
 import java.awt.Desktop;
 import java.awt.Dimension;
 import java.awt.Font;
+import java.awt.GraphicsEnvironment;
 import java.awt.Toolkit;
 import java.awt.image.BufferedImage;
 import java.io.File;
@@ -137,9 +138,13 @@ public final class Utils {
 	
 	/**
 	 * Returns the default display mode. This is the mode that is currently active 
-	 * at the time this method is called.
+	 * at the time this method is called. When running without a display (for
+	 * example the headless simulation tools) the default window size is returned.
 	 */
 	public static Dimension getCurrentDisplayMode() {
+		if (GraphicsEnvironment.isHeadless()) {
+			return new Dimension(Settings.WINDOW_WIDTH, Settings.WINDOW_HEIGHT);
+		}
 		return Toolkit.getDefaultToolkit().getScreenSize();
 	}
 	